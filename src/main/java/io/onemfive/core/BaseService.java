@@ -1,6 +1,7 @@
 package io.onemfive.core;
 
 import io.onemfive.core.infovault.InfoVaultDB;
+import io.onemfive.core.infovault.InfoVaultService;
 import io.onemfive.data.*;
 
 import java.io.File;
@@ -18,6 +19,8 @@ public abstract class BaseService implements MessageConsumer, Service, LifeCycle
     private static final Logger LOG = Logger.getLogger(BaseService.class.getName());
 
     protected boolean orchestrator = false;
+    // Set by Services that reply to documents themselves once asynchronous work completes
+    protected boolean replyOnCompletion = false;
     protected MessageProducer producer;
     protected InfoVaultDB infoVaultDB;
     private File serviceDirectory;
@@ -71,6 +74,14 @@ public abstract class BaseService implements MessageConsumer, Service, LifeCycle
         }
     }
 
+    /**
+     * Services, by class name, that must be running before this one is started.
+     * All depend on the InfoVaultService by default as they open its InfoVaultDB on start.
+     */
+    public Set<String> getDependencies() {
+        return Collections.singleton(InfoVaultService.class.getName());
+    }
+
     public MessageProducer getProducer() {
         return producer;
     }
@@ -92,7 +103,8 @@ public abstract class BaseService implements MessageConsumer, Service, LifeCycle
             handleHeaders(envelope);
         // If not orchestrator, always return a reply.
         // If orchestrator, it will determine if a reply should be sent.
-        if(!orchestrator) {
+        // If replying on completion, the Service will reply to documents when done.
+        if(!orchestrator && !(replyOnCompletion && envelope.getMessage() instanceof DocumentMessage)) {
             reply(envelope);
         }
         return true;
@@ -168,7 +180,8 @@ public abstract class BaseService implements MessageConsumer, Service, LifeCycle
         infoVaultDB = OneMFiveAppContext.getInstance().getInfoVaultDB();
         String baseStr = p.getProperty("1m5.dir.base");
         File servicesFolder = new File(baseStr + "/services");
-        if(!servicesFolder.exists() && !servicesFolder.mkdir()) {
+        // Services start in parallel so another may create it first
+        if(!servicesFolder.mkdir() && !servicesFolder.isDirectory()) {
             LOG.severe("Unable to create services directory: " + baseStr + "/services");
             return false;
         }
@@ -211,8 +224,7 @@ public abstract class BaseService implements MessageConsumer, Service, LifeCycle
 
     @Override
     public boolean shutdown() {
-        if(infoVaultDB != null && infoVaultDB.getStatus() == InfoVaultDB.Status.Running)
-            infoVaultDB.teardown();
+        // The InfoVaultDB is shared so torn down by the InfoVaultService alone
         return true;
     }
 
@@ -0,0 +1,109 @@
+package io.onemfive.core;
+
+import io.onemfive.data.JSONSerializable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of where the bus is spending its time: its worker threads, what is queued and in flight
+ * per service, the slowest envelopes recently and JVM memory counters.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class BusProfile implements JSONSerializable {
+
+    public long takenAt;
+    // Span the slowest envelopes were taken from
+    public long windowMs;
+
+    public int workers;
+    public int workersBusy;
+    public double arrivalRate;
+    public double serviceTimeMs;
+    public double queueWaitMs;
+
+    public int queued;
+    public int capacity;
+    // Time the oldest envelope queued has waited
+    public long headAgeMs;
+    // Envelopes held per lazy service while it starts
+    public Map<String,Integer> held = new HashMap<>();
+    // Envelopes being handled per service
+    public Map<String,Integer> inFlight = new HashMap<>();
+
+    public long admitted;
+    public Map<String,Long> shed = new HashMap<>();
+
+    // Slowest first, each with id, totalMs, replied, and hops of service, waitMs and serviceMs in order
+    public List<Map<String,Object>> slowest = new ArrayList<>();
+    // Per worker: name, state, cpuMs, allocatedBytes and stack, top frame first
+    public List<Map<String,Object>> threads = new ArrayList<>();
+
+    // Per collector: count and timeMs, both since the JVM started
+    public Map<String,Map<String,Long>> gc = new HashMap<>();
+    public long heapUsed;
+    public long heapCommitted;
+    // Allocated by the workers running, since each started; -1 if not supported
+    public long workerAllocatedBytes = -1;
+
+    @Override
+    public Map<String, Object> toMap() {
+        Map<String,Object> m = new HashMap<>();
+        m.put("takenAt", takenAt);
+        m.put("windowMs", windowMs);
+        m.put("workers", workers);
+        m.put("workersBusy", workersBusy);
+        m.put("arrivalRate", arrivalRate);
+        m.put("serviceTimeMs", serviceTimeMs);
+        m.put("queueWaitMs", queueWaitMs);
+        m.put("queued", queued);
+        m.put("capacity", capacity);
+        m.put("headAgeMs", headAgeMs);
+        m.put("held", held);
+        m.put("inFlight", inFlight);
+        m.put("admitted", admitted);
+        m.put("shed", shed);
+        m.put("slowest", slowest);
+        m.put("threads", threads);
+        m.put("gc", gc);
+        m.put("heapUsed", heapUsed);
+        m.put("heapCommitted", heapCommitted);
+        m.put("workerAllocatedBytes", workerAllocatedBytes);
+        return m;
+    }
+
+    @Override
+    public void fromMap(Map<String, Object> m) {
+        if(m.get("takenAt") != null) takenAt = ((Number)m.get("takenAt")).longValue();
+        if(m.get("windowMs") != null) windowMs = ((Number)m.get("windowMs")).longValue();
+        if(m.get("workers") != null) workers = ((Number)m.get("workers")).intValue();
+        if(m.get("workersBusy") != null) workersBusy = ((Number)m.get("workersBusy")).intValue();
+        if(m.get("arrivalRate") != null) arrivalRate = ((Number)m.get("arrivalRate")).doubleValue();
+        if(m.get("serviceTimeMs") != null) serviceTimeMs = ((Number)m.get("serviceTimeMs")).doubleValue();
+        if(m.get("queueWaitMs") != null) queueWaitMs = ((Number)m.get("queueWaitMs")).doubleValue();
+        if(m.get("queued") != null) queued = ((Number)m.get("queued")).intValue();
+        if(m.get("capacity") != null) capacity = ((Number)m.get("capacity")).intValue();
+        if(m.get("headAgeMs") != null) headAgeMs = ((Number)m.get("headAgeMs")).longValue();
+        if(m.get("held") != null) held = (Map<String,Integer>)m.get("held");
+        if(m.get("inFlight") != null) inFlight = (Map<String,Integer>)m.get("inFlight");
+        if(m.get("admitted") != null) admitted = ((Number)m.get("admitted")).longValue();
+        if(m.get("shed") != null) shed = (Map<String,Long>)m.get("shed");
+        if(m.get("slowest") != null) slowest = (List<Map<String,Object>>)m.get("slowest");
+        if(m.get("threads") != null) threads = (List<Map<String,Object>>)m.get("threads");
+        if(m.get("gc") != null) gc = (Map<String,Map<String,Long>>)m.get("gc");
+        if(m.get("heapUsed") != null) heapUsed = ((Number)m.get("heapUsed")).longValue();
+        if(m.get("heapCommitted") != null) heapCommitted = ((Number)m.get("heapCommitted")).longValue();
+        if(m.get("workerAllocatedBytes") != null) workerAllocatedBytes = ((Number)m.get("workerAllocatedBytes")).longValue();
+    }
+
+    @Override
+    public String toString() {
+        return "workers="+workersBusy+"/"+workers+" queued="+queued+"/"+capacity+" headAge="+headAgeMs+"ms inFlight="+inFlight
+                +" admitted="+admitted+" shed="+shed+" slowest="+(slowest.isEmpty() ? "none" : slowest.get(0).get("totalMs")+"ms")
+                +" heapUsed="+heapUsed;
+    }
+}
@@ -0,0 +1,68 @@
+package io.onemfive.core;
+
+import io.onemfive.data.JSONSerializable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How draining the bus on shutdown went: whether it finished within its deadline and which
+ * envelopes were left undelivered, persisted for the next start or dropped.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class DrainReport implements JSONSerializable {
+
+    public long deadlineMs;
+    public long durationMs;
+    // True if envelopes, client requests or services were still outstanding at the deadline
+    public boolean timedOut;
+    // Ids of envelopes saved to be delivered on the next start
+    public List<Long> persisted = new ArrayList<>();
+    // Ids of envelopes neither delivered nor persisted
+    public List<Long> dropped = new ArrayList<>();
+    // Client requests still awaiting a reply when the services were shut down
+    public int unansweredRequests;
+    public List<String> servicesNotShutDown = new ArrayList<>();
+
+    /**
+     * @return true if nothing was lost
+     */
+    public boolean clean() {
+        return !timedOut && dropped.isEmpty() && unansweredRequests == 0 && servicesNotShutDown.isEmpty();
+    }
+
+    @Override
+    public Map<String, Object> toMap() {
+        Map<String,Object> m = new HashMap<>();
+        m.put("deadlineMs", deadlineMs);
+        m.put("durationMs", durationMs);
+        m.put("timedOut", timedOut);
+        m.put("persisted", persisted);
+        m.put("dropped", dropped);
+        m.put("unansweredRequests", unansweredRequests);
+        m.put("servicesNotShutDown", servicesNotShutDown);
+        return m;
+    }
+
+    @Override
+    public void fromMap(Map<String, Object> m) {
+        if(m.get("deadlineMs") != null) deadlineMs = ((Number)m.get("deadlineMs")).longValue();
+        if(m.get("durationMs") != null) durationMs = ((Number)m.get("durationMs")).longValue();
+        if(m.get("timedOut") != null) timedOut = (Boolean)m.get("timedOut");
+        if(m.get("persisted") != null) persisted = (List<Long>)m.get("persisted");
+        if(m.get("dropped") != null) dropped = (List<Long>)m.get("dropped");
+        if(m.get("unansweredRequests") != null) unansweredRequests = ((Number)m.get("unansweredRequests")).intValue();
+        if(m.get("servicesNotShutDown") != null) servicesNotShutDown = (List<String>)m.get("servicesNotShutDown");
+    }
+
+    @Override
+    public String toString() {
+        return "drained in "+durationMs+"ms of "+deadlineMs+"ms"+(timedOut ? " (timed out)" : "")
+                +"; persisted="+persisted.size()+" dropped="+dropped.size()+" unanswered="+unansweredRequests
+                +(servicesNotShutDown.isEmpty() ? "" : " not shut down="+servicesNotShutDown);
+    }
+}
@@ -0,0 +1,60 @@
+package io.onemfive.core;
+
+import io.onemfive.data.JSONSerializable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How the start of one service went: when it began relative to the bus starting, how long it took,
+ * and whether it ended running.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class ServiceStartupReport implements JSONSerializable {
+
+    public enum Outcome {STARTED, FAILED, TIMED_OUT, SKIPPED}
+
+    public String serviceClassName;
+    public List<String> dependencies = new ArrayList<>();
+    // Wave the service started in; -1 if outside startup, e.g. registered later
+    public int wave = -1;
+    // Since the bus began starting services
+    public long startedAtMs;
+    public long durationMs;
+    public Outcome outcome;
+    // Why it did not start
+    public String reason;
+
+    @Override
+    public Map<String, Object> toMap() {
+        Map<String,Object> m = new HashMap<>();
+        m.put("serviceClassName", serviceClassName);
+        m.put("dependencies", dependencies);
+        m.put("wave", wave);
+        m.put("startedAtMs", startedAtMs);
+        m.put("durationMs", durationMs);
+        if(outcome != null) m.put("outcome", outcome.name());
+        if(reason != null) m.put("reason", reason);
+        return m;
+    }
+
+    @Override
+    public void fromMap(Map<String, Object> m) {
+        if(m.get("serviceClassName") != null) serviceClassName = (String)m.get("serviceClassName");
+        if(m.get("dependencies") != null) dependencies = (List<String>)m.get("dependencies");
+        if(m.get("wave") != null) wave = ((Number)m.get("wave")).intValue();
+        if(m.get("startedAtMs") != null) startedAtMs = ((Number)m.get("startedAtMs")).longValue();
+        if(m.get("durationMs") != null) durationMs = ((Number)m.get("durationMs")).longValue();
+        if(m.get("outcome") != null) outcome = Outcome.valueOf((String)m.get("outcome"));
+        if(m.get("reason") != null) reason = (String)m.get("reason");
+    }
+
+    @Override
+    public String toString() {
+        return serviceClassName+" wave="+wave+" at="+startedAtMs+"ms took="+durationMs+"ms "+outcome+(reason == null ? "" : " ("+reason+")");
+    }
+}
@@ -28,12 +28,16 @@ public class AdminService extends BaseService {
 
     public static final String OPERATION_REGISTER_SERVICES = "REGISTER_SERVICES";
     public static final String OPERATION_LIST_SERVICES = "LIST_SERVICES";
+    // Entity set to a List of ServiceStartupReport in the order services began starting
+    public static final String OPERATION_STARTUP_TIMELINE = "STARTUP_TIMELINE";
+    // Entity set to a BusProfile of the bus right now
+    public static final String OPERATION_PROFILE = "PROFILE";
 
     private ServiceBus serviceBus;
 
     public AdminService(MessageProducer producer, ServiceStatusListener serviceStatusListener) {
         super(producer, serviceStatusListener);
-        serviceBus = (ServiceBus)producer;
+        serviceBus = (ServiceBus)serviceStatusListener;
     }
 
     @Override
@@ -42,6 +46,8 @@ public class AdminService extends BaseService {
         switch(route.getOperation()) {
             case OPERATION_REGISTER_SERVICES:{registerServices(e);break;}
             case OPERATION_LIST_SERVICES:{listServices(e);break;}
+            case OPERATION_STARTUP_TIMELINE:{startupTimeline(e);break;}
+            case OPERATION_PROFILE:{profile(e);break;}
             default: deadLetter(e);
         }
     }
@@ -76,6 +82,14 @@ public class AdminService extends BaseService {
         DLC.addEntity(serviceBus.listServices(), e);
     }
 
+    private void startupTimeline(Envelope e) {
+        DLC.addEntity(serviceBus.getStartupTimeline(), e);
+    }
+
+    private void profile(Envelope e) {
+        DLC.addEntity(serviceBus.getProfile(), e);
+    }
+
     @Override
     public boolean start(Properties properties) {
         super.start(properties);
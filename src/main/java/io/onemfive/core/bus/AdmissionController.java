@@ -0,0 +1,192 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.orchestration.OrchestrationService;
+import io.onemfive.data.CommandMessage;
+import io.onemfive.data.Envelope;
+import io.onemfive.data.Route;
+import io.onemfive.data.RoutingSlip;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides at the bus ingress whether an envelope is taken on or shed, so that an overloaded bus
+ * refuses work up front instead of queueing it until clients give up on it.
+ *
+ * In order an envelope is shed if:
+ *
+ * 1. the channel is fuller than its priority may fill it, reserving the rest for higher priorities
+ * 2. envelopes have waited in the channel above the queue delay target: low priority ones at once,
+ *    normal priority ones as {@link CoDel} says once the delay has stood for an interval
+ * 3. its client has used up its {@link TokenBucket}, whatever the priority
+ * 4. the service it is headed to has used up its bucket
+ *
+ * High priority envelopes, e.g. commands, are otherwise only shed when the channel is full. A client
+ * may claim no higher priority in the header than the configured client maximum so it cannot claim
+ * HIGH to take the capacity reserved for it.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class AdmissionController {
+
+    // Most client buckets kept before those idle are dropped
+    private static final int MAX_CLIENT_BUCKETS = 1024;
+
+    private final MessageChannel channel;
+    private final CoDel codel;
+    private final double lowShare;
+    private final double normalShare;
+    private final double clientRate;
+    private final double clientBurst;
+    private final ServiceBus.Priority clientMaxPriority;
+    private final Properties properties;
+
+    private final Map<Long,TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    // Service class name to bucket; no entry if not yet looked up, NONE if unlimited
+    private final Map<String,TokenBucket> serviceBuckets = new ConcurrentHashMap<>();
+    private static final TokenBucket NONE = new TokenBucket(0, 1, 0);
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shedCapacity = new AtomicLong();
+    private final AtomicLong shedQueueDelay = new AtomicLong();
+    private final AtomicLong shedClientRate = new AtomicLong();
+    private final AtomicLong shedServiceRate = new AtomicLong();
+
+    AdmissionController(MessageChannel channel, Properties properties) {
+        this.channel = channel;
+        this.properties = properties;
+        long targetMs = Long.parseLong(properties.getProperty(ServiceBus.PROP_QUEUE_DELAY_TARGET, "50"));
+        long intervalMs = Long.parseLong(properties.getProperty(ServiceBus.PROP_QUEUE_DELAY_INTERVAL, "500"));
+        codel = targetMs > 0 ? new CoDel(targetMs * 1000000L, intervalMs * 1000000L) : null;
+        lowShare = Double.parseDouble(properties.getProperty(ServiceBus.PROP_LOW_PRIORITY_SHARE, "0.5"));
+        normalShare = Double.parseDouble(properties.getProperty(ServiceBus.PROP_NORMAL_PRIORITY_SHARE, "0.9"));
+        clientRate = Double.parseDouble(properties.getProperty(ServiceBus.PROP_CLIENT_RATE, "0"));
+        clientBurst = Double.parseDouble(properties.getProperty(ServiceBus.PROP_CLIENT_BURST, String.valueOf(Math.max(1, clientRate))));
+        clientMaxPriority = ServiceBus.Priority.valueOf(properties.getProperty(ServiceBus.PROP_CLIENT_MAX_PRIORITY, ServiceBus.Priority.NORMAL.name()).toUpperCase());
+    }
+
+    /**
+     * @return null if admitted, else why it was shed
+     */
+    String admit(Envelope e) {
+        ServiceBus.Priority priority = priority(e, clientMaxPriority);
+        long now = System.nanoTime();
+
+        double share = priority == ServiceBus.Priority.LOW ? lowShare : priority == ServiceBus.Priority.NORMAL ? normalShare : 1.0;
+        if(channel.size() >= Math.max(1, (int)(channel.getCapacity() * share))) {
+            shedCapacity.incrementAndGet();
+            return "channel "+channel.size()+"/"+channel.getCapacity()+" full for "+priority+" priority";
+        }
+
+        if(codel != null) {
+            codel.sample(channel.headAgeNanos(), now);
+            boolean shed = priority == ServiceBus.Priority.LOW ? codel.aboveTarget()
+                    : priority == ServiceBus.Priority.NORMAL && codel.shed(now);
+            if(shed) {
+                shedQueueDelay.incrementAndGet();
+                return "queue delay "+(channel.headAgeNanos() / 1000000)+"ms above target for "+priority+" priority";
+            }
+        }
+
+        Long client = e.getClient();
+        if(client != null && clientRate > 0 && !clientBucket(client, now).tryTake(now)) {
+            shedClientRate.incrementAndGet();
+            return "client "+client+" over "+clientRate+"/s";
+        }
+        if(priority != ServiceBus.Priority.HIGH) {
+            String service = destination(e);
+            TokenBucket bucket = serviceBucket(service, now);
+            if(bucket != NONE && !bucket.tryTake(now)) {
+                shedServiceRate.incrementAndGet();
+                return "service "+service+" over its rate";
+            }
+        }
+        admitted.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param clientMax highest priority an envelope from a client may claim in its header
+     */
+    static ServiceBus.Priority priority(Envelope e, ServiceBus.Priority clientMax) {
+        Object p = e.getHeader(ServiceBus.HEADER_PRIORITY);
+        ServiceBus.Priority claimed = null;
+        if(p instanceof ServiceBus.Priority) {
+            claimed = (ServiceBus.Priority)p;
+        } else if(p instanceof String) {
+            try {
+                claimed = ServiceBus.Priority.valueOf(((String)p).toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                // Unknown names take the default
+            }
+        }
+        if(claimed == null)
+            return e.getMessage() instanceof CommandMessage ? ServiceBus.Priority.HIGH : ServiceBus.Priority.NORMAL;
+        if(e.getClient() != null && claimed.compareTo(clientMax) > 0)
+            return clientMax;
+        return claimed;
+    }
+
+    /**
+     * Service the envelope is headed to, as routed by WorkerThread and then OrchestrationService.
+     */
+    private static String destination(Envelope e) {
+        Route route = e.getRoute();
+        if(route != null && !route.routed() && route.getService() != null)
+            return route.getService();
+        RoutingSlip slip = e.getDynamicRoutingSlip();
+        Route next = slip == null ? null : slip.peekAtNextRoute();
+        return next != null ? next.getService() : OrchestrationService.class.getName();
+    }
+
+    private TokenBucket clientBucket(Long client, long now) {
+        TokenBucket bucket = clientBuckets.get(client);
+        if(bucket == null) {
+            if(clientBuckets.size() >= MAX_CLIENT_BUCKETS) {
+                // Full buckets are no different from new ones
+                Iterator<TokenBucket> i = clientBuckets.values().iterator();
+                while(i.hasNext()) {
+                    if(i.next().full(now)) i.remove();
+                }
+            }
+            bucket = new TokenBucket(clientRate, clientBurst, now);
+            TokenBucket existing = clientBuckets.putIfAbsent(client, bucket);
+            if(existing != null) bucket = existing;
+        }
+        return bucket;
+    }
+
+    private TokenBucket serviceBucket(String service, long now) {
+        TokenBucket bucket = serviceBuckets.get(service);
+        if(bucket == null) {
+            String rate = properties.getProperty(ServiceBus.PROP_SERVICE_RATE+"."+service, properties.getProperty(ServiceBus.PROP_SERVICE_RATE, "0"));
+            double r = Double.parseDouble(rate);
+            String burst = properties.getProperty(ServiceBus.PROP_SERVICE_BURST+"."+service, properties.getProperty(ServiceBus.PROP_SERVICE_BURST, String.valueOf(Math.max(1, r))));
+            bucket = r > 0 ? new TokenBucket(r, Double.parseDouble(burst), now) : NONE;
+            TokenBucket existing = serviceBuckets.putIfAbsent(service, bucket);
+            if(existing != null) bucket = existing;
+        }
+        return bucket;
+    }
+
+    long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return envelopes shed by cause: capacity, queueDelay, clientRate, serviceRate
+     */
+    Map<String,Long> getShed() {
+        Map<String,Long> shed = new LinkedHashMap<>();
+        shed.put("capacity", shedCapacity.get());
+        shed.put("queueDelay", shedQueueDelay.get());
+        shed.put("clientRate", shedClientRate.get());
+        shed.put("serviceRate", shedServiceRate.get());
+        return shed;
+    }
+}
@@ -0,0 +1,299 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.BusProfile;
+import io.onemfive.data.Envelope;
+
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the counters behind {@link BusProfile}: envelopes in flight per service and the hops each
+ * envelope took through the bus, from which the slowest are kept per window.
+ *
+ * Workers pay a map update per hop and, once an envelope's reply reaches its client, a heap offer;
+ * the thread dump and JVM counters are only read when a profile is taken.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class BusProfiler {
+
+    private static final Logger LOG = Logger.getLogger(BusProfiler.class.getName());
+
+    // Most envelopes traced at once; those beyond are not traced
+    private static final int MAX_TRACES = 10000;
+    // Most hops kept per envelope, e.g. for one caught in a loop
+    private static final int MAX_HOPS = 32;
+    // Stack frames kept per worker thread
+    private static final int STACK_DEPTH = 16;
+    static final String CLIENT = "client";
+
+    // HotSpot's ThreadMXBean extension for allocation counts, looked up so other runtimes just go without
+    private static final Class<?> ALLOCATING_BEAN;
+    private static final Method ALLOCATED_SUPPORTED;
+    private static final Method ALLOCATED_ENABLED;
+    private static final Method ALLOCATED_BYTES;
+    static {
+        Class<?> bean = null;
+        Method supported = null, enabled = null, bytes = null;
+        try {
+            bean = Class.forName("com.sun.management.ThreadMXBean");
+            supported = bean.getMethod("isThreadAllocatedMemorySupported");
+            enabled = bean.getMethod("isThreadAllocatedMemoryEnabled");
+            bytes = bean.getMethod("getThreadAllocatedBytes", long[].class);
+        } catch (Exception | LinkageError e) {
+            bean = null;
+            LOG.fine("Thread allocation counts not available: "+e);
+        }
+        ALLOCATING_BEAN = bean;
+        ALLOCATED_SUPPORTED = supported;
+        ALLOCATED_ENABLED = enabled;
+        ALLOCATED_BYTES = bytes;
+    }
+
+    private final int slowest;
+    private final long windowNanos;
+    private final ConcurrentHashMap<String,AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long,Trace> traces = new ConcurrentHashMap<>();
+
+    // Guarded by this; slowest kept fastest first so the fastest is dropped
+    private long windowStart = System.nanoTime();
+    private PriorityQueue<Trace> current = new PriorityQueue<>();
+    private PriorityQueue<Trace> previous = new PriorityQueue<>();
+
+    /**
+     * @param slowest envelopes kept per window; 0 to not trace envelopes
+     * @param windowMs span envelopes are kept over
+     */
+    BusProfiler(int slowest, long windowMs) {
+        this.slowest = slowest;
+        this.windowNanos = windowMs * 1000000L;
+    }
+
+    void enter(String service) {
+        AtomicInteger n = inFlight.get(service);
+        if(n == null) {
+            n = new AtomicInteger();
+            AtomicInteger existing = inFlight.putIfAbsent(service, n);
+            if(existing != null) n = existing;
+        }
+        n.incrementAndGet();
+    }
+
+    void exit(String service) {
+        AtomicInteger n = inFlight.get(service);
+        if(n != null) n.decrementAndGet();
+    }
+
+    /**
+     * Record an envelope having been handled.
+     * @param waitNanos time it waited in the channel
+     * @param startNanos System.nanoTime() when a worker began on it
+     * @param last true if its reply has reached its client
+     */
+    void hop(Envelope e, String service, long waitNanos, long startNanos, boolean last) {
+        if(slowest <= 0 || e.getId() == null) return;
+        long end = System.nanoTime();
+        Trace t = traces.get(e.getId());
+        if(t == null) {
+            if(!last && traces.size() >= MAX_TRACES) return;
+            t = new Trace(e.getId(), startNanos - waitNanos);
+            if(!last) {
+                Trace existing = traces.putIfAbsent(e.getId(), t);
+                if(existing != null) t = existing;
+            }
+        }
+        t.add(service, waitNanos, end - startNanos, end);
+        if(last) {
+            t.replied = true;
+            traces.remove(e.getId(), t);
+            complete(t, end);
+        }
+    }
+
+    private synchronized void complete(Trace t, long now) {
+        rotate(now);
+        keep(t);
+    }
+
+    private void keep(Trace t) {
+        current.offer(t);
+        if(current.size() > slowest) current.poll();
+    }
+
+    private void keep(PriorityQueue<Trace> kept, Collection<Trace> traces) {
+        for(Trace t : traces) {
+            kept.offer(t);
+            if(kept.size() > slowest) kept.poll();
+        }
+    }
+
+    /**
+     * Start a new window if this one is over, taking envelopes not moving for a window as done,
+     * e.g. those not replying to a client.
+     */
+    private void rotate(long now) {
+        if(now - windowStart < windowNanos) return;
+        Iterator<Trace> i = traces.values().iterator();
+        while(i.hasNext()) {
+            Trace t = i.next();
+            if(now - t.end() >= windowNanos) {
+                i.remove();
+                keep(t);
+            }
+        }
+        previous = now - windowStart < 2 * windowNanos ? current : new PriorityQueue<Trace>();
+        current = new PriorityQueue<>();
+        windowStart = now;
+    }
+
+    BusProfile profile(MessageChannel channel, WorkerThreadPool pool, LazyServices lazyServices, AdmissionController admission) {
+        BusProfile p = new BusProfile();
+        p.takenAt = System.currentTimeMillis();
+        p.windowMs = windowNanos / 1000000L;
+
+        if(channel != null) {
+            p.queued = channel.size();
+            p.capacity = channel.getCapacity();
+            p.headAgeMs = channel.headAgeNanos() / 1000000L;
+        }
+        if(lazyServices != null) p.held = lazyServices.heldByService();
+        for(Map.Entry<String,AtomicInteger> n : inFlight.entrySet()) {
+            if(n.getValue().get() > 0) p.inFlight.put(n.getKey(), n.getValue().get());
+        }
+        if(admission != null) {
+            p.admitted = admission.getAdmitted();
+            p.shed = admission.getShed();
+        }
+
+        PriorityQueue<Trace> kept = new PriorityQueue<>();
+        synchronized (this) {
+            rotate(System.nanoTime());
+            keep(kept, current);
+            keep(kept, previous);
+        }
+        // Those still moving count by their time so far, e.g. events not replying to a client
+        keep(kept, traces.values());
+        List<Trace> slowestFirst = new ArrayList<>(kept);
+        Collections.sort(slowestFirst, Collections.<Trace>reverseOrder());
+        for(Trace t : slowestFirst) {
+            p.slowest.add(t.toMap());
+        }
+
+        if(pool != null) {
+            p.workers = pool.getSize();
+            p.workersBusy = pool.getBusy();
+            WorkerPoolSizer sizer = pool.getSizer();
+            p.arrivalRate = sizer.getArrivalRate();
+            p.serviceTimeMs = sizer.getServiceTimeMs();
+            p.queueWaitMs = sizer.getQueueWaitMs();
+            threads(p, pool.getThreadIds());
+        }
+
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            Map<String,Long> m = new HashMap<>();
+            m.put("count", gc.getCollectionCount());
+            m.put("timeMs", gc.getCollectionTime());
+            p.gc.put(gc.getName(), m);
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        p.heapUsed = heap.getUsed();
+        p.heapCommitted = heap.getCommitted();
+        return p;
+    }
+
+    private static void threads(BusProfile p, long[] ids) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpuTimed = threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+        long[] allocated = allocated(threads, ids);
+        if(allocated != null) p.workerAllocatedBytes = 0;
+        // Stacks only, without the lock details that need a fuller safepoint
+        ThreadInfo[] infos = threads.getThreadInfo(ids, STACK_DEPTH);
+        for(int i = 0; i < infos.length; i++) {
+            ThreadInfo info = infos[i];
+            // Retired since its id was read
+            if(info == null) continue;
+            Map<String,Object> m = new HashMap<>();
+            m.put("name", info.getThreadName());
+            m.put("state", info.getThreadState().name());
+            if(cpuTimed) m.put("cpuMs", threads.getThreadCpuTime(ids[i]) / 1000000L);
+            if(allocated != null && allocated[i] >= 0) {
+                m.put("allocatedBytes", allocated[i]);
+                p.workerAllocatedBytes += allocated[i];
+            }
+            List<String> stack = new ArrayList<>();
+            for(StackTraceElement frame : info.getStackTrace()) stack.add(frame.toString());
+            m.put("stack", stack);
+            p.threads.add(m);
+        }
+    }
+
+    /**
+     * @return bytes allocated by each thread, or null if the runtime does not count them
+     */
+    private static long[] allocated(ThreadMXBean threads, long[] ids) {
+        if(ALLOCATING_BEAN == null || !ALLOCATING_BEAN.isInstance(threads)) return null;
+        try {
+            if((Boolean)ALLOCATED_SUPPORTED.invoke(threads) && (Boolean)ALLOCATED_ENABLED.invoke(threads))
+                return (long[])ALLOCATED_BYTES.invoke(threads, (Object)ids);
+        } catch (Exception e) {
+            LOG.fine("Unable to read thread allocation counts: "+e);
+        }
+        return null;
+    }
+
+    private static final class Trace implements Comparable<Trace> {
+        private final Long id;
+        private final long start;
+        // Guarded by this
+        private final List<long[]> timings = new ArrayList<>();
+        private final List<String> services = new ArrayList<>();
+        private long end;
+        private volatile boolean replied;
+
+        private Trace(Long id, long start) {
+            this.id = id;
+            this.start = start;
+            this.end = start;
+        }
+
+        private synchronized void add(String service, long waitNanos, long serviceNanos, long end) {
+            if(services.size() < MAX_HOPS) {
+                services.add(service);
+                timings.add(new long[]{waitNanos, serviceNanos});
+            }
+            this.end = Math.max(this.end, end);
+        }
+
+        private synchronized long end() {
+            return end;
+        }
+
+        @Override
+        public int compareTo(Trace t) {
+            return Long.compare(end() - start, t.end() - t.start);
+        }
+
+        private synchronized Map<String,Object> toMap() {
+            Map<String,Object> m = new HashMap<>();
+            m.put("id", id);
+            m.put("totalMs", (end - start) / 1000000.0);
+            // False if not yet or never replied to its client
+            m.put("replied", replied);
+            List<Map<String,Object>> hops = new ArrayList<>(services.size());
+            for(int i = 0; i < services.size(); i++) {
+                Map<String,Object> hop = new HashMap<>();
+                hop.put("service", services.get(i));
+                hop.put("waitMs", timings.get(i)[0] / 1000000.0);
+                hop.put("serviceMs", timings.get(i)[1] / 1000000.0);
+                hops.add(hop);
+            }
+            m.put("hops", hops);
+            return m;
+        }
+    }
+}
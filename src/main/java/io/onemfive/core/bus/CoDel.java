@@ -0,0 +1,81 @@
+package io.onemfive.core.bus;
+
+/**
+ * Controlled Delay (RFC 8289) state deciding when to shed envelopes to keep the time they wait in the
+ * channel near a target.
+ *
+ * Short bursts are let through: only once the delay has stayed above target for a whole interval is
+ * the queue standing, and then envelopes are shed at a rate rising with the square root of those
+ * shed until the delay falls back under target. Shedding happens at the bus ingress rather than on
+ * dequeue so that work is refused before any is done on it and its client learns at once.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class CoDel {
+
+    private final long targetNanos;
+    private final long intervalNanos;
+
+    // Guarded by this
+    private boolean above;
+    // When the delay will have been above target an interval; 0 if under target
+    private long firstAboveTime;
+    private boolean dropping;
+    private long dropNext;
+    private int count;
+    private int lastCount;
+
+    CoDel(long targetNanos, long intervalNanos) {
+        this.targetNanos = targetNanos;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * @param delayNanos time the oldest envelope queued has waited
+     * @param now System.nanoTime()
+     */
+    synchronized void sample(long delayNanos, long now) {
+        if(delayNanos < targetNanos) {
+            above = false;
+            firstAboveTime = 0;
+            dropping = false;
+            return;
+        }
+        above = true;
+        if(firstAboveTime == 0) firstAboveTime = now + intervalNanos;
+    }
+
+    /**
+     * @return true if the delay was above target when last sampled
+     */
+    synchronized boolean aboveTarget() {
+        return above;
+    }
+
+    /**
+     * Whether an envelope arriving now should be shed, counting it if so.
+     * @param now System.nanoTime()
+     */
+    synchronized boolean shed(long now) {
+        if(!above) return false;
+        if(dropping) {
+            if(now - dropNext < 0) return false;
+            count++;
+            dropNext = controlLaw(dropNext);
+            return true;
+        }
+        if(firstAboveTime == 0 || now - firstAboveTime < 0) return false;
+        dropping = true;
+        // Resume near the rate shedding last stopped at if it was recently
+        int delta = count - lastCount;
+        count = delta > 1 && now - dropNext < 16 * intervalNanos ? delta : 1;
+        lastCount = count;
+        dropNext = controlLaw(now);
+        return true;
+    }
+
+    private long controlLaw(long t) {
+        return t + (long)(intervalNanos / Math.sqrt(count));
+    }
+}
@@ -0,0 +1,725 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.ServiceRequest;
+import io.onemfive.core.keyring.*;
+import io.onemfive.core.util.SimpleByteCache;
+import io.onemfive.core.util.data.ByteArray;
+import io.onemfive.data.DocumentMessage;
+import io.onemfive.data.Envelope;
+import io.onemfive.data.Message;
+import io.onemfive.data.Route;
+import io.onemfive.data.RoutingSlip;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary encoding of envelopes for persisting them or passing them between processes,
+ * in place of Java serialization.
+ *
+ * An envelope is a version byte, a flags byte, its id and client as 8 byte big endian longs, then
+ * only the parts present: command path, route, routing slip, headers and message. The maps of a
+ * document message, where {@link io.onemfive.data.util.DLC} keeps data, are written inline.
+ *
+ * Values are a tag byte followed by the value. Strings, byte arrays, numbers, booleans, enums,
+ * lists, sets and maps have their own tags; lengths, counts and integers are varints. Routes are
+ * written as their class, service, operation and routed flag; routing slips as their in progress
+ * flag and remaining routes. {@link ServiceRequest}s registered with {@link #registerRequest(Class)},
+ * e.g. the key ring requests, are written as their class followed by each public field in a schema
+ * derived once per class. Anything else Serializable falls back to Java serialization.
+ *
+ * Decoding only builds requests of registered classes and only deserializes classes allowed by
+ * {@link SerializedInput}: those of 1M5, throwables, boxed primitives, strings and the common
+ * collections, so an envelope from another process can not name classes to instantiate.
+ *
+ * Encoding uses buffers pooled by {@link SimpleByteCache}, which unlike ByteCache needs no app
+ * context so out-of-process clients can use it too; decoding reads straight from a ByteBuffer,
+ * e.g. a memory mapped one, copying only the bytes of strings and arrays.
+ *
+ * Both ends must run the same classes: request schemas are not versioned beyond a field count.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public final class EnvelopeCodec {
+
+    public static final byte VERSION = 1;
+
+    // Size of pooled encoding buffers; larger envelopes grow into unpooled ones
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    // Envelope flags
+    private static final int F_ID = 1;
+    private static final int F_CLIENT = 1 << 1;
+    private static final int F_REPLY_TO_CLIENT = 1 << 2;
+    private static final int F_COMMAND_PATH = 1 << 3;
+    private static final int F_ROUTE = 1 << 4;
+    private static final int F_SLIP = 1 << 5;
+    private static final int F_MESSAGE = 1 << 6;
+    private static final int F_DOCUMENT = 1 << 7;
+
+    // Value tags
+    private static final byte T_NULL = 0;
+    private static final byte T_TRUE = 1;
+    private static final byte T_FALSE = 2;
+    private static final byte T_INT = 3;
+    private static final byte T_LONG = 4;
+    private static final byte T_DOUBLE = 5;
+    private static final byte T_FLOAT = 6;
+    private static final byte T_STRING = 7;
+    private static final byte T_BYTES = 8;
+    private static final byte T_LIST = 9;
+    private static final byte T_SET = 10;
+    private static final byte T_MAP = 11;
+    private static final byte T_ENUM = 12;
+    private static final byte T_ROUTE = 13;
+    private static final byte T_REQUEST = 14;
+    private static final byte T_SERIALIZED = 15;
+    private static final byte T_SLIP = 16;
+
+    private static final Map<String,Class<?>> classes = new ConcurrentHashMap<>();
+    private static final Map<Class<?>,Constructor<?>> routeConstructors = new ConcurrentHashMap<>();
+    private static final Map<Class<?>,RequestSchema> requestSchemas = new ConcurrentHashMap<>();
+    // Requests that may be decoded
+    private static final Set<Class<?>> requests = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>,Boolean>());
+    static {
+        for(Class<? extends ServiceRequest> c : Arrays.asList(AuthNRequest.class, DecryptRequest.class,
+                DecryptStreamRequest.class, DecryptSymmetricRequest.class, EncryptRequest.class,
+                EncryptStreamRequest.class, EncryptSymmetricRequest.class, GenerateKeyRingCollectionsRequest.class,
+                GenerateKeyRingsRequest.class, GetPublicKeyRequest.class, KeyRingsRequest.class,
+                SaveKeyRingsRequest.class, SignBatchRequest.class, SignRequest.class, StorePublicKeysRequest.class,
+                VerifySignatureBatchRequest.class, VerifySignatureRequest.class)) {
+            registerRequest(c);
+        }
+    }
+
+    private EnvelopeCodec() {}
+
+    /**
+     * Allow a request class to be encoded field by field and decoded, e.g. by a service for its own requests.
+     * Requests not registered are written as any other object.
+     */
+    public static void registerRequest(Class<? extends ServiceRequest> c) {
+        requests.add(c);
+    }
+
+    public static byte[] encode(Envelope e) throws IOException {
+        ByteArray b = encodePooled(e);
+        try {
+            return Arrays.copyOfRange(b.getData(), b.getOffset(), b.getOffset() + b.getValid());
+        } finally {
+            release(b);
+        }
+    }
+
+    /**
+     * Encode without copying out of the buffer; the bytes are valid from the offset.
+     * Pass the result to {@link #release(ByteArray)} once done with it.
+     */
+    public static ByteArray encodePooled(Envelope e) throws IOException {
+        Sink out = new Sink(new ByteArray(SimpleByteCache.acquire(BUFFER_SIZE)));
+        try {
+            writeEnvelope(e, out);
+        } catch (IOException | RuntimeException ex) {
+            release(out.array);
+            throw ex;
+        }
+        out.array.setOffset(0);
+        out.array.setValid(out.pos);
+        return out.array;
+    }
+
+    public static void release(ByteArray b) {
+        if(b != null && b.getData().length == BUFFER_SIZE)
+            SimpleByteCache.release(b.getData());
+    }
+
+    public static Envelope decode(byte[] b) throws IOException {
+        return decode(ByteBuffer.wrap(b));
+    }
+
+    public static Envelope decode(byte[] b, int offset, int length) throws IOException {
+        return decode(ByteBuffer.wrap(b, offset, length));
+    }
+
+    /**
+     * Decode the envelope starting at the buffer's position, leaving the position after it.
+     */
+    public static Envelope decode(ByteBuffer in) throws IOException {
+        try {
+            return readEnvelope(in);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated envelope");
+        } catch (ClassCastException | IllegalArgumentException ex) {
+            throw new IOException("Malformed envelope: "+ex.getLocalizedMessage());
+        }
+    }
+
+    private static void writeEnvelope(Envelope e, Sink out) throws IOException {
+        RoutingSlip slip = e.getDynamicRoutingSlip();
+        // Most slips are empty; the decoded envelope gets its own empty one
+        boolean writeSlip = slip != null && (slip.inProgress() || slip.numberRemainingRoutes() > 0);
+        Message m = e.getMessage();
+        int flags = 0;
+        if(e.getId() != null) flags |= F_ID;
+        if(e.getClient() != null) flags |= F_CLIENT;
+        if(e.replyToClient()) flags |= F_REPLY_TO_CLIENT;
+        if(e.getCommandPath() != null) flags |= F_COMMAND_PATH;
+        if(e.getRoute() != null) flags |= F_ROUTE;
+        if(writeSlip) flags |= F_SLIP;
+        if(m instanceof DocumentMessage) flags |= F_DOCUMENT;
+        else if(m != null) flags |= F_MESSAGE;
+
+        out.put(VERSION);
+        out.put((byte)flags);
+        if((flags & F_ID) != 0) out.putLong(e.getId());
+        if((flags & F_CLIENT) != 0) out.putLong(e.getClient());
+        if((flags & F_COMMAND_PATH) != 0) writeString(e.getCommandPath(), out);
+        if((flags & F_ROUTE) != 0) writeValue(e.getRoute(), out);
+        if(writeSlip) writeSlip(slip, out);
+        Map<String,Object> headers = e.getHeaders();
+        if(headers == null) {
+            out.putVarint(0);
+        } else {
+            writeMapEntries(headers, out);
+        }
+        if((flags & F_DOCUMENT) != 0) {
+            List<Map<String,Object>> data = ((DocumentMessage)m).data;
+            out.putVarint(data.size());
+            for(Map<String,Object> map : data) {
+                writeMapEntries(map, out);
+            }
+        } else if((flags & F_MESSAGE) != 0) {
+            writeValue(m, out);
+        }
+    }
+
+    private static Envelope readEnvelope(ByteBuffer in) throws IOException {
+        byte version = in.get();
+        if(version != VERSION)
+            throw new IOException("Unsupported envelope encoding version: "+version);
+        int flags = in.get() & 0xFF;
+        Long id = (flags & F_ID) != 0 ? in.getLong() : null;
+        Envelope e = Envelope.documentFactory(id);
+        if((flags & F_CLIENT) != 0) e.setClient(in.getLong());
+        e.setReplyToClient((flags & F_REPLY_TO_CLIENT) != 0);
+        if((flags & F_COMMAND_PATH) != 0) e.setCommandPath(readString(in));
+        if((flags & F_ROUTE) != 0) e.setRoute((Route)readValue(in));
+        if((flags & F_SLIP) != 0) e.setDynamicRoutingSlip(readSlip(in));
+        Map<String,Object> headers = new HashMap<>();
+        readMapEntries(in, headers);
+        for(Map.Entry<String,Object> h : headers.entrySet()) {
+            e.setHeader(h.getKey(), h.getValue());
+        }
+        if((flags & F_DOCUMENT) != 0) {
+            DocumentMessage m = e.getMessage() instanceof DocumentMessage ? (DocumentMessage)e.getMessage() : new DocumentMessage();
+            m.data.clear();
+            int n = readCount(in);
+            for(int i = 0; i < n; i++) {
+                Map<String,Object> map = new HashMap<>();
+                readMapEntries(in, map);
+                m.data.add(map);
+            }
+            e.setMessage(m);
+        } else if((flags & F_MESSAGE) != 0) {
+            e.setMessage((Message)readValue(in));
+        } else {
+            e.setMessage(null);
+        }
+        return e;
+    }
+
+    private static void writeValue(Object o, Sink out) throws IOException {
+        if(o == null) {
+            out.put(T_NULL);
+        } else if(o instanceof String) {
+            out.put(T_STRING);
+            writeString((String)o, out);
+        } else if(o instanceof Boolean) {
+            out.put((Boolean)o ? T_TRUE : T_FALSE);
+        } else if(o instanceof Integer) {
+            out.put(T_INT);
+            out.putVarint(zigZag((Integer)o));
+        } else if(o instanceof Long) {
+            out.put(T_LONG);
+            out.putVarint(zigZag((Long)o));
+        } else if(o instanceof Double) {
+            out.put(T_DOUBLE);
+            out.putLong(Double.doubleToRawLongBits((Double)o));
+        } else if(o instanceof Float) {
+            out.put(T_FLOAT);
+            out.putVarint(Float.floatToRawIntBits((Float)o) & 0xFFFFFFFFL);
+        } else if(o instanceof byte[]) {
+            byte[] b = (byte[])o;
+            out.put(T_BYTES);
+            out.putVarint(b.length);
+            out.put(b, 0, b.length);
+        } else if(o instanceof List) {
+            out.put(T_LIST);
+            writeElements((List<?>)o, out);
+        } else if(o instanceof Set) {
+            out.put(T_SET);
+            writeElements((Set<?>)o, out);
+        } else if(o instanceof Map && stringKeys((Map<?,?>)o)) {
+            out.put(T_MAP);
+            writeMapEntries((Map<String,?>)o, out);
+        } else if(o instanceof Enum) {
+            out.put(T_ENUM);
+            writeString(((Enum<?>)o).getDeclaringClass().getName(), out);
+            writeString(((Enum<?>)o).name(), out);
+        } else if(o instanceof Route && routeConstructor(o.getClass()) != null) {
+            Route r = (Route)o;
+            out.put(T_ROUTE);
+            writeString(o.getClass().getName(), out);
+            writeValue(r.getService(), out);
+            writeValue(r.getOperation(), out);
+            out.put(r.routed() ? T_TRUE : T_FALSE);
+        } else if(o instanceof RoutingSlip) {
+            writeSlip((RoutingSlip)o, out);
+        } else if(o instanceof ServiceRequest && requests.contains(o.getClass()) && requestSchema(o.getClass()) != null) {
+            RequestSchema schema = requestSchema(o.getClass());
+            out.put(T_REQUEST);
+            writeString(o.getClass().getName(), out);
+            out.putVarint(schema.fields.length);
+            try {
+                for(Field f : schema.fields) {
+                    writeValue(f.get(o), out);
+                }
+            } catch (IllegalAccessException ex) {
+                throw new IOException(ex.getLocalizedMessage());
+            }
+        } else if(o instanceof Serializable) {
+            out.put(T_SERIALIZED);
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(256);
+            ObjectOutputStream oOut = new ObjectOutputStream(bOut);
+            oOut.writeObject(o);
+            oOut.close();
+            out.putVarint(bOut.size());
+            out.put(bOut.toByteArray(), 0, bOut.size());
+        } else {
+            throw new NotSerializableException(o.getClass().getName());
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch(tag) {
+            case T_NULL: return null;
+            case T_TRUE: return Boolean.TRUE;
+            case T_FALSE: return Boolean.FALSE;
+            case T_INT: return (int)unZigZag(readVarint(in));
+            case T_LONG: return unZigZag(readVarint(in));
+            case T_DOUBLE: return Double.longBitsToDouble(in.getLong());
+            case T_FLOAT: return Float.intBitsToFloat((int)readVarint(in));
+            case T_STRING: return readString(in);
+            case T_BYTES: {
+                byte[] b = new byte[readLength(in)];
+                in.get(b);
+                return b;
+            }
+            case T_LIST: {
+                int n = readCount(in);
+                List<Object> l = new ArrayList<>(n);
+                for(int i = 0; i < n; i++) l.add(readValue(in));
+                return l;
+            }
+            case T_SET: {
+                int n = readCount(in);
+                Set<Object> s = new HashSet<>();
+                for(int i = 0; i < n; i++) s.add(readValue(in));
+                return s;
+            }
+            case T_MAP: {
+                Map<String,Object> m = new HashMap<>();
+                readMapEntries(in, m);
+                return m;
+            }
+            case T_ENUM: {
+                Class<?> c = load(readString(in));
+                if(!c.isEnum())
+                    throw new IOException("Not an enum: "+c.getName());
+                return Enum.valueOf((Class)c, readString(in));
+            }
+            case T_ROUTE: {
+                Class<?> c = load(readString(in));
+                Constructor<?> ctor = Route.class.isAssignableFrom(c) ? routeConstructor(c) : null;
+                if(ctor == null)
+                    throw new IOException("Not a route: "+c.getName());
+                String service = (String)readValue(in);
+                String operation = (String)readValue(in);
+                boolean routed = in.get() == T_TRUE;
+                try {
+                    Route r = (Route)ctor.newInstance(service, operation);
+                    r.setRouted(routed);
+                    return r;
+                } catch (ReflectiveOperationException ex) {
+                    throw new IOException("Unable to build route "+c.getName()+": "+ex.getLocalizedMessage());
+                }
+            }
+            case T_SLIP: return readSlipFields(in);
+            case T_REQUEST: {
+                Class<?> c = load(readString(in));
+                if(!requests.contains(c))
+                    throw new IOException("Request not registered: "+c.getName());
+                RequestSchema schema = requestSchema(c);
+                if(schema == null)
+                    throw new IOException("Not a request: "+c.getName());
+                int n = readCount(in);
+                if(n != schema.fields.length)
+                    throw new IOException("Request "+c.getName()+" has "+schema.fields.length+" fields here, "+n+" encoded");
+                try {
+                    Object r = schema.constructor.newInstance();
+                    for(Field f : schema.fields) {
+                        Object v = readValue(in);
+                        if(v != null || !f.getType().isPrimitive())
+                            f.set(r, v);
+                    }
+                    return r;
+                } catch (ReflectiveOperationException ex) {
+                    throw new IOException("Unable to build request "+c.getName()+": "+ex.getLocalizedMessage());
+                }
+            }
+            case T_SERIALIZED: {
+                byte[] b = new byte[readLength(in)];
+                in.get(b);
+                ObjectInputStream oIn = new SerializedInput(new ByteArrayInputStream(b));
+                try {
+                    return oIn.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("Unknown class: "+ex.getLocalizedMessage());
+                } finally {
+                    oIn.close();
+                }
+            }
+            default: throw new IOException("Unknown value tag: "+tag);
+        }
+    }
+
+    /**
+     * Routes are taken off the slip to be written, there being no other way to list them, then put back.
+     */
+    private static void writeSlip(RoutingSlip slip, Sink out) throws IOException {
+        boolean inProgress = slip.inProgress();
+        List<Route> routes = new ArrayList<>(slip.numberRemainingRoutes());
+        while(slip.numberRemainingRoutes() > 0) {
+            routes.add(slip.nextRoute());
+        }
+        try {
+            out.put(T_SLIP);
+            out.put(inProgress ? T_TRUE : T_FALSE);
+            // Next route first
+            out.putVarint(routes.size());
+            for(Route r : routes) {
+                writeValue(r, out);
+            }
+        } finally {
+            for(int i = routes.size() - 1; i >= 0; i--) {
+                slip.addRoute(routes.get(i));
+            }
+        }
+    }
+
+    private static RoutingSlip readSlip(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        if(tag != T_SLIP)
+            throw new IOException("Not a routing slip: "+tag);
+        return readSlipFields(in);
+    }
+
+    private static RoutingSlip readSlipFields(ByteBuffer in) throws IOException {
+        boolean inProgress = in.get() == T_TRUE;
+        int n = readCount(in);
+        List<Route> routes = new ArrayList<>(n);
+        for(int i = 0; i < n; i++) {
+            routes.add((Route)readValue(in));
+        }
+        RoutingSlip slip = new RoutingSlip();
+        for(int i = routes.size() - 1; i >= 0; i--) {
+            slip.addRoute(routes.get(i));
+        }
+        if(inProgress) slip.start();
+        return slip;
+    }
+
+    private static void writeElements(Collection<?> c, Sink out) throws IOException {
+        out.putVarint(c.size());
+        for(Object o : c) {
+            writeValue(o, out);
+        }
+    }
+
+    private static void writeMapEntries(Map<String,?> m, Sink out) throws IOException {
+        out.putVarint(m.size());
+        for(Map.Entry<String,?> entry : m.entrySet()) {
+            writeString(entry.getKey(), out);
+            writeValue(entry.getValue(), out);
+        }
+    }
+
+    private static void readMapEntries(ByteBuffer in, Map<String,Object> m) throws IOException {
+        int n = readCount(in);
+        for(int i = 0; i < n; i++) {
+            m.put(readString(in), readValue(in));
+        }
+    }
+
+    private static boolean stringKeys(Map<?,?> m) {
+        for(Object k : m.keySet()) {
+            if(!(k instanceof String)) return false;
+        }
+        return true;
+    }
+
+    private static void writeString(String s, Sink out) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.putVarint(b.length);
+        out.put(b, 0, b.length);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int len = readLength(in);
+        if(in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+            return s;
+        }
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long v = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long)(b & 0x7F) << shift;
+            if(b >= 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * A byte length, which can not exceed what is left.
+     */
+    private static int readLength(ByteBuffer in) throws IOException {
+        long len = readVarint(in);
+        if(len < 0 || len > in.remaining())
+            throw new IOException("Length "+len+" exceeds the "+in.remaining()+" bytes left");
+        return (int)len;
+    }
+
+    /**
+     * An element count; every element takes at least a byte.
+     */
+    private static int readCount(ByteBuffer in) throws IOException {
+        return readLength(in);
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static Class<?> load(String name) throws IOException {
+        Class<?> c = classes.get(name);
+        if(c == null) {
+            try {
+                // Not initialized until known to be of an expected type
+                c = Class.forName(name, false, EnvelopeCodec.class.getClassLoader());
+            } catch (ClassNotFoundException ex) {
+                throw new IOException("Unknown class: "+name);
+            }
+            classes.put(name, c);
+        }
+        return c;
+    }
+
+    /**
+     * @return the route's (service, operation) constructor or null if it has none
+     */
+    private static Constructor<?> routeConstructor(Class<?> c) {
+        Constructor<?> ctor = routeConstructors.get(c);
+        if(ctor == null && !routeConstructors.containsKey(c)) {
+            try {
+                ctor = c.getConstructor(String.class, String.class);
+            } catch (NoSuchMethodException ex) {
+                // Serialized instead
+            }
+            if(ctor != null) routeConstructors.put(c, ctor);
+        }
+        return ctor;
+    }
+
+    /**
+     * @return schema of a public concrete request with a public no-arg constructor, else null
+     */
+    private static RequestSchema requestSchema(Class<?> c) {
+        RequestSchema schema = requestSchemas.get(c);
+        if(schema == null) {
+            schema = RequestSchema.of(c);
+            if(schema != null) requestSchemas.put(c, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * Deserializes only classes known not to act on what they read: those of 1M5, throwables with
+     * their stack traces, boxed primitives, strings, enums and the common collections, also as arrays.
+     * Anything else, e.g. a gadget from a library on the classpath, is refused before it is loaded.
+     */
+    private static final class SerializedInput extends ObjectInputStream {
+
+        private static final Set<String> ALLOWED = new HashSet<>(Arrays.asList(
+                String.class.getName(), Boolean.class.getName(), Character.class.getName(),
+                Byte.class.getName(), Short.class.getName(), Integer.class.getName(), Long.class.getName(),
+                Float.class.getName(), Double.class.getName(), Number.class.getName(), Enum.class.getName(),
+                java.math.BigInteger.class.getName(), java.math.BigDecimal.class.getName(), Date.class.getName(),
+                StackTraceElement.class.getName(), ArrayList.class.getName(), LinkedList.class.getName(),
+                HashMap.class.getName(), LinkedHashMap.class.getName(), HashSet.class.getName(),
+                LinkedHashSet.class.getName(), Stack.class.getName(), Vector.class.getName(),
+                "java.util.Collections$EmptyList", "java.util.Collections$EmptySet", "java.util.Collections$EmptyMap",
+                "java.util.Collections$UnmodifiableCollection", "java.util.Collections$UnmodifiableList",
+                "java.util.Collections$UnmodifiableRandomAccessList", "java.util.Collections$SingletonList"));
+
+        private SerializedInput(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            String component = name.replaceFirst("^\\[+L?", "").replaceFirst(";$", "");
+            // Primitive arrays are left with their one letter type
+            boolean primitiveArray = name.startsWith("[") && component.length() == 1;
+            if(!primitiveArray && !ALLOWED.contains(component) && !component.startsWith("io.onemfive.")
+                    && !throwable(component))
+                throw new InvalidClassException(name, "not allowed in envelopes");
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy", "not allowed in envelopes");
+        }
+
+        /**
+         * Loaded without initializing to tell whether it is a throwable; JMX's are excluded
+         * as one of them reads arbitrary objects to describe them.
+         */
+        private static boolean throwable(String name) {
+            if(name.startsWith("javax.management.")) return false;
+            try {
+                return Throwable.class.isAssignableFrom(load(name));
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Public instance fields of a request, superclass fields first, then by name.
+     */
+    private static final class RequestSchema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+
+        private RequestSchema(Constructor<?> constructor, Field[] fields) {
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        private static RequestSchema of(Class<?> c) {
+            if(Modifier.isAbstract(c.getModifiers()) || !Modifier.isPublic(c.getModifiers()))
+                return null;
+            Constructor<?> ctor;
+            try {
+                ctor = c.getConstructor();
+            } catch (NoSuchMethodException ex) {
+                return null;
+            }
+            List<Field> fields = new ArrayList<>();
+            List<Class<?>> hierarchy = new ArrayList<>();
+            for(Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass()) {
+                hierarchy.add(0, k);
+            }
+            for(Class<?> k : hierarchy) {
+                List<Field> declared = new ArrayList<>();
+                for(Field f : k.getDeclaredFields()) {
+                    int mod = f.getModifiers();
+                    if(Modifier.isPublic(mod) && !Modifier.isStatic(mod) && !Modifier.isFinal(mod) && !Modifier.isTransient(mod))
+                        declared.add(f);
+                }
+                Collections.sort(declared, new Comparator<Field>() {
+                    @Override
+                    public int compare(Field f1, Field f2) {
+                        return f1.getName().compareTo(f2.getName());
+                    }
+                });
+                fields.addAll(declared);
+            }
+            return new RequestSchema(ctor, fields.toArray(new Field[fields.size()]));
+        }
+    }
+
+    /**
+     * Growable output over a pooled buffer. Longs are big endian as in
+     * {@link io.onemfive.core.util.data.DataHelper#toLong(byte[], int, int, long)}, but signed.
+     */
+    private static final class Sink {
+        private ByteArray array;
+        private byte[] buf;
+        private int pos;
+
+        private Sink(ByteArray array) {
+            this.array = array;
+            this.buf = array.getData();
+        }
+
+        private void ensure(int n) {
+            if(pos + n <= buf.length) return;
+            byte[] grown = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            release(array);
+            array = new ByteArray(grown);
+            buf = grown;
+        }
+
+        private void put(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        private void put(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
+
+        private void putLong(long v) {
+            ensure(8);
+            for(int i = pos + 7; i >= pos; i--) {
+                buf[i] = (byte)v;
+                v >>= 8;
+            }
+            pos += 8;
+        }
+
+        private void putVarint(long v) {
+            ensure(10);
+            while((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte)v;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.BaseService;
+import io.onemfive.core.MessageProducer;
+import io.onemfive.core.util.AppThread;
+import io.onemfive.data.Envelope;
+import io.onemfive.data.util.DLC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Services registered as lazy are not started with the bus but by the first envelope routed to them,
+ * which waits in the service's queue meanwhile along with any following it. Once started the queue
+ * is sent through the bus again in order and envelopes are routed to the service as to any other.
+ * Envelopes not held as the queue is full, or held for a service failing to start, are returned to
+ * their clients with the reason as a DLC error message.
+ *
+ * Optionally a lazy service left idle for a quiet period is passivated: shut down and removed from
+ * the running services until an envelope for it arrives again. Passivation waits for envelopes
+ * being delivered to it, so suits services not working in the background once they have replied.
+ *
+ * Lazy services are started with {@link ServiceStartup} so their dependencies must be running.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class LazyServices {
+
+    private static final Logger LOG = Logger.getLogger(LazyServices.class.getName());
+
+    private static final int IDLE = 0;
+    private static final int STARTING = 1;
+    private static final int RUNNING = 2;
+    private static final int PASSIVATING = 3;
+
+    private final Map<String,Activation> activations = new ConcurrentHashMap<>();
+    private final Map<String,BaseService> runningServices;
+    private final ServiceStartup startup;
+    private final MessageProducer producer;
+    private final int queueSize;
+    private final long passivateAfterMs;
+    private volatile boolean running = true;
+    private Thread passivator;
+
+    /**
+     * @param producer sends held envelopes and those returned to their clients through the bus
+     * @param queueSize most envelopes held per service while it starts
+     * @param passivateAfterMs idle time after which a lazy service is shut down; 0 for never
+     */
+    LazyServices(Map<String,BaseService> runningServices, ServiceStartup startup, MessageProducer producer, int queueSize, long passivateAfterMs) {
+        this.runningServices = runningServices;
+        this.startup = startup;
+        this.producer = producer;
+        this.queueSize = queueSize;
+        this.passivateAfterMs = passivateAfterMs;
+        if(passivateAfterMs > 0) {
+            passivator = new AppThread(new Runnable() {
+                @Override
+                public void run() {
+                    long period = Math.max(10, Math.min(passivateAfterMs / 2, 10 * 1000));
+                    while(LazyServices.this.running) {
+                        try {
+                            Thread.sleep(period);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        passivateIdle();
+                    }
+                }
+            }, "LazyServicePassivator", true);
+            passivator.start();
+        }
+    }
+
+    void add(String name, BaseService service) {
+        activations.put(name, new Activation(name, service));
+        LOG.info("Service "+name+" will start on first use"+(passivateAfterMs > 0 ? " and stop after "+passivateAfterMs+"ms idle" : ""));
+    }
+
+    boolean isLazy(String name) {
+        return name != null && activations.containsKey(name);
+    }
+
+    /**
+     * @return true if lazy and not started, e.g. never used or passivated
+     */
+    boolean isIdle(String name) {
+        Activation a = activations.get(name);
+        return a != null && a.state != RUNNING;
+    }
+
+    Set<String> names() {
+        return activations.keySet();
+    }
+
+    /**
+     * For an envelope routed to a lazy service.
+     * @return true if the service is running and now marked in use: deliver, then call {@link #exit(String)};
+     * false if the envelope is held until the service starts or, if too many are, returned to its client
+     */
+    boolean enterOrHold(String name, Envelope e) {
+        Activation a = activations.get(name);
+        boolean held;
+        boolean activate = false;
+        synchronized (a) {
+            if(a.state == RUNNING) {
+                a.inFlight++;
+                return true;
+            }
+            held = a.pending.offer(e);
+            if(held && a.state == IDLE) {
+                a.state = STARTING;
+                activate = true;
+            }
+        }
+        if(!held) {
+            String errMsg = "Service "+name+" still starting with "+queueSize+" envelopes waiting";
+            LOG.warning(errMsg+"; returned Envelope-"+e.getId());
+            returnToClient(e, errMsg);
+        }
+        if(activate) activate(a);
+        return false;
+    }
+
+    void exit(String name) {
+        Activation a = activations.get(name);
+        synchronized (a) {
+            a.inFlight--;
+            a.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return envelopes held for services starting
+     */
+    int held() {
+        int held = 0;
+        for(Activation a : activations.values()) held += a.pending.size();
+        return held;
+    }
+
+    /**
+     * @return envelopes waiting per lazy service
+     */
+    Map<String,Integer> heldByService() {
+        Map<String,Integer> held = new HashMap<>();
+        for(Activation a : activations.values()) held.put(a.name, a.pending.size());
+        return held;
+    }
+
+    /**
+     * Stop passivating.
+     * @return envelopes still held, now removed
+     */
+    List<Envelope> shutdown() {
+        running = false;
+        if(passivator != null) passivator.interrupt();
+        List<Envelope> held = new ArrayList<>();
+        for(Activation a : activations.values()) {
+            if(a.pending.drainTo(held) > 0)
+                LOG.warning("Envelopes still waiting for service "+a.name+" to start.");
+        }
+        return held;
+    }
+
+    private void activate(final Activation a) {
+        LOG.info("Starting service "+a.name+" for Envelope-"+a.pending.peek().getId());
+        startup.start(a.name, a.service, new ServiceStartup.Listener() {
+            @Override
+            public void finished(String name, boolean started) {
+                activated(a, started);
+            }
+        });
+    }
+
+    private void activated(Activation a, boolean started) {
+        if(!started) {
+            List<Envelope> failed = new ArrayList<>();
+            synchronized (a) {
+                a.state = IDLE;
+                a.pending.drainTo(failed);
+            }
+            LOG.warning("Service "+a.name+" failed to start; returning "+failed.size()+" envelopes waiting for it.");
+            for(Envelope e : failed) {
+                returnToClient(e, "Service "+a.name+" failed to start");
+            }
+            return;
+        }
+        List<Envelope> waiting = new ArrayList<>();
+        synchronized (a) {
+            a.state = RUNNING;
+            a.lastUsed = System.currentTimeMillis();
+            // Envelopes arriving from now on are routed to it directly
+            a.pending.drainTo(waiting);
+        }
+        // Routed again by the workers so delivered as any other, retried if the service is busy
+        for(Envelope e : waiting) {
+            if(!producer.send(e)) {
+                LOG.warning("Unable to resend Envelope-"+e.getId()+" held for service "+a.name);
+                returnToClient(e, "Service "+a.name+" started but its envelope could not be resent");
+            }
+        }
+    }
+
+    /**
+     * Reply to the client of an envelope not delivered with the reason as a DLC error message.
+     */
+    private void returnToClient(Envelope e, String errMsg) {
+        DLC.addErrorMessage(errMsg, e);
+        // Not a client request so nobody is waiting on it
+        if(e.getClient() == null) return;
+        e.setReplyToClient(true);
+        if(!producer.send(e))
+            LOG.warning("Unable to return Envelope-"+e.getId()+" to its client: "+errMsg);
+    }
+
+    private void passivateIdle() {
+        long now = System.currentTimeMillis();
+        for(Activation a : activations.values()) {
+            synchronized (a) {
+                if(a.state != RUNNING || a.inFlight > 0 || now - a.lastUsed < passivateAfterMs)
+                    continue;
+                a.state = PASSIVATING;
+                // Envelopes arriving from now on are held
+                runningServices.remove(a.name);
+            }
+            LOG.info("Passivating service "+a.name+" idle for "+(now - a.lastUsed)+"ms");
+            if(!a.service.shutdown())
+                LOG.warning("Service "+a.name+" did not shut down cleanly on passivation.");
+            boolean restart;
+            synchronized (a) {
+                restart = !a.pending.isEmpty();
+                a.state = restart ? STARTING : IDLE;
+            }
+            if(restart) activate(a);
+        }
+    }
+
+    private final class Activation {
+        private final String name;
+        private final BaseService service;
+        private final BlockingQueue<Envelope> pending = new ArrayBlockingQueue<>(queueSize);
+        // Guarded by this
+        private int state = IDLE;
+        private int inFlight = 0;
+        private long lastUsed;
+
+        private Activation(String name, BaseService service) {
+            this.name = name;
+            this.service = service;
+        }
+    }
+}
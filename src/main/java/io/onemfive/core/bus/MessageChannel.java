@@ -5,15 +5,22 @@ import io.onemfive.core.MessageProducer;
 import io.onemfive.data.Envelope;
 import io.onemfive.data.util.DLC;
 
-import java.util.Date;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
- * TODO: Add Description
+ * Bounded queue of envelopes between producers and the worker threads.
+ *
+ * Counts envelopes taken by workers until they are done with them so that draining on shutdown
+ * knows when none are left. Envelopes left over can be persisted and restored on the next start.
  *
  * @author objectorange
  */
@@ -21,8 +28,10 @@ final class MessageChannel implements MessageProducer, LifeCycle {
 
     private static final Logger LOG = Logger.getLogger(MessageChannel.class.getName());
 
-    private boolean accepting = false;
-    private BlockingQueue<Envelope> queue;
+    private volatile boolean accepting = false;
+    private BlockingQueue<Queued> queue;
+    // Envelopes taken by workers and not yet done with
+    private final AtomicInteger inFlight = new AtomicInteger();
     // Capacity until blocking occurs
     private int capacity;
 
@@ -30,16 +39,48 @@ final class MessageChannel implements MessageProducer, LifeCycle {
         this.capacity = capacity;
     }
 
-    BlockingQueue<Envelope> getQueue() {
-        return queue;
+    /**
+     * @return envelopes queued
+     */
+    int size() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return time the oldest envelope queued has waited; 0 if none
+     */
+    long headAgeNanos() {
+        Queued head = queue == null ? null : queue.peek();
+        return head == null ? 0 : Math.max(0, System.nanoTime() - head.enqueuedAt);
     }
 
     void ack(Envelope envelope) {
         LOG.finest(Thread.currentThread().getName()+": Removing Envelope-"+envelope.getId()+"("+envelope+") from message queue (size="+queue.size()+")");
-        queue.remove(envelope);
+        for(Queued q : queue) {
+            if(q.envelope == envelope && queue.remove(q)) break;
+        }
         LOG.finest(Thread.currentThread().getName()+": Removed Envelope-"+envelope.getId()+"("+envelope+") from message queue (size="+queue.size()+")");
     }
 
+    /**
+     * Remove a queued envelope.
+     * @return true if found and removed
+     */
+    boolean cancel(Long envelopeId) {
+        if(queue == null || envelopeId == null) return false;
+        for(Queued q : queue) {
+            if(envelopeId.equals(q.envelope.getId()) && queue.remove(q)) {
+                LOG.finer("Envelope-"+envelopeId+" cancelled (queue size="+queue.size()+")");
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Send message on channel.
      * @param e Envelope
@@ -47,7 +88,7 @@ final class MessageChannel implements MessageProducer, LifeCycle {
     public boolean send(Envelope e) {
         if(accepting) {
             try {
-                boolean success = queue.add(e);
+                boolean success = queue.add(new Queued(e));
                 if(success)
                     LOG.finest(Thread.currentThread().getName()+": Envelope-"+e.getId()+"("+e+") added to message queue (size="+queue.size()+")");
                 return success;
@@ -58,7 +99,7 @@ final class MessageChannel implements MessageProducer, LifeCycle {
                 return false;
             }
         } else {
-            String errMsg = Thread.currentThread().getName()+": Not accepting envelopes yet.";
+            String errMsg = Thread.currentThread().getName()+": Not accepting envelopes.";
             DLC.addErrorMessage(errMsg, e);
             LOG.warning(errMsg);
             return false;
@@ -73,7 +114,8 @@ final class MessageChannel implements MessageProducer, LifeCycle {
         Envelope next = null;
         try {
             LOG.finest(Thread.currentThread().getName()+": Requesting envelope from message queue, blocking...");
-            next = queue.take();
+            next = queue.take().envelope;
+            inFlight.incrementAndGet();
             LOG.finest(Thread.currentThread().getName()+": Got Envelope-"+next.getId()+"("+next+") (queue size="+queue.size()+")");
         } catch (InterruptedException e) {
             // No need to log
@@ -81,15 +123,129 @@ final class MessageChannel implements MessageProducer, LifeCycle {
         return next;
     }
 
+    /**
+     * Called by the worker once done with an envelope received.
+     */
+    void done() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return true if no envelopes are queued or with workers
+     */
+    boolean idle() {
+        return queue.isEmpty() && inFlight.get() <= 0;
+    }
+
+    /**
+     * Wait until idle or the deadline passes.
+     * @param deadline epoch milliseconds
+     * @return true if idle
+     */
+    boolean drain(long deadline) {
+        while(!idle()) {
+            long wait = Math.min(50, deadline - System.currentTimeMillis());
+            if(wait <= 0) return false;
+            waitABit(wait);
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting envelopes.
+     * @return envelopes still queued, now removed
+     */
+    List<Envelope> close() {
+        accepting = false;
+        List<Envelope> remaining = new ArrayList<>();
+        if(queue != null) {
+            List<Queued> queued = new ArrayList<>();
+            queue.drainTo(queued);
+            for(Queued q : queued) remaining.add(q.envelope);
+        }
+        return remaining;
+    }
+
+    /**
+     * Save envelopes to a file to be restored on the next start, appending to any not yet restored.
+     * @return those that could not be saved, e.g. not encodable
+     */
+    static List<Envelope> persist(Collection<Envelope> envelopes, File file) {
+        List<Envelope> failed = new ArrayList<>();
+        if(envelopes.isEmpty()) return failed;
+        if(file.getParentFile() != null && !file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            LOG.warning("Unable to create directory for undelivered envelopes: "+file.getParentFile());
+            failed.addAll(envelopes);
+            return failed;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            for(Envelope e : envelopes) {
+                byte[] b;
+                try {
+                    b = EnvelopeCodec.encode(e);
+                } catch (IOException ex) {
+                    LOG.warning("Unable to persist Envelope-"+e.getId()+": "+ex.getLocalizedMessage());
+                    failed.add(e);
+                    continue;
+                }
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        } catch (IOException ex) {
+            LOG.warning("Unable to persist undelivered envelopes to "+file+": "+ex.getLocalizedMessage());
+            failed.clear();
+            failed.addAll(envelopes);
+        }
+        return failed;
+    }
+
+    /**
+     * Read and delete envelopes persisted to a file; a truncated or corrupt tail is skipped.
+     */
+    static List<Envelope> restore(File file) {
+        List<Envelope> envelopes = new ArrayList<>();
+        if(!file.exists()) return envelopes;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while(true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                // A corrupt length could otherwise ask for far more memory than the file holds
+                if(length < 0 || length > file.length())
+                    throw new IOException("Corrupt envelope length "+length+" in a file of "+file.length()+" bytes");
+                byte[] b = new byte[length];
+                in.readFully(b);
+                envelopes.add(EnvelopeCodec.decode(b));
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warning("Restored "+envelopes.size()+" undelivered envelopes from "+file+" before failing: "+ex.getLocalizedMessage());
+        }
+        if(!file.delete())
+            LOG.warning("Unable to delete "+file+"; its envelopes may be restored again.");
+        return envelopes;
+    }
+
     /**
      * Receive envelope from channel with blocking until timeout.
      * @param timeout in milliseconds
      * @return Envelope
      */
     public Envelope receive(int timeout) {
-        Envelope next = null;
+        Queued q = poll(timeout);
+        return q == null ? null : q.envelope;
+    }
+
+    /**
+     * As {@link #receive(int)} but with when the envelope was queued.
+     */
+    Queued poll(int timeout) {
+        Queued next = null;
         try {
-            queue.poll(timeout, TimeUnit.MILLISECONDS);
+            next = queue.poll(timeout, TimeUnit.MILLISECONDS);
+            if(next != null) inFlight.incrementAndGet();
         } catch (InterruptedException e) {
             // No need to log
         }
@@ -114,33 +270,27 @@ final class MessageChannel implements MessageProducer, LifeCycle {
         return false;
     }
 
+    /**
+     * Wait up to 3 seconds for envelopes queued and with workers, then stop accepting, dropping any left.
+     */
     public boolean shutdown() {
-        accepting = false;
-        long begin = new Date().getTime();
-        long runningTime = begin;
-        long waitMs = 1000;
-        long maxWaitMs = 3 * 1000; // only 3 seconds
-        // Wait first to attempt to finish responses
-        do {
-            waitABit(waitMs);
-            runningTime += waitMs;
-        } while(queue.size() > 0 && runningTime < maxWaitMs);
-        return true;
+        return shutdown(3 * 1000);
     }
 
+    /**
+     * As {@link #shutdown()} waiting up to 30 seconds.
+     */
     @Override
     public boolean gracefulShutdown() {
-        accepting = false;
-        long begin = new Date().getTime();
-        long runningTime = begin;
-        long waitMs = 3 * 1000; // Wait longer to allow responses to complete
-        long maxWaitMs = 30 * 1000; // up to 30 seconds
-        // Wait first to attempt to finish responses
-        do {
-            waitABit(waitMs);
-            runningTime += waitMs;
-        } while(queue.size() > 0 && runningTime < maxWaitMs);
-        return true;
+        return shutdown(30 * 1000);
+    }
+
+    private boolean shutdown(long maxWaitMs) {
+        boolean drained = drain(System.currentTimeMillis() + maxWaitMs);
+        List<Envelope> dropped = close();
+        if(!dropped.isEmpty())
+            LOG.warning("Channel shut down dropping "+dropped.size()+" envelopes.");
+        return drained && dropped.isEmpty();
     }
 
     boolean forceShutdown() {
@@ -152,4 +302,14 @@ final class MessageChannel implements MessageProducer, LifeCycle {
             Thread.sleep(waitTime);
         } catch (InterruptedException e) {}
     }
+
+    static final class Queued {
+        final Envelope envelope;
+        // System.nanoTime() when sent
+        final long enqueuedAt = System.nanoTime();
+
+        private Queued(Envelope envelope) {
+            this.envelope = envelope;
+        }
+    }
 }
@@ -11,7 +11,9 @@ import io.onemfive.core.util.AppThread;
 import io.onemfive.data.Envelope;
 import io.onemfive.data.util.DLC;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
@@ -36,12 +38,70 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
 
     public enum Status {Starting, Running, Stopping, Stopped}
 
+    /**
+     * How readily an envelope is shed under load; set in {@link #HEADER_PRIORITY} as this or its name.
+     * Commands default to HIGH and all else to NORMAL.
+     */
+    public enum Priority {LOW, NORMAL, HIGH}
+
+    public static final String HEADER_PRIORITY = "1m5.bus.priority";
+
+    // Most services starting at once
+    public static final String PROP_STARTUP_THREADS = "1m5.bus.startupThreads";
+    // Most time a service may take to start before it is abandoned
+    public static final String PROP_SERVICE_START_TIMEOUT = "1m5.bus.serviceStartTimeoutMs";
+    // Comma-separated class names of services started by the first envelope routed to them
+    public static final String PROP_LAZY_SERVICES = "1m5.bus.lazyServices";
+    // Most envelopes held per lazy service while it starts
+    public static final String PROP_LAZY_QUEUE_SIZE = "1m5.bus.lazyQueueSize";
+    // Idle time after which a lazy service is shut down until used again; 0 for never
+    public static final String PROP_PASSIVATE_AFTER = "1m5.bus.passivateAfterMs";
+    // Most time graceful shutdown takes draining envelopes and shutting down services
+    public static final String PROP_DRAIN_TIMEOUT = "1m5.bus.drainTimeoutMs";
+    // Whether envelopes left on shutdown are persisted and sent on the next start
+    public static final String PROP_PERSIST_UNDELIVERED = "1m5.bus.persistUndelivered";
+    // Bounds of the worker pool, sized by load between them
+    public static final String PROP_MIN_WORKERS = "1m5.bus.minWorkers";
+    public static final String PROP_MAX_WORKERS = "1m5.bus.maxWorkers";
+    // Cores the workers may keep busy; fractions allowed
+    public static final String PROP_CPU_BUDGET = "1m5.bus.cpuBudget";
+    // Memory the workers may use; 0 for no limit
+    public static final String PROP_MEMORY_BUDGET = "1m5.bus.memoryBudgetMb";
+    // Wait in the channel above which the worker pool grows
+    public static final String PROP_TARGET_QUEUE_WAIT = "1m5.bus.targetQueueWaitMs";
+    // How often the worker pool is resized
+    public static final String PROP_WORKER_RESIZE_PERIOD = "1m5.bus.workerResizePeriodMs";
+    // Share of the channel low and normal priority envelopes may fill, the rest reserved for higher priorities
+    public static final String PROP_LOW_PRIORITY_SHARE = "1m5.bus.lowPriorityShare";
+    public static final String PROP_NORMAL_PRIORITY_SHARE = "1m5.bus.normalPriorityShare";
+    // Wait in the channel above which envelopes are shed; 0 to never shed for it
+    public static final String PROP_QUEUE_DELAY_TARGET = "1m5.bus.queueDelayTargetMs";
+    // Time the wait must stay above target before normal priority envelopes are shed
+    public static final String PROP_QUEUE_DELAY_INTERVAL = "1m5.bus.queueDelayIntervalMs";
+    // Envelopes per second and burst admitted per client; 0 for no limit
+    public static final String PROP_CLIENT_RATE = "1m5.bus.clientRate";
+    public static final String PROP_CLIENT_BURST = "1m5.bus.clientBurst";
+    // Highest priority an envelope from a client may claim in its priority header
+    public static final String PROP_CLIENT_MAX_PRIORITY = "1m5.bus.clientMaxPriority";
+    // Envelopes per second and burst admitted per service, overridden per service by suffixing its class name; 0 for no limit
+    public static final String PROP_SERVICE_RATE = "1m5.bus.serviceRate";
+    public static final String PROP_SERVICE_BURST = "1m5.bus.serviceBurst";
+    // Slowest envelopes kept for profiles; 0 to not trace envelopes
+    public static final String PROP_PROFILE_SLOWEST = "1m5.bus.profileSlowest";
+    // Span the slowest envelopes are kept over
+    public static final String PROP_PROFILE_WINDOW = "1m5.bus.profileWindowMs";
+
     private Status status = Status.Stopped;
 
     private Properties properties;
 
     private volatile WorkerThreadPool pool;
     private MessageChannel channel;
+    private AdmissionController admission;
+    private BusProfiler profiler;
+    private ServiceStartup startup;
+    private LazyServices lazyServices;
+    private volatile DrainReport drainReport;
 
     private ClientAppManager clientAppManager;
     private Map<String, BaseService> registeredServices;
@@ -49,32 +109,64 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
 
     private List<BusStatusListener> busStatusListeners = new ArrayList<>();
 
-    // TODO: Set maxThreads by end-user max processing allocation (Prana limitations)
+    // Workers for the cores budgeted before the pool measures how much they block; sizes the channel
     private int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
     // TODO: Set maxMessagesCached by end-user max memory allocation (Prana limitations)
     private int maxMessagesCached = 10 * maxThreads;
 
     private final AtomicBoolean spin = new AtomicBoolean(true);
 
+    // Services send here, bypassing admission as their envelopes carry work already taken on
+    private final MessageProducer internalProducer = new MessageProducer() {
+        @Override
+        public boolean send(Envelope e) {
+            return enqueue(e);
+        }
+    };
+
     public ServiceBus(Properties properties, ClientAppManager clientAppManager) {
         this.properties = properties;
         this.clientAppManager = clientAppManager;
         LOG.finer("Instantiated with maxThreads="+maxThreads+" and maxMessagesCached="+maxMessagesCached);
     }
 
+    /**
+     * Send an envelope from outside the bus, shedding it if the bus is overloaded.
+     * @return false if not accepted, the reason added as a DLC error message
+     */
     @Override
     public boolean send(Envelope e) {
+        String shed = admission == null ? null : admission.admit(e);
+        if(shed != null) {
+            String errMsg = "Shed by admission control: "+shed;
+            DLC.addErrorMessage(errMsg, e);
+            LOG.fine(errMsg+"; Envelope-"+e.getId());
+            return false;
+        }
+        return enqueue(e);
+    }
+
+    private boolean enqueue(Envelope e) {
         LOG.finest("Received envelope. Sending to channel...");
         if(pool != null && pool.getStatus() == WorkerThreadPool.Status.Running) {
             return channel.send(e);
         } else {
-            String errMsg = "Unable to send to channel: pool.status="+pool.getStatus().toString();
+            String errMsg = "Unable to send to channel: pool.status="+(pool == null ? null : pool.getStatus());
             DLC.addErrorMessage(errMsg, e);
             LOG.warning(errMsg);
             return false;
         }
     }
 
+    /**
+     * Withdraw an envelope still waiting in the channel, e.g. as its client gave up on it.
+     * Envelopes already handed to a service run to completion; their replies are dropped by the client.
+     * @return true if it was still queued and is now removed
+     */
+    public boolean cancel(Long envelopeId) {
+        return channel != null && channel.cancel(envelopeId);
+    }
+
     public void registerBusStatusListener (BusStatusListener busStatusListener) {
         busStatusListeners.add(busStatusListener);
     }
@@ -93,7 +185,7 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
         final String serviceName = serviceClass.getName();
         try {
             final BaseService service = (BaseService)serviceClass.newInstance();
-            service.setProducer(this);
+            service.setProducer(internalProducer);
             // register service
             registeredServices.put(serviceClass.getName(), service);
             service.registerServiceStatusListener(this);
@@ -102,18 +194,12 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
                 service.registerServiceStatusObservers(observers);
             }
             LOG.info("Service registered successfully: "+serviceName);
-            // init registered service
-            new AppThread(new Runnable() {
-                @Override
-                public void run() {
-                    if(service.start(properties)) {
-                        runningServices.put(serviceName, service);
-                        LOG.info("Service registered successfully as running: "+serviceName);
-                    } else {
-                        LOG.warning("Registered service failed to start: "+serviceName);
-                    }
-                }
-            }, serviceName+"-StartupThread").start();
+            if(lazyServiceNames().contains(serviceName)) {
+                lazyServices.add(serviceName, service);
+            } else {
+                // init registered service once its dependencies are running
+                startup.start(serviceName, service);
+            }
         } catch (InstantiationException e) {
             throw new ServiceNotSupportedException(e);
         } catch (IllegalAccessException e) {
@@ -152,6 +238,35 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
         return serviceReports;
     }
 
+    /**
+     * @return envelopes taken on since start
+     */
+    public long getAdmitted() {
+        return admission == null ? 0 : admission.getAdmitted();
+    }
+
+    /**
+     * @return envelopes shed since start by cause: capacity, queueDelay, clientRate, serviceRate
+     */
+    public Map<String,Long> getShed() {
+        return admission == null ? new HashMap<String,Long>() : admission.getShed();
+    }
+
+    /**
+     * Snapshot of the workers, queues, slowest envelopes and JVM memory; cheap enough to take every few seconds.
+     * @return null if not started
+     */
+    public BusProfile getProfile() {
+        return profiler == null ? null : profiler.profile(channel, pool, lazyServices, admission);
+    }
+
+    /**
+     * @return how the start of each service went, in the order they began
+     */
+    public List<ServiceStartupReport> getStartupTimeline() {
+        return startup == null ? new ArrayList<ServiceStartupReport>() : startup.getTimeline();
+    }
+
     private void updateStatus(Status status) {
         this.status = status;
         switch(status) {
@@ -192,10 +307,9 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
                 break;
             }
             case RUNNING: {
-                if(allServicesWithStatus(ServiceStatus.RUNNING)) {
-                    LOG.info("All Services are RUNNING therefore Bus updating status to RUNNING.");
-                    updateStatus(Status.Running);
-                }
+                // Lazy services starting later, or while stopping, report again
+                if(status == Status.Starting && allServicesWithStatus(ServiceStatus.RUNNING))
+                    running("All Services are RUNNING therefore Bus updating status to RUNNING.");
                 break;
             }
             case SHUTDOWN: {
@@ -215,10 +329,24 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
         }
     }
 
+    /**
+     * Move from Starting to Running, restoring envelopes undelivered on the last shutdown, once only.
+     */
+    private void running(String reason) {
+        synchronized (this) {
+            if(status != Status.Starting) return;
+            LOG.info(reason);
+            updateStatus(Status.Running);
+        }
+        restoreUndelivered();
+    }
+
     private Boolean allServicesWithStatus(ServiceStatus serviceStatus) {
-        Collection<BaseService> services = registeredServices.values();
-        for(BaseService s : services) {
-            if(s.getServiceStatus() != serviceStatus){
+        for(Map.Entry<String,BaseService> e : registeredServices.entrySet()) {
+            // Lazy services not in use are expected in any status
+            if(lazyServices != null && lazyServices.isIdle(e.getKey()))
+                continue;
+            if(e.getValue().getServiceStatus() != serviceStatus){
                 return false;
             }
         }
@@ -246,6 +374,11 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
 
         try {
             this.properties = Config.loadFromClasspath("bus.config", this.properties, false);
+            String cpuBudgetStr = this.properties.getProperty(PROP_CPU_BUDGET);
+            if(cpuBudgetStr != null) {
+                maxThreads = Math.max(1, (int)Math.ceil(Double.parseDouble(cpuBudgetStr) * 2));
+                maxMessagesCached = 10 * maxThreads;
+            }
             String maxMessagesCachedMultiplierStr = this.properties.getProperty("1m5.bus.maxMessagesCachedMultiplier");
             if(maxMessagesCachedMultiplierStr != null){
                 maxMessagesCached = Integer.parseInt(maxMessagesCachedMultiplierStr) * maxThreads;
@@ -257,55 +390,101 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
 
         // TODO: should we init the pool before the channel?
         channel = new MessageChannel(maxMessagesCached);
-        channel.start(properties);
+        channel.start(this.properties);
+        admission = new AdmissionController(channel, this.properties);
 
-        registeredServices = new HashMap<>(15);
-        runningServices = new HashMap<>(15);
+        // Written by startup threads and AdminService while read by workers
+        registeredServices = new ConcurrentHashMap<>(15);
+        runningServices = new ConcurrentHashMap<>(15);
 
         final Properties props = this.properties;
-        // Register Core Services - Place slowest to RUNNING services first
-        InfoVaultService infoVaultService = new InfoVaultService(this, this);
+        // Register Core Services; each declares the services it needs running first
+        InfoVaultService infoVaultService = new InfoVaultService(internalProducer, this);
         registeredServices.put(InfoVaultService.class.getName(), infoVaultService);
-        // Start InfoVaultService first to ensure InfoVaultDB gets initialized before Services begin using it.
-        infoVaultService.start(props);
-        runningServices.put(InfoVaultService.class.getName(),infoVaultService);
 
-        OrchestrationService orchestrationService = new OrchestrationService(this, this);
+        OrchestrationService orchestrationService = new OrchestrationService(internalProducer, this);
         registeredServices.put(OrchestrationService.class.getName(), orchestrationService);
 
-        KeyRingService keyRingService = new KeyRingService(this, this);
+        KeyRingService keyRingService = new KeyRingService(internalProducer, this);
         registeredServices.put(KeyRingService.class.getName(), keyRingService);
 
-        NotificationService notificationService = new NotificationService(this, this);
+        NotificationService notificationService = new NotificationService(internalProducer, this);
         registeredServices.put(NotificationService.class.getName(), notificationService);
 
-        AdminService adminService = new AdminService(this, this);
+        AdminService adminService = new AdminService(internalProducer, this);
         registeredServices.put(AdminService.class.getName(), adminService);
 
         // Additional Services should be registered by client via Admin Service
 
-        // Start Registered Services
-        for(final String serviceName : registeredServices.keySet()) {
-            if(!serviceName.equals(InfoVaultService.class.getName())) {
-                // InfoVaultService already started above
-                new AppThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        BaseService service = registeredServices.get(serviceName);
-                        if (service.start(props)) {
-                            runningServices.put(serviceName, service);
-                        }
-                    }
-                }, serviceName + "-StartupThread").start();
-            }
-        }
-
-        pool = new WorkerThreadPool(clientAppManager, runningServices, channel, maxThreads, maxThreads, properties);
+        int startupThreads = Integer.parseInt(props.getProperty(PROP_STARTUP_THREADS, String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long serviceStartTimeoutMs = Long.parseLong(props.getProperty(PROP_SERVICE_START_TIMEOUT, "30000"));
+        startup = new ServiceStartup(runningServices, props, startupThreads, serviceStartTimeoutMs);
+
+        int lazyQueueSize = Integer.parseInt(props.getProperty(PROP_LAZY_QUEUE_SIZE, "100"));
+        long passivateAfterMs = Long.parseLong(props.getProperty(PROP_PASSIVATE_AFTER, "0"));
+        lazyServices = new LazyServices(runningServices, startup, internalProducer, lazyQueueSize, passivateAfterMs);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        WorkerPoolSizer sizer = new WorkerPoolSizer(
+                Integer.parseInt(props.getProperty(PROP_MIN_WORKERS, "2")),
+                Integer.parseInt(props.getProperty(PROP_MAX_WORKERS, String.valueOf(cores * 16))),
+                Double.parseDouble(props.getProperty(PROP_CPU_BUDGET, String.valueOf(cores))),
+                Integer.parseInt(props.getProperty(PROP_MEMORY_BUDGET, "0")),
+                Long.parseLong(props.getProperty(PROP_TARGET_QUEUE_WAIT, "20")));
+        long resizePeriodMs = Long.parseLong(props.getProperty(PROP_WORKER_RESIZE_PERIOD, "500"));
+        profiler = new BusProfiler(Integer.parseInt(props.getProperty(PROP_PROFILE_SLOWEST, "10")),
+                Long.parseLong(props.getProperty(PROP_PROFILE_WINDOW, "60000")));
+        pool = new WorkerThreadPool(clientAppManager, runningServices, lazyServices, channel, sizer, profiler, resizePeriodMs, properties);
         pool.start();
 
+        // Start Registered Services but lazy ones not needed by others
+        final Map<String,BaseService> services = new HashMap<>(registeredServices);
+        for(String name : lazy(services, lazyServiceNames())) {
+            lazyServices.add(name, services.remove(name));
+        }
+        new AppThread(new Runnable() {
+            @Override
+            public void run() {
+                if(!startup.startAll(services))
+                    LOG.warning("Not all services started: "+startup.getTimeline());
+                // Those abandoned, failed or skipped never report RUNNING so are not waited for
+                running("Service startup finished therefore Bus updating status to RUNNING.");
+            }
+        }, "ServiceBus-StartupThread").start();
+
         return true;
     }
 
+    private Set<String> lazyServiceNames() {
+        Set<String> names = new HashSet<>();
+        for(String name : properties.getProperty(PROP_LAZY_SERVICES, "").split(",")) {
+            if(!name.trim().isEmpty()) names.add(name.trim());
+        }
+        return names;
+    }
+
+    /**
+     * Services named lazy that no eager service depends on, directly or through another.
+     */
+    private static Set<String> lazy(Map<String,BaseService> services, Set<String> names) {
+        Set<String> lazy = new HashSet<>(names);
+        lazy.retainAll(services.keySet());
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(Map.Entry<String,BaseService> s : services.entrySet()) {
+                if(lazy.contains(s.getKey())) continue;
+                for(String d : s.getValue().getDependencies()) {
+                    if(lazy.remove(d)) {
+                        LOG.info("Service "+d+" starting with the bus as "+s.getKey()+" depends on it.");
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return lazy;
+    }
+
     @Override
     public boolean pause() {
         return false;
@@ -322,57 +501,152 @@ public final class ServiceBus implements MessageProducer, LifeCycle, ServiceRegi
     }
 
     /**
-     * Shutdown the Service Bus
-     *
-     * TODO: Run in separate AppThread
+     * Shutdown the Service Bus, draining it for up to 3 seconds.
      *
+     * @see #gracefulShutdown()
      * @return
      */
     @Override
     public boolean shutdown() {
-        updateStatus(Status.Stopping);
-        spin.set(false);
-        pool.shutdown();
-        channel.shutdown(); // TODO: Should we teardown channel before pool?
-        for(final String serviceName : runningServices.keySet()) {
-            new AppThread(new Runnable() {
-                @Override
-                public void run() {
-                    BaseService service = runningServices.get(serviceName);
-                    if(service.shutdown()) {
-                        runningServices.remove(serviceName);
-                    }
-                }
-            }, serviceName+"-ShutdownThread").start();
-        }
+        drain(3 * 1000, false);
         return true;
     }
 
     /**
-     * Ensure teardown is graceful by waiting until all Services indicate graceful teardown complete or timeout
+     * Shutdown the Service Bus once drained, within 1m5.bus.drainTimeoutMs overall:
      *
-     * TODO: Implement
+     * 1. stops clients making requests while envelopes in flight, e.g. replies, are still accepted
+     * 2. waits until no envelopes are queued or with workers and clients have no requests awaiting a reply
+     * 3. stops accepting envelopes and persists those left for the next start if 1m5.bus.persistUndelivered
+     * 4. gracefully shuts down the services, waiting on them
      *
-     * @return
+     * What was left undelivered is logged and available from {@link #getDrainReport()}.
+     *
+     * @return true if nothing was lost
      */
     @Override
     public boolean gracefulShutdown() {
+        long drainTimeoutMs = Long.parseLong(properties.getProperty(PROP_DRAIN_TIMEOUT, "30000"));
+        return drain(drainTimeoutMs, true).clean();
+    }
+
+    /**
+     * @return how draining on the last shutdown went; null if not shut down
+     */
+    public DrainReport getDrainReport() {
+        return drainReport;
+    }
+
+    private DrainReport drain(long timeoutMs, final boolean graceful) {
+        long began = System.currentTimeMillis();
+        long deadline = began + timeoutMs;
+        DrainReport report = new DrainReport();
+        report.deadlineMs = timeoutMs;
+        // Clients stop making requests
         updateStatus(Status.Stopping);
         spin.set(false);
-        pool.shutdown();
-        channel.shutdown(); // TODO: Should we teardown channel before pool?
+        boolean drained;
+        while(true) {
+            drained = channel.idle()
+                    && (lazyServices == null || lazyServices.held() == 0)
+                    && (clientAppManager == null || clientAppManager.pendingRequests() == 0);
+            long wait = Math.min(50, deadline - System.currentTimeMillis());
+            if(drained || wait <= 0) break;
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        List<Envelope> undelivered = channel.close();
+        if(lazyServices != null) undelivered.addAll(lazyServices.shutdown());
+        if(startup != null) startup.shutdown();
+        pool.shutdown(deadline - System.currentTimeMillis());
+        persistOrDrop(undelivered, report);
+        if(clientAppManager != null) report.unansweredRequests = clientAppManager.pendingRequests();
+
+        Map<String,Thread> shutdowns = new HashMap<>();
         for(final String serviceName : runningServices.keySet()) {
-            new AppThread(new Runnable() {
+            Thread t = new AppThread(new Runnable() {
                 @Override
                 public void run() {
                     BaseService service = runningServices.get(serviceName);
-                    if(service.gracefulShutdown()) {
+                    if(service != null && (graceful ? service.gracefulShutdown() : service.shutdown())) {
                         runningServices.remove(serviceName);
                     }
                 }
-            }, serviceName+"-GracefulShutdownThread").start();
+            }, serviceName+(graceful ? "-GracefulShutdownThread" : "-ShutdownThread"));
+            t.start();
+            shutdowns.put(serviceName, t);
         }
-        return true;
+        for(Map.Entry<String,Thread> s : shutdowns.entrySet()) {
+            try {
+                s.getValue().join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(runningServices.containsKey(s.getKey()))
+                report.servicesNotShutDown.add(s.getKey());
+        }
+        report.timedOut = !drained || !report.servicesNotShutDown.isEmpty();
+        report.durationMs = System.currentTimeMillis() - began;
+        drainReport = report;
+        if(report.clean())
+            LOG.info("Bus "+report);
+        else
+            LOG.warning("Bus "+report+"; dropped envelopes: "+report.dropped);
+        return report;
+    }
+
+    /**
+     * Persist envelopes for the next start if enabled; replies are dropped as their clients will be gone.
+     */
+    private void persistOrDrop(List<Envelope> undelivered, DrainReport report) {
+        if(undelivered.isEmpty()) return;
+        List<Envelope> requests = new ArrayList<>();
+        for(Envelope e : undelivered) {
+            if(e.replyToClient())
+                report.dropped.add(e.getId());
+            else
+                requests.add(e);
+        }
+        File file = undeliveredFile();
+        if(file == null) {
+            for(Envelope e : requests) report.dropped.add(e.getId());
+            return;
+        }
+        Set<Envelope> failed = Collections.newSetFromMap(new IdentityHashMap<Envelope,Boolean>());
+        failed.addAll(MessageChannel.persist(requests, file));
+        for(Envelope e : requests) {
+            if(failed.contains(e))
+                report.dropped.add(e.getId());
+            else
+                report.persisted.add(e.getId());
+        }
+    }
+
+    /**
+     * Send envelopes persisted on the last shutdown.
+     */
+    private void restoreUndelivered() {
+        File file = undeliveredFile();
+        if(file == null || !file.exists()) return;
+        List<Envelope> envelopes = MessageChannel.restore(file);
+        int sent = 0;
+        for(Envelope e : envelopes) {
+            if(channel.send(e)) sent++;
+        }
+        LOG.info("Restored "+sent+" of "+envelopes.size()+" envelopes undelivered on last shutdown.");
+    }
+
+    /**
+     * @return where undelivered envelopes are persisted; null if not
+     */
+    private File undeliveredFile() {
+        String base = properties.getProperty("1m5.dir.base");
+        if(base == null || !Boolean.parseBoolean(properties.getProperty(PROP_PERSIST_UNDELIVERED, "true")))
+            return null;
+        return new File(base, "bus/undelivered");
     }
 
     public Status getStatus() {
@@ -0,0 +1,328 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.BaseService;
+import io.onemfive.core.ServiceStartupReport;
+import io.onemfive.core.util.AppThread;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Starts services in dependency order on a bounded pool.
+ *
+ * Services are grouped into waves: a service is in the wave after the last of its
+ * {@link BaseService#getDependencies()}. Services in a wave start in parallel; the next wave
+ * starts once all have finished. A service taking longer than the timeout to start is abandoned
+ * and reported TIMED_OUT; services depending on one not started are SKIPPED, as are those with a
+ * missing dependency or in a dependency cycle.
+ *
+ * Every start is recorded in a timeline for finding what makes startup slow.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class ServiceStartup {
+
+    private static final Logger LOG = Logger.getLogger(ServiceStartup.class.getName());
+
+    private final Map<String,BaseService> runningServices;
+    private final Properties properties;
+    private final long timeoutMs;
+    private final ThreadPoolExecutor pool;
+    private final List<ServiceStartupReport> timeline = new CopyOnWriteArrayList<>();
+    private volatile long began;
+
+    /**
+     * @param runningServices services started are added to it
+     * @param threads most services starting at once
+     * @param timeoutMs most time a service may take to start
+     */
+    ServiceStartup(Map<String,BaseService> runningServices, Properties properties, int threads, long timeoutMs) {
+        this.runningServices = runningServices;
+        this.properties = properties;
+        this.timeoutMs = timeoutMs;
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ServiceStartup-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start all services, blocking until each has started, failed or timed out.
+     * @return true if all started
+     */
+    boolean startAll(Map<String,BaseService> services) {
+        began = System.currentTimeMillis();
+        List<List<String>> waves = new ArrayList<>();
+        Map<String,String> unstartable = new HashMap<>();
+        plan(services, waves, unstartable);
+        for(Map.Entry<String,String> u : unstartable.entrySet()) {
+            skip(u.getKey(), services.get(u.getKey()), u.getValue());
+        }
+        boolean allStarted = unstartable.isEmpty();
+        for(int w = 0; w < waves.size(); w++) {
+            List<Task> tasks = new ArrayList<>();
+            for(String name : waves.get(w)) {
+                BaseService service = services.get(name);
+                String missing = firstNotRunning(service);
+                if(missing != null) {
+                    skip(name, service, "dependency not started: "+missing);
+                    allStarted = false;
+                    continue;
+                }
+                Task t = new Task(name, service, w);
+                t.future = pool.submit(t);
+                tasks.add(t);
+            }
+            for(Task t : tasks) {
+                if(!await(t)) allStarted = false;
+            }
+        }
+        LOG.info(summary(waves.size()));
+        return allStarted;
+    }
+
+    /**
+     * Told when a service started outside startup has finished starting.
+     */
+    interface Listener {
+        void finished(String name, boolean started);
+    }
+
+    /**
+     * Start a service registered once the bus is up, without blocking.
+     */
+    void start(String name, BaseService service) {
+        start(name, service, null);
+    }
+
+    /**
+     * Start a service without blocking, telling the listener, if any, on the waiting thread once done.
+     */
+    void start(final String name, final BaseService service, final Listener listener) {
+        String missing = firstNotRunning(service);
+        if(missing != null) {
+            skip(name, service, "dependency not started: "+missing);
+            if(listener != null) listener.finished(name, false);
+            return;
+        }
+        final Task t = new Task(name, service, -1);
+        t.future = pool.submit(t);
+        new AppThread(new Runnable() {
+            @Override
+            public void run() {
+                boolean started = await(t);
+                if(listener != null) listener.finished(name, started);
+            }
+        }, name+"-StartupThread").start();
+    }
+
+    List<ServiceStartupReport> getTimeline() {
+        List<ServiceStartupReport> l = new ArrayList<>(timeline);
+        Collections.sort(l, new Comparator<ServiceStartupReport>() {
+            @Override
+            public int compare(ServiceStartupReport r1, ServiceStartupReport r2) {
+                return Long.compare(r1.startedAtMs, r2.startedAtMs);
+            }
+        });
+        return l;
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Kahn's algorithm by levels.
+     */
+    private static void plan(Map<String,BaseService> services, List<List<String>> waves, Map<String,String> unstartable) {
+        Map<String,Set<String>> waitingOn = new HashMap<>();
+        for(Map.Entry<String,BaseService> s : services.entrySet()) {
+            Set<String> deps = new HashSet<>(s.getValue().getDependencies());
+            deps.remove(s.getKey());
+            for(String d : deps) {
+                if(!services.containsKey(d)) {
+                    unstartable.put(s.getKey(), "dependency not registered: "+d);
+                    break;
+                }
+            }
+            waitingOn.put(s.getKey(), deps);
+        }
+        // Dependents of the unstartable are unstartable
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(Map.Entry<String,Set<String>> w : waitingOn.entrySet()) {
+                if(unstartable.containsKey(w.getKey())) continue;
+                for(String d : w.getValue()) {
+                    if(unstartable.containsKey(d)) {
+                        unstartable.put(w.getKey(), "dependency not started: "+d);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        for(String u : unstartable.keySet()) waitingOn.remove(u);
+        Set<String> placed = new HashSet<>();
+        while(!waitingOn.isEmpty()) {
+            List<String> wave = new ArrayList<>();
+            for(Map.Entry<String,Set<String>> w : waitingOn.entrySet()) {
+                if(placed.containsAll(w.getValue())) wave.add(w.getKey());
+            }
+            if(wave.isEmpty()) {
+                for(String c : waitingOn.keySet()) unstartable.put(c, "dependency cycle");
+                break;
+            }
+            Collections.sort(wave);
+            for(String name : wave) waitingOn.remove(name);
+            placed.addAll(wave);
+            waves.add(wave);
+        }
+    }
+
+    private String firstNotRunning(BaseService service) {
+        for(String d : service.getDependencies()) {
+            if(!d.equals(service.getClass().getName()) && !runningServices.containsKey(d))
+                return d;
+        }
+        return null;
+    }
+
+    /**
+     * Wait for a task, its timeout counting from when it began rather than was queued.
+     * @return true if started
+     */
+    private boolean await(Task t) {
+        while(true) {
+            long startedAt = t.startedAt;
+            long wait = startedAt == 0 ? timeoutMs : startedAt + timeoutMs - System.currentTimeMillis();
+            try {
+                if(wait > 0) {
+                    return t.future.get(wait, TimeUnit.MILLISECONDS);
+                }
+            } catch (TimeoutException e) {
+                // Queued until now or timed out; checked next time round
+                continue;
+            } catch (InterruptedException e) {
+                return false;
+            } catch (ExecutionException e) {
+                if(t.abandon()) {
+                    t.report.durationMs = System.currentTimeMillis() - startedAt;
+                    t.report.outcome = ServiceStartupReport.Outcome.FAILED;
+                    t.report.reason = e.getCause().getClass().getSimpleName()+": "+e.getCause().getLocalizedMessage();
+                    LOG.warning("Service "+t.name+" failed to start: "+t.report.reason);
+                }
+                return false;
+            } catch (CancellationException e) {
+                return false;
+            }
+            if(t.abandon()) {
+                t.future.cancel(true);
+                t.report.durationMs = System.currentTimeMillis() - startedAt;
+                t.report.outcome = ServiceStartupReport.Outcome.TIMED_OUT;
+                t.report.reason = "not started within "+timeoutMs+"ms";
+                LOG.warning("Service "+t.name+" did not start within "+timeoutMs+"ms; abandoned.");
+                return false;
+            }
+            // Finished just as it timed out
+        }
+    }
+
+    private void skip(String name, BaseService service, String reason) {
+        ServiceStartupReport r = report(name, service, -1);
+        r.startedAtMs = since();
+        r.outcome = ServiceStartupReport.Outcome.SKIPPED;
+        r.reason = reason;
+        LOG.warning("Service "+name+" not started: "+reason);
+    }
+
+    private ServiceStartupReport report(String name, BaseService service, int wave) {
+        ServiceStartupReport r = new ServiceStartupReport();
+        r.serviceClassName = name;
+        if(service != null) r.dependencies.addAll(service.getDependencies());
+        r.wave = wave;
+        timeline.add(r);
+        return r;
+    }
+
+    private long since() {
+        return began == 0 ? 0 : System.currentTimeMillis() - began;
+    }
+
+    private String summary(int waves) {
+        int started = 0;
+        ServiceStartupReport slowest = null;
+        for(ServiceStartupReport r : timeline) {
+            if(r.outcome == ServiceStartupReport.Outcome.STARTED) started++;
+            if(slowest == null || r.durationMs > slowest.durationMs) slowest = r;
+        }
+        return "Started "+started+" of "+timeline.size()+" services in "+since()+"ms over "+waves+" waves"
+                + (slowest == null ? "" : "; slowest: "+slowest);
+    }
+
+    private final class Task implements Callable<Boolean> {
+        private final String name;
+        private final BaseService service;
+        private final ServiceStartupReport report;
+        private volatile long startedAt;
+        private Future<Boolean> future;
+        // Set by whichever of the task finishing or the waiter timing out comes first
+        private final AtomicInteger state = new AtomicInteger(0);
+
+        private Task(String name, BaseService service, int wave) {
+            this.name = name;
+            this.service = service;
+            this.report = report(name, service, wave);
+        }
+
+        @Override
+        public Boolean call() {
+            startedAt = System.currentTimeMillis();
+            report.startedAtMs = since();
+            boolean started = false;
+            String reason = null;
+            try {
+                started = service.start(properties);
+            } catch (Exception e) {
+                reason = e.getClass().getSimpleName()+": "+e.getLocalizedMessage();
+                LOG.warning("Service "+name+" threw on start: "+reason);
+            }
+            if(!state.compareAndSet(0, 1)) {
+                // Timed out; too late to be routed to so shut down rather than left running unseen
+                if(started) {
+                    LOG.warning("Service "+name+" started after being abandoned; shutting it down.");
+                    try {
+                        service.shutdown();
+                    } catch (Exception e) {
+                        LOG.warning("Service "+name+" threw on shutdown: "+e.getLocalizedMessage());
+                    }
+                }
+                return false;
+            }
+            report.durationMs = System.currentTimeMillis() - startedAt;
+            if(started) {
+                runningServices.put(name, service);
+                report.outcome = ServiceStartupReport.Outcome.STARTED;
+                LOG.info("Service "+name+" started in "+report.durationMs+"ms");
+            } else {
+                report.outcome = ServiceStartupReport.Outcome.FAILED;
+                report.reason = reason == null ? "start returned false" : reason;
+                LOG.warning("Service "+name+" failed to start");
+            }
+            return started;
+        }
+
+        private boolean abandon() {
+            return state.compareAndSet(0, 2);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package io.onemfive.core.bus;
+
+/**
+ * Rate limit allowing bursts: holds up to burst tokens refilled at rate per second, each admission taking one.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class TokenBucket {
+
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param rate tokens added per second
+     * @param burst most tokens held; starts full
+     */
+    TokenBucket(double rate, double burst, long now) {
+        this.ratePerNano = rate / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledAt = now;
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return true if a token was taken
+     */
+    synchronized boolean tryTake(long now) {
+        refill(now);
+        if(tokens < 1) return false;
+        tokens--;
+        return true;
+    }
+
+    /**
+     * @return true if full, i.e. not used for a while
+     */
+    synchronized boolean full(long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+
+    private void refill(long now) {
+        if(now > refilledAt) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package io.onemfive.core.bus;
+
+/**
+ * Decides how many workers the bus needs from what they did over the last period.
+ *
+ * By Little's law the workers busy on average are the arrival rate times the service time, and the
+ * time envelopes wait in the channel is the number queued over the rate they are taken. While that
+ * wait exceeds the target the pool grows by enough workers to clear the backlog within the target,
+ * at most doubling each period; once under it, the pool shrinks towards those busy plus headroom.
+ *
+ * The size is bounded by the CPU budget scaled by how much of their time workers spend blocked:
+ * compute-bound workers are limited to the cores budgeted while those mostly waiting on I/O may
+ * number many times more. The memory budget bounds it too at {@link #WORKER_MEMORY_MB} per worker.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class WorkerPoolSizer {
+
+    // Stack and working memory assumed per worker when applying the memory budget
+    static final int WORKER_MEMORY_MB = 1;
+    // Workers kept beyond those busy on average to absorb bursts
+    private static final double HEADROOM = 1.25;
+    // Least fraction of time a worker is assumed on CPU, bounding workers per core
+    private static final double MIN_CPU_RATIO = 0.05;
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final double cpuBudget;
+    private final long targetQueueWaitMs;
+
+    // Measures of the last period, for reporting
+    private volatile double arrivalRate;
+    private volatile double serviceTimeMs;
+    private volatile double queueWaitMs;
+    // Smoothed; negative until measured
+    private volatile double blockingRatio = -1;
+
+    /**
+     * @param cpuBudget cores the workers may keep busy
+     * @param memoryBudgetMb memory the workers may use; 0 for no limit
+     * @param targetQueueWaitMs wait in the channel above which the pool grows
+     */
+    WorkerPoolSizer(int minWorkers, int maxWorkers, double cpuBudget, int memoryBudgetMb, long targetQueueWaitMs) {
+        int memoryLimit = memoryBudgetMb > 0 ? Math.max(1, memoryBudgetMb / WORKER_MEMORY_MB) : Integer.MAX_VALUE;
+        this.maxWorkers = Math.max(1, Math.min(maxWorkers, memoryLimit));
+        this.minWorkers = Math.max(1, Math.min(minWorkers, this.maxWorkers));
+        this.cpuBudget = cpuBudget > 0 ? cpuBudget : Runtime.getRuntime().availableProcessors();
+        this.targetQueueWaitMs = Math.max(1, targetQueueWaitMs);
+    }
+
+    int getMinWorkers() {
+        return minWorkers;
+    }
+
+    /**
+     * @return most workers allowed by the budgets given the blocking ratio measured so far
+     */
+    int getLimit() {
+        double blocking = blockingRatio;
+        // Unmeasured: two per core budgeted as the bus always had
+        double perCore = blocking < 0 ? 2 : 1 / Math.max(MIN_CPU_RATIO, 1 - blocking);
+        // Less a rounding error so exact ratios are not rounded up
+        int cpuLimit = (int)Math.ceil(cpuBudget * perCore - 1e-6);
+        return Math.max(minWorkers, Math.min(maxWorkers, cpuLimit));
+    }
+
+    /**
+     * @param size workers now
+     * @param completed envelopes handled over the period
+     * @param busyNanos time spent handling them
+     * @param cpuNanos CPU time spent handling them; negative if not measured
+     * @param working workers handling an envelope at the end of the period
+     * @param queued envelopes waiting in the channel at the end of the period
+     * @return workers wanted
+     */
+    int next(int size, long completed, long busyNanos, long cpuNanos, int working, int queued, long periodNanos) {
+        double periodSec = periodNanos / 1e9;
+        double rate = completed / periodSec;
+        double serviceSec = completed > 0 ? busyNanos / 1e9 / completed : 0;
+        // Those working on long envelopes count as busy before they complete
+        double busy = Math.max((double)busyNanos / periodNanos, working);
+        double waitMs;
+        if(queued == 0) waitMs = 0;
+        else if(rate > 0) waitMs = queued / rate * 1000;
+        else waitMs = periodSec * 1000;
+        if(cpuNanos >= 0 && busyNanos > 0) {
+            double ratio = Math.min(1, Math.max(0, 1 - (double)cpuNanos / busyNanos));
+            blockingRatio = blockingRatio < 0 ? ratio : (blockingRatio + ratio) / 2;
+        }
+        arrivalRate = rate;
+        serviceTimeMs = serviceSec * 1000;
+        queueWaitMs = waitMs;
+
+        double wanted = busy * HEADROOM;
+        if(serviceSec > 0) wanted += queued * serviceSec / (targetQueueWaitMs / 1000.0);
+        int next = size;
+        if(waitMs > targetQueueWaitMs) {
+            next = Math.max(size + 1, Math.min(size * 2, (int)Math.ceil(wanted)));
+        } else if(waitMs < targetQueueWaitMs / 2.0 && wanted < size) {
+            next = Math.max((int)Math.ceil(wanted), size - Math.max(1, size / 4));
+        }
+        return Math.max(minWorkers, Math.min(getLimit(), next));
+    }
+
+    double getArrivalRate() {
+        return arrivalRate;
+    }
+
+    double getServiceTimeMs() {
+        return serviceTimeMs;
+    }
+
+    double getQueueWaitMs() {
+        return queueWaitMs;
+    }
+
+    double getBlockingRatio() {
+        return blockingRatio;
+    }
+}
@@ -23,61 +23,102 @@ final class WorkerThread extends AppThread {
     private MessageChannel channel;
     private ClientAppManager clientAppManager;
     private Map<String, BaseService> services;
+    private LazyServices lazyServices;
+    private BusProfiler profiler;
 
-    public WorkerThread(MessageChannel channel, ClientAppManager clientAppManager, Map<String, BaseService> services) {
+    public WorkerThread(MessageChannel channel, ClientAppManager clientAppManager, Map<String, BaseService> services, LazyServices lazyServices, BusProfiler profiler) {
         super();
         this.channel = channel;
         this.clientAppManager = clientAppManager;
         this.services = services;
+        this.lazyServices = lazyServices;
+        this.profiler = profiler;
     }
 
     @Override
     public void run() {
         LOG.finer(Thread.currentThread().getName() + ": Channel waiting to receive next message...");
-        Envelope e = channel.receive();
+        handle(channel.receive(), 0);
+    }
+
+    /**
+     * Route an envelope received from the channel.
+     * @param waitNanos time it waited in the channel
+     * @return true if one was handled
+     */
+    boolean handle(Envelope e, long waitNanos) {
+        if(e == null) {
+            // Timed out or interrupted, e.g. on shutdown
+            return false;
+        }
         LOG.finer(Thread.currentThread().getName() + ": Channel received message; processing...");
+        try {
+            route(e, waitNanos);
+        } finally {
+            channel.done();
+        }
+        return true;
+    }
+
+    private void route(Envelope e, long waitNanos) {
+        long start = System.nanoTime();
         if (e.replyToClient()) {
             // Service Reply to client
             LOG.finer(Thread.currentThread().getName() + ": Requesting client notify...");
             clientAppManager.notify(e);
+            profiler.hop(e, BusProfiler.CLIENT, waitNanos, start, true);
         } else {
-            MessageConsumer consumer = null;
             Route route = e.getRoute();
-            if(route == null || route.routed()) {
-                consumer = services.get(OrchestrationService.class.getName());
-            } else {
-                consumer = services.get(route.getService());
-                if (consumer == null) {
-                    // Service name provided is not registered.
-                    LOG.warning(Thread.currentThread().getName() + ": Route found in header; Service not registered; Please register service: "+route.getService()+"\n\tCurrent Registered Services: "+services);
-                    return;
-                }
+            String serviceName = route == null || route.routed() ? OrchestrationService.class.getName() : route.getService();
+            boolean lazy = lazyServices.isLazy(serviceName);
+            if(lazy && !lazyServices.enterOrHold(serviceName, e)) {
+                // Held until the service starts
+                LOG.finer(Thread.currentThread().getName() + ": Envelope held for lazy service "+serviceName);
+                channel.ack(e);
+                return;
             }
-            boolean received = false;
-            int maxSendAttempts = 3;
-            int sendAttempts = 0;
-            int waitBetweenMillis = 1000;
-            while (!received && sendAttempts < maxSendAttempts) {
-                if (consumer.receive(e)) {
-                    LOG.finer(Thread.currentThread().getName() + ": Envelope received by service, acknowledging with channel...");
-                    channel.ack(e);
-                    LOG.finer(Thread.currentThread().getName() + ": Channel Acknowledged.");
-                    received = true;
-                } else {
-                    synchronized (this) {
-                        try {
-                            this.wait(waitBetweenMillis);
-                        } catch (InterruptedException ex) {
+            profiler.enter(serviceName);
+            try {
+                deliver(e, route, serviceName);
+            } finally {
+                profiler.exit(serviceName);
+                if(lazy) lazyServices.exit(serviceName);
+                profiler.hop(e, serviceName, waitNanos, start, false);
+            }
+        }
+    }
+
+    private void deliver(Envelope e, Route route, String serviceName) {
+        MessageConsumer consumer = services.get(serviceName);
+        if(consumer == null && route != null && !route.routed()) {
+            // Service name provided is not registered.
+            LOG.warning(Thread.currentThread().getName() + ": Route found in header; Service not registered; Please register service: "+route.getService()+"\n\tCurrent Registered Services: "+services);
+            return;
+        }
+        boolean received = false;
+        int maxSendAttempts = 3;
+        int sendAttempts = 0;
+        int waitBetweenMillis = 1000;
+        while (!received && sendAttempts < maxSendAttempts) {
+            if (consumer.receive(e)) {
+                LOG.finer(Thread.currentThread().getName() + ": Envelope received by service, acknowledging with channel...");
+                channel.ack(e);
+                LOG.finer(Thread.currentThread().getName() + ": Channel Acknowledged.");
+                received = true;
+            } else {
+                synchronized (this) {
+                    try {
+                        this.wait(waitBetweenMillis);
+                    } catch (InterruptedException ex) {
 
-                        }
                     }
                 }
-                sendAttempts++;
-            }
-            if(!received) {
-                // TODO: Need to move the failed Envelope to a log where it can be retried later
-                LOG.warning("Failed 3 attempts to send Envelope (id="+e.getId()+") to Service: ");
             }
+            sendAttempts++;
+        }
+        if(!received) {
+            // TODO: Need to move the failed Envelope to a log where it can be retried later
+            LOG.warning("Failed 3 attempts to send Envelope (id="+e.getId()+") to Service: ");
         }
     }
 }
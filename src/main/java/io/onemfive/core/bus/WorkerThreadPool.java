@@ -4,17 +4,21 @@ import io.onemfive.core.BaseService;
 import io.onemfive.core.client.ClientAppManager;
 import io.onemfive.core.util.AppThread;
 
-import java.util.Map;
-import java.util.Properties;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 /**
  * Thread pool for WorkerThreads.
  *
- * TODO: Improve teardown
- * TODO: Improve configuration options
+ * Each worker takes envelopes from the channel in turn. Every period the pool measures what its
+ * workers did and resizes to what its {@link WorkerPoolSizer} wants: workers are started to grow
+ * it and retire once done with their envelope to shrink it.
  *
  * @author objectorange
  */
@@ -24,25 +28,46 @@ final class WorkerThreadPool extends AppThread {
 
     public enum Status {Starting, Running, Stopping, Stopped}
 
-    private Status status = Status.Stopped;
+    // Most time an idle worker waits on the channel before checking whether to retire
+    private static final int POLL_MS = 100;
+
+    private volatile Status status = Status.Stopped;
 
-    private static final int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
     private final ClientAppManager clientAppManager;
     private Map<String,BaseService> services;
+    private LazyServices lazyServices;
     private MessageChannel channel;
-    private ExecutorService pool;
-    private int poolSize = NUMBER_OF_CORES * 2; // default
-    private int maxPoolSize = NUMBER_OF_CORES * 2; // default
+    private ThreadPoolExecutor pool;
+    private final WorkerPoolSizer sizer;
+    private final BusProfiler profiler;
+    private final long periodMs;
     private Properties properties;
     private AtomicBoolean spin = new AtomicBoolean(true);
 
-    WorkerThreadPool(ClientAppManager clientAppManager, Map<String, BaseService> services, MessageChannel channel, int poolSize, int maxPoolSize, Properties properties) {
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimed;
+    private final AtomicInteger workers = new AtomicInteger();
+    private final AtomicInteger working = new AtomicInteger();
+    private volatile int target;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+    private final Set<Long> threadIds = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+
+    /**
+     * @param periodMs how often the pool is resized
+     */
+    WorkerThreadPool(ClientAppManager clientAppManager, Map<String, BaseService> services, LazyServices lazyServices, MessageChannel channel, WorkerPoolSizer sizer, BusProfiler profiler, long periodMs, Properties properties) {
         this.clientAppManager = clientAppManager;
         this.services = services;
+        this.lazyServices = lazyServices;
         this.channel = channel;
-        this.poolSize = poolSize;
-        this.maxPoolSize = maxPoolSize;
+        this.sizer = sizer;
+        this.profiler = profiler;
+        this.periodMs = periodMs;
         this.properties = properties;
+        this.target = sizer.getMinWorkers();
+        cpuTimed = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
     }
 
     @Override
@@ -52,59 +77,157 @@ final class WorkerThreadPool extends AppThread {
     }
 
     private boolean startPool() {
-        int index = 0;
         status = Status.Starting;
-        pool = Executors.newFixedThreadPool(maxPoolSize);
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "WorkerThread-" + count.incrementAndGet());
+            }
+        });
+        resize(target);
         status = Status.Running;
-        final long printPeriodMs = 5000; // print * every 5 seconds
-        final long waitPeriodMs = 500; // wait half a second
-        long currentWait = 0;
+        long last = System.nanoTime();
+        long lastCompleted = 0, lastBusy = 0, lastCpu = 0;
         while(spin.get()) {
-            synchronized (this){
+            synchronized (this) {
                 try {
-                    if(currentWait > printPeriodMs) {
-                        LOG.finest("*");
-                        currentWait = 0;
-                    }
-                    int queueSize = channel.getQueue().size();
-                    if(queueSize > 0) {
-                        LOG.finest("Queue Size = "+queueSize+" : Launching thread...");
-                        pool.execute(new WorkerThread(channel, clientAppManager, services));
-                    } else {
-                        currentWait += waitPeriodMs;
-                        this.wait(waitPeriodMs); // wait 500ms
-                    }
+                    this.wait(periodMs);
                 } catch (InterruptedException e) {
 
                 }
             }
+            if(!spin.get()) break;
+            long now = System.nanoTime();
+            long c = completed.sum(), b = busyNanos.sum(), u = cpuNanos.sum();
+            int next = sizer.next(workers.get(), c - lastCompleted, b - lastBusy, cpuTimed ? u - lastCpu : -1,
+                    working.get(), channel.size(), now - last);
+            last = now;
+            lastCompleted = c;
+            lastBusy = b;
+            lastCpu = u;
+            if(next != target) {
+                LOG.fine("Resizing workers from "+target+" to "+next+": rate="+Math.round(sizer.getArrivalRate())+"/s service="
+                        +Math.round(sizer.getServiceTimeMs())+"ms wait="+Math.round(sizer.getQueueWaitMs())+"ms blocking="+sizer.getBlockingRatio());
+                resize(next);
+            }
         }
         return true;
     }
 
-    boolean shutdown() {
-        status = Status.Stopping;
-        spin.set(false);
-        pool.shutdown();
-        try {
-            if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                // pool didn't terminate after the first try
-                pool.shutdownNow();
+    private void resize(int size) {
+        target = size;
+        while(spin.get()) {
+            int n = workers.get();
+            if(n >= size) break;
+            if(workers.compareAndSet(n, n + 1)) {
+                try {
+                    pool.execute(new Worker());
+                } catch (RejectedExecutionException e) {
+                    workers.decrementAndGet();
+                    break;
+                }
             }
+        }
+        // Workers beyond the size retire themselves
+    }
 
+    /**
+     * @return true if the worker may leave, it then no longer counting
+     */
+    private boolean retire() {
+        while(true) {
+            int n = workers.get();
+            if(n <= target && spin.get()) return false;
+            if(workers.compareAndSet(n, n - 1)) return true;
+        }
+    }
 
-            if (!pool.awaitTermination(60, TimeUnit.SECONDS)) {
-                // pool didn't terminate after the second try
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            WorkerThread worker = new WorkerThread(channel, clientAppManager, services, lazyServices, profiler);
+            long id = Thread.currentThread().getId();
+            threadIds.add(id);
+            try {
+                while(!retire()) {
+                    MessageChannel.Queued q = channel.poll(POLL_MS);
+                    if(q == null) continue;
+                    long start = System.nanoTime();
+                    long cpu = cpuTimed ? threads.getCurrentThreadCpuTime() : 0;
+                    working.incrementAndGet();
+                    try {
+                        worker.handle(q.envelope, start - q.enqueuedAt);
+                    } finally {
+                        working.decrementAndGet();
+                        completed.increment();
+                        busyNanos.add(System.nanoTime() - start);
+                        if(cpuTimed) cpuNanos.add(threads.getCurrentThreadCpuTime() - cpu);
+                    }
+                }
+            } finally {
+                threadIds.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Stop launching workers and wait up to the timeout for those working, interrupting any left.
+     * If the channel is idle no worker is working, so they are interrupted at once rather than
+     * left to wait out their poll of the channel.
+     */
+    boolean shutdown(long timeoutMs) {
+        status = Status.Stopping;
+        spin.set(false);
+        synchronized (this) {
+            this.notifyAll();
+        }
+        boolean terminated = true;
+        if(pool != null) {
+            pool.shutdown();
+            if(channel.idle())
+                pool.shutdownNow();
+            try {
+                if (!pool.awaitTermination(Math.max(0, timeoutMs), TimeUnit.MILLISECONDS)) {
+                    pool.shutdownNow();
+                    terminated = pool.awaitTermination(1, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException ex) {
+                pool.shutdownNow();
+                terminated = false;
+                Thread.currentThread().interrupt();
             }
-        } catch (InterruptedException ex) {
-            pool.shutdownNow();
-            Thread.currentThread().interrupt();
         }
         status = Status.Stopped;
-        return true;
+        return terminated;
     }
 
     public Status getStatus() {
         return status;
     }
+
+    /**
+     * @return workers running
+     */
+    int getSize() {
+        return workers.get();
+    }
+
+    /**
+     * @return workers handling an envelope
+     */
+    int getBusy() {
+        return working.get();
+    }
+
+    long[] getThreadIds() {
+        List<Long> ids = new ArrayList<>(threadIds);
+        long[] a = new long[ids.size()];
+        for(int i = 0; i < a.length; i++) a[i] = ids.get(i);
+        return a;
+    }
+
+    WorkerPoolSizer getSizer() {
+        return sizer;
+    }
 }
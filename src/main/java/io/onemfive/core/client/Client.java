@@ -7,6 +7,8 @@ import io.onemfive.data.EventMessage;
 import io.onemfive.data.ServiceCallback;
 import io.onemfive.data.Subscription;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Define the standard means of interacting with the 1M5 application when embedded.
  *
@@ -25,6 +27,8 @@ public interface Client {
 
     /**
      * Request to 1M5 application with a reply using a ServiceCallback.
+     * Should no reply arrive within the client's default deadline the callback is handed the request
+     * envelope carrying an error message instead.
      * @param envelope non-null Envelope
      * @param cb non-null ServiceCallback
      * @see io.onemfive.data.Envelope
@@ -32,6 +36,34 @@ public interface Client {
      */
     void request(Envelope envelope, ServiceCallback cb);
 
+    /**
+     * As {@link #request(Envelope, ServiceCallback)} with a deadline of its own.
+     * @param timeoutMs milliseconds until the request expires; 0 to await the reply without one,
+     * in which case it is not counted as pending
+     */
+    void request(Envelope envelope, ServiceCallback cb, long timeoutMs);
+
+    /**
+     * Request to 1M5 application with the reply completing the returned future.
+     * Fails with a TimeoutException if no reply arrives within the client's default deadline.
+     * Cancelling the future withdraws the envelope from the bus if not yet dispatched and drops any late reply.
+     * @param envelope non-null Envelope
+     * @see io.onemfive.data.Envelope
+     */
+    CompletableFuture<Envelope> requestAsync(Envelope envelope);
+
+    /**
+     * As {@link #requestAsync(Envelope)} with a deadline of its own.
+     * @param envelope non-null Envelope
+     * @param timeoutMs milliseconds until the request expires
+     */
+    CompletableFuture<Envelope> requestAsync(Envelope envelope, long timeoutMs);
+
+    /**
+     * Requests with a deadline awaiting a reply, bounded by the client's maximum.
+     */
+    int pendingRequests();
+
 
     /**
      * Notify client of reply.
@@ -4,9 +4,16 @@ import io.onemfive.core.OneMFiveAppContext;
 import io.onemfive.core.MessageProducer;
 import io.onemfive.core.bus.BusStatusListener;
 import io.onemfive.core.bus.ServiceBus;
+import io.onemfive.core.util.TimerWheel;
 import io.onemfive.data.Envelope;
+import io.onemfive.data.util.DLC;
 
+import java.io.File;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -20,19 +27,41 @@ public final class ClientAppManager implements BusStatusListener {
 
     public enum Status {STOPPED, INITIALIZING, READY, STOPPING}
 
-    private Status status = Status.STOPPED;
+    public static final String PROP_REQUEST_TIMEOUT = "1m5.client.requestTimeoutMs";
+    public static final String PROP_MAX_PENDING_REQUESTS = "1m5.client.maxPendingRequests";
+    public static final String PROP_DELIVERY_QUEUE_SIZE = "1m5.client.deliveryQueueSize";
+    // Directory out-of-process clients connect through; none if not set
+    public static final String PROP_IPC_DIR = "1m5.client.ipc.dir";
+    // Time an out-of-process client's heartbeat may stop before it is taken as gone
+    public static final String PROP_IPC_LIVENESS_TIMEOUT = "1m5.client.ipc.livenessTimeoutMs";
+
+    // Claim check deadlines resolve to 50ms; one rotation of the wheel covers about 51 seconds
+    private static final long TIMER_TICK_MS = 50L;
+    private static final int TIMER_SLOTS = 1024;
+
+    private volatile Status status = Status.STOPPED;
     private boolean shutdownOnLastUnregister = true;
 
     private OneMFiveAppContext context;
     private MessageProducer producer;
     private Client defaultClient;
+    private TimerWheel timerWheel;
+    private IPCServer ipcServer;
+    private long requestTimeoutMs = 30 * 1000L;
+    private int maxPendingRequests = 10000;
+    private int deliveryQueueSize = 1000;
+    // Random start so ids of clients in earlier runs are unlikely to recur
+    private final AtomicLong nextClientId = new AtomicLong(new SecureRandom().nextLong() & Long.MAX_VALUE);
+    private final AtomicLong misroutedReplies = new AtomicLong();
 
-    // registered name to client
-    protected final Map<Long, Client> registered;
+    // registered id to client
+    protected final ConcurrentMap<Long, Client> registered;
+    // registered id to where replies for a client outside this JVM go
+    private final ConcurrentMap<Long, ReplySink> replySinks = new ConcurrentHashMap<>();
 
     public ClientAppManager(boolean shutdownOnLastUnregister) {
         this.shutdownOnLastUnregister = shutdownOnLastUnregister;
-        registered = new HashMap<>(20);
+        registered = new ConcurrentHashMap<>(20);
     }
 
     public void setShutdownOnLastUnregister(boolean shutdownOnLastUnregister) {
@@ -84,6 +113,11 @@ public final class ClientAppManager implements BusStatusListener {
      */
     public boolean initialize(Properties props) {
         LOG.finer("Requesting instance...");
+        if(props != null) {
+            requestTimeoutMs = Long.parseLong(props.getProperty(PROP_REQUEST_TIMEOUT, String.valueOf(requestTimeoutMs)));
+            maxPendingRequests = Integer.parseInt(props.getProperty(PROP_MAX_PENDING_REQUESTS, String.valueOf(maxPendingRequests)));
+            deliveryQueueSize = Integer.parseInt(props.getProperty(PROP_DELIVERY_QUEUE_SIZE, String.valueOf(deliveryQueueSize)));
+        }
         if(status == Status.STOPPED) {
             LOG.finer("initializing...");
             status = Status.INITIALIZING;
@@ -95,9 +129,15 @@ public final class ClientAppManager implements BusStatusListener {
                 serviceBus.start(props);
             }
             // Assign service bus to producer for sending messages to service bus
-            producer = serviceBus;
+            producer = new BusProducer(serviceBus);
             status = Status.READY;
             LOG.info("1M5 Service Bus running ready for requests.");
+            if(props != null && props.getProperty(PROP_IPC_DIR) != null) {
+                ipcServer = new IPCServer(new File(props.getProperty(PROP_IPC_DIR)), this, producer,
+                        Long.parseLong(props.getProperty(PROP_IPC_LIVENESS_TIMEOUT, String.valueOf(IPCServer.DEFAULT_LIVENESS_TIMEOUT_MS))));
+                if(!ipcServer.start())
+                    ipcServer = null;
+            }
         }
         defaultClient = buildClient();
         return true;
@@ -108,13 +148,28 @@ public final class ClientAppManager implements BusStatusListener {
      */
     public boolean stop() {
         LOG.info("Shutting down...");
+        if(ipcServer != null) {
+            ipcServer.stop();
+            ipcServer = null;
+        }
         boolean isStopped = false;
         if(status == Status.READY) {
             ServiceBus serviceBus = context.getServiceBus();
             if(serviceBus.getStatus() == ServiceBus.Status.Running) {
                 isStopped = serviceBus.shutdown();
             }
+            for(Client c : registered.values()) {
+                if(c instanceof SimpleClient)
+                    ((SimpleClient)c).close("Client app manager stopped.");
+            }
             registered.clear();
+            replySinks.clear();
+        }
+        synchronized (this) {
+            if(timerWheel != null) {
+                timerWheel.stop();
+                timerWheel = null;
+            }
         }
         LOG.info("Shutdown");
         if(isStopped) status = Status.STOPPED;
@@ -138,9 +193,45 @@ public final class ClientAppManager implements BusStatusListener {
      * @return non-null
      */
     private Client buildClient() {
-        Client client = new SimpleClient(new Random(758307813189741L).nextLong(), producer);
-        registered.put(client.getId(), client);
-        return client;
+        while(true) {
+            Long id = reserveClientId();
+            Client client = new SimpleClient(id, producer, timerWheel(), requestTimeoutMs, maxPendingRequests, deliveryQueueSize);
+            if(registered.putIfAbsent(id, client) == null)
+                return client;
+        }
+    }
+
+    /**
+     * @return an id no registered client has
+     */
+    Long reserveClientId() {
+        Long id;
+        do {
+            id = nextClientId.getAndIncrement() & Long.MAX_VALUE;
+        } while(registered.containsKey(id) || replySinks.containsKey(id));
+        return id;
+    }
+
+    /**
+     * Register where replies go for a client outside this JVM, with an id from {@link #reserveClientId()}.
+     * @throws IllegalStateException if its id is taken
+     */
+    void register(ReplySink sink) {
+        if(registered.containsKey(sink.getId()) || replySinks.putIfAbsent(sink.getId(), sink) != null)
+            throw new IllegalStateException("Client id taken: "+sink.getId());
+    }
+
+    /**
+     * Remove a client outside this JVM without stopping on the last one, e.g. as it disconnects.
+     */
+    void deregister(ReplySink sink) {
+        replySinks.remove(sink.getId(), sink);
+    }
+
+    private synchronized TimerWheel timerWheel() {
+        if(timerWheel == null)
+            timerWheel = new TimerWheel("ClientClaimCheckExpiry", TIMER_TICK_MS, TIMER_SLOTS);
+        return timerWheel;
     }
 
     /**
@@ -153,22 +244,34 @@ public final class ClientAppManager implements BusStatusListener {
     public void notify(Envelope e) {
         if(e != null) {
             Client client;
+            ReplySink sink = null;
             Long clientId = e.getClient();
             if(clientId == null) {
                 // Likely coming from notifications therefore use default client as there should normally only be one Client
                 client = defaultClient;
             } else {
-                client = getRegisteredClient(clientId);
+                client = registered.get(clientId);
+                if(client == null) sink = replySinks.get(clientId);
             }
             if (client != null) {
                 client.notify(e);
+            } else if (sink != null) {
+                sink.notify(e);
             } else {
-                // Just use defaultClient as there should only be one client for now
-                defaultClient.notify(e);
+                // Never another client's; it may hold a claim check for an envelope with the same id
+                misroutedReplies.incrementAndGet();
+                LOG.warning("No client registered with id "+clientId+"; dropped reply Envelope-"+e.getId());
             }
         }
     }
 
+    /**
+     * @return replies dropped as their client was not registered
+     */
+    public long getMisroutedReplies() {
+        return misroutedReplies.get();
+    }
+
     /**
      *  Unregister with the manager.
      *  If last defaultClient registered and shutdownOnLastUnregister is true,
@@ -178,13 +281,28 @@ public final class ClientAppManager implements BusStatusListener {
      */
     public void unregister(Client client) {
         registered.remove(client.getId());
+        if(client instanceof SimpleClient)
+            ((SimpleClient)client).close("Client unregistered.");
         if(registered.size() == 0 && shutdownOnLastUnregister) {
             stop();
         }
     }
 
+    /**
+     * @return requests of registered clients awaiting a reply
+     */
+    public int pendingRequests() {
+        int pending = 0;
+        for(Client c : registered.values()) pending += c.pendingRequests();
+        for(ReplySink s : replySinks.values()) pending += s.pendingRequests();
+        return pending;
+    }
+
+    /**
+     * @return clients registered, including those outside this JVM
+     */
     public int numberRegistered() {
-        return registered.size();
+        return registered.size() + replySinks.size();
     }
 
     /**
@@ -203,4 +321,34 @@ public final class ClientAppManager implements BusStatusListener {
             return registered.get(id);
     }
 
+    /**
+     * Sends client envelopes to the service bus while not stopping.
+     */
+    final class BusProducer implements MessageProducer {
+
+        private final ServiceBus bus;
+
+        private BusProducer(ServiceBus bus) {
+            this.bus = bus;
+        }
+
+        @Override
+        public boolean send(Envelope e) {
+            if(status == Status.STOPPING) {
+                // Bus draining replies to requests already made
+                String errMsg = "1M5 Service Bus stopping; not accepting new requests.";
+                DLC.addErrorMessage(errMsg, e);
+                LOG.warning(errMsg+" Rejected Envelope-"+e.getId());
+                return false;
+            }
+            return bus.send(e);
+        }
+
+        /**
+         * @see ServiceBus#cancel(Long)
+         */
+        boolean cancel(Long envelopeId) {
+            return bus.cancel(envelopeId);
+        }
+    }
 }
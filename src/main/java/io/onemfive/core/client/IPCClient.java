@@ -0,0 +1,227 @@
+package io.onemfive.core.client;
+
+import io.onemfive.core.MessageProducer;
+import io.onemfive.core.bus.EnvelopeCodec;
+import io.onemfive.core.util.TimerWheel;
+import io.onemfive.core.util.data.ByteArray;
+import io.onemfive.data.Envelope;
+import io.onemfive.data.ServiceCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Client for applications in another JVM on the same host as a 1M5 node, connecting through the
+ * node's IPC directory ({@link ClientAppManager#PROP_IPC_DIR}) instead of embedding the node.
+ *
+ * Requests and replies travel through a pair of memory mapped ring buffers shared with the node's
+ * {@link IPCServer}, so a round trip costs microseconds while both sides are busy. Correlation,
+ * deadlines and delivery work as for embedded clients. Call {@link #close()} when finished.
+ *
+ * Requests work as through a {@link Client}, but this is not one: event subscriptions are not
+ * offered as their callbacks can not leave this JVM.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public final class IPCClient {
+
+    private static final Logger LOG = Logger.getLogger(IPCClient.class.getName());
+
+    public static final int DEFAULT_RING_CAPACITY = 1 << 20;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 5 * 1000L;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 30 * 1000L;
+    // How long a request waits for room in a full request ring before failing
+    private static final long SEND_TIMEOUT_NS = 1000 * 1000000L;
+    private static final int CLOSE_CHECK_LOOPS = 1024;
+
+    private final IPCConnection ipc;
+    private final TimerWheel timerWheel;
+    private final SimpleClient client;
+    private final Thread reader;
+    private volatile boolean open = true;
+
+    private IPCClient(IPCConnection ipc, long id, long requestTimeoutMs) {
+        this.ipc = ipc;
+        timerWheel = new TimerWheel("IPCClientClaimCheckExpiry-"+id, 50, 1024);
+        client = new SimpleClient(id, new MessageProducer() {
+            @Override
+            public boolean send(Envelope e) {
+                return write(e);
+            }
+        }, timerWheel, requestTimeoutMs, 10000, 1000);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "IPCClientReader-"+id);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public static IPCClient connect(File dir) throws IOException, TimeoutException {
+        return connect(dir, DEFAULT_RING_CAPACITY, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * @param dir IPC directory of the node
+     * @param ringCapacity bytes of each ring, a power of two; an envelope may take up to half
+     * @param connectTimeoutMs how long to wait for the node to accept
+     * @param requestTimeoutMs default deadline of requests expecting a reply
+     */
+    public static IPCClient connect(File dir, int ringCapacity, long connectTimeoutMs, long requestTimeoutMs) throws IOException, TimeoutException {
+        if(!dir.isDirectory())
+            throw new IOException("No IPC directory: "+dir.getAbsolutePath());
+        IPCConnection ipc = IPCConnection.create(dir, ringCapacity);
+        long deadline = System.currentTimeMillis() + connectTimeoutMs;
+        while(ipc.state() == IPCConnection.STATE_REQUESTED) {
+            if(System.currentTimeMillis() > deadline) {
+                ipc.close(true);
+                throw new TimeoutException("Node did not accept within "+connectTimeoutMs+"ms: "+dir.getAbsolutePath());
+            }
+            LockSupport.parkNanos(1000000L);
+        }
+        if(ipc.state() != IPCConnection.STATE_ACCEPTED)
+            throw new IOException("Node refused connection: "+dir.getAbsolutePath());
+        IPCClient c = new IPCClient(ipc, ipc.clientId(), requestTimeoutMs);
+        LOG.info("Connected to node as client "+c.getId());
+        return c;
+    }
+
+    /**
+     * @see Client#request(Envelope)
+     */
+    public void request(Envelope envelope) {
+        client.request(envelope);
+    }
+
+    /**
+     * @see Client#request(Envelope, ServiceCallback)
+     */
+    public void request(Envelope envelope, ServiceCallback cb) {
+        client.request(envelope, cb);
+    }
+
+    /**
+     * @see Client#request(Envelope, ServiceCallback, long)
+     */
+    public void request(Envelope envelope, ServiceCallback cb, long timeoutMs) {
+        client.request(envelope, cb, timeoutMs);
+    }
+
+    /**
+     * @see Client#requestAsync(Envelope)
+     */
+    public CompletableFuture<Envelope> requestAsync(Envelope envelope) {
+        return client.requestAsync(envelope);
+    }
+
+    /**
+     * @see Client#requestAsync(Envelope, long)
+     */
+    public CompletableFuture<Envelope> requestAsync(Envelope envelope, long timeoutMs) {
+        return client.requestAsync(envelope, timeoutMs);
+    }
+
+    /**
+     * @see Client#pendingRequests()
+     */
+    public int pendingRequests() {
+        return client.pendingRequests();
+    }
+
+    public Long getId() {
+        return client.getId();
+    }
+
+    public void registerClientStatusListener(ClientStatusListener listener) {
+        client.registerClientStatusListener(listener);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Disconnect, failing requests still awaiting replies.
+     */
+    public void close() {
+        close("IPC client closed.");
+    }
+
+    private synchronized void close(String reason) {
+        if(!open) return;
+        open = false;
+        ipc.close(false);
+        client.close(reason);
+        timerWheel.stop();
+        LOG.info("Client "+getId()+" disconnected: "+reason);
+    }
+
+    private synchronized boolean write(Envelope e) {
+        if(!open) return false;
+        ByteArray frame;
+        try {
+            frame = EnvelopeCodec.encodePooled(e);
+        } catch (IOException ex) {
+            LOG.warning("Unable to encode Envelope-"+e.getId()+": "+ex.getLocalizedMessage());
+            return false;
+        }
+        try {
+            if(frame.getValid() > ipc.requests.maxRecordLength()) {
+                LOG.warning("Envelope-"+e.getId()+" of "+frame.getValid()+" bytes exceeds the ring's "+ipc.requests.maxRecordLength());
+                return false;
+            }
+            long deadline = System.nanoTime() + SEND_TIMEOUT_NS;
+            int idle = 0;
+            while(!ipc.requests.offer(frame.getData(), frame.getOffset(), frame.getValid())) {
+                if(System.nanoTime() > deadline || ipc.state() == IPCConnection.STATE_CLOSED) {
+                    LOG.warning("Node not draining requests; rejected Envelope-"+e.getId());
+                    return false;
+                }
+                idle = IPCConnection.idle(idle);
+            }
+            return true;
+        } finally {
+            EnvelopeCodec.release(frame);
+        }
+    }
+
+    private void read() {
+        int idle = 0;
+        long beatAt = System.nanoTime();
+        while(open) {
+            long now = System.nanoTime();
+            if(now - beatAt >= IPCConnection.HEARTBEAT_PERIOD_MS * 1000000L) {
+                // Tells the node this process still lives
+                ipc.beat();
+                beatAt = now;
+            }
+            Envelope e;
+            try {
+                e = IPCConnection.poll(ipc.replies);
+            } catch (MappedRing.CorruptRingException ex) {
+                close("Reply ring corrupt: "+ex.getLocalizedMessage());
+                return;
+            } catch (IOException ex) {
+                LOG.warning("Undecodable reply from node: "+ex.getLocalizedMessage());
+                continue;
+            }
+            if(e == null) {
+                idle = IPCConnection.idle(idle);
+                if(idle % CLOSE_CHECK_LOOPS == 0 && ipc.state() == IPCConnection.STATE_CLOSED) {
+                    close("Node closed the connection.");
+                    return;
+                }
+                continue;
+            }
+            idle = 0;
+            client.notify(e);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package io.onemfive.core.client;
+
+import io.onemfive.core.bus.EnvelopeCodec;
+import io.onemfive.core.util.data.ByteArray;
+import io.onemfive.data.Envelope;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * One out-of-process client's connection to the node: a memory mapped file in the IPC directory
+ * holding a ring of requests from the client and a ring of replies to it.
+ *
+ * File layout: magic, version, ring capacity, state, client id assigned by the node, the client's
+ * heartbeat, then the request ring and the reply ring. The client creates the file under a temporary
+ * name and renames it once initialized in state REQUESTED; the node assigns an id and sets ACCEPTED;
+ * either side sets CLOSED when done and the node deletes the file.
+ *
+ * While connected the client counts its heartbeat up every {@link #HEARTBEAT_PERIOD_MS}; a client
+ * process that dies can not set CLOSED, so the node takes one whose heartbeat stops as gone.
+ *
+ * Frames in the rings are envelopes encoded by {@link EnvelopeCodec}.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class IPCConnection {
+
+    private static final Logger LOG = Logger.getLogger(IPCConnection.class.getName());
+
+    static final String SUFFIX = ".ipc";
+    static final int MAGIC = 0x314d3549; // 1M5I
+    // 2: frames encoded by EnvelopeCodec; 3: client heartbeat
+    static final int VERSION = 3;
+
+    static final int STATE_REQUESTED = 1;
+    static final int STATE_ACCEPTED = 2;
+    static final int STATE_CLOSED = 3;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int STATE_OFFSET = 12;
+    private static final int CLIENT_ID_OFFSET = 16;
+    private static final int HEARTBEAT_OFFSET = 24;
+    private static final int HEADER_LENGTH = 64;
+
+    // Idle loops spent spinning, then yielding, before parking
+    private static final int IDLE_SPINS = 1000;
+    private static final int IDLE_YIELDS = 100;
+    private static final long IDLE_PARK_NS = 50 * 1000L;
+
+    static final long HEARTBEAT_PERIOD_MS = 250L;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    // Orders the client id before the state, as positions in MappedRing
+    private final MappedMemory header;
+    final MappedRing requests;
+    final MappedRing replies;
+
+    private IPCConnection(File file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.header = new MappedMemory(buffer);
+        requests = new MappedRing(buffer, HEADER_LENGTH, capacity);
+        replies = new MappedRing(buffer, HEADER_LENGTH + MappedRing.regionLength(capacity), capacity);
+    }
+
+    /**
+     * Client side: create a connection file awaiting acceptance by the node.
+     * @param capacity bytes of each ring; a power of two
+     */
+    static IPCConnection create(File dir, int capacity) throws IOException {
+        String name = "client-" + System.nanoTime() + "-" + Thread.currentThread().getId();
+        File tmp = new File(dir, "." + name + ".tmp");
+        File file = new File(dir, name + SUFFIX);
+        MappedByteBuffer buffer = map(tmp, HEADER_LENGTH + 2 * MappedRing.regionLength(capacity));
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(STATE_OFFSET, STATE_REQUESTED);
+        buffer.force();
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to publish connection file: "+file.getAbsolutePath());
+        }
+        return new IPCConnection(file, buffer, capacity);
+    }
+
+    /**
+     * Node side: open a connection file created by a client.
+     */
+    static IPCConnection open(File file) throws IOException {
+        MappedByteBuffer buffer = map(file, 0);
+        if(buffer.capacity() < HEADER_LENGTH || buffer.getInt(MAGIC_OFFSET) != MAGIC)
+            throw new IOException("Not a connection file: "+file.getAbsolutePath());
+        if(buffer.getInt(VERSION_OFFSET) != VERSION)
+            throw new IOException("Unsupported connection version "+buffer.getInt(VERSION_OFFSET)+": "+file.getAbsolutePath());
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        if(buffer.capacity() != HEADER_LENGTH + 2 * MappedRing.regionLength(capacity))
+            throw new IOException("Truncated connection file: "+file.getAbsolutePath());
+        return new IPCConnection(file, buffer, capacity);
+    }
+
+    /**
+     * Create the IPC directory readable by this user only; envelopes in it are trusted.
+     */
+    static void createDir(File dir) throws IOException {
+        if(!dir.exists() && !dir.mkdirs())
+            throw new IOException("Unable to create IPC directory: "+dir.getAbsolutePath());
+        try {
+            Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwx------"));
+        } catch (UnsupportedOperationException e) {
+            LOG.warning("Unable to restrict IPC directory to this user: "+dir.getAbsolutePath());
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int state() {
+        return header.getIntAcquire(STATE_OFFSET);
+    }
+
+    /**
+     * @return id assigned by the node; only once ACCEPTED
+     */
+    long clientId() {
+        return buffer.getLong(CLIENT_ID_OFFSET);
+    }
+
+    /**
+     * Client side: count the heartbeat up.
+     */
+    void beat() {
+        header.putLongRelease(HEARTBEAT_OFFSET, header.getLongAcquire(HEARTBEAT_OFFSET) + 1);
+    }
+
+    long heartbeat() {
+        return header.getLongAcquire(HEARTBEAT_OFFSET);
+    }
+
+    /**
+     * Node side: publish the id, read by the client once it sees the state ACCEPTED.
+     */
+    void accept(long clientId) {
+        buffer.putLong(CLIENT_ID_OFFSET, clientId);
+        header.putIntRelease(STATE_OFFSET, STATE_ACCEPTED);
+    }
+
+    void close(boolean delete) {
+        header.putIntRelease(STATE_OFFSET, STATE_CLOSED);
+        if(delete && !file.delete())
+            LOG.warning("Unable to delete connection file: "+file.getAbsolutePath());
+    }
+
+    /**
+     * @return false if the ring has no room now
+     * @throws IOException if the envelope can not be encoded or could never fit
+     */
+    static boolean offer(MappedRing ring, Envelope e) throws IOException {
+        ByteArray b = EnvelopeCodec.encodePooled(e);
+        try {
+            if(b.getValid() > ring.maxRecordLength())
+                throw new IOException("Envelope-"+e.getId()+" of "+b.getValid()+" bytes exceeds the ring's "+ring.maxRecordLength());
+            return ring.offer(b.getData(), b.getOffset(), b.getValid());
+        } finally {
+            EnvelopeCodec.release(b);
+        }
+    }
+
+    /**
+     * Decode the next envelope straight from the mapping.
+     * @return null if none
+     * @throws MappedRing.CorruptRingException if the ring is corrupt; nothing more can be read
+     * @throws IOException if undecodable; the frame is skipped
+     */
+    static Envelope poll(MappedRing ring) throws IOException {
+        ByteBuffer frame = ring.peek();
+        if(frame == null)
+            return null;
+        try {
+            return EnvelopeCodec.decode(frame);
+        } finally {
+            ring.advance();
+        }
+    }
+
+    /**
+     * Back off while a ring is empty or full: spin for microsecond latency while busy, then
+     * yield, then park so idle connections cost little.
+     * @param idleCount loops idle so far
+     * @return idleCount + 1
+     */
+    static int idle(int idleCount) {
+        if(idleCount < IDLE_SPINS) {
+            // Busy spin
+        } else if(idleCount < IDLE_SPINS + IDLE_YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(IDLE_PARK_NS);
+        }
+        return idleCount + 1;
+    }
+
+    private static MappedByteBuffer map(File file, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if(length > 0)
+                raf.setLength(length);
+            // The mapping stays valid once the file is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            // Shared words are accessed in native order, see MappedMemory
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package io.onemfive.core.client;
+
+import io.onemfive.core.MessageProducer;
+import io.onemfive.data.Envelope;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Node side of the shared memory transport for clients in other JVMs on this host, see {@link IPCClient}.
+ *
+ * Watches the IPC directory for connection files. Each one accepted is registered with the
+ * {@link ClientAppManager} as a client under a new id and gets a thread relaying its requests to
+ * the bus; replies to it are written to its reply ring by whichever thread delivers them.
+ * Requests the bus refuses are returned straight away carrying the bus's error message.
+ * Clients whose heartbeat stops for the liveness timeout, e.g. as their process died, are
+ * deregistered and their connection files deleted.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public final class IPCServer {
+
+    private static final Logger LOG = Logger.getLogger(IPCServer.class.getName());
+
+    private static final long ACCEPT_PERIOD_MS = 100L;
+    // Idle loops between checks of whether the client closed
+    private static final int CLOSE_CHECK_LOOPS = 1024;
+    public static final long DEFAULT_LIVENESS_TIMEOUT_MS = 5 * 1000L;
+
+    private final File dir;
+    private final ClientAppManager manager;
+    private final MessageProducer producer;
+    private final long livenessTimeoutMs;
+    private final Map<File,Connection> connections = new ConcurrentHashMap<>();
+    private volatile boolean running = false;
+    private Thread acceptor;
+
+    /**
+     * @param producer where requests are sent, normally the service bus
+     */
+    public IPCServer(File dir, ClientAppManager manager, MessageProducer producer) {
+        this(dir, manager, producer, DEFAULT_LIVENESS_TIMEOUT_MS);
+    }
+
+    /**
+     * @param livenessTimeoutMs how long a client's heartbeat may stop before it is taken as gone
+     */
+    public IPCServer(File dir, ClientAppManager manager, MessageProducer producer, long livenessTimeoutMs) {
+        this.dir = dir;
+        this.manager = manager;
+        this.producer = producer;
+        this.livenessTimeoutMs = livenessTimeoutMs;
+    }
+
+    public synchronized boolean start() {
+        if(running) return true;
+        try {
+            IPCConnection.createDir(dir);
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return false;
+        }
+        // Connections of an earlier run are orphaned
+        File[] stale = dir.listFiles();
+        if(stale != null) {
+            for(File f : stale) {
+                if(f.getName().endsWith(IPCConnection.SUFFIX) && !f.delete())
+                    LOG.warning("Unable to delete stale connection file: "+f.getAbsolutePath());
+            }
+        }
+        running = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(running) {
+                    accept();
+                    try {
+                        Thread.sleep(ACCEPT_PERIOD_MS);
+                    } catch (InterruptedException e) {
+                        // stopping
+                    }
+                }
+            }
+        }, "IPCServerAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Accepting IPC clients in "+dir.getAbsolutePath());
+        return true;
+    }
+
+    public synchronized void stop() {
+        if(!running) return;
+        running = false;
+        acceptor.interrupt();
+        for(Connection c : connections.values()) {
+            c.close();
+        }
+        connections.clear();
+        LOG.info("Stopped accepting IPC clients");
+    }
+
+    public int connections() {
+        return connections.size();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    private void accept() {
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        for(File f : files) {
+            if(!f.getName().endsWith(IPCConnection.SUFFIX) || connections.containsKey(f)) continue;
+            try {
+                IPCConnection ipc = IPCConnection.open(f);
+                if(ipc.state() == IPCConnection.STATE_CLOSED) {
+                    // Client gave up before being accepted
+                    f.delete();
+                    continue;
+                }
+                if(ipc.state() != IPCConnection.STATE_REQUESTED) continue;
+                Connection c = new Connection(ipc, manager.reserveClientId());
+                connections.put(f, c);
+                manager.register(c);
+                ipc.accept(c.id);
+                c.start();
+                LOG.info("IPC client "+c.id+" connected");
+            } catch (IOException e) {
+                LOG.warning("Unable to accept IPC client "+f.getName()+": "+e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * An out-of-process client as seen by the node: replies to it go to its reply ring.
+     */
+    private final class Connection implements ReplySink, Runnable {
+        private final IPCConnection ipc;
+        private final Long id;
+        private final Thread reader;
+        private volatile boolean open = true;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        // Reader thread only
+        private long lastBeat;
+        private long lastBeatAt = System.nanoTime();
+
+        private Connection(IPCConnection ipc, Long id) {
+            this.ipc = ipc;
+            this.id = id;
+            reader = new Thread(this, "IPCServerReader-"+id);
+            reader.setDaemon(true);
+        }
+
+        private void start() {
+            reader.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                relay();
+            } catch (RuntimeException ex) {
+                LOG.warning("IPC client "+id+" failed: "+ex.getLocalizedMessage());
+            } finally {
+                close();
+                LOG.info("IPC client "+id+" disconnected");
+            }
+        }
+
+        private void relay() {
+            int idle = 0;
+            while(open && running) {
+                Envelope e;
+                try {
+                    e = IPCConnection.poll(ipc.requests);
+                } catch (MappedRing.CorruptRingException ex) {
+                    LOG.warning("IPC client "+id+" corrupted its request ring; dropping it: "+ex.getLocalizedMessage());
+                    return;
+                } catch (IOException ex) {
+                    LOG.warning("IPC client "+id+" sent an undecodable frame: "+ex.getLocalizedMessage());
+                    continue;
+                }
+                if(e == null) {
+                    idle = IPCConnection.idle(idle);
+                    if(idle % CLOSE_CHECK_LOOPS == 0) {
+                        if(ipc.state() == IPCConnection.STATE_CLOSED)
+                            return;
+                        if(!alive()) {
+                            LOG.warning("IPC client "+id+" sent no heartbeat within "+livenessTimeoutMs+"ms; dropping it");
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                idle = 0;
+                // Replies must come back here whatever the client claims to be
+                e.setClient(id);
+                if(!producer.send(e)) {
+                    // Carries the bus's error message
+                    notify(e);
+                }
+            }
+        }
+
+        /**
+         * @return false if the heartbeat has not moved for the liveness timeout
+         */
+        private boolean alive() {
+            long beat = ipc.heartbeat();
+            long now = System.nanoTime();
+            if(beat != lastBeat) {
+                lastBeat = beat;
+                lastBeatAt = now;
+                return true;
+            }
+            return now - lastBeatAt < livenessTimeoutMs * 1000000L;
+        }
+
+        private void close() {
+            if(!closed.compareAndSet(false, true)) return;
+            open = false;
+            connections.remove(ipc.getFile());
+            manager.deregister(this);
+            ipc.close(true);
+        }
+
+        @Override
+        public synchronized void notify(Envelope e) {
+            if(!open) return;
+            try {
+                // Never blocks the delivering thread; an unread reply expires at the client
+                if(!IPCConnection.offer(ipc.replies, e))
+                    LOG.warning("IPC client "+id+" reply ring full; dropped reply to Envelope-"+e.getId());
+            } catch (IOException ex) {
+                LOG.warning("Unable to reply to IPC client "+id+": "+ex.getLocalizedMessage());
+            }
+        }
+
+        @Override
+        public Long getId() {
+            return id;
+        }
+
+        /**
+         * Its requests await replies in its own JVM.
+         */
+        @Override
+        public int pendingRequests() {
+            return 0;
+        }
+    }
+}
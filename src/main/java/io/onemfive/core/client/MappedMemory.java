@@ -0,0 +1,107 @@
+package io.onemfive.core.client;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Ordered access to words of memory shared with another process through a mapping.
+ *
+ * A release store keeps every write before it from being seen after it and an acquire load keeps
+ * every read after it from being done before it, in the CPU as well as the JIT, so a process
+ * publishing a position with a release store and one reading it with an acquire load agree on the
+ * data before it. A Java volatile field only orders accesses within one JVM, so these go through
+ * Unsafe to the mapping's address, which HotSpot compiles to the fences of the CPU it runs on.
+ *
+ * Where Unsafe is not available, or for heap buffers, they fall back to plain accesses behind a
+ * volatile fence: enough within one JVM and across processes on x86, whose stores are seen in order,
+ * but not on weaker CPUs such as ARM.
+ *
+ * Words are in native byte order; mappings shared through this must be in {@link java.nio.ByteOrder#nativeOrder()}.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class MappedMemory {
+
+    private static final Logger LOG = Logger.getLogger(MappedMemory.class.getName());
+
+    private static final Unsafe UNSAFE;
+    private static final long ADDRESS_OFFSET;
+    static {
+        Unsafe unsafe = null;
+        long addressOffset = -1;
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe)f.get(null);
+            addressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Exception | LinkageError e) {
+            unsafe = null;
+            LOG.warning("Unsafe not available; memory shared with other processes is only ordered on x86: "+e);
+        }
+        UNSAFE = unsafe;
+        ADDRESS_OFFSET = addressOffset;
+    }
+
+    // Written and read purely for ordering in the fallback
+    private static volatile int fence;
+
+    private final ByteBuffer buffer;
+    // Of the buffer's first byte; 0 for plain accesses
+    private final long address;
+
+    MappedMemory(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.address = UNSAFE != null && buffer.isDirect() ? UNSAFE.getLong(buffer, ADDRESS_OFFSET) : 0;
+    }
+
+    long getLongAcquire(int index) {
+        check(index, 8);
+        if(address != 0)
+            return UNSAFE.getLongVolatile(null, address + index);
+        long v = buffer.getLong(index);
+        int f = fence;
+        return v;
+    }
+
+    void putLongRelease(int index, long value) {
+        check(index, 8);
+        if(address != 0) {
+            UNSAFE.putOrderedLong(null, address + index, value);
+        } else {
+            fence = 0;
+            buffer.putLong(index, value);
+        }
+    }
+
+    int getIntAcquire(int index) {
+        check(index, 4);
+        if(address != 0)
+            return UNSAFE.getIntVolatile(null, address + index);
+        int v = buffer.getInt(index);
+        int f = fence;
+        return v;
+    }
+
+    void putIntRelease(int index, int value) {
+        check(index, 4);
+        if(address != 0) {
+            UNSAFE.putOrderedInt(null, address + index, value);
+        } else {
+            fence = 0;
+            buffer.putInt(index, value);
+        }
+    }
+
+    /**
+     * Unsafe does not check bounds; words must also be aligned to be read whole.
+     */
+    private void check(int index, int length) {
+        if(index < 0 || index > buffer.capacity() - length || (index & (length - 1)) != 0)
+            throw new IndexOutOfBoundsException("Word of "+length+" at "+index+" in "+buffer.capacity());
+    }
+}
@@ -0,0 +1,164 @@
+package io.onemfive.core.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Single producer, single consumer ring buffer over a region of a memory mapped file,
+ * one process writing and another reading.
+ *
+ * Region layout: head (next position to read) and tail (next position to write) as longs on
+ * separate cache lines, then the data. Positions only grow; the offset into the data is
+ * position modulo capacity. A record is its length as an int followed by its bytes, padded to
+ * 8 bytes. A negative length marks the rest of the data as skipped so records never wrap.
+ *
+ * The producer writes a record then publishes the tail with a release store; the consumer reads
+ * the tail with an acquire load, then the records up to it, then publishes the head likewise, see
+ * {@link MappedMemory}. Aligned long writes to the mapping are not torn.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class MappedRing {
+
+    static final int HEAD_OFFSET = 0;
+    static final int TAIL_OFFSET = 64;
+    static final int HEADER_LENGTH = 128;
+    private static final int RECORD_HEADER = 4;
+    private static final int PADDING = -1;
+
+    private final ByteBuffer buffer;
+    private final MappedMemory positions;
+    private final int base;
+    private final int capacity;
+    private final int mask;
+    // Consumer only: head once the peeked record is released
+    private long nextHead;
+
+    /**
+     * @param buffer the whole mapping
+     * @param base offset of the region within the mapping
+     * @param capacity bytes of data; a power of two
+     */
+    MappedRing(ByteBuffer buffer, int base, int capacity) {
+        if(Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: "+capacity);
+        this.buffer = buffer;
+        this.positions = new MappedMemory(buffer);
+        this.base = base;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    static int regionLength(int capacity) {
+        return HEADER_LENGTH + capacity;
+    }
+
+    /**
+     * @return largest record accepted
+     */
+    int maxRecordLength() {
+        return capacity / 2 - RECORD_HEADER;
+    }
+
+    /**
+     * @return false if the ring has no room for the record now
+     * @throws IllegalArgumentException if the record could never fit
+     */
+    boolean offer(byte[] b, int off, int len) {
+        if(len > maxRecordLength())
+            throw new IllegalArgumentException("Record of "+len+" bytes exceeds "+maxRecordLength());
+        long tail = positions.getLongAcquire(base + TAIL_OFFSET);
+        long head = positions.getLongAcquire(base + HEAD_OFFSET);
+        int recordLength = align(RECORD_HEADER + len);
+        int offset = (int)(tail & mask);
+        int toEnd = capacity - offset;
+        int needed = recordLength <= toEnd ? recordLength : toEnd + recordLength;
+        if(tail + needed - head > capacity)
+            return false;
+        if(recordLength > toEnd) {
+            buffer.putInt(data(offset), PADDING);
+            tail += toEnd;
+            offset = 0;
+        }
+        int at = data(offset);
+        buffer.putInt(at, len);
+        ByteBuffer d = buffer.duplicate();
+        d.position(at + RECORD_HEADER);
+        d.put(b, off, len);
+        positions.putLongRelease(base + TAIL_OFFSET, tail + recordLength);
+        return true;
+    }
+
+    /**
+     * @return next record or null if none
+     * @throws CorruptRingException if the other process wrote a position or length out of bounds
+     */
+    byte[] poll() throws CorruptRingException {
+        ByteBuffer view = peek();
+        if(view == null)
+            return null;
+        byte[] record = new byte[view.remaining()];
+        view.get(record);
+        advance();
+        return record;
+    }
+
+    /**
+     * Next record without copying it out of the mapping.
+     * @return view of the next record, valid until {@link #advance()}; null if none
+     * @throws CorruptRingException if the other process wrote a position or length out of bounds;
+     * the ring can not be read further
+     */
+    ByteBuffer peek() throws CorruptRingException {
+        long head = positions.getLongAcquire(base + HEAD_OFFSET);
+        long tail = positions.getLongAcquire(base + TAIL_OFFSET);
+        if(head == tail)
+            return null;
+        if(tail - head < RECORD_HEADER || tail - head > capacity)
+            throw new CorruptRingException("Ring positions out of bounds: head="+head+" tail="+tail);
+        int offset = (int)(head & mask);
+        int len = buffer.getInt(data(offset));
+        if(len == PADDING) {
+            head += capacity - offset;
+            offset = 0;
+            len = buffer.getInt(data(offset));
+        }
+        // Records never wrap nor pass the tail
+        if(len < 0 || len > capacity - RECORD_HEADER - offset || head + align(RECORD_HEADER + len) > tail)
+            throw new CorruptRingException("Record length "+len+" out of bounds at offset "+offset);
+        nextHead = head + align(RECORD_HEADER + len);
+        ByteBuffer view = buffer.duplicate();
+        view.limit(data(offset) + RECORD_HEADER + len);
+        view.position(data(offset) + RECORD_HEADER);
+        return view;
+    }
+
+    /**
+     * Release the record last peeked to the producer.
+     */
+    void advance() {
+        positions.putLongRelease(base + HEAD_OFFSET, nextHead);
+    }
+
+    boolean isEmpty() {
+        return positions.getLongAcquire(base + HEAD_OFFSET) == positions.getLongAcquire(base + TAIL_OFFSET);
+    }
+
+    private int data(int offset) {
+        return base + HEADER_LENGTH + offset;
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * The ring's memory holds what no producer following this class wrote.
+     */
+    static final class CorruptRingException extends IOException {
+        CorruptRingException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.onemfive.core.client;
+
+import io.onemfive.data.Envelope;
+
+/**
+ * Where the {@link ClientAppManager} hands replies for a client id not embedded in this JVM,
+ * e.g. an out-of-process client's connection.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+interface ReplySink {
+
+    Long getId();
+
+    /**
+     * Pass on a reply without blocking the delivering thread.
+     * @param envelope non-null Envelope
+     */
+    void notify(Envelope envelope);
+
+    /**
+     * @return requests awaiting a reply that the bus should wait for when draining
+     */
+    int pendingRequests();
+}
@@ -9,37 +9,80 @@ import io.onemfive.data.Envelope;
 import io.onemfive.data.Subscription;
 import io.onemfive.data.util.DLC;
 
+import io.onemfive.core.util.TimerEvent;
+import io.onemfive.core.util.TimerWheel;
+
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 /**
  * A simple client for making requests to services.
  *
+ * Requests expecting a reply leave a claim check keyed by envelope id, completed by the reply.
+ * Futures and callbacks have a deadline, the client's default unless given one, on a timer wheel
+ * shared by all clients, so replies that never arrive cost nothing once expired. At most maxPending
+ * with a deadline are held at once; those asked for without one are neither bounded nor counted as
+ * pending, so never hold up the client's other requests or the bus draining.
+ *
+ * Replies, expiries and status changes reach callbacks, futures and listeners on the client's own
+ * delivery thread through a bounded queue, so a slow client never holds up the bus worker
+ * or timer delivering to it. The thread exits when idle.
+ *
  * @author objectorange
  */
 final class SimpleClient implements Client {
 
     private static final Logger LOG = Logger.getLogger(SimpleClient.class.getName());
 
-    private Map<Long,ServiceCallback> claimCheck;
+    private final ConcurrentMap<Long,ClaimCheck> claimChecks = new ConcurrentHashMap<>();
+    // Claim checks with a deadline held or reserved; bounds them as the map's size can not be checked and added to at once
+    private final AtomicInteger pending = new AtomicInteger();
     private Long id;
     private MessageProducer producer;
-    private List<ClientStatusListener> clientStatusListeners = new ArrayList<>();
+    private final TimerWheel timerWheel;
+    private final long requestTimeoutMs;
+    private final int maxPending;
+    private final ThreadPoolExecutor delivery;
+    private volatile boolean closed = false;
+    private List<ClientStatusListener> clientStatusListeners = new CopyOnWriteArrayList<>();
 
-    SimpleClient(Long id, MessageProducer producer) {
+    /**
+     * @param timerWheel expires claim checks
+     * @param requestTimeoutMs default deadline of futures and callbacks
+     * @param maxPending most requests awaiting a reply at once
+     * @param deliveryQueueSize most replies queued for delivery to the client at once
+     */
+    SimpleClient(final Long id, MessageProducer producer, TimerWheel timerWheel, long requestTimeoutMs, int maxPending, int deliveryQueueSize) {
         this.id = id;
         this.producer = producer;
-        this.claimCheck = new HashMap<>();
+        this.timerWheel = timerWheel;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.maxPending = maxPending;
+        delivery = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(deliveryQueueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ClientDelivery-"+id);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        delivery.allowCoreThreadTimeOut(true);
     }
 
-    void updateClientStatus(ClientAppManager.Status status) {
+    void updateClientStatus(final ClientAppManager.Status status) {
         LOG.info("Updating client status to: "+status.name()+"; number of listeners to update too: "+clientStatusListeners.size());
-        for(ClientStatusListener l : clientStatusListeners) {
-            l.clientStatusChanged(status);
-        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                for(ClientStatusListener l : clientStatusListeners) {
+                    l.clientStatusChanged(status);
+                }
+            }
+        }, true);
     }
 
     @Override
@@ -55,25 +98,210 @@ final class SimpleClient implements Client {
         producer.send(e);
     }
 
+    /**
+     * Should the bus reject the envelope, or no reply arrive within the client's default deadline,
+     * the callback is handed the request envelope carrying an error message instead.
+     */
     @Override
     public void request(Envelope e, ServiceCallback cb) {
+        request(e, cb, requestTimeoutMs);
+    }
+
+    /**
+     * @param timeoutMs 0 for no deadline
+     */
+    @Override
+    public void request(Envelope e, ServiceCallback cb, long timeoutMs) {
         LOG.finer("Sending to service bus message channel with callback");
-        e.setClient(id);
-        producer.send(e);
-        // Save callback for later retrieval using envelope id for correlation
-        claimCheck.put(e.getId(), cb);
+        send(e, new ClaimCheck(e, cb), timeoutMs);
     }
 
     @Override
-    public void notify(Envelope e) {
-        LOG.finer("Sending to ServiceCallback");
-        ServiceCallback cb = claimCheck.get(e.getId());
-        if(cb != null) {
-            cb.reply(e);
-            claimCheck.remove(e.getId());
+    public CompletableFuture<Envelope> requestAsync(Envelope e) {
+        return requestAsync(e, requestTimeoutMs);
+    }
+
+    @Override
+    public CompletableFuture<Envelope> requestAsync(Envelope e, long timeoutMs) {
+        LOG.finer("Sending to service bus message channel with future");
+        ClaimCheck c = new ClaimCheck(e, null);
+        send(e, c, timeoutMs);
+        return c.future;
+    }
+
+    @Override
+    public int pendingRequests() {
+        return pending.get();
+    }
+
+    /**
+     * Hand a reply to the delivery thread; returns immediately.
+     */
+    @Override
+    public void notify(final Envelope e) {
+        final Long envelopeId = e.getId();
+        final ClaimCheck c = release(envelopeId);
+        if(c == null) {
+            LOG.finer("No claim check for Envelope-"+envelopeId+"; expired, cancelled or not expecting a reply.");
+            return;
+        }
+        boolean queued = deliver(new Runnable() {
+            @Override
+            public void run() {
+                c.cancelTimeout();
+                c.reply(e);
+            }
+        }, false);
+        if(!queued) {
+            // Left to expire at its deadline rather than block the bus
+            if(c.bounded) pending.incrementAndGet();
+            if(claimChecks.putIfAbsent(envelopeId, c) != null) {
+                if(c.bounded) pending.decrementAndGet();
+            }
+            // Its deadline or cancellation may have come while it was out, finding nothing to remove
+            else if(c.future.isCancelled())
+                release(envelopeId, c);
+            else if(c.expired && release(envelopeId, c)) {
+                final String errMsg = "No reply to Envelope-"+envelopeId+" within deadline.";
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        c.fail(errMsg, new TimeoutException(errMsg));
+                    }
+                }, true);
+            }
+            LOG.warning("Client "+id+" delivery queue full; dropped reply to Envelope-"+envelopeId);
+        }
+    }
+
+    int queuedDeliveries() {
+        return delivery.getQueue().size();
+    }
+
+    /**
+     * Fail all requests awaiting a reply and stop delivering, e.g. when unregistered.
+     */
+    void close(final String reason) {
+        closed = true;
+        for(Long envelopeId : new ArrayList<>(claimChecks.keySet())) {
+            final ClaimCheck c = release(envelopeId);
+            if(c != null) {
+                c.cancelTimeout();
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        c.fail(reason, new CancellationException(reason));
+                    }
+                }, true);
+            }
+        }
+        // Already queued deliveries still run
+        delivery.shutdown();
+    }
+
+    /**
+     * @param inlineIfRejected run on the calling thread if the queue is full or delivery stopped
+     * @return false if not run
+     */
+    private boolean deliver(Runnable task, boolean inlineIfRejected) {
+        try {
+            delivery.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if(inlineIfRejected) {
+                task.run();
+                return true;
+            }
+            return false;
         }
     }
 
+    private void send(Envelope e, final ClaimCheck c, long timeoutMs) {
+        e.setClient(id);
+        final Long envelopeId = e.getId();
+        if(closed) {
+            String errMsg = "Client "+id+" closed; rejected Envelope-"+envelopeId;
+            c.fail(errMsg, new RejectedExecutionException(errMsg));
+            return;
+        }
+        c.bounded = timeoutMs > 0;
+        if(c.bounded && !reserve()) {
+            String errMsg = "Client "+id+" has "+maxPending+" requests pending; rejected Envelope-"+envelopeId;
+            LOG.warning(errMsg);
+            c.fail(errMsg, new RejectedExecutionException(errMsg));
+            return;
+        }
+        // Claim before sending so a fast reply finds it
+        if(claimChecks.putIfAbsent(envelopeId, c) != null) {
+            if(c.bounded) pending.decrementAndGet();
+            String errMsg = "Envelope-"+envelopeId+" already awaiting a reply.";
+            c.fail(errMsg, new IllegalStateException(errMsg));
+            return;
+        }
+        if(timeoutMs > 0) c.timeout = timerWheel.schedule(new TimerEvent() {
+            @Override
+            public void timeReached() {
+                c.expired = true;
+                if(release(envelopeId, c)) {
+                    withdraw(envelopeId);
+                    final String errMsg = "No reply to Envelope-"+envelopeId+" within deadline.";
+                    LOG.info(errMsg);
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            c.fail(errMsg, new TimeoutException(errMsg));
+                        }
+                    }, true);
+                }
+            }
+        }, timeoutMs);
+        c.future.whenComplete(new BiConsumer<Envelope, Throwable>() {
+            @Override
+            public void accept(Envelope reply, Throwable t) {
+                if(c.future.isCancelled() && release(envelopeId, c)) {
+                    c.cancelTimeout();
+                    withdraw(envelopeId);
+                }
+            }
+        });
+        if(!producer.send(e) && release(envelopeId, c)) {
+            c.cancelTimeout();
+            List<String> errors = DLC.getErrorMessages(e);
+            String errMsg = "Envelope-"+envelopeId+" not accepted by the service bus"
+                    +(errors == null || errors.isEmpty() ? "." : ": "+errors.get(errors.size() - 1));
+            c.fail(errMsg, new RejectedExecutionException(errMsg));
+        }
+    }
+
+    /**
+     * Take one of the maxPending places.
+     * @return false if none left
+     */
+    private boolean reserve() {
+        while(true) {
+            int n = pending.get();
+            if(n >= maxPending) return false;
+            if(pending.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    private ClaimCheck release(Long envelopeId) {
+        ClaimCheck c = claimChecks.remove(envelopeId);
+        if(c != null && c.bounded) pending.decrementAndGet();
+        return c;
+    }
+
+    private boolean release(Long envelopeId, ClaimCheck c) {
+        if(!claimChecks.remove(envelopeId, c)) return false;
+        if(c.bounded) pending.decrementAndGet();
+        return true;
+    }
+
+    private void withdraw(Long envelopeId) {
+        if(producer instanceof ClientAppManager.BusProducer && ((ClientAppManager.BusProducer)producer).cancel(envelopeId))
+            LOG.finer("Envelope-"+envelopeId+" withdrawn from service bus.");
+    }
+
     @Override
     public void registerClientStatusListener(ClientStatusListener listener) {
         clientStatusListeners.add(listener);
@@ -93,4 +321,44 @@ final class SimpleClient implements Client {
     public void subscribeToEmail(Subscription subscription) {
         subscribeToEvent(EventMessage.Type.EMAIL, subscription);
     }
+
+    /**
+     * Completes either a callback or a future.
+     */
+    private static final class ClaimCheck {
+        private final Envelope request;
+        private final ServiceCallback cb;
+        private final CompletableFuture<Envelope> future = new CompletableFuture<>();
+        private volatile TimerWheel.Timeout timeout;
+        private volatile boolean expired;
+        // Has a deadline so takes one of the maxPending places; set before it is claimed
+        private boolean bounded;
+
+        private ClaimCheck(Envelope request, ServiceCallback cb) {
+            this.request = request;
+            this.cb = cb;
+        }
+
+        private void cancelTimeout() {
+            // Null while being claimed
+            if(timeout != null)
+                timeout.cancel();
+        }
+
+        private void reply(Envelope e) {
+            if(cb != null)
+                cb.reply(e);
+            else
+                future.complete(e);
+        }
+
+        private void fail(String errMsg, Throwable t) {
+            if(cb != null) {
+                DLC.addErrorMessage(errMsg, request);
+                cb.reply(request);
+            } else {
+                future.completeExceptionally(t);
+            }
+        }
+    }
 }
@@ -3,6 +3,10 @@ package io.onemfive.core.infovault;
 public abstract class BaseDAO implements DAO {
 
     public static final int NO_ERROR = -1;
+    // Execution threw; see getException()
+    public static final int EXECUTION_FAILED = 1;
+    // InfoVaultService was too busy or shutting down and did not execute it
+    public static final int REJECTED = 2;
 
     protected Exception exception;
     protected int errorCode = NO_ERROR;
@@ -20,4 +24,28 @@ public abstract class BaseDAO implements DAO {
     public int getErrorCode() {
         return errorCode;
     }
+
+    /**
+     * Key of the record this DAO works on.
+     * InfoVaultService executes DAOs with the same key one at a time in arrival order.
+     * @return key or null to execute without ordering
+     */
+    public String getKey() {
+        return null;
+    }
+
+    /**
+     * @return true if executing this DAO makes earlier superseding DAOs of the same key waiting
+     * just before it redundant, e.g. it saves the whole record, so InfoVaultService may skip them;
+     * a DAO not superseding in between, e.g. a load, still runs and ends the run skipped
+     */
+    public boolean supersedes() {
+        return false;
+    }
+
+    void failed(int errorCode, Exception exception) {
+        this.errorCode = errorCode;
+        if(this.exception == null)
+            this.exception = exception;
+    }
 }
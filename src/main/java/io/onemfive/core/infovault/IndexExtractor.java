@@ -0,0 +1,22 @@
+package io.onemfive.core.infovault;
+
+/**
+ * Extracts the value a record is indexed by within a label.
+ * Registered by Services per label and index name with
+ * {@link InfoVaultDB#registerIndex(String, String, IndexExtractor)}.
+ *
+ * Indexes are sorted by the natural order of the returned String
+ * so numbers and dates should be returned zero-padded or in
+ * ISO-8601 form for range queries to work as expected.
+ *
+ * @author objectorange
+ */
+public interface IndexExtractor {
+
+    /**
+     * @param key key the record was saved under
+     * @param content raw content of the record as saved
+     * @return value to index the record by or null to leave the record out of the index
+     */
+    String extract(String key, byte[] content);
+}
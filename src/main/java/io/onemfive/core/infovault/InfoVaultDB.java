@@ -24,6 +24,29 @@ public interface InfoVaultDB {
 
     List<byte[]> loadAll(String label);
 
+    /**
+     * Register a secondary index on a label maintained on every save to that label.
+     * Registering an existing index name for the label replaces its extractor.
+     * @param label label of the records to index
+     * @param indexName name of the index unique within the label
+     * @param extractor extracts the value each record is indexed by
+     */
+    void registerIndex(String label, String indexName, IndexExtractor extractor);
+
+    /**
+     * Equality query on a secondary index.
+     * @return keys of the records in label whose indexed value equals value
+     */
+    List<String> findKeys(String label, String indexName, String value);
+
+    /**
+     * Range query on a secondary index.
+     * @param fromValue lowest value inclusive; null for no lower bound
+     * @param toValue highest value exclusive; null for no upper bound
+     * @return keys of the records in label whose indexed value lies within the range, in value order
+     */
+    List<String> findKeys(String label, String indexName, String fromValue, String toValue);
+
     Status getStatus();
 
     boolean init(Properties properties);
@@ -5,6 +5,8 @@ import io.onemfive.data.*;
 import io.onemfive.data.util.DLC;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -16,6 +18,14 @@ import java.util.logging.Logger;
  * Consider using this service for heavier higher-latency work by Services extending BaseService vs using their
  * synchronous access instance in BaseService.
  *
+ * DAOs are executed on a dedicated bounded pool so slow storage does not hold up bus worker threads.
+ * The reply is sent once the DAO completes with any exception added to the Envelope and,
+ * for BaseDAOs, the error code set. When the pool is saturated the DAO is rejected immediately
+ * with {@link BaseDAO#REJECTED}.
+ * BaseDAOs returning a key are executed one at a time per key in arrival order; waiting DAOs
+ * made redundant by a later one that {@link BaseDAO#supersedes()} are coalesced into it and
+ * replied to with its outcome.
+ *
  * InfoVaultDB:
  * Maintain thread-safe.
  * Use directly synchronously.
@@ -38,8 +48,18 @@ public class InfoVaultService extends BaseService {
 
     public static final String OPERATION_EXECUTE = "EXECUTE";
 
+    public static final String PROP_THREADS = "1m5.infovault.service.threads";
+    public static final String PROP_QUEUE_SIZE = "1m5.infovault.service.queueSize";
+    public static final String PROP_SHUTDOWN_TIMEOUT = "1m5.infovault.service.shutdownTimeoutSeconds";
+
+    private ThreadPoolExecutor executor;
+    private long shutdownTimeoutSeconds = 30;
+    // Keys with a DAO executing mapped to the DAOs waiting on it
+    private final Map<String,Deque<Execution>> keyQueues = new HashMap<>();
+
     public InfoVaultService(MessageProducer producer, ServiceStatusListener serviceStatusListener) {
         super(producer, serviceStatusListener);
+        replyOnCompletion = true;
     }
 
     @Override
@@ -47,20 +67,157 @@ public class InfoVaultService extends BaseService {
         Route r = e.getRoute();
         switch(r.getOperation()) {
             case OPERATION_EXECUTE: {
-                try {
-                    execute(e);
-                } catch (Exception e1) {
-                    e1.printStackTrace();
-                }
+                submit(e);
                 break;
             }
-            default: deadLetter(e);
+            default: {
+                deadLetter(e);
+                reply(e);
+            }
         }
     }
 
-    private void execute(Envelope e) throws Exception {
+    private void submit(Envelope e) {
         DAO dao = (DAO)DLC.getData(DAO.class, e);
-        dao.execute();
+        if(dao == null) {
+            DLC.addErrorMessage("No DAO to execute.", e);
+            reply(e);
+            return;
+        }
+        Execution execution = new Execution(e, dao);
+        String key = keyOf(dao);
+        if(key != null) {
+            synchronized (keyQueues) {
+                Deque<Execution> waiting = keyQueues.get(key);
+                if(waiting != null) {
+                    // Picked up by the thread executing this key
+                    waiting.add(execution);
+                    return;
+                }
+                keyQueues.put(key, new ArrayDeque<Execution>());
+            }
+        }
+        try {
+            if(executor == null)
+                throw new RejectedExecutionException("InfoVaultService not started.");
+            executor.execute(new ExecutionTask(execution, key));
+        } catch (RejectedExecutionException ex) {
+            LOG.warning("DAO rejected: "+ex.getLocalizedMessage());
+            reject(execution, ex);
+            if(key != null) {
+                // Nothing is executing this key so reject those arrived in the meantime too
+                Deque<Execution> waiting;
+                synchronized (keyQueues) {
+                    waiting = keyQueues.remove(key);
+                }
+                for(Execution w : waiting) {
+                    reject(w, ex);
+                }
+            }
+        }
+    }
+
+    private void execute(Execution execution) {
+        try {
+            execution.dao.execute();
+            if(execution.dao instanceof BaseDAO && ((BaseDAO)execution.dao).getException() != null) {
+                DLC.addException(((BaseDAO)execution.dao).getException(), execution.envelope);
+            }
+        } catch (Exception ex) {
+            LOG.warning("DAO execution failed: "+ex.getLocalizedMessage());
+            if(execution.dao instanceof BaseDAO)
+                ((BaseDAO)execution.dao).failed(BaseDAO.EXECUTION_FAILED, ex);
+            DLC.addException(ex, execution.envelope);
+        }
+        reply(execution.envelope);
+        for(Execution c : execution.coalesced) {
+            if(execution.dao instanceof BaseDAO && c.dao instanceof BaseDAO) {
+                BaseDAO done = (BaseDAO)execution.dao;
+                if(done.getErrorCode() != BaseDAO.NO_ERROR || done.getException() != null)
+                    ((BaseDAO)c.dao).failed(done.getErrorCode(), done.getException());
+            }
+            List<Exception> exceptions = DLC.getExceptions(execution.envelope);
+            if(exceptions != null) {
+                for(Exception ex : exceptions) {
+                    DLC.addException(ex, c.envelope);
+                }
+            }
+            reply(c.envelope);
+        }
+    }
+
+    /**
+     * @return next DAO of the key to execute or null once none are waiting
+     */
+    private Execution next(String key) {
+        synchronized (keyQueues) {
+            Deque<Execution> waiting = keyQueues.get(key);
+            if(waiting == null || waiting.isEmpty()) {
+                keyQueues.remove(key);
+                return null;
+            }
+            // Only a run of superseding DAOs is coalesced into its last; others, e.g. loads, still run in order
+            Execution next = waiting.poll();
+            List<Execution> coalesced = new ArrayList<>();
+            while(supersedes(next) && supersedes(waiting.peek())) {
+                coalesced.add(next);
+                next = waiting.poll();
+            }
+            if(!coalesced.isEmpty()) {
+                next.coalesced.addAll(coalesced);
+                LOG.finer("Coalesced "+coalesced.size()+" DAOs for key "+key);
+            }
+            return next;
+        }
+    }
+
+    private static boolean supersedes(Execution execution) {
+        return execution != null && execution.dao instanceof BaseDAO && ((BaseDAO)execution.dao).supersedes();
+    }
+
+    private void reject(Execution execution, Exception ex) {
+        if(execution.dao instanceof BaseDAO)
+            ((BaseDAO)execution.dao).failed(BaseDAO.REJECTED, ex);
+        DLC.addException(ex, execution.envelope);
+        reply(execution.envelope);
+        for(Execution c : execution.coalesced) {
+            reject(c, ex);
+        }
+    }
+
+    private static String keyOf(DAO dao) {
+        return dao instanceof BaseDAO ? ((BaseDAO)dao).getKey() : null;
+    }
+
+    private static final class Execution {
+        private final Envelope envelope;
+        private final DAO dao;
+        // Earlier DAOs of the same key made redundant by this one
+        private final List<Execution> coalesced = new ArrayList<>();
+
+        private Execution(Envelope envelope, DAO dao) {
+            this.envelope = envelope;
+            this.dao = dao;
+        }
+    }
+
+    private final class ExecutionTask implements Runnable {
+        private final Execution first;
+        private final String key;
+
+        private ExecutionTask(Execution first, String key) {
+            this.first = first;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Execution execution = first;
+            while(execution != null) {
+                execute(execution);
+                execution = key == null ? null : next(key);
+            }
+        }
     }
 
     public static InfoVaultDB getInfoVaultDBInstance(String infoVaultDBClass) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
@@ -74,12 +231,40 @@ public class InfoVaultService extends BaseService {
         return instance;
     }
 
+    /**
+     * Started first: other services open its InfoVaultDB on start.
+     */
+    @Override
+    public Set<String> getDependencies() {
+        return Collections.emptySet();
+    }
+
     @Override
     public boolean start(Properties properties) {
         super.start(properties);
         LOG.info("Starting...");
         updateStatus(ServiceStatus.STARTING);
-
+        Properties p = properties;
+        try {
+            p = Config.loadFromClasspath("infovault.config", properties, false);
+        } catch (Exception e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
+        int threads = Integer.parseInt(p.getProperty(PROP_THREADS, String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int queueSize = Integer.parseInt(p.getProperty(PROP_QUEUE_SIZE, "1000"));
+        shutdownTimeoutSeconds = Long.parseLong(p.getProperty(PROP_SHUTDOWN_TIMEOUT, "30"));
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "InfoVaultService-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        LOG.info("Executing DAOs on "+threads+" threads with a queue of "+queueSize+".");
         updateStatus(ServiceStatus.RUNNING);
         LOG.info("Started.");
         return true;
@@ -87,10 +272,35 @@ public class InfoVaultService extends BaseService {
 
     @Override
     public boolean shutdown() {
-        super.shutdown();
         LOG.info("Shutting down...");
         updateStatus(ServiceStatus.SHUTTING_DOWN);
-
+        if(executor != null) {
+            // Let DAOs already accepted complete before the InfoVaultDB is torn down
+            executor.shutdown();
+            try {
+                if(!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                    List<Runnable> notRun = executor.shutdownNow();
+                    LOG.warning(notRun.size()+" DAO executions not run within shutdown timeout.");
+                    RejectedExecutionException ex = new RejectedExecutionException("InfoVaultService shut down.");
+                    for(Runnable r : notRun) {
+                        if(r instanceof ExecutionTask) {
+                            ExecutionTask task = (ExecutionTask)r;
+                            reject(task.first, ex);
+                            Execution waiting;
+                            while(task.key != null && (waiting = next(task.key)) != null) {
+                                reject(waiting, ex);
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(infoVaultDB != null && infoVaultDB.getStatus() == InfoVaultDB.Status.Running)
+            infoVaultDB.teardown();
+        super.shutdown();
         updateStatus(ServiceStatus.SHUTDOWN);
         LOG.info("Shutdown.");
         return true;
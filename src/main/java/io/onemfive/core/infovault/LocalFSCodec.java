@@ -0,0 +1,293 @@
+package io.onemfive.core.infovault;
+
+import io.onemfive.core.util.FileUtil;
+import io.onemfive.core.util.ReusableGZIPInputStream;
+import io.onemfive.core.util.ReusableGZIPOutputStream;
+import io.onemfive.core.util.SimpleByteCache;
+import io.onemfive.core.util.data.DataHelper;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes records of {@link LocalFSInfoVaultDB} on their way to and from disk.
+ *
+ * Small records are compressed inline. Records larger than the chunk threshold are split into
+ * {@link #CHUNK_SIZE} chunks each stored once as a block named by the SHA-256 of its
+ * uncompressed content so identical chunks across records are only written once;
+ * the record itself then only holds the list of block hashes.
+ *
+ * Compression uses the pooled gzip streams, one gzip member per {@link #CHUNK_SIZE} bytes so each
+ * stays within {@link DataHelper#MAX_UNCOMPRESSED}.
+ * Records written before this codec existed carry no header and are returned as is.
+ *
+ * Record layout: MAGIC, type, compression, then either the payload (inline) or
+ * total length, chunk count and chunk hashes (chunked).
+ * Block layout: compression, payload.
+ *
+ * @author objectorange
+ */
+final class LocalFSCodec {
+
+    private static final Logger LOG = Logger.getLogger(LocalFSCodec.class.getName());
+
+    static final byte[] MAGIC = new byte[] {(byte)0x89, 'I', 'V', 'D'};
+    static final byte TYPE_INLINE = 1;
+    static final byte TYPE_CHUNKED = 2;
+
+    static final int CHUNK_SIZE = 32 * 1024;
+    static final int HASH_LENGTH = 32;
+    private static final int HEADER_LENGTH = MAGIC.length + 2;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final File blocksDir;
+    private final int chunkThreshold;
+
+    /**
+     * @param blocksDir directory holding content-addressed chunks
+     * @param chunkThreshold records larger than this many bytes are chunked; 0 or less disables chunking
+     */
+    LocalFSCodec(File blocksDir, int chunkThreshold) {
+        this.blocksDir = blocksDir;
+        this.chunkThreshold = chunkThreshold;
+    }
+
+    byte[] encode(byte[] content, LocalFSInfoVaultDB.Compression compression) throws IOException {
+        if(chunkThreshold > 0 && content.length > chunkThreshold) {
+            int chunks = (content.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(HEADER_LENGTH + 8 + chunks * HASH_LENGTH);
+            writeHeader(bOut, TYPE_CHUNKED, compression);
+            bOut.write(DataHelper.toLong(4, content.length));
+            bOut.write(DataHelper.toLong(4, chunks));
+            MessageDigest sha = sha256();
+            for(int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+                int len = Math.min(CHUNK_SIZE, content.length - offset);
+                sha.update(content, offset, len);
+                byte[] hash = sha.digest();
+                writeBlock(hash, content, offset, len, compression);
+                bOut.write(hash);
+            }
+            return bOut.toByteArray();
+        }
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(HEADER_LENGTH + content.length);
+        byte[] payload = compress(content, 0, content.length, compression);
+        writeHeader(bOut, TYPE_INLINE, payload == null ? LocalFSInfoVaultDB.Compression.NONE : compression);
+        if(payload == null)
+            bOut.write(content);
+        else
+            bOut.write(payload);
+        return bOut.toByteArray();
+    }
+
+    byte[] decode(byte[] stored) throws IOException {
+        if(!isEncoded(stored)) {
+            // Written before the codec existed
+            return stored;
+        }
+        byte type = stored[MAGIC.length];
+        LocalFSInfoVaultDB.Compression compression = compressionOf(stored[MAGIC.length + 1]);
+        if(type == TYPE_INLINE) {
+            return decompress(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH, compression);
+        } else if(type == TYPE_CHUNKED) {
+            int length = (int)DataHelper.fromLong(stored, HEADER_LENGTH, 4);
+            int chunks = (int)DataHelper.fromLong(stored, HEADER_LENGTH + 4, 4);
+            byte[] content = new byte[length];
+            int offset = 0;
+            int hashOffset = HEADER_LENGTH + 8;
+            for(int i = 0; i < chunks; i++) {
+                byte[] hash = Arrays.copyOfRange(stored, hashOffset, hashOffset + HASH_LENGTH);
+                byte[] chunk = readBlock(hash);
+                System.arraycopy(chunk, 0, content, offset, chunk.length);
+                offset += chunk.length;
+                hashOffset += HASH_LENGTH;
+            }
+            if(offset != length)
+                throw new IOException("Chunked record length mismatch; expected "+length+" found "+offset);
+            return content;
+        }
+        throw new IOException("Unknown record type: "+type);
+    }
+
+    /**
+     * @return hex names of the blocks a stored record references; empty if not chunked
+     */
+    List<String> referencedBlocks(byte[] stored) {
+        List<String> blocks = new ArrayList<>();
+        if(isEncoded(stored) && stored[MAGIC.length] == TYPE_CHUNKED) {
+            int chunks = (int)DataHelper.fromLong(stored, HEADER_LENGTH + 4, 4);
+            int hashOffset = HEADER_LENGTH + 8;
+            for(int i = 0; i < chunks; i++) {
+                blocks.add(toHex(stored, hashOffset, HASH_LENGTH));
+                hashOffset += HASH_LENGTH;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Delete blocks no longer referenced by any record.
+     * Blocks modified after notBefore are kept as they may belong to a save in progress.
+     * @param referenced hex names of all blocks still referenced
+     * @param notBefore time in ms the reference scan started
+     * @return number of blocks deleted
+     */
+    int purgeBlocks(Set<String> referenced, long notBefore) {
+        int deleted = 0;
+        File[] shards = blocksDir.listFiles();
+        if(shards == null) return 0;
+        for(File shard : shards) {
+            // Skips snapshots
+            if(shard.getName().startsWith(".")) continue;
+            File[] blocks = shard.listFiles();
+            if(blocks == null) continue;
+            for(File block : blocks) {
+                if(!referenced.contains(block.getName()) && block.lastModified() < notBefore && block.delete())
+                    deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    File getBlocksDir() {
+        return blocksDir;
+    }
+
+    File blockFile(String hex) {
+        return new File(new File(blocksDir, hex.substring(0, 2)), hex);
+    }
+
+    static boolean isEncoded(byte[] stored) {
+        if(stored == null || stored.length < HEADER_LENGTH) return false;
+        for(int i = 0; i < MAGIC.length; i++) {
+            if(stored[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    private void writeBlock(byte[] hash, byte[] content, int offset, int len, LocalFSInfoVaultDB.Compression compression) throws IOException {
+        File block = blockFile(toHex(hash, 0, hash.length));
+        if(block.exists()) {
+            // Deduplicated; touch so a concurrent purge keeps it
+            block.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        File shard = block.getParentFile();
+        if(!shard.exists() && !shard.mkdirs() && !shard.exists())
+            throw new IOException("Unable to create block directory: "+shard.getAbsolutePath());
+        byte[] payload = compress(content, offset, len, compression);
+        File tmp = new File(shard, block.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(payload == null ? LocalFSInfoVaultDB.Compression.NONE.ordinal() : compression.ordinal());
+            if(payload == null)
+                out.write(content, offset, len);
+            else
+                out.write(payload);
+        } finally {
+            out.close();
+        }
+        // Blocks are immutable so only publish complete ones
+        if(!FileUtil.rename(tmp, block))
+            throw new IOException("Unable to store block: "+block.getAbsolutePath());
+    }
+
+    private byte[] readBlock(byte[] hash) throws IOException {
+        File block = blockFile(toHex(hash, 0, hash.length));
+        byte[] stored = FileUtil.readFile(block.getAbsolutePath());
+        if(stored.length == 0)
+            throw new IOException("Empty block: "+block.getAbsolutePath());
+        return decompress(stored, 1, stored.length - 1, compressionOf(stored[0]));
+    }
+
+    private void writeHeader(OutputStream out, byte type, LocalFSInfoVaultDB.Compression compression) throws IOException {
+        out.write(MAGIC);
+        out.write(type);
+        out.write(compression.ordinal());
+    }
+
+    /**
+     * Compress in gzip members of at most {@link #CHUNK_SIZE} input bytes each, keeping them within
+     * the pooled streams' buffer size, with each member prefixed by its length.
+     * @return compressed bytes or null if the compression is NONE or does not reduce the size
+     */
+    private byte[] compress(byte[] data, int offset, int length, LocalFSInfoVaultDB.Compression compression) throws IOException {
+        if(compression == LocalFSInfoVaultDB.Compression.NONE || length == 0)
+            return null;
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(length / 2);
+        for(int o = offset; o < offset + length; o += CHUNK_SIZE) {
+            byte[] member = gzip(data, o, Math.min(CHUNK_SIZE, offset + length - o), compression);
+            bOut.write(DataHelper.toLong(4, member.length));
+            bOut.write(member);
+        }
+        return bOut.size() < length ? bOut.toByteArray() : null;
+    }
+
+    private byte[] gzip(byte[] data, int offset, int length, LocalFSInfoVaultDB.Compression compression) throws IOException {
+        ReusableGZIPOutputStream out = ReusableGZIPOutputStream.acquire();
+        out.setLevel(compression == LocalFSInfoVaultDB.Compression.RATIO ? Deflater.BEST_COMPRESSION : Deflater.BEST_SPEED);
+        try {
+            out.write(data, offset, length);
+            out.finish();
+            out.flush();
+            return out.getData();
+        } finally {
+            ReusableGZIPOutputStream.release(out);
+        }
+    }
+
+    private byte[] decompress(byte[] data, int offset, int length, LocalFSInfoVaultDB.Compression compression) throws IOException {
+        if(compression == LocalFSInfoVaultDB.Compression.NONE)
+            return Arrays.copyOfRange(data, offset, offset + length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+        byte[] buffer = SimpleByteCache.acquire(BUFFER_SIZE);
+        ReusableGZIPInputStream in = ReusableGZIPInputStream.acquire();
+        try {
+            int o = offset;
+            while(o < offset + length) {
+                int memberLength = (int)DataHelper.fromLong(data, o, 4);
+                o += 4;
+                if(memberLength <= 0 || o + memberLength > offset + length)
+                    throw new IOException("Corrupt compressed member length: "+memberLength);
+                in.initialize(new ByteArrayInputStream(data, o, memberLength));
+                int read;
+                while((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                o += memberLength;
+            }
+        } finally {
+            ReusableGZIPInputStream.release(in);
+            SimpleByteCache.release(buffer);
+        }
+        return out.toByteArray();
+    }
+
+    private static LocalFSInfoVaultDB.Compression compressionOf(byte b) throws IOException {
+        LocalFSInfoVaultDB.Compression[] values = LocalFSInfoVaultDB.Compression.values();
+        if(b < 0 || b >= values.length)
+            throw new IOException("Unknown compression: "+b);
+        return values[b];
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Required of every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] b, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for(int i = offset; i < offset + length; i++) {
+            sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
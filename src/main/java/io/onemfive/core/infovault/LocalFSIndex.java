@@ -0,0 +1,274 @@
+package io.onemfive.core.infovault;
+
+import io.onemfive.core.util.FileUtil;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Persistent sorted secondary index over one label of {@link LocalFSInfoVaultDB}.
+ *
+ * Held in memory as a sorted map of value to keys with a reverse map of key to value
+ * so that re-saving a record moves it within the index.
+ * Every change is appended to a journal file which is compacted into a snapshot
+ * file once it grows past {@link #MAX_JOURNAL_ENTRIES}. The snapshot records the
+ * last modified time of the newest record indexed so that on registration only
+ * records changed since then are re-read. An index registered again under the same
+ * name is rebuilt from every record as its extractor may have changed.
+ *
+ * @author objectorange
+ */
+final class LocalFSIndex {
+
+    private static final Logger LOG = Logger.getLogger(LocalFSIndex.class.getName());
+
+    static final int MAX_JOURNAL_ENTRIES = 1000;
+
+    private final String name;
+    private final IndexExtractor extractor;
+    private final File snapshotFile;
+    private final File journalFile;
+
+    private final TreeMap<String,Set<String>> valueToKeys = new TreeMap<>();
+    private final Map<String,String> keyToValue = new HashMap<>();
+    // Last modified time of the newest record reflected in the index
+    private long indexedUntil = 0L;
+    private int journalEntries = 0;
+    private DataOutputStream journal;
+    // Once closed or discarded saves no longer change the index or its files
+    private boolean closed = false;
+
+    LocalFSIndex(File indexDir, String name, IndexExtractor extractor) {
+        this.name = name;
+        this.extractor = extractor;
+        this.snapshotFile = new File(indexDir, name + ".idx");
+        this.journalFile = new File(indexDir, name + ".jnl");
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Load the persisted snapshot and journal then index any records of the label
+     * modified since the index was last persisted.
+     * @param records record files of the label
+     * @param db vault the records are read through
+     * @param rebuild true to ignore what was persisted and index every record
+     */
+    synchronized void open(List<File> records, LocalFSInfoVaultDB db, boolean rebuild) throws IOException {
+        if(!rebuild) {
+            loadSnapshot();
+            replayJournal();
+        }
+        int reindexed = 0;
+        long newest = indexedUntil;
+        Set<String> present = new HashSet<>(records.size());
+        for(File f : records) {
+            present.add(f.getName());
+            if(f.lastModified() >= indexedUntil || !keyToValue.containsKey(f.getName())) {
+                byte[] content = db.loadFile(f);
+                put(f.getName(), content == null ? null : extractor.extract(f.getName(), content));
+                reindexed++;
+            }
+            if(f.lastModified() > newest)
+                newest = f.lastModified();
+        }
+        // Drop keys whose records no longer exist
+        for(String key : new ArrayList<>(keyToValue.keySet())) {
+            if(!present.contains(key))
+                put(key, null);
+        }
+        indexedUntil = newest;
+        LOG.info("Index "+name+" opened with "+keyToValue.size()+" keys; "+reindexed+" re-indexed.");
+        compact();
+    }
+
+    /**
+     * Update the index for a record just saved.
+     * @param key key of the record
+     * @param content content of the record as saved
+     * @param lastModified last modified time of the saved record
+     */
+    synchronized void update(String key, byte[] content, long lastModified) {
+        if(closed) return;
+        String value = extractor.extract(key, content);
+        String current = keyToValue.get(key);
+        if(value == null ? current == null : value.equals(current)) {
+            return;
+        }
+        put(key, value);
+        if(lastModified > indexedUntil)
+            indexedUntil = lastModified;
+        try {
+            appendJournal(key, value);
+            if(journalEntries >= MAX_JOURNAL_ENTRIES)
+                compact();
+        } catch (IOException e) {
+            LOG.warning("Unable to persist index "+name+" change: "+e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return keys of records whose indexed value equals value
+     */
+    synchronized List<String> find(String value) {
+        Set<String> keys = valueToKeys.get(value);
+        return keys == null ? new ArrayList<String>() : new ArrayList<>(keys);
+    }
+
+    /**
+     * @param fromValue lowest value inclusive; null for no lower bound
+     * @param toValue highest value exclusive; null for no upper bound
+     * @return keys of records whose indexed value lies within the range in value order
+     */
+    synchronized List<String> findRange(String fromValue, String toValue) {
+        SortedMap<String,Set<String>> range;
+        if(fromValue == null && toValue == null)
+            range = valueToKeys;
+        else if(fromValue == null)
+            range = valueToKeys.headMap(toValue);
+        else if(toValue == null)
+            range = valueToKeys.tailMap(fromValue);
+        else
+            range = valueToKeys.subMap(fromValue, toValue);
+        List<String> keys = new ArrayList<>();
+        for(Set<String> k : range.values()) {
+            keys.addAll(k);
+        }
+        return keys;
+    }
+
+    /**
+     * Write the whole index to a new snapshot and truncate the journal.
+     */
+    synchronized void compact() throws IOException {
+        closeJournal();
+        File tmp = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeLong(indexedUntil);
+            out.writeInt(keyToValue.size());
+            for(Map.Entry<String,String> e : keyToValue.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if(!FileUtil.rename(tmp, snapshotFile)) {
+            throw new IOException("Unable to replace index snapshot: "+snapshotFile.getAbsolutePath());
+        }
+        if(journalFile.exists() && !journalFile.delete()) {
+            LOG.warning("Unable to delete index journal: "+journalFile.getAbsolutePath());
+        }
+        journalEntries = 0;
+    }
+
+    synchronized void close() {
+        if(closed) return;
+        try {
+            compact();
+        } catch (IOException e) {
+            LOG.warning("Unable to compact index "+name+": "+e.getLocalizedMessage());
+        }
+        closeJournal();
+        closed = true;
+    }
+
+    /**
+     * Close without compacting, leaving the files to the index replacing this one.
+     */
+    synchronized void discard() {
+        closeJournal();
+        closed = true;
+    }
+
+    private void put(String key, String value) {
+        String current = keyToValue.remove(key);
+        if(current != null) {
+            Set<String> keys = valueToKeys.get(current);
+            if(keys != null) {
+                keys.remove(key);
+                if(keys.isEmpty())
+                    valueToKeys.remove(current);
+            }
+        }
+        if(value != null) {
+            keyToValue.put(key, value);
+            Set<String> keys = valueToKeys.get(value);
+            if(keys == null) {
+                keys = new TreeSet<>();
+                valueToKeys.put(value, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        if(!snapshotFile.exists()) return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+        try {
+            indexedUntil = in.readLong();
+            int size = in.readInt();
+            for(int i = 0; i < size; i++) {
+                String key = in.readUTF();
+                put(key, in.readUTF());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        if(!journalFile.exists()) return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            while(true) {
+                String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                // A truncated last entry from a crash is dropped; the record is re-read by open()
+                try {
+                    long lastModified = in.readLong();
+                    String value = in.readBoolean() ? in.readUTF() : null;
+                    put(key, value);
+                    if(lastModified > indexedUntil)
+                        indexedUntil = lastModified;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void appendJournal(String key, String value) throws IOException {
+        if(journal == null) {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        }
+        journal.writeUTF(key);
+        journal.writeLong(indexedUntil);
+        journal.writeBoolean(value != null);
+        if(value != null)
+            journal.writeUTF(value);
+        journal.flush();
+        journalEntries++;
+    }
+
+    private void closeJournal() {
+        if(journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.warning(e.getLocalizedMessage());
+            }
+            journal = null;
+        }
+    }
+}
@@ -1,17 +1,60 @@
 package io.onemfive.core.infovault;
 
+import io.onemfive.core.Config;
+import io.onemfive.core.util.FileUtil;
+
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 public class LocalFSInfoVaultDB implements InfoVaultDB {
 
     private Logger LOG = Logger.getLogger(LocalFSInfoVaultDB.class.getName());
 
+    /**
+     * Compression of records on disk.
+     * FAST favours throughput (deflate level 1), RATIO favours size (deflate level 9).
+     */
+    public enum Compression {NONE, FAST, RATIO}
+
+    /**
+     * Directory layout of records, see {@link LocalFSLayout}.
+     */
+    public enum Layout {FLAT, SHARDED}
+
+    public static final String PROP_COMPRESSION = "1m5.infovault.localfs.compression";
+    public static final String PROP_CHUNK_THRESHOLD = "1m5.infovault.localfs.chunkThreshold";
+    public static final String PROP_LAYOUT = "1m5.infovault.localfs.layout";
+    public static final String PROP_DATA_DIRS = "1m5.infovault.localfs.dataDirs";
+    public static final String PROP_MIGRATE_ON_INIT = "1m5.infovault.localfs.migrateOnInit";
+
+    // Records the layout on disk and, while migrating, the layout migrated from
+    private static final String LAYOUT_FILE = ".layout";
+
     private File dbDir;
+    private volatile LocalFSLayout layout;
+    // Layout being migrated from; records not yet moved are still read from it
+    private volatile LocalFSLayout migratingFrom;
+    private LocalFSLayout configuredLayout;
+    private File indexDir;
+    private LocalFSCodec codec;
+    private LocalFSSnapshots snapshots;
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private Compression defaultCompression = Compression.FAST;
+    private final Map<String,Compression> labelCompression = new ConcurrentHashMap<>();
     private Status status = Status.Shutdown;
+    // label to index name to index
+    private final Map<String,Map<String,LocalFSIndex>> indexes = new ConcurrentHashMap<>();
 
     public LocalFSInfoVaultDB() {}
 
@@ -27,79 +70,99 @@ public class LocalFSInfoVaultDB implements InfoVaultDB {
 
     @Override
     public boolean teardown() {
-
+        status = Status.Stopping;
+        // Compacts each index so the next init reads its snapshot alone
+        for(Map<String,LocalFSIndex> labelIndexes : indexes.values()) {
+            for(LocalFSIndex index : labelIndexes.values()) {
+                index.close();
+            }
+        }
+        indexes.clear();
+        status = Status.Shutdown;
         return true;
     }
 
     public void save(String label, String key, byte[] content, boolean autoCreate) throws FileNotFoundException {
         LOG.info("Saving content...");
-        File path = null;
-        if(label != null) {
-            path = new File(dbDir, label);
-            if(!path.exists()) {
-                if(!autoCreate)
-                    throw new FileNotFoundException("Label doesn't exist and autoCreate = false");
-                else {
-                    path.mkdirs();
-                    path.setWritable(true);
-                }
-            }
+        if(label != null && !labelExists(label) && !autoCreate)
+            throw new FileNotFoundException("Label doesn't exist and autoCreate = false");
+        File file = layout.recordFile(label, key);
+        File path = file.getParentFile();
+        if(!path.exists()) {
+            path.mkdirs();
+            path.setWritable(true);
         }
-        File file = null;
-        if(path == null)
-            file = new File(dbDir, key);
-        else
-            file = new File(path, key);
-        file.setWritable(true);
-
-        if(!file.exists() && autoCreate) {
-            try {
-                if(!file.createNewFile()) {
-                    LOG.warning("Unable to create new file.");
-                    return;
-                }
-            } catch (IOException e) {
-                LOG.warning(e.getLocalizedMessage());
-                return;
-            }
+        byte[] stored;
+        try {
+            stored = codec.encode(content, getCompression(label));
+        } catch (IOException e) {
+            LOG.warning("Unable to encode content: "+e.getLocalizedMessage());
+            return;
         }
-        byte[] buffer = new byte[8 * 1024];
-        ByteArrayInputStream in = new ByteArrayInputStream(content);
-        FileOutputStream out = new FileOutputStream(file);
+        // Shared with other saves; excludes snapshots so they see each save whole or not at all
+        snapshotLock.readLock().lock();
         try {
-            int b;
-            while ((b = in.read(buffer)) != -1) {
-                out.write(buffer, 0, b);
-            }
-            LOG.info("Content saved.");
+            saveFile(label, key, content, stored, file);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    private void saveFile(String label, String key, byte[] content, byte[] stored, File file) throws FileNotFoundException {
+        // Written aside then renamed over the record so it is never seen partially written
+        // and snapshots linking the previous record keep it
+        File tmp = new File(file.getParentFile(), "." + key + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        boolean saved = false;
+        try {
+            out.write(stored);
+            saved = true;
         } catch (IOException ex) {
             LOG.warning(ex.getLocalizedMessage());
         } finally {
             try {
                 out.close();
-                in.close();
             } catch (IOException e) {
                 LOG.warning(e.getLocalizedMessage());
+                saved = false;
+            }
+        }
+        if(saved && !FileUtil.rename(tmp, file)) {
+            LOG.warning("Unable to replace record: "+file.getAbsolutePath());
+            saved = false;
+        }
+        if(!saved) {
+            tmp.delete();
+            return;
+        }
+        LOG.info("Content saved.");
+        LocalFSLayout from = migratingFrom;
+        if(from != null) {
+            // Not yet migrated so drop the now stale copy
+            File old = from.recordFile(label, key);
+            if(!old.getAbsoluteFile().equals(file.getAbsoluteFile()))
+                old.delete();
+        }
+        if(label != null) {
+            Map<String,LocalFSIndex> labelIndexes = indexes.get(label);
+            if(labelIndexes != null) {
+                for(LocalFSIndex index : labelIndexes.values()) {
+                    index.update(key, content, file.lastModified());
+                }
             }
         }
     }
 
     public byte[] load(String label, String key) throws FileNotFoundException {
         LOG.info("Loading content for label: "+label+" and key: "+key);
-        File path = null;
-        if(label != null) {
-            path = new File(dbDir, label);
-            if(!path.exists()) {
-                throw new FileNotFoundException("Label doesn't exist");
-            }
+        if(label != null && !labelExists(label)) {
+            throw new FileNotFoundException("Label doesn't exist");
+        }
+        File file = layout.recordFile(label, key);
+        LocalFSLayout from = migratingFrom;
+        if(!file.exists() && from != null && from.recordFile(label, key).exists()) {
+            file = from.recordFile(label, key);
         }
-
-        File file = null;
-        if(path == null)
-            file = new File(dbDir, key);
-        else
-            file = new File(path, key);
-
         return loadFile(file);
     }
 
@@ -107,24 +170,290 @@ public class LocalFSInfoVaultDB implements InfoVaultDB {
     public List<byte[]> loadAll(String label) {
         LOG.info("Loading all content for label: "+label);
         List<byte[]> contentList = new ArrayList<>();
-        File path = null;
         if(label != null) {
-            path = new File(dbDir, label);
-            if(path.exists()) {
-                File[] children = path.listFiles();
-                for(File f : children) {
-                    try {
-                        contentList.add(loadFile(f));
-                    } catch (FileNotFoundException e) {
-                        LOG.warning("File not found: "+f.getAbsolutePath());
-                    }
+            for(File f : records(label)) {
+                try {
+                    contentList.add(loadFile(f));
+                } catch (FileNotFoundException e) {
+                    LOG.warning("File not found: "+f.getAbsolutePath());
                 }
             }
         }
         return contentList;
     }
 
-    private byte[] loadFile(File file) throws FileNotFoundException {
+    private boolean labelExists(String label) {
+        LocalFSLayout from = migratingFrom;
+        return layout.labelExists(label) || (from != null && from.labelExists(label));
+    }
+
+    /**
+     * @return record files of the label, including those not yet migrated
+     */
+    private List<File> records(String label) {
+        Map<String,File> records = new LinkedHashMap<>();
+        LocalFSLayout from = migratingFrom;
+        if(from != null) {
+            for(File f : from.records(label)) {
+                records.put(f.getName(), f);
+            }
+        }
+        for(File f : layout.records(label)) {
+            records.put(f.getName(), f);
+        }
+        return new ArrayList<>(records.values());
+    }
+
+    public Layout getLayout() {
+        return layout.getType();
+    }
+
+    /**
+     * Take a point-in-time snapshot of all records without copying them.
+     * Saves wait while it is taken; loads do not.
+     * @return name of the snapshot or null if it could not be taken
+     */
+    public String snapshot() {
+        snapshotLock.writeLock().lock();
+        try {
+            if(migratingFrom != null) {
+                LOG.warning("Unable to snapshot while migrating layout.");
+                return null;
+            }
+            return snapshots.create(layout);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return names of snapshots, oldest first
+     */
+    public List<String> listSnapshots() {
+        return snapshots.list();
+    }
+
+    public boolean deleteSnapshot(String name) {
+        return snapshots.delete(name);
+    }
+
+    /**
+     * Write the records saved between two snapshots to out as a zip archive of their content.
+     * Records are read from the snapshots so exporting does not race writers.
+     * @param fromSnapshot earlier snapshot or null to export all records
+     * @param toSnapshot later snapshot, e.g. one just taken
+     * @return number of records exported
+     */
+    public int exportChanges(String fromSnapshot, String toSnapshot, OutputStream out) throws IOException {
+        return snapshots.export(fromSnapshot, toSnapshot, out);
+    }
+
+    /**
+     * Save the records of an archive written by {@link #exportChanges(String, String, OutputStream)},
+     * e.g. to restore a full export followed by incremental ones in order.
+     * @return number of records imported
+     */
+    public int importChanges(InputStream in) throws IOException {
+        return LocalFSSnapshots.importArchive(in, new LocalFSSnapshots.Importer() {
+            @Override
+            public void save(String label, String key, byte[] content) throws IOException {
+                LocalFSInfoVaultDB.this.save(label, key, content, true);
+            }
+        });
+    }
+
+    /**
+     * Move all records to the layout and data directories configured.
+     * Records can be saved and loaded while migrating. An interrupted migration is resumed by init().
+     * @return number of records moved or -1 if the migration could not start
+     */
+    public synchronized int migrateLayout() {
+        snapshotLock.writeLock().lock();
+        try {
+            if(migratingFrom == null) {
+                if(layout.sameAs(configuredLayout))
+                    return 0;
+                if(!writeLayoutFile(configuredLayout, layout))
+                    return -1;
+                migratingFrom = layout;
+                layout = configuredLayout;
+            }
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        return completeMigration();
+    }
+
+    private int completeMigration() {
+        LOG.info("Migrating records from "+migratingFrom.getType()+" to "+layout.getType()+" layout...");
+        long start = System.currentTimeMillis();
+        int moved = 0;
+        int failed = 0;
+        for(String label : migratingFrom.labels()) {
+            for(File f : migratingFrom.records(label)) {
+                File dest = layout.recordFile(label, f.getName());
+                if(dest.getAbsoluteFile().equals(f.getAbsoluteFile()))
+                    continue;
+                File parent = dest.getParentFile();
+                if(!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+                    LOG.warning("Unable to create directory: "+parent.getAbsolutePath());
+                    failed++;
+                    continue;
+                }
+                try {
+                    // Never replaces so a record saved meanwhile wins over the one migrated
+                    Files.move(f.toPath(), dest.toPath());
+                    moved++;
+                } catch (FileAlreadyExistsException e) {
+                    f.delete();
+                } catch (IOException e) {
+                    LOG.warning("Unable to move record "+f.getAbsolutePath()+": "+e.getLocalizedMessage());
+                    failed++;
+                }
+            }
+        }
+        if(failed > 0) {
+            LOG.warning("Migration incomplete; "+failed+" records not moved. Resumed on next init.");
+            return moved;
+        }
+        if(!writeLayoutFile(layout, null)) {
+            return moved;
+        }
+        migratingFrom.removeEmptyDirs();
+        migratingFrom = null;
+        LOG.info("Migrated "+moved+" records in "+(System.currentTimeMillis() - start)+"ms.");
+        return moved;
+    }
+
+    private Properties readLayoutFile() {
+        File file = new File(dbDir, LAYOUT_FILE);
+        if(!file.exists()) return null;
+        Properties p = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            p.load(in);
+        } catch (IOException e) {
+            LOG.warning("Unable to read layout file: "+e.getLocalizedMessage());
+            return null;
+        } finally {
+            if(in != null)
+                try { in.close(); } catch (IOException e) {}
+        }
+        return p;
+    }
+
+    private boolean writeLayoutFile(LocalFSLayout current, LocalFSLayout from) {
+        Properties p = new Properties();
+        current.store(p, "");
+        if(from != null)
+            from.store(p, "from.");
+        File file = new File(dbDir, LAYOUT_FILE);
+        File tmp = new File(dbDir, LAYOUT_FILE + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            p.store(out, "LocalFSInfoVaultDB layout");
+        } catch (IOException e) {
+            LOG.warning("Unable to write layout file: "+e.getLocalizedMessage());
+            return false;
+        } finally {
+            if(out != null)
+                try { out.close(); } catch (IOException e) {}
+        }
+        return FileUtil.rename(tmp, file);
+    }
+
+    @Override
+    public void registerIndex(String label, String indexName, IndexExtractor extractor) {
+        LOG.info("Registering index "+indexName+" on label: "+label);
+        File labelIndexDir = new File(indexDir, label);
+        if(!labelIndexDir.exists() && !labelIndexDir.mkdirs()) {
+            LOG.warning("Unable to create index directory: "+labelIndexDir.getAbsolutePath());
+            return;
+        }
+        indexes.putIfAbsent(label, new ConcurrentHashMap<String,LocalFSIndex>());
+        Map<String,LocalFSIndex> labelIndexes = indexes.get(label);
+        LocalFSIndex index = new LocalFSIndex(labelIndexDir, indexName, extractor);
+        // Registered before it is opened so saves made while it is built reach it;
+        // they wait on it until it is and so are applied after the records it read
+        synchronized (index) {
+            LocalFSIndex previous = labelIndexes.put(indexName, index);
+            // Its files are the new index's so it must not compact them over the rebuilt ones
+            if(previous != null)
+                previous.discard();
+            try {
+                index.open(records(label), this, previous != null);
+            } catch (IOException e) {
+                LOG.warning("Unable to open index "+indexName+" on label "+label+": "+e.getLocalizedMessage());
+                labelIndexes.remove(indexName, index);
+                index.discard();
+            }
+        }
+    }
+
+    @Override
+    public List<String> findKeys(String label, String indexName, String value) {
+        LocalFSIndex index = getIndex(label, indexName);
+        return index == null ? new ArrayList<String>() : index.find(value);
+    }
+
+    @Override
+    public List<String> findKeys(String label, String indexName, String fromValue, String toValue) {
+        LocalFSIndex index = getIndex(label, indexName);
+        return index == null ? new ArrayList<String>() : index.findRange(fromValue, toValue);
+    }
+
+    private LocalFSIndex getIndex(String label, String indexName) {
+        Map<String,LocalFSIndex> labelIndexes = indexes.get(label);
+        LocalFSIndex index = labelIndexes == null ? null : labelIndexes.get(indexName);
+        if(index == null)
+            LOG.warning("No index "+indexName+" registered on label: "+label);
+        return index;
+    }
+
+    /**
+     * Set the compression of records saved to a label from now on.
+     * Records already saved keep their compression until saved again.
+     */
+    public void setCompression(String label, Compression compression) {
+        labelCompression.put(label, compression);
+    }
+
+    public Compression getCompression(String label) {
+        Compression compression = label == null ? null : labelCompression.get(label);
+        return compression == null ? defaultCompression : compression;
+    }
+
+    /**
+     * Delete chunks no longer referenced by any record, e.g. after records were overwritten.
+     * @return number of chunks deleted
+     */
+    public int purgeUnreferencedChunks() {
+        long start = System.currentTimeMillis();
+        Set<String> referenced = new HashSet<>();
+        LocalFSLayout from = migratingFrom;
+        collectReferencedBlocks(layout, referenced);
+        if(from != null)
+            collectReferencedBlocks(from, referenced);
+        int deleted = codec.purgeBlocks(referenced, start);
+        LOG.info("Purged "+deleted+" unreferenced chunks.");
+        return deleted;
+    }
+
+    private void collectReferencedBlocks(LocalFSLayout l, Set<String> referenced) {
+        for(String label : l.labels()) {
+            for(File f : l.records(label)) {
+                try {
+                    referenced.addAll(codec.referencedBlocks(FileUtil.readFile(f.getAbsolutePath())));
+                } catch (IOException e) {
+                    LOG.warning("Unable to read record: "+f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    byte[] loadFile(File file) throws FileNotFoundException {
         byte[] buffer = new byte[8 * 1024];
         FileInputStream in = new FileInputStream(file);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -145,11 +474,28 @@ public class LocalFSInfoVaultDB implements InfoVaultDB {
                 LOG.warning(ex.getLocalizedMessage());
             }
         }
-        return out.toByteArray();
+        try {
+            return codec.decode(out.toByteArray());
+        } catch (IOException ex) {
+            LOG.warning("Unable to decode content of "+file.getAbsolutePath()+": "+ex.getLocalizedMessage());
+            return null;
+        }
     }
 
     @Override
     public boolean init(Properties properties) {
+        status = Status.Starting;
+        boolean started = open(properties);
+        status = started ? Status.Running : Status.StartupFailed;
+        return started;
+    }
+
+    private boolean open(Properties properties) {
+        try {
+            properties = Config.loadFromClasspath("infovault.config", properties, false);
+        } catch (Exception e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
         File baseDir = new File(properties.getProperty("1m5.dir.services.io.onemfive.core.infovault.InfoVaultService"));
         if(!baseDir.exists() && !baseDir.mkdir()) {
             LOG.warning("Unable to build InfoVaultService directory at: "+baseDir.getAbsolutePath());
@@ -164,6 +510,73 @@ public class LocalFSInfoVaultDB implements InfoVaultDB {
         } else {
             dbDir.setWritable(true);
         }
+        indexDir = new File(baseDir, this.getClass().getSimpleName() + "-index");
+        if(!indexDir.exists() && !indexDir.mkdir()) {
+            LOG.warning("Unable to create index directory for LocalFSInfoVaultDB.");
+            return false;
+        }
+        File blocksDir = new File(baseDir, this.getClass().getSimpleName() + "-blocks");
+        if(!blocksDir.exists() && !blocksDir.mkdir()) {
+            LOG.warning("Unable to create blocks directory for LocalFSInfoVaultDB.");
+            return false;
+        }
+        int chunkThreshold = 64 * 1024;
+        if(properties.getProperty(PROP_CHUNK_THRESHOLD) != null) {
+            chunkThreshold = Integer.parseInt(properties.getProperty(PROP_CHUNK_THRESHOLD));
+        }
+        codec = new LocalFSCodec(blocksDir, chunkThreshold);
+        snapshots = new LocalFSSnapshots(dbDir, blocksDir);
+        if(properties.getProperty(PROP_COMPRESSION) != null) {
+            defaultCompression = Compression.valueOf(properties.getProperty(PROP_COMPRESSION));
+        }
+        // Per label compression: 1m5.infovault.localfs.compression.{label}
+        for(String name : properties.stringPropertyNames()) {
+            if(name.startsWith(PROP_COMPRESSION + ".")) {
+                labelCompression.put(name.substring(PROP_COMPRESSION.length() + 1), Compression.valueOf(properties.getProperty(name)));
+            }
+        }
+        return initLayout(properties);
+    }
+
+    private boolean initLayout(Properties properties) {
+        configuredLayout = new LocalFSLayout(Layout.valueOf(properties.getProperty(PROP_LAYOUT, Layout.SHARDED.name())),
+                dbDir, LocalFSLayout.parseDirs(properties.getProperty(PROP_DATA_DIRS)));
+        Properties layoutFile = readLayoutFile();
+        LocalFSLayout onDisk = layoutFile == null ? null : LocalFSLayout.load(layoutFile, "", dbDir);
+        if(onDisk == null) {
+            // Records saved before layouts existed are FLAT
+            String[] existing = dbDir.list();
+            boolean flatRecords = false;
+            if(existing != null) {
+                for(String name : existing) {
+                    if(!name.startsWith(".")) flatRecords = true;
+                }
+            }
+            onDisk = flatRecords ? new LocalFSLayout(Layout.FLAT, dbDir, null) : configuredLayout;
+            if(!writeLayoutFile(onDisk, null)) {
+                LOG.warning("Unable to record layout for LocalFSInfoVaultDB.");
+                return false;
+            }
+        }
+        layout = onDisk;
+        for(File stripe : layout.getStripes()) {
+            if(!stripe.exists() && !stripe.mkdirs()) {
+                LOG.warning("Unable to create data directory: "+stripe.getAbsolutePath());
+                return false;
+            }
+        }
+        migratingFrom = LocalFSLayout.load(layoutFile == null ? new Properties() : layoutFile, "from.", dbDir);
+        if(migratingFrom != null) {
+            LOG.info("Resuming interrupted layout migration.");
+            completeMigration();
+        } else if(!layout.sameAs(configuredLayout)) {
+            if("true".equals(properties.getProperty(PROP_MIGRATE_ON_INIT))) {
+                migrateLayout();
+            } else {
+                LOG.warning("Records are in the "+layout.getType()+" layout and not the one configured;"
+                        + " run LocalFSLayoutMigration or set "+PROP_MIGRATE_ON_INIT+"=true to migrate them.");
+            }
+        }
         return true;
     }
 
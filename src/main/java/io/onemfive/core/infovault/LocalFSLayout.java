@@ -0,0 +1,214 @@
+package io.onemfive.core.infovault;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Where records of {@link LocalFSInfoVaultDB} live on disk.
+ *
+ * FLAT: {dbDir}/{label}/{key} as originally written.
+ * SHARDED: {stripe}/{label}/{xx}/{yy}/{key} where xx and yy are taken from a hash of the key
+ * fanning each label out over 65536 directories and the stripe is one of the configured data
+ * directories, also chosen by the hash, so records spread evenly over several disks.
+ * Records without a label go under {@link #UNLABELED}.
+ *
+ * @author objectorange
+ */
+final class LocalFSLayout {
+
+    // Dot prefixed so they can not collide with labels or keys of the FLAT layout
+    static final String UNLABELED = ".unlabeled";
+    static final String SHARDED_DIR = ".sharded";
+
+    private final LocalFSInfoVaultDB.Layout type;
+    private final File dbDir;
+    private final File[] stripes;
+
+    /**
+     * @param stripes data directories for SHARDED; ignored for FLAT
+     */
+    LocalFSLayout(LocalFSInfoVaultDB.Layout type, File dbDir, File[] stripes) {
+        this.type = type;
+        this.dbDir = dbDir;
+        if(type == LocalFSInfoVaultDB.Layout.FLAT)
+            this.stripes = new File[] {dbDir};
+        else if(stripes == null || stripes.length == 0)
+            this.stripes = new File[] {new File(dbDir, SHARDED_DIR)};
+        else
+            this.stripes = stripes;
+    }
+
+    LocalFSInfoVaultDB.Layout getType() {
+        return type;
+    }
+
+    File[] getStripes() {
+        return stripes;
+    }
+
+    File recordFile(String label, String key) {
+        if(type == LocalFSInfoVaultDB.Layout.FLAT)
+            return label == null ? new File(dbDir, key) : new File(new File(dbDir, label), key);
+        int h = hash(key);
+        File stripe = stripes[(h & 0x7fffffff) % stripes.length];
+        File labelDir = new File(stripe, label == null ? UNLABELED : label);
+        File shard = new File(new File(labelDir, shardName(h >>> 24)), shardName(h >>> 16));
+        return new File(shard, key);
+    }
+
+    boolean labelExists(String label) {
+        if(label == null) return true;
+        for(File stripe : stripes) {
+            if(new File(stripe, label).exists())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return record files of the label
+     */
+    List<File> records(String label) {
+        List<File> records = new ArrayList<>();
+        if(type == LocalFSInfoVaultDB.Layout.FLAT) {
+            File[] children = (label == null ? dbDir : new File(dbDir, label)).listFiles();
+            if(children != null) {
+                for(File f : children) {
+                    if(f.isFile() && !f.getName().startsWith("."))
+                        records.add(f);
+                }
+            }
+            return records;
+        }
+        for(File stripe : stripes) {
+            File[] shards = new File(stripe, label == null ? UNLABELED : label).listFiles();
+            if(shards == null) continue;
+            for(File shard : shards) {
+                File[] subShards = shard.listFiles();
+                if(subShards == null) continue;
+                for(File subShard : subShards) {
+                    File[] children = subShard.listFiles();
+                    if(children == null) continue;
+                    for(File f : children) {
+                        if(f.isFile() && !f.getName().startsWith("."))
+                            records.add(f);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return labels holding records, null standing for records without a label
+     */
+    List<String> labels() {
+        List<String> labels = new ArrayList<>();
+        labels.add(null);
+        for(File stripe : stripes) {
+            File[] children = stripe.listFiles();
+            if(children == null) continue;
+            for(File f : children) {
+                if(f.isDirectory() && !f.getName().startsWith(".") && !labels.contains(f.getName()))
+                    labels.add(f.getName());
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Delete directories left empty, e.g. after records were migrated out of this layout.
+     */
+    void removeEmptyDirs() {
+        for(File stripe : stripes) {
+            File[] children = stripe.listFiles();
+            if(children == null) continue;
+            for(File f : children) {
+                if(f.isDirectory() && (type == LocalFSInfoVaultDB.Layout.SHARDED || !f.getName().startsWith(".")))
+                    removeEmptyDirs(f);
+            }
+            if(stripe.getName().equals(SHARDED_DIR))
+                stripe.delete();
+        }
+    }
+
+    private static boolean removeEmptyDirs(File dir) {
+        File[] children = dir.listFiles();
+        boolean empty = true;
+        if(children != null) {
+            for(File f : children) {
+                if(!f.isDirectory() || !removeEmptyDirs(f))
+                    empty = false;
+            }
+        }
+        return empty && dir.delete();
+    }
+
+    void store(Properties p, String prefix) {
+        p.setProperty(prefix + "layout", type.name());
+        if(type == LocalFSInfoVaultDB.Layout.SHARDED) {
+            StringBuilder sb = new StringBuilder();
+            for(File stripe : stripes) {
+                if(sb.length() > 0) sb.append(',');
+                sb.append(stripe.getAbsolutePath());
+            }
+            p.setProperty(prefix + "dataDirs", sb.toString());
+        }
+    }
+
+    static LocalFSLayout load(Properties p, String prefix, File dbDir) {
+        String type = p.getProperty(prefix + "layout");
+        if(type == null) return null;
+        return new LocalFSLayout(LocalFSInfoVaultDB.Layout.valueOf(type), dbDir, parseDirs(p.getProperty(prefix + "dataDirs")));
+    }
+
+    static File[] parseDirs(String dirs) {
+        if(dirs == null || dirs.trim().isEmpty()) return null;
+        List<File> files = new ArrayList<>();
+        for(String dir : dirs.split(",")) {
+            if(!dir.trim().isEmpty())
+                files.add(new File(dir.trim()).getAbsoluteFile());
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    boolean sameAs(LocalFSLayout other) {
+        if(other == null || type != other.type) return false;
+        try {
+            return Arrays.equals(canonical(stripes), canonical(other.stripes));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String[] canonical(File[] files) throws IOException {
+        String[] paths = new String[files.length];
+        for(int i = 0; i < files.length; i++) {
+            paths[i] = files[i].getCanonicalPath();
+        }
+        return paths;
+    }
+
+    private static String shardName(int b) {
+        b &= 0xff;
+        return new String(new char[] {Character.forDigit(b >> 4, 16), Character.forDigit(b & 0xf, 16)});
+    }
+
+    /**
+     * String.hashCode is specified so is stable across JVMs; mixed so that similar
+     * keys spread over all shards and stripes.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,43 @@
+package io.onemfive.core.infovault;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Command line tool moving the records of a LocalFSInfoVaultDB from the layout on disk,
+ * e.g. the original FLAT one, to the layout and data directories configured in
+ * infovault.config or given as arguments.
+ *
+ * Usage: LocalFSLayoutMigration {InfoVaultService directory} [FLAT|SHARDED] [dataDir,dataDir,...]
+ *
+ * @author objectorange
+ */
+public final class LocalFSLayoutMigration {
+
+    private static final Logger LOG = Logger.getLogger(LocalFSLayoutMigration.class.getName());
+
+    public static void main(String[] args) {
+        if(args.length < 1) {
+            System.out.println("Usage: LocalFSLayoutMigration {InfoVaultService directory} [FLAT|SHARDED] [dataDir,dataDir,...]");
+            System.exit(1);
+        }
+        Properties p = new Properties();
+        p.setProperty("1m5.dir.services.io.onemfive.core.infovault.InfoVaultService", args[0]);
+        if(args.length > 1)
+            p.setProperty(LocalFSInfoVaultDB.PROP_LAYOUT, args[1]);
+        if(args.length > 2)
+            p.setProperty(LocalFSInfoVaultDB.PROP_DATA_DIRS, args[2]);
+        LocalFSInfoVaultDB db = new LocalFSInfoVaultDB();
+        if(!db.init(p)) {
+            LOG.severe("Unable to open LocalFSInfoVaultDB at "+args[0]);
+            System.exit(1);
+        }
+        int moved = db.migrateLayout();
+        db.teardown();
+        if(moved < 0) {
+            LOG.severe("Migration failed.");
+            System.exit(1);
+        }
+        System.out.println("Moved "+moved+" records to the "+db.getLayout()+" layout.");
+    }
+}
@@ -0,0 +1,338 @@
+package io.onemfive.core.infovault;
+
+import io.onemfive.core.util.FileUtil;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Point-in-time snapshots of {@link LocalFSInfoVaultDB}.
+ *
+ * A snapshot hard links every record into a {@link #SNAPSHOTS_DIR} directory on the same
+ * data directory (stripe) as the record and every chunk into one within the blocks directory,
+ * so no data is copied. This relies on records and chunks never being rewritten in place:
+ * saves replace the record file by rename leaving the snapshot holding the old one.
+ * Where hard links are not supported the files are copied.
+ *
+ * A manifest, written last so that only complete snapshots are listed, records the label,
+ * key, last modified time and linked file of each record.
+ *
+ * Exports are zip archives of the decoded records which changed between two snapshots,
+ * read from the snapshots so writers are never raced.
+ *
+ * @author objectorange
+ */
+final class LocalFSSnapshots {
+
+    private static final Logger LOG = Logger.getLogger(LocalFSSnapshots.class.getName());
+
+    static final String SNAPSHOTS_DIR = ".snapshots";
+    static final String MANIFEST_SUFFIX = ".manifest";
+    static final String RECORDS_ENTRY = "records/";
+
+    private final File manifestDir;
+    private final File blocksDir;
+
+    LocalFSSnapshots(File dbDir, File blocksDir) {
+        this.manifestDir = new File(dbDir, SNAPSHOTS_DIR);
+        this.blocksDir = blocksDir;
+    }
+
+    /**
+     * Callers must keep writers out until it returns.
+     * @return name of the snapshot or null if it could not be taken
+     */
+    String create(LocalFSLayout layout) {
+        if(!manifestDir.exists() && !manifestDir.mkdirs()) {
+            LOG.warning("Unable to create snapshots directory: "+manifestDir.getAbsolutePath());
+            return null;
+        }
+        String name = nextName();
+        long start = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        Set<File> roots = new LinkedHashSet<>();
+        for(String label : layout.labels()) {
+            for(File record : layout.records(label)) {
+                File root = new File(new File(stripeOf(layout, record), SNAPSHOTS_DIR), name);
+                File link = new File(root, relativePath(stripeOf(layout, record), record));
+                if(!FileUtil.link(record, link)) {
+                    LOG.warning("Unable to snapshot record: "+record.getAbsolutePath());
+                    delete(name, roots);
+                    return null;
+                }
+                roots.add(root);
+                entries.add(new Entry(label, record.getName(), record.lastModified(), link));
+            }
+        }
+        // Chunks are immutable so link them all rather than read every record for its references
+        File blocksRoot = blocksRoot(name);
+        roots.add(blocksRoot);
+        File[] shards = blocksDir.listFiles();
+        if(shards != null) {
+            for(File shard : shards) {
+                if(!shard.isDirectory() || shard.getName().startsWith(".")) continue;
+                File[] blocks = shard.listFiles();
+                if(blocks == null) continue;
+                for(File block : blocks) {
+                    if(block.getName().endsWith(".tmp")) continue;
+                    if(!FileUtil.link(block, new File(new File(blocksRoot, shard.getName()), block.getName()))) {
+                        LOG.warning("Unable to snapshot chunk: "+block.getAbsolutePath());
+                        delete(name, roots);
+                        return null;
+                    }
+                }
+            }
+        }
+        try {
+            writeManifest(name, roots, entries);
+        } catch (IOException e) {
+            LOG.warning("Unable to write snapshot manifest: "+e.getLocalizedMessage());
+            delete(name, roots);
+            return null;
+        }
+        LOG.info("Snapshot "+name+" of "+entries.size()+" records taken in "+(System.currentTimeMillis() - start)+"ms.");
+        return name;
+    }
+
+    /**
+     * @return names of complete snapshots, oldest first
+     */
+    List<String> list() {
+        List<String> names = new ArrayList<>();
+        String[] files = manifestDir.list();
+        if(files != null) {
+            for(String f : files) {
+                if(f.endsWith(MANIFEST_SUFFIX))
+                    names.add(f.substring(0, f.length() - MANIFEST_SUFFIX.length()));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    boolean delete(String name) {
+        File manifest = manifestFile(name);
+        if(!manifest.exists()) return false;
+        Set<File> roots = new LinkedHashSet<>();
+        try {
+            readManifest(name, roots);
+        } catch (IOException e) {
+            LOG.warning("Unable to read snapshot manifest "+name+": "+e.getLocalizedMessage());
+            return false;
+        }
+        // Manifest first so a partially deleted snapshot is no longer listed
+        return manifest.delete() && delete(name, roots);
+    }
+
+    /**
+     * Write the records added or changed since one snapshot up to a later one to a zip archive.
+     * @param fromName earlier snapshot or null to export all records
+     * @param toName later snapshot
+     * @return number of records exported
+     */
+    int export(String fromName, String toName, OutputStream out) throws IOException {
+        Map<String,Entry> from = new HashMap<>();
+        if(fromName != null) {
+            for(Entry e : readManifest(fromName, new HashSet<File>())) {
+                from.put(e.id(), e);
+            }
+        }
+        List<Entry> to = readManifest(toName, new HashSet<File>());
+        // Chunked records are decoded from the chunks linked into the snapshot
+        LocalFSCodec codec = new LocalFSCodec(blocksRoot(toName), 0);
+        int exported = 0;
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out));
+        for(Entry e : to) {
+            Entry previous = from.get(e.id());
+            if(previous != null && unchanged(previous, e))
+                continue;
+            byte[] content = codec.decode(FileUtil.readFile(e.file.getAbsolutePath()));
+            ZipEntry entry = new ZipEntry(RECORDS_ENTRY + (e.label == null ? LocalFSLayout.UNLABELED : e.label) + "/" + e.key);
+            entry.setTime(e.lastModified);
+            zip.putNextEntry(entry);
+            zip.write(content);
+            zip.closeEntry();
+            exported++;
+        }
+        zip.finish();
+        zip.flush();
+        LOG.info("Exported "+exported+" of "+to.size()+" records changed since "+(fromName == null ? "the start" : fromName)+".");
+        return exported;
+    }
+
+    interface Importer {
+        void save(String label, String key, byte[] content) throws IOException;
+    }
+
+    /**
+     * Read back an archive written by {@link #export(String, String, OutputStream)}.
+     * @return number of records imported
+     */
+    static int importArchive(InputStream in, Importer importer) throws IOException {
+        ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in));
+        int imported = 0;
+        ZipEntry entry;
+        byte[] buffer = new byte[8 * 1024];
+        while((entry = zip.getNextEntry()) != null) {
+            String name = entry.getName();
+            int slash = name.lastIndexOf('/');
+            if(entry.isDirectory() || !name.startsWith(RECORDS_ENTRY) || slash <= RECORDS_ENTRY.length()) {
+                LOG.warning("Skipping unknown archive entry: "+name);
+                continue;
+            }
+            String label = name.substring(RECORDS_ENTRY.length(), slash);
+            String key = name.substring(slash + 1);
+            // Saved as a path under the vault so must not climb out of it, e.g. from an archive made elsewhere
+            if(!safeName(label) || !safeName(key)) {
+                LOG.warning("Skipping archive entry with an unsafe label or key: "+name);
+                continue;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            int read;
+            while((read = zip.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            importer.save(LocalFSLayout.UNLABELED.equals(label) ? null : label, key, content.toByteArray());
+            imported++;
+        }
+        return imported;
+    }
+
+    /**
+     * @return true if the name is a single path element other than the current or parent directory
+     */
+    static boolean safeName(String name) {
+        return !name.isEmpty() && !name.contains("/") && !name.contains("\\") && !name.contains("..") && name.indexOf('\0') < 0;
+    }
+
+    /**
+     * Unchanged if both snapshots link the same file, otherwise fall back on time and size.
+     */
+    private static boolean unchanged(Entry previous, Entry current) {
+        try {
+            Object previousKey = Files.readAttributes(previous.file.toPath(), BasicFileAttributes.class).fileKey();
+            Object currentKey = Files.readAttributes(current.file.toPath(), BasicFileAttributes.class).fileKey();
+            if(previousKey != null && currentKey != null)
+                return previousKey.equals(currentKey);
+        } catch (IOException e) {
+            return false;
+        }
+        return previous.lastModified == current.lastModified && previous.file.length() == current.file.length();
+    }
+
+    private boolean delete(String name, Set<File> roots) {
+        boolean deleted = true;
+        for(File root : roots) {
+            if(root.exists() && !FileUtil.rmdir(root, false))
+                deleted = false;
+        }
+        if(!deleted)
+            LOG.warning("Unable to delete all files of snapshot "+name);
+        return deleted;
+    }
+
+    private void writeManifest(String name, Set<File> roots, List<Entry> entries) throws IOException {
+        File tmp = new File(manifestDir, name + MANIFEST_SUFFIX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(roots.size());
+            for(File root : roots) {
+                out.writeUTF(root.getAbsolutePath());
+            }
+            out.writeInt(entries.size());
+            for(Entry e : entries) {
+                out.writeBoolean(e.label != null);
+                if(e.label != null)
+                    out.writeUTF(e.label);
+                out.writeUTF(e.key);
+                out.writeLong(e.lastModified);
+                out.writeUTF(e.file.getAbsolutePath());
+            }
+        } finally {
+            out.close();
+        }
+        if(!FileUtil.rename(tmp, manifestFile(name)))
+            throw new IOException("Unable to store manifest: "+manifestFile(name).getAbsolutePath());
+    }
+
+    private List<Entry> readManifest(String name, Set<File> roots) throws IOException {
+        File manifest = manifestFile(name);
+        if(!manifest.exists())
+            throw new FileNotFoundException("No snapshot: "+name);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+        try {
+            int rootCount = in.readInt();
+            for(int i = 0; i < rootCount; i++) {
+                roots.add(new File(in.readUTF()));
+            }
+            int size = in.readInt();
+            List<Entry> entries = new ArrayList<>(size);
+            for(int i = 0; i < size; i++) {
+                String label = in.readBoolean() ? in.readUTF() : null;
+                String key = in.readUTF();
+                long lastModified = in.readLong();
+                entries.add(new Entry(label, key, lastModified, new File(in.readUTF())));
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    private File manifestFile(String name) {
+        return new File(manifestDir, name + MANIFEST_SUFFIX);
+    }
+
+    private File blocksRoot(String name) {
+        return new File(new File(blocksDir, SNAPSHOTS_DIR), name);
+    }
+
+    private String nextName() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String base = format.format(new Date());
+        String name = base;
+        for(int i = 1; manifestFile(name).exists() || new File(manifestDir, name).exists(); i++) {
+            name = base + "-" + i;
+        }
+        return name;
+    }
+
+    private static File stripeOf(LocalFSLayout layout, File record) {
+        String path = record.getAbsolutePath();
+        for(File stripe : layout.getStripes()) {
+            if(path.startsWith(stripe.getAbsolutePath() + File.separator))
+                return stripe;
+        }
+        throw new IllegalStateException("Record outside of data directories: "+path);
+    }
+
+    private static String relativePath(File stripe, File record) {
+        return record.getAbsolutePath().substring(stripe.getAbsolutePath().length() + 1);
+    }
+
+    private static final class Entry {
+        private final String label;
+        private final String key;
+        private final long lastModified;
+        private final File file;
+
+        private Entry(String label, String key, long lastModified, File file) {
+            this.label = label;
+            this.key = key;
+            this.lastModified = lastModified;
+            this.file = file;
+        }
+
+        private String id() {
+            return (label == null ? "" : label) + "/" + key;
+        }
+    }
+}
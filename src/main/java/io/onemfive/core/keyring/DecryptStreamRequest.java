@@ -0,0 +1,41 @@
+package io.onemfive.core.keyring;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming variant of {@link DecryptRequest} for large payloads.
+ * Armoured and binary input are both accepted.
+ *
+ * Request:
+ * String Key Ring Username
+ * String Key Ring Passphrase for access to the Secret Key Ring
+ * InputStream or path of the file to decrypt
+ * OutputStream or path of the file to write the plaintext to
+ *
+ * Response:
+ * long bytes of plaintext written
+ *
+ * Streams supplied are not closed. The integrity check can only complete once all plaintext
+ * has been written so on exception anything written to a supplied stream must be discarded;
+ * an output file is only written once the check passes.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class DecryptStreamRequest extends KeyRingsRequest {
+    public static int INPUT_REQUIRED = 2;
+    public static int OUTPUT_REQUIRED = 3;
+    public static int LOCATION_REQUIRED = 4;
+    public static int LOCATION_INACCESSIBLE = 5;
+
+    public String location;
+    public String keyRingUsername;
+    public String keyRingPassphrase;
+    public InputStream in;
+    public String inputPath;
+    public OutputStream out;
+    public String outputPath;
+
+    public long bytesWritten;
+}
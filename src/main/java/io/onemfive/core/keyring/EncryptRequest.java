@@ -1,5 +1,6 @@
 package io.onemfive.core.keyring;
 
+import io.onemfive.data.EncryptionAlgorithm;
 import io.onemfive.data.content.Content;
 
 /**
@@ -29,4 +30,9 @@ public class EncryptRequest extends KeyRingsRequest {
     public String publicKeyAlias;
     public Content content;
     public Boolean passphraseOnly = false;
+    // Symmetric algorithm and compression; null for the key ring's configured defaults
+    public EncryptionAlgorithm algorithm;
+    public Boolean compress;
+    // False for binary OpenPGP, e.g. between services; the body is then not ASCII
+    public boolean armored = true;
 }
@@ -0,0 +1,51 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.data.EncryptionAlgorithm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming variant of {@link EncryptRequest} for large payloads.
+ * Compression, encryption and armour are pipelined through bounded buffers
+ * so memory use does not grow with the size of the payload.
+ *
+ * Request:
+ * String Key Ring Username
+ * String Key Ring Passphrase
+ * String Public Key Alias you wish to use for Encryption
+ * InputStream or path of the file to encrypt
+ * OutputStream or path of the file to write the encrypted content to
+ * boolean armored; false writes binary OpenPGP
+ *
+ * Response:
+ * long bytes of plaintext read
+ *
+ * Streams supplied are not closed. An output file is only written once encryption completes.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class EncryptStreamRequest extends KeyRingsRequest {
+    public static int INPUT_REQUIRED = 2;
+    public static int OUTPUT_REQUIRED = 3;
+    public static int PUBLIC_KEY_ALIAS_REQUIRED = 4;
+    public static int PUBLIC_KEY_NOT_FOUND = 5;
+    public static int LOCATION_REQUIRED = 6;
+    public static int LOCATION_INACCESSIBLE = 7;
+
+    public String location;
+    public String keyRingUsername;
+    public String keyRingPassphrase;
+    public String publicKeyAlias;
+    public InputStream in;
+    public String inputPath;
+    public OutputStream out;
+    public String outputPath;
+    public boolean armored = true;
+    // Symmetric algorithm and compression; null for the key ring's configured defaults
+    public EncryptionAlgorithm algorithm;
+    public Boolean compress;
+
+    public long bytesRead;
+}
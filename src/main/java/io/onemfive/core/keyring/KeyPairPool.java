@@ -0,0 +1,167 @@
+package io.onemfive.core.keyring;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a small pool of pre-generated key pairs so that creating key rings
+ * does not spend seconds generating keys on the thread handling the request.
+ *
+ * One low priority daemon thread tops the pool up whenever a key pair is taken.
+ * Should the pool run dry, key pairs are generated on the calling thread.
+ * Key pairs only exist in memory until taken; they are discarded on shutdown.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class KeyPairPool {
+
+    private static final Logger LOG = Logger.getLogger(KeyPairPool.class.getName());
+
+    public enum Algorithm {
+        /*
+         * As of 2018: 2048 is common value - safe until 2030, 3072 is uncommon - safe until 2040, 4096 is rare - safe until 2040+
+         */
+        RSA_2048(2048),
+        RSA_3072(3072),
+        RSA_4096(4096);
+
+        private final int bitStrength;
+
+        Algorithm(int bitStrength) {
+            this.bitStrength = bitStrength;
+        }
+
+        public int getBitStrength() {
+            return bitStrength;
+        }
+    }
+
+    /*
+     * This value should be a Fermat number. 0x10001 (F4) is current recommended value. 3 (F1) is known to be safe also.
+     * 3, 5, 17, 257, 65537, 4294967297, 18446744073709551617,
+     * <p>
+     * Practically speaking, Windows does not tolerate public exponents which do not fit in a 32-bit unsigned integer.
+     * Using e=3 or e=65537 works "everywhere".
+     * <p>
+     * See: <a href="http://stackoverflow.com/questions/11279595/rsa-public-exponent-defaults-to-65537-what-should-this-value-be-what-are-the">stackoverflow: RSA Public exponent defaults to 65537. ... What are the impacts of my choices?</a>
+     */
+    private static final BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(0x10001);
+
+    /*
+     * How certain do we want to be that the chosen primes are really primes.
+     * <p>
+     * The higher this number, the more tests are done to make sure they are primes (and not composites).
+     * <p>
+     * See: <a href="http://crypto.stackexchange.com/questions/3114/what-is-the-correct-value-for-certainty-in-rsa-key-pair-generation">What is the correct value for “certainty” in RSA key pair generation?</a>
+     * and
+     * <a href="http://crypto.stackexchange.com/questions/3126/does-a-high-exponent-compensate-for-a-low-degree-of-certainty?lq=1">Does a high exponent compensate for a low degree of certainty?</a>
+     *
+     * As of 2018: 12 is common value, 16 uncommon, 80 rare
+     */
+    private static final int CERTAINTY = 12;
+
+    private final Algorithm algorithm;
+    private final int size;
+    private final BlockingQueue<AsymmetricCipherKeyPair> pool;
+    private final ExecutorService executor;
+    // SecureRandom is thread safe and seeding one per key pair is needlessly slow
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param size key pairs to keep ready; 0 generates every key pair on demand
+     */
+    public KeyPairPool(Algorithm algorithm, int size) {
+        this.algorithm = algorithm;
+        this.size = size;
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, size));
+        if(size > 0) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "KeyPairPool");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            refill();
+        } else {
+            executor = null;
+        }
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return a pre-generated key pair or, if none are ready, one generated now
+     */
+    public AsymmetricCipherKeyPair take() {
+        AsymmetricCipherKeyPair keyPair = pool.poll();
+        refill();
+        if(keyPair == null) {
+            LOG.info("Key pair pool empty; generating "+algorithm+" key pair on demand.");
+            keyPair = generate();
+        }
+        return keyPair;
+    }
+
+    /**
+     * @return key pairs ready to be taken
+     */
+    public int available() {
+        return pool.size();
+    }
+
+    /**
+     * Stop refilling and discard the key pairs not taken.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if(executor != null)
+            executor.shutdownNow();
+        pool.clear();
+    }
+
+    private void refill() {
+        if(executor == null || shutdown || !refilling.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while(!shutdown && pool.size() < size) {
+                            if(!pool.offer(generate()))
+                                break;
+                        }
+                    } finally {
+                        refilling.set(false);
+                    }
+                    // Taken while the last one was being generated
+                    if(!shutdown && pool.size() < size)
+                        refill();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refilling.set(false);
+        }
+    }
+
+    private AsymmetricCipherKeyPair generate() {
+        RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+        kpg.init(new RSAKeyGenerationParameters(PUBLIC_EXPONENT, random, algorithm.getBitStrength(), CERTAINTY));
+        return kpg.generateKeyPair();
+    }
+}
@@ -31,8 +31,23 @@ public interface KeyRing {
 
     void decrypt(DecryptRequest r) throws IOException, PGPException;
 
+    void encryptStream(EncryptStreamRequest r) throws IOException, PGPException;
+
+    void decryptStream(DecryptStreamRequest r) throws IOException, PGPException;
+
     void sign(SignRequest r) throws IOException, PGPException;
 
     void verifySignature(VerifySignatureRequest r) throws IOException, PGPException;
 
+    void signBatch(SignBatchRequest r) throws IOException, PGPException;
+
+    void verifySignatureBatch(VerifySignatureBatchRequest r) throws IOException, PGPException;
+
+    void storePublicKeys(StorePublicKeysRequest r) throws IOException, PGPException;
+
+    /**
+     * Release cached key rings and wipe cached key material, e.g. on reload or shutdown.
+     */
+    void teardown();
+
 }
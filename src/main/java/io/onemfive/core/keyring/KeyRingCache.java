@@ -0,0 +1,123 @@
+package io.onemfive.core.keyring;
+
+import org.bouncycastle.openpgp.PGPException;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Parsed key ring collections by file so they are not re-read and re-parsed on every request.
+ *
+ * An entry is reloaded when the last modified time or length of its file, or of the journal of changes
+ * to it, changes, e.g. when another process writes them; collections saved through this process are put directly.
+ * Bouncy Castle collections are immutable so are shared across threads as is.
+ *
+ * @author objectorange
+ */
+final class KeyRingCache {
+
+    private static final Logger LOG = Logger.getLogger(KeyRingCache.class.getName());
+
+    interface Loader<T> {
+        T load(InputStream in) throws IOException, PGPException;
+    }
+
+    interface Listener {
+        /**
+         * The file changed since it was cached.
+         */
+        void changed(File file);
+    }
+
+    private static final class Cached {
+        private final Object collection;
+        private final long lastModified;
+        private final long length;
+        private final long journalLastModified;
+        private final long journalLength;
+
+        private Cached(Object collection, Cached stamp) {
+            this.collection = collection;
+            this.lastModified = stamp.lastModified;
+            this.length = stamp.length;
+            this.journalLastModified = stamp.journalLastModified;
+            this.journalLength = stamp.journalLength;
+        }
+
+        private Cached(Object collection, File file, File journal) {
+            this.collection = collection;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.journalLastModified = journal == null ? 0L : journal.lastModified();
+            this.journalLength = journal == null ? 0L : journal.length();
+        }
+
+        private boolean current(File file, File journal) {
+            return lastModified == file.lastModified() && length == file.length()
+                    && journalLastModified == (journal == null ? 0L : journal.lastModified())
+                    && journalLength == (journal == null ? 0L : journal.length());
+        }
+    }
+
+    private final Map<String,Cached> collections = new ConcurrentHashMap<>();
+    private final Listener listener;
+
+    KeyRingCache(Listener listener) {
+        this.listener = listener;
+    }
+
+    <T> T get(File file, Loader<T> loader) throws IOException, PGPException {
+        return get(file, null, loader);
+    }
+
+    /**
+     * @param journal changes to the file not yet written into it; null if none are kept
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(File file, File journal, Loader<T> loader) throws IOException, PGPException {
+        String path = file.getAbsolutePath();
+        Cached cached = collections.get(path);
+        // Taken before loading so changes made during the load cause another
+        Cached stamp = new Cached(null, file, journal);
+        if(cached != null) {
+            if(cached.current(file, journal))
+                return (T)cached.collection;
+            LOG.info("Key ring file changed; reloading: "+path);
+            if(listener != null)
+                listener.changed(file);
+        }
+        T collection;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            collection = loader.load(in);
+        } finally {
+            in.close();
+        }
+        collections.put(path, new Cached(collection, stamp));
+        return collection;
+    }
+
+    /**
+     * Cache a collection just written to file.
+     */
+    void put(File file, Object collection) {
+        put(file, null, collection);
+    }
+
+    /**
+     * Cache a collection just written to file or its journal.
+     */
+    void put(File file, File journal, Object collection) {
+        collections.put(file.getAbsolutePath(), new Cached(collection, file, journal));
+    }
+
+    void invalidate(File file) {
+        collections.remove(file.getAbsolutePath());
+    }
+
+    void clear() {
+        collections.clear();
+    }
+}
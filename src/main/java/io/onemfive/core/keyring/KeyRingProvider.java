@@ -0,0 +1,56 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.data.EncryptionAlgorithm;
+
+import java.util.Set;
+
+/**
+ * Service provider of {@link KeyRing} implementations, discovered by {@link KeyRingService}
+ * with {@link java.util.ServiceLoader} from META-INF/services/io.onemfive.core.keyring.KeyRingProvider.
+ *
+ * Requests not naming an implementation are routed to the cheapest available provider
+ * supporting what they need, so providers must read and write the same key ring files as
+ * {@link OpenPGPKeyRing}. Implementations need a public no-argument constructor.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public interface KeyRingProvider {
+
+    enum Capability {
+        // encryptStream and decryptStream
+        STREAMING,
+        // signBatch and verifySignatureBatch
+        BATCH,
+        // Private keys held in a device, e.g. a smart card
+        HARDWARE
+    }
+
+    /**
+     * @return name requests address the implementation by in {@link KeyRingsRequest#keyRingImplementation}
+     */
+    String getName();
+
+    /**
+     * @return false if the implementation can not run on this host, e.g. its device or JCA provider is missing
+     */
+    boolean isAvailable();
+
+    Set<Capability> getCapabilities();
+
+    /**
+     * @return symmetric algorithms content can be encrypted with
+     */
+    Set<EncryptionAlgorithm> getAlgorithms();
+
+    /**
+     * Estimated nanoseconds to sign and verify 1 KiB on a typical host, used to route requests
+     * until {@link KeyRingProviders#rank()} has measured the real cost on this host.
+     */
+    long getCostHint();
+
+    /**
+     * @return a new, not yet initialized, key ring
+     */
+    KeyRing newKeyRing();
+}
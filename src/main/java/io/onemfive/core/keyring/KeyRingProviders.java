@@ -0,0 +1,228 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.core.util.FileUtil;
+import io.onemfive.data.EncryptionAlgorithm;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Key rings available to {@link KeyRingService} and the providers they came from.
+ *
+ * Requests naming an implementation get that one. Requests that do not are routed to the
+ * cheapest provider having the capabilities and algorithm they need; cost is the provider's
+ * hint until {@link #rank()} has measured signing and verifying 1 KiB with each on this host.
+ * Key rings configured by class name rather than provided are only used when named.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public final class KeyRingProviders {
+
+    private static final Logger LOG = Logger.getLogger(KeyRingProviders.class.getName());
+
+    static final int RANK_WARMUP_ROUNDS = 5;
+    static final int RANK_ROUNDS = 20;
+    private static final String RANK_USERNAME = "rank";
+    private static final String RANK_PASSPHRASE = "rank";
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return available providers found on the class path
+     */
+    public static List<KeyRingProvider> discover(ClassLoader classLoader) {
+        List<KeyRingProvider> providers = new ArrayList<>();
+        Iterator<KeyRingProvider> i = ServiceLoader.load(KeyRingProvider.class, classLoader).iterator();
+        while(true) {
+            KeyRingProvider p;
+            try {
+                if(!i.hasNext()) break;
+                p = i.next();
+            } catch (ServiceConfigurationError e) {
+                LOG.warning("Unable to load key ring provider: "+e.getLocalizedMessage());
+                continue;
+            }
+            if(p.isAvailable())
+                providers.add(p);
+            else
+                LOG.info("Key ring provider not available on this host: "+p.getName());
+        }
+        return providers;
+    }
+
+    /**
+     * @param provider null for a key ring only used when named
+     */
+    public void register(String name, KeyRingProvider provider, KeyRing keyRing) {
+        if(get(name) != null)
+            throw new IllegalArgumentException("Key ring already registered: "+name);
+        entries.add(new Entry(name, provider, keyRing));
+    }
+
+    public KeyRing get(String name) {
+        Entry e = entry(name);
+        return e == null ? null : e.keyRing;
+    }
+
+    public boolean contains(String name) {
+        return entry(name) != null;
+    }
+
+    /**
+     * @param algorithm symmetric algorithm required; null for any
+     * @return name of the cheapest provider with the algorithm and all capabilities required or null if none
+     */
+    public String select(EncryptionAlgorithm algorithm, KeyRingProvider.Capability... required) {
+        Entry cheapest = null;
+        for(Entry e : entries) {
+            if(e.provider == null) continue;
+            if(algorithm != null && !e.provider.getAlgorithms().contains(algorithm)) continue;
+            if(!e.provider.getCapabilities().containsAll(Arrays.asList(required))) continue;
+            if(cheapest == null || e.cost() < cheapest.cost())
+                cheapest = e;
+        }
+        return cheapest == null ? null : cheapest.name;
+    }
+
+    /**
+     * @return measured cost in nanoseconds, else the provider's hint; -1 if not provided
+     */
+    public long getCost(String name) {
+        Entry e = entry(name);
+        return e == null || e.provider == null ? -1 : e.cost();
+    }
+
+    /**
+     * @return names of provided key rings, cheapest first
+     */
+    public List<String> getRanking() {
+        List<Entry> provided = new ArrayList<>();
+        for(Entry e : entries) {
+            if(e.provider != null)
+                provided.add(e);
+        }
+        Collections.sort(provided, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e1.cost(), e2.cost());
+            }
+        });
+        List<String> names = new ArrayList<>(provided.size());
+        for(Entry e : provided) {
+            names.add(e.name);
+        }
+        return names;
+    }
+
+    /**
+     * Measure each provided key ring signing and verifying 1 KiB with throwaway keys, replacing
+     * cost hints with the results. Generates a key ring collection per provider so takes seconds;
+     * run it off the startup path. Providers failing the benchmark are never routed to.
+     * @return names of provided key rings, cheapest first
+     */
+    public List<String> rank() {
+        byte[] content = new byte[1024];
+        new Random().nextBytes(content);
+        for(Entry e : entries) {
+            if(e.provider == null) continue;
+            File location = new File(System.getProperty("java.io.tmpdir"), "1m5-keyring-rank-" + System.nanoTime());
+            try {
+                e.measuredCost = measure(e.keyRing, location, content);
+                LOG.info("Key ring "+e.name+" signs and verifies 1 KiB in "+(e.measuredCost / 1000)+"us.");
+            } catch (Exception ex) {
+                LOG.warning("Unable to rank key ring "+e.name+": "+ex.getLocalizedMessage());
+                e.measuredCost = Long.MAX_VALUE;
+            } finally {
+                FileUtil.rmdir(location, false);
+            }
+        }
+        List<String> ranking = getRanking();
+        LOG.info("Key ring providers ranked: "+ranking);
+        return ranking;
+    }
+
+    /**
+     * Tear down all key rings and forget them.
+     */
+    public void clear() {
+        for(Entry e : entries) {
+            e.keyRing.teardown();
+        }
+        entries.clear();
+    }
+
+    private static long measure(KeyRing keyRing, File location, byte[] content) throws Exception {
+        if(!location.mkdirs())
+            throw new IllegalStateException("Unable to create "+location.getAbsolutePath());
+        GenerateKeyRingCollectionsRequest g = new GenerateKeyRingCollectionsRequest();
+        g.location = location.getAbsolutePath();
+        g.keyRingUsername = RANK_USERNAME;
+        g.keyRingPassphrase = RANK_PASSPHRASE;
+        keyRing.generateKeyRingCollections(g);
+        PGPPublicKeyRingCollection c = keyRing.getPublicKeyRingCollection(g.location, RANK_USERNAME, RANK_PASSPHRASE);
+        byte[] fingerprint = keyRing.getPublicKey(c, RANK_USERNAME, true).getFingerprint();
+        for(int i = 0; i < RANK_WARMUP_ROUNDS; i++) {
+            round(keyRing, g.location, fingerprint, content, i);
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < RANK_ROUNDS; i++) {
+            round(keyRing, g.location, fingerprint, content, RANK_WARMUP_ROUNDS + i);
+        }
+        return (System.nanoTime() - start) / RANK_ROUNDS;
+    }
+
+    private static void round(KeyRing keyRing, String location, byte[] fingerprint, byte[] content, int round) throws Exception {
+        // Distinct content each round so cached verifications are not measured
+        content[0] = (byte)round;
+        content[1] = (byte)(round >>> 8);
+        SignRequest s = new SignRequest();
+        s.location = location;
+        s.keyRingUsername = RANK_USERNAME;
+        s.keyRingPassphrase = RANK_PASSPHRASE;
+        s.alias = RANK_USERNAME;
+        s.passphrase = RANK_PASSPHRASE;
+        s.contentToSign = content;
+        keyRing.sign(s);
+        VerifySignatureRequest v = new VerifySignatureRequest();
+        v.location = location;
+        v.keyRingUsername = RANK_USERNAME;
+        v.keyRingPassphrase = RANK_PASSPHRASE;
+        v.contentSigned = content;
+        v.signature = s.signature;
+        v.fingerprint = fingerprint;
+        keyRing.verifySignature(v);
+        if(!v.verified)
+            throw new IllegalStateException("Signature not verified");
+    }
+
+    private Entry entry(String name) {
+        if(name == null) return null;
+        for(Entry e : entries) {
+            if(e.name.equals(name))
+                return e;
+        }
+        return null;
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final KeyRingProvider provider;
+        private final KeyRing keyRing;
+        // Nanoseconds; 0 until ranked
+        private volatile long measuredCost = 0L;
+
+        private Entry(String name, KeyRingProvider provider, KeyRing keyRing) {
+            this.name = name;
+            this.provider = provider;
+            this.keyRing = keyRing;
+        }
+
+        private long cost() {
+            return measuredCost > 0 ? measuredCost : provider.getCostHint();
+        }
+    }
+}
@@ -14,13 +14,11 @@ import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
 
 import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -35,12 +33,20 @@ public class KeyRingService extends BaseService {
     public static final String OPERATION_AUTHN = "AUTHN";
     public static final String OPERATION_ENCRYPT = "ENCRYPT";
     public static final String OPERATION_DECRYPT = "DECRYPT";
+    public static final String OPERATION_ENCRYPT_STREAM = "ENCRYPT_STREAM";
+    public static final String OPERATION_DECRYPT_STREAM = "DECRYPT_STREAM";
     public static final String OPERATION_ENCRYPT_SYMMETRIC = "ENCRYPT_SYMMETRIC";
     public static final String OPERATION_DECRYPT_SYMMETRIC = "DECRYPT_SYMMETRIC";
     public static final String OPERATION_SIGN = "SIGN";
     public static final String OPERATION_VERIFY_SIGNATURE = "VERIFY_SIGNATURE";
+    public static final String OPERATION_SIGN_BATCH = "SIGN_BATCH";
+    public static final String OPERATION_VERIFY_SIGNATURE_BATCH = "VERIFY_SIGNATURE_BATCH";
+    public static final String OPERATION_STORE_PUBLIC_KEYS = "STORE_PUBLIC_KEYS";
     public static final String OPERATION_RELOAD = "RELOAD";
 
+    public static final String PROP_SYMMETRIC_KEY_CACHE_SIZE = "1m5.keyring.symmetric.keyCacheSize";
+    public static final String PROP_RANK_PROVIDERS = "1m5.keyring.providers.rankOnStart";
+
     public static final int PASSWORD_HASH_STRENGTH_64 = 0x10; // About 64 iterations for SHA-256
     public static final int PASSWORD_HASH_STRENGTH_128 = 0x20; // About 128
     public static final int PASSWORD_HASH_STRENGTH_256 = 0x30; // About 256
@@ -62,7 +68,11 @@ public class KeyRingService extends BaseService {
 
     private Properties properties = new Properties();
 
-    private Map<String,KeyRing> keyRings = new HashMap<>();
+    private SymmetricEngine symmetricEngine = new SymmetricEngine(256);
+
+    private final KeyRingProviders keyRings = new KeyRingProviders();
+    // Configured by class name and not provided; started on first use
+    private final Set<String> configuredKeyRings = ConcurrentHashMap.newKeySet();
 
     public KeyRingService(MessageProducer producer, ServiceStatusListener serviceStatusListener) {
         super(producer, serviceStatusListener);
@@ -105,11 +115,8 @@ public class KeyRingService extends BaseService {
                 if(r.hashStrength < PASSWORD_HASH_STRENGTH_64) {
                     r.hashStrength = PASSWORD_HASH_STRENGTH_64; // minimum
                 }
-                if(r.keyRingImplementation == null) {
-                    r.keyRingImplementation = OpenPGPKeyRing.class.getName(); // Default
-                }
                 try {
-                    keyRing = keyRings.get(r.keyRingImplementation);
+                    keyRing = keyRing(r, null);
                     if(keyRing == null) {
                         LOG.warning("KeyRing implementation unknown: "+r.keyRingImplementation);
                         r.statusCode = GenerateKeyRingCollectionsRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
@@ -150,11 +157,8 @@ public class KeyRingService extends BaseService {
                     r.statusCode = AuthNRequest.ALIAS_PASSPHRASE_REQUIRED;
                     break;
                 }
-                if(r.keyRingImplementation == null) {
-                    r.keyRingImplementation = OpenPGPKeyRing.class.getName(); // Default
-                }
                 try {
-                    keyRing = keyRings.get(r.keyRingImplementation);
+                    keyRing = keyRing(r, null);
                     if(keyRing == null) {
                         LOG.warning("KeyRing implementation unknown: "+r.keyRingImplementation);
                         r.statusCode = AuthNRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
@@ -240,9 +244,7 @@ public class KeyRingService extends BaseService {
                     r.statusCode = GenerateKeyRingsRequest.ALIAS_PASSPHRASE_REQUIRED;
                     break;
                 }
-                if(r.keyRingImplementation == null)
-                    r.keyRingImplementation = OpenPGPKeyRing.class.getName(); // default
-                keyRing = keyRings.get(r.keyRingImplementation);
+                keyRing = keyRing(r, null);
                 if(keyRing == null) {
                     r.statusCode = GenerateKeyRingCollectionsRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
                     return;
@@ -281,7 +283,7 @@ public class KeyRingService extends BaseService {
                     r.statusCode = EncryptRequest.PUBLIC_KEY_ALIAS_REQUIRED;
                     break;
                 }
-                keyRing = keyRings.get(r.keyRingImplementation);
+                keyRing = keyRing(r, r.algorithm);
                 if(keyRing == null) {
                     r.statusCode = EncryptRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
                     return;
@@ -312,7 +314,7 @@ public class KeyRingService extends BaseService {
                     r.statusCode = DecryptRequest.LOCATION_INACCESSIBLE;
                     break;
                 }
-                keyRing = keyRings.get(r.keyRingImplementation);
+                keyRing = keyRing(r, null);
                 if(keyRing == null) {
                     r.statusCode = GenerateKeyRingCollectionsRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
                     return;
@@ -325,6 +327,86 @@ public class KeyRingService extends BaseService {
                 }
                 break;
             }
+            case OPERATION_ENCRYPT_STREAM: {
+                EncryptStreamRequest r = (EncryptStreamRequest)DLC.getData(EncryptStreamRequest.class, e);
+                if(r == null) {
+                    r = new EncryptStreamRequest();
+                    r.statusCode = EncryptStreamRequest.REQUEST_REQUIRED;
+                    DLC.addData(EncryptStreamRequest.class, r, e);
+                    break;
+                }
+                if(r.location == null) {
+                    r.statusCode = EncryptStreamRequest.LOCATION_REQUIRED;
+                    break;
+                }
+                File f = new File(r.location);
+                if(!f.exists() && !f.mkdir()) {
+                    r.statusCode = EncryptStreamRequest.LOCATION_INACCESSIBLE;
+                    break;
+                }
+                if(r.in == null && r.inputPath == null) {
+                    r.statusCode = EncryptStreamRequest.INPUT_REQUIRED;
+                    break;
+                }
+                if(r.out == null && r.outputPath == null) {
+                    r.statusCode = EncryptStreamRequest.OUTPUT_REQUIRED;
+                    break;
+                }
+                if(r.publicKeyAlias == null) {
+                    r.statusCode = EncryptStreamRequest.PUBLIC_KEY_ALIAS_REQUIRED;
+                    break;
+                }
+                keyRing = keyRing(r, r.algorithm, KeyRingProvider.Capability.STREAMING);
+                if(keyRing == null) {
+                    r.statusCode = EncryptStreamRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
+                    return;
+                }
+                try {
+                    keyRing.encryptStream(r);
+                } catch (Exception ex) {
+                    r.exception = ex;
+                    LOG.warning(ex.getLocalizedMessage());
+                }
+                break;
+            }
+            case OPERATION_DECRYPT_STREAM: {
+                DecryptStreamRequest r = (DecryptStreamRequest)DLC.getData(DecryptStreamRequest.class, e);
+                if(r == null) {
+                    r = new DecryptStreamRequest();
+                    r.statusCode = DecryptStreamRequest.REQUEST_REQUIRED;
+                    DLC.addData(DecryptStreamRequest.class, r, e);
+                    break;
+                }
+                if(r.location == null) {
+                    r.statusCode = DecryptStreamRequest.LOCATION_REQUIRED;
+                    break;
+                }
+                File f = new File(r.location);
+                if(!f.exists() && !f.mkdir()) {
+                    r.statusCode = DecryptStreamRequest.LOCATION_INACCESSIBLE;
+                    break;
+                }
+                if(r.in == null && r.inputPath == null) {
+                    r.statusCode = DecryptStreamRequest.INPUT_REQUIRED;
+                    break;
+                }
+                if(r.out == null && r.outputPath == null) {
+                    r.statusCode = DecryptStreamRequest.OUTPUT_REQUIRED;
+                    break;
+                }
+                keyRing = keyRing(r, null, KeyRingProvider.Capability.STREAMING);
+                if(keyRing == null) {
+                    r.statusCode = DecryptStreamRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
+                    return;
+                }
+                try {
+                    keyRing.decryptStream(r);
+                } catch (Exception ex) {
+                    r.exception = ex;
+                    LOG.warning(ex.getLocalizedMessage());
+                }
+                break;
+            }
             case OPERATION_SIGN: {
                 SignRequest r = (SignRequest)DLC.getData(SignRequest.class, e);
                 if(r == null) {
@@ -342,7 +424,7 @@ public class KeyRingService extends BaseService {
                     r.statusCode = SignRequest.LOCATION_INACCESSIBLE;
                     break;
                 }
-                keyRing = keyRings.get(r.keyRingImplementation);
+                keyRing = keyRing(r, null);
                 if(keyRing == null) {
                     r.statusCode = GenerateKeyRingCollectionsRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
                     return;
@@ -372,7 +454,7 @@ public class KeyRingService extends BaseService {
                     r.statusCode = VerifySignatureRequest.LOCATION_INACCESSIBLE;
                     break;
                 }
-                keyRing = keyRings.get(r.keyRingImplementation);
+                keyRing = keyRing(r, null);
                 if(keyRing == null) {
                     r.statusCode = GenerateKeyRingCollectionsRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
                     return;
@@ -385,6 +467,124 @@ public class KeyRingService extends BaseService {
                 }
                 break;
             }
+            case OPERATION_SIGN_BATCH: {
+                SignBatchRequest r = (SignBatchRequest)DLC.getData(SignBatchRequest.class, e);
+                if(r == null) {
+                    r = new SignBatchRequest();
+                    r.statusCode = SignBatchRequest.REQUEST_REQUIRED;
+                    DLC.addData(SignBatchRequest.class, r, e);
+                    break;
+                }
+                if(r.location == null) {
+                    r.statusCode = SignBatchRequest.LOCATION_REQUIRED;
+                    break;
+                }
+                File f = new File(r.location);
+                if(!f.exists() && !f.mkdir()) {
+                    r.statusCode = SignBatchRequest.LOCATION_INACCESSIBLE;
+                    break;
+                }
+                if(r.contentsToSign == null || r.contentsToSign.size() == 0) {
+                    r.statusCode = SignBatchRequest.CONTENTS_TO_SIGN_REQUIRED;
+                    break;
+                }
+                if(r.alias == null) {
+                    r.statusCode = SignBatchRequest.ALIAS_REQUIRED;
+                    break;
+                }
+                if(r.passphrase == null) {
+                    r.statusCode = SignBatchRequest.PASSPHRASE_REQUIRED;
+                    break;
+                }
+                keyRing = keyRing(r, null, KeyRingProvider.Capability.BATCH);
+                if(keyRing == null) {
+                    r.statusCode = SignBatchRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
+                    return;
+                }
+                try {
+                    keyRing.signBatch(r);
+                } catch (Exception ex) {
+                    r.exception = ex;
+                    LOG.warning(ex.getLocalizedMessage());
+                }
+                break;
+            }
+            case OPERATION_VERIFY_SIGNATURE_BATCH: {
+                VerifySignatureBatchRequest r = (VerifySignatureBatchRequest)DLC.getData(VerifySignatureBatchRequest.class, e);
+                if(r == null) {
+                    r = new VerifySignatureBatchRequest();
+                    r.statusCode = VerifySignatureBatchRequest.REQUEST_REQUIRED;
+                    DLC.addData(VerifySignatureBatchRequest.class, r, e);
+                    break;
+                }
+                if(r.location == null) {
+                    r.statusCode = VerifySignatureBatchRequest.LOCATION_REQUIRED;
+                    break;
+                }
+                File f = new File(r.location);
+                if(!f.exists() && !f.mkdir()) {
+                    r.statusCode = VerifySignatureBatchRequest.LOCATION_INACCESSIBLE;
+                    break;
+                }
+                if(r.contentsSigned == null || r.contentsSigned.size() == 0) {
+                    r.statusCode = VerifySignatureBatchRequest.CONTENTS_SIGNED_REQUIRED;
+                    break;
+                }
+                if(r.signatures == null || r.signatures.size() != r.contentsSigned.size()
+                        || (r.fingerprints != null && r.fingerprints.size() != r.contentsSigned.size())) {
+                    r.statusCode = VerifySignatureBatchRequest.SIGNATURES_MISMATCH;
+                    break;
+                }
+                if(r.fingerprints == null && r.fingerprint == null) {
+                    r.statusCode = VerifySignatureBatchRequest.FINGERPRINT_REQUIRED;
+                    break;
+                }
+                keyRing = keyRing(r, null, KeyRingProvider.Capability.BATCH);
+                if(keyRing == null) {
+                    r.statusCode = VerifySignatureBatchRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
+                    return;
+                }
+                try {
+                    keyRing.verifySignatureBatch(r);
+                } catch (Exception ex) {
+                    r.exception = ex;
+                    LOG.warning(ex.getLocalizedMessage());
+                }
+                break;
+            }
+            case OPERATION_STORE_PUBLIC_KEYS: {
+                StorePublicKeysRequest r = (StorePublicKeysRequest)DLC.getData(StorePublicKeysRequest.class,e);
+                if(r == null) {
+                    r = new StorePublicKeysRequest();
+                    r.statusCode = StorePublicKeysRequest.REQUEST_REQUIRED;
+                    DLC.addData(StorePublicKeysRequest.class, r, e);
+                    break;
+                }
+                if(r.location == null) {
+                    r.statusCode = StorePublicKeysRequest.LOCATION_REQUIRED;
+                    break;
+                }
+                if(r.keyId == 0) {
+                    r.statusCode = StorePublicKeysRequest.KEYID_REQUIRED;
+                    break;
+                }
+                if(r.publicKeys == null || r.publicKeys.size() == 0) {
+                    r.statusCode = StorePublicKeysRequest.PUBLIC_KEYS_LIST_REQUIRED;
+                    break;
+                }
+                keyRing = keyRing(r, null);
+                if(keyRing == null) {
+                    r.statusCode = StorePublicKeysRequest.KEY_RING_IMPLEMENTATION_UNKNOWN;
+                    return;
+                }
+                try {
+                    keyRing.storePublicKeys(r);
+                } catch (Exception ex) {
+                    r.exception = ex;
+                    LOG.warning(ex.getLocalizedMessage());
+                }
+                break;
+            }
             case OPERATION_ENCRYPT_SYMMETRIC: {
                 EncryptSymmetricRequest r = (EncryptSymmetricRequest)DLC.getData(EncryptSymmetricRequest.class,e);
                 if(r==null) {
@@ -402,37 +602,14 @@ public class KeyRingService extends BaseService {
                     break;
                 }
                 try {
-                    byte[] key = r.content.getEncryptionPassphrase().getBytes("UTF-8");
-                    MessageDigest sha = MessageDigest.getInstance("SHA-1");
-                    key = sha.digest(key);
-                    key = Arrays.copyOf(key,16);
-                    // Encrypt
-                    SecretKey secretKey = new SecretKeySpec(key, "AES");
-                    Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                    byte[] iv = new byte[16];
-                    SecureRandom random = new SecureRandom();
-                    random.nextBytes(iv);
-                    IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-                    aesCipher.init(Cipher.ENCRYPT_MODE, secretKey, ivParameterSpec);
-                    r.content.setBody(aesCipher.doFinal(r.content.getBody()), false, false);
+                    byte[] iv = symmetricEngine.newIV();
+                    r.content.setBody(symmetricEngine.encrypt(r.content.getEncryptionPassphrase(), iv, r.content.getBody()), false, false);
                     r.content.setBody(java.util.Base64.getEncoder().encodeToString(r.content.getBody()).getBytes(), false, false);
                     r.content.setBodyBase64Encoded(true);
                     r.content.setBase64EncodedIV(java.util.Base64.getEncoder().encodeToString(iv));
                     r.content.setEncrypted(true);
                     r.content.setEncryptionAlgorithm(EncryptionAlgorithm.AES256);
-                } catch (UnsupportedEncodingException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (NoSuchAlgorithmException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (NoSuchPaddingException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (InvalidKeyException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (InvalidAlgorithmParameterException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (IllegalBlockSizeException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (BadPaddingException e1) {
+                } catch (GeneralSecurityException e1) {
                     LOG.warning(e1.getLocalizedMessage());
                 }
 
@@ -459,64 +636,104 @@ public class KeyRingService extends BaseService {
                     break;
                 }
                 try {
-                    byte[] key = r.content.getEncryptionPassphrase().getBytes("UTF-8");
-                    MessageDigest sha = MessageDigest.getInstance("SHA-1");
-                    key = sha.digest(key);
-                    key = Arrays.copyOf(key,16);
-                    // Encrypt
-                    SecretKey secretKey = new SecretKeySpec(key, "AES");
-                    Cipher aesCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
                     if(r.content.getBodyBase64Encoded()) {
                         r.content.setBody(java.util.Base64.getDecoder().decode(r.content.getBody()), false, false);
                         r.content.setBodyBase64Encoded(false);
                     }
                     byte[] iv = java.util.Base64.getDecoder().decode(r.content.getBase64EncodedIV());
-                    IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-                    aesCipher.init(Cipher.DECRYPT_MODE, secretKey, ivParameterSpec);
-                    r.content.setBody(aesCipher.doFinal(r.content.getBody()), false, false);
+                    r.content.setBody(symmetricEngine.decrypt(r.content.getEncryptionPassphrase(), iv, r.content.getBody()), false, false);
                     r.content.setEncrypted(false);
                     r.content.setBase64EncodedIV(null);
                     r.content.setEncryptionAlgorithm(null);
-                } catch (UnsupportedEncodingException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (NoSuchAlgorithmException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (NoSuchPaddingException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (InvalidKeyException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (InvalidAlgorithmParameterException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
-                } catch (IllegalBlockSizeException e1) {
-                    LOG.warning(e1.getLocalizedMessage());
                 } catch (BadPaddingException e1) {
                     r.statusCode = DecryptSymmetricRequest.BAD_PASSPHRASE;
                     LOG.warning(e1.getLocalizedMessage());
+                } catch (GeneralSecurityException e1) {
+                    LOG.warning(e1.getLocalizedMessage());
                 }
                 break;
             }
             case OPERATION_RELOAD: {
                 loadKeyRingImplementations();
+                break;
             }
             default: deadLetter(e);
         }
     }
 
+    /**
+     * Resolve the key ring named by the request or, if none is named, route it to the cheapest
+     * provider with the algorithm and capabilities required, recording the choice in the request.
+     * @return null if none
+     */
+    private KeyRing keyRing(KeyRingsRequest r, EncryptionAlgorithm algorithm, KeyRingProvider.Capability... required) {
+        if(r.keyRingImplementation == null) {
+            r.keyRingImplementation = keyRings.select(algorithm, required);
+            if(r.keyRingImplementation == null) {
+                LOG.warning("No key ring provider supports "+Arrays.toString(required)+(algorithm == null ? "" : " with "+algorithm));
+                return null;
+            }
+        }
+        KeyRing keyRing = keyRings.get(r.keyRingImplementation);
+        if(keyRing == null && configuredKeyRings.contains(r.keyRingImplementation))
+            keyRing = startConfigured(r.keyRingImplementation);
+        return keyRing;
+    }
+
+    /**
+     * Start a key ring configured by class name, so its caches and key pools cost nothing until a request names it.
+     */
+    private synchronized KeyRing startConfigured(String name) {
+        KeyRing keyRing = keyRings.get(name);
+        if(keyRing != null) return keyRing;
+        try {
+            keyRing = (KeyRing) Class.forName(name).newInstance();
+            keyRing.init(properties);
+            keyRings.register(name, null, keyRing);
+            return keyRing;
+        } catch (Exception e) {
+            LOG.warning("Unable to start key ring "+name+": "+e.getLocalizedMessage());
+            return null;
+        }
+    }
+
     private void loadKeyRingImplementations(){
         keyRings.clear();
+        configuredKeyRings.clear();
+        int provided = 0;
+        for(KeyRingProvider provider : KeyRingProviders.discover(KeyRingService.class.getClassLoader())) {
+            try {
+                KeyRing keyRing = provider.newKeyRing();
+                keyRing.init(properties);
+                keyRings.register(provider.getName(), provider, keyRing);
+                provided++;
+            } catch (Exception e) {
+                LOG.warning("Unable to load key ring provider "+provider.getName()+": "+e.getLocalizedMessage());
+            }
+        }
+        // Configured by class name; only used, so only started, when requests name them
         if(properties.getProperty(KeyRing.class.getName()) != null) {
-            String[] keyRingStrings = properties.getProperty(KeyRing.class.getName()).split(",");
-            KeyRing keyRing;
-            for(String keyRingString : keyRingStrings) {
-                try {
-                    keyRing = (KeyRing) Class.forName(keyRingString).newInstance();
-                    keyRing.init(properties);
-                    keyRings.put(keyRingString, keyRing);
-                } catch (Exception e) {
-                    LOG.warning(e.getLocalizedMessage());
-                }
+            for(String keyRingString : properties.getProperty(KeyRing.class.getName()).split(",")) {
+                keyRingString = keyRingString.trim();
+                if(!keyRingString.isEmpty() && !keyRings.contains(keyRingString))
+                    configuredKeyRings.add(keyRingString);
             }
         }
+        if(provided > 1 && Boolean.parseBoolean(properties.getProperty(PROP_RANK_PROVIDERS, "true"))) {
+            Thread ranker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    keyRings.rank();
+                }
+            }, "KeyRingProviderRanker");
+            ranker.setDaemon(true);
+            ranker.setPriority(Thread.MIN_PRIORITY);
+            ranker.start();
+        }
+    }
+
+    public KeyRingProviders getKeyRingProviders() {
+        return keyRings;
     }
 
     @Override
@@ -536,6 +753,8 @@ public class KeyRingService extends BaseService {
             Security.addProvider(new BouncyCastleProvider());
         }
 
+        symmetricEngine = new SymmetricEngine(Integer.parseInt(properties.getProperty(PROP_SYMMETRIC_KEY_CACHE_SIZE, "256")));
+
         loadKeyRingImplementations();
 
         updateStatus(ServiceStatus.RUNNING);
@@ -548,6 +767,8 @@ public class KeyRingService extends BaseService {
         super.shutdown();
         LOG.info("Shutting down...");
         updateStatus(ServiceStatus.SHUTTING_DOWN);
+        keyRings.clear();
+        symmetricEngine.clear();
 
         updateStatus(ServiceStatus.SHUTDOWN);
         LOG.info("Shutdown");
@@ -10,5 +10,6 @@ import io.onemfive.core.ServiceRequest;
 public abstract class KeyRingsRequest extends ServiceRequest {
     public static int KEY_RING_IMPLEMENTATION_UNKNOWN = 1;
 
-    public String keyRingImplementation = OpenPGPKeyRing.class.getName(); // default
+    // Null routes the request to the cheapest provider supporting it; set to the one chosen
+    public String keyRingImplementation;
 }
@@ -1,5 +1,6 @@
 package io.onemfive.core.keyring;
 
+import io.onemfive.core.util.FileUtil;
 import io.onemfive.core.util.data.Base64;
 import io.onemfive.data.EncryptionAlgorithm;
 import io.onemfive.data.PublicKey;
@@ -9,8 +10,6 @@ import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.bcpg.sig.Features;
 import org.bouncycastle.bcpg.sig.KeyFlags;
-import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
-import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
 import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
 import org.bouncycastle.openpgp.operator.PBESecretKeyEncryptor;
@@ -18,11 +17,15 @@ import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
 import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.*;
 import org.bouncycastle.openpgp.operator.jcajce.*;
+import org.bouncycastle.util.encoders.Hex;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 /**
@@ -36,8 +39,46 @@ public class OpenPGPKeyRing implements KeyRing {
 
     protected static final String PROVIDER_BOUNCY_CASTLE = "BC";
 
+    public static final String PROP_PRIVATE_KEY_CACHE_TTL = "1m5.keyring.openpgp.privateKeyCacheTTLSeconds";
+    public static final String PROP_PRIVATE_KEY_CACHE_SIZE = "1m5.keyring.openpgp.privateKeyCacheSize";
+    public static final String PROP_BATCH_PARALLELISM = "1m5.keyring.openpgp.batchParallelism";
+    public static final String PROP_ENCRYPTION_ALGORITHM = "1m5.keyring.openpgp.encryptionAlgorithm";
+    public static final String PROP_COMPRESS = "1m5.keyring.openpgp.compress";
+    public static final String PROP_KEY_PAIR_POOL_SIZE = "1m5.keyring.openpgp.keyPairPoolSize";
+    public static final String PROP_KEY_PAIR_ALGORITHM = "1m5.keyring.openpgp.keyPairAlgorithm";
+    public static final String PROP_VERIFICATION_CACHE_TTL = "1m5.keyring.openpgp.verificationCacheTTLSeconds";
+    public static final String PROP_VERIFICATION_CACHE_SIZE = "1m5.keyring.openpgp.verificationCacheSize";
+    public static final String PROP_PKR_JOURNAL_MAX_ENTRIES = "1m5.keyring.openpgp.pkrJournalMaxEntries";
+
+    // Batch ranges at or below this size are signed or verified on one thread
+    private static final int BATCH_SPLIT_THRESHOLD = 16;
+
+    // Power of two as required for partial length packets
+    protected static final int STREAM_BUFFER_SIZE = 1 << 16;
+
     protected Properties properties;
 
+    private ForkJoinPool batchPool;
+    private KeyPairPool keyPairPool;
+    private final ConcurrentMap<String,PublicKeyRingStore> publicKeyRingStores = new ConcurrentHashMap<>();
+    // Defaults for requests not choosing their own
+    protected EncryptionAlgorithm encryptionAlgorithm = EncryptionAlgorithm.CAST5;
+    protected boolean compress = true;
+
+    protected PrivateKeyCache privateKeyCache = new PrivateKeyCache(300 * 1000L, 64);
+    protected VerificationCache verificationCache = new VerificationCache(600 * 1000L, 10000);
+    // Indexes of the public key ring collections in use; weak as collections are replaced on every change
+    private final Map<PGPPublicKeyRingCollection,PublicKeyIndex> publicKeyIndexes = Collections.synchronizedMap(new WeakHashMap<PGPPublicKeyRingCollection,PublicKeyIndex>());
+    protected KeyRingCache keyRingCache = new KeyRingCache(new KeyRingCache.Listener() {
+        @Override
+        public void changed(File file) {
+            // Keys extracted from the previous secret key rings may be gone
+            privateKeyCache.invalidate(file.getAbsolutePath());
+            // as may keys signatures were verified with, e.g. on revocation
+            verificationCache.clear();
+        }
+    });
+
     /**
      * Create new Secret and Public Key Ring Collections with a username and passphrase.
      * This equates to creating a new 'account' for one individual to hold
@@ -55,8 +96,8 @@ public class OpenPGPKeyRing implements KeyRing {
     public void generateKeyRingCollections(GenerateKeyRingCollectionsRequest r) throws IOException, PGPException {
         LOG.info("Generate Key Rings using OpenPGP request received.");
 
-        File skr = new File(r.location + (r.location.endsWith("/") ? "" : "/") + r.keyRingUsername+".skr");
-        File pkr = new File(r.location + (r.location.endsWith("/") ? "" : "/") + r.keyRingUsername+".pkr");
+        File skr = keyRingFile(r.location, r.keyRingUsername, ".skr");
+        File pkr = keyRingFile(r.location, r.keyRingUsername, ".pkr");
 
         // Check to see if key rings collections already exist.
         if(skr.exists()) {
@@ -133,13 +174,23 @@ public class OpenPGPKeyRing implements KeyRing {
 
         PGPSecretKeyRingCollection secretKeyRingCollection = getSecretKeyRingCollection(location, keyRingUsername, keyRingPassphrase);
         PGPSecretKeyRing secretKeyRing = krgen.generateSecretKeyRing();
-        PGPSecretKeyRingCollection.addSecretKeyRing(secretKeyRingCollection, secretKeyRing);
-        saveSecretKeyRingCollection(secretKeyRingCollection, new File(location + (location.endsWith("/") ? "" : "/") + keyRingUsername+".skr"));
-
-        PGPPublicKeyRingCollection publicKeyRingCollection = getPublicKeyRingCollection(location, keyRingUsername, keyRingPassphrase);
-        PGPPublicKeyRing publicKeyRing = krgen.generatePublicKeyRing();
-        PGPPublicKeyRingCollection.addPublicKeyRing(publicKeyRingCollection, publicKeyRing);
-        savePublicKeyRingCollection(publicKeyRingCollection, new File(location + (location.endsWith("/") ? "" : "/") + keyRingUsername+".pkr"));
+        secretKeyRingCollection = PGPSecretKeyRingCollection.addSecretKeyRing(secretKeyRingCollection, secretKeyRing);
+        saveSecretKeyRingCollection(secretKeyRingCollection, keyRingFile(location, keyRingUsername, ".skr"));
+
+        File pkr = keyRingFile(location, keyRingUsername, ".pkr");
+        // The lock storePublicKeys holds so neither overwrites the other's change to the collection
+        synchronized (this) {
+            PGPPublicKeyRingCollection publicKeyRingCollection = getPublicKeyRingCollection(location, keyRingUsername, keyRingPassphrase);
+            PGPPublicKeyRing publicKeyRing = krgen.generatePublicKeyRing();
+            PGPPublicKeyRingCollection updated = PGPPublicKeyRingCollection.addPublicKeyRing(publicKeyRingCollection, publicKeyRing);
+            // The collection read may still be in use so its index is left as is
+            PublicKeyIndex index = new PublicKeyIndex(getPublicKeyIndex(publicKeyRingCollection));
+            index.add(publicKeyRing);
+            publicKeyIndexes.put(updated, index);
+            PublicKeyRingStore store = publicKeyRingStore(pkr);
+            store.addRing(updated, publicKeyRing);
+            keyRingCache.put(pkr, store.getJournal(), updated);
+        }
     }
 
     /**
@@ -155,30 +206,63 @@ public class OpenPGPKeyRing implements KeyRing {
             r.statusCode = EncryptRequest.PUBLIC_KEY_NOT_FOUND;
             return;
         }
-
-        boolean withIntegrityCheck = true;
-
-        // Compress content
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-
-        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-
-        PGPLiteralDataGenerator lData = new PGPLiteralDataGenerator();
-        OutputStream pOut;
+        EncryptionAlgorithm algorithm = r.algorithm == null ? encryptionAlgorithm : r.algorithm;
+        byte[] plain = r.passphraseOnly ? r.content.getEncryptionPassphrase().getBytes() : r.content.getBody();
+        ByteArrayOutputStream content = new ByteArrayOutputStream(plain.length / 2 + 1024);
+        encrypt(new ByteArrayInputStream(plain), content, publicKey, algorithm, r.compress == null ? compress : r.compress, r.armored);
         if(r.passphraseOnly) {
-            pOut = lData.open(comData.open(bOut), PGPLiteralData.BINARY, "sec", r.content.getEncryptionPassphrase().length(), new Date());
-            pOut.write(r.content.getEncryptionPassphrase().getBytes());
+            r.content.setEncryptionPassphraseEncrypted(true);
+            r.content.setEncryptionPassphrase(Base64.encode(content.toByteArray()));
+            r.content.setEncryptionPassphraseAlgorithm(algorithm);
         } else {
-            pOut = lData.open(comData.open(bOut), PGPLiteralData.BINARY, "sec", r.content.getBody().length, new Date());
-            pOut.write(r.content.getBody());
+            r.content.setEncrypted(true);
+            r.content.setBody(content.toByteArray(), false, false);
+            r.content.setEncryptionAlgorithm(algorithm);
         }
+    }
 
-        lData.close();
-        comData.close();
+    @Override
+    public void encryptStream(EncryptStreamRequest r) throws IOException, PGPException {
+        PGPPublicKey publicKey = getPublicKey(getPublicKeyRingCollection(r.location, r.keyRingUsername, r.keyRingPassphrase), r.publicKeyAlias, false);
+        if(publicKey == null) {
+            r.statusCode = EncryptStreamRequest.PUBLIC_KEY_NOT_FOUND;
+            return;
+        }
+        InputStream in = r.in != null ? r.in : new FileInputStream(r.inputPath);
+        File tmp = null;
+        OutputStream out = r.out;
+        try {
+            if(out == null) {
+                tmp = new File(r.outputPath + "." + Thread.currentThread().getId() + ".tmp");
+                out = new BufferedOutputStream(new FileOutputStream(tmp), STREAM_BUFFER_SIZE);
+            }
+            r.bytesRead = encrypt(in, out, publicKey, r.algorithm == null ? encryptionAlgorithm : r.algorithm, r.compress == null ? compress : r.compress, r.armored);
+            if(tmp != null) {
+                out.close();
+                if(!FileUtil.rename(tmp, new File(r.outputPath)))
+                    throw new IOException("Unable to write encrypted file: "+r.outputPath);
+            }
+        } finally {
+            if(r.in == null)
+                in.close();
+            if(tmp != null) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
 
-        // Encrypt content
-        JcePGPDataEncryptorBuilder c = new JcePGPDataEncryptorBuilder(PGPEncryptedData.CAST5)
-                .setWithIntegrityPacket(withIntegrityCheck)
+    /**
+     * Compress, encrypt and optionally armour in one pipeline; only the bounded buffers of
+     * each stage are held in memory. Partial length packets are used so the size of the
+     * content need not be known up front.
+     * @param compress false to skip ZIP compression, e.g. for content already compressed
+     * @param armored false to write binary OpenPGP, a third smaller and cheaper to produce
+     * @return bytes of plaintext read
+     */
+    protected long encrypt(InputStream in, OutputStream out, PGPPublicKey publicKey, EncryptionAlgorithm algorithm, boolean compress, boolean armored) throws IOException, PGPException {
+        JcePGPDataEncryptorBuilder c = new JcePGPDataEncryptorBuilder(symmetricKeyAlgorithm(algorithm))
+                .setWithIntegrityPacket(true)
                 .setSecureRandom(new SecureRandom())
                 .setProvider(PROVIDER_BOUNCY_CASTLE);
 
@@ -190,28 +274,43 @@ public class OpenPGPKeyRing implements KeyRing {
 
         encGen.addMethod(d);
 
-        byte[] bytes = bOut.toByteArray();
-
-        ByteArrayOutputStream content = new ByteArrayOutputStream();
-
-        OutputStream out = new ArmoredOutputStream(content);
-
-        OutputStream cOut = encGen.open(out, bytes.length);
-
-        cOut.write(bytes);
-
-        cOut.close();
+        PGPCompressedDataGenerator comData = compress ? new PGPCompressedDataGenerator(PGPCompressedData.ZIP) : null;
+        PGPLiteralDataGenerator lData = new PGPLiteralDataGenerator();
 
-        out.close();
+        // ArmoredOutputStream writes a byte at a time so is buffered; its close() writes the footer without closing out
+        BufferedOutputStream armourBuffer = armored ? new BufferedOutputStream(out, STREAM_BUFFER_SIZE) : null;
+        OutputStream target = armored ? new ArmoredOutputStream(armourBuffer) : out;
+        OutputStream cOut = encGen.open(target, new byte[STREAM_BUFFER_SIZE]);
+        if(comData != null)
+            cOut = comData.open(cOut, new byte[STREAM_BUFFER_SIZE]);
+        OutputStream pOut = lData.open(cOut, PGPLiteralData.BINARY, "sec", new Date(), new byte[STREAM_BUFFER_SIZE]);
+        long total = 0;
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            pOut.write(buffer, 0, read);
+            total += read;
+        }
+        lData.close();
+        if(comData != null)
+            comData.close();
+        encGen.close();
+        if(armored) {
+            target.close();
+            armourBuffer.flush();
+        }
+        out.flush();
+        return total;
+    }
 
-        if(r.passphraseOnly) {
-            r.content.setEncryptionPassphraseEncrypted(true);
-            r.content.setEncryptionPassphrase(Base64.encode(content.toByteArray()));
-            r.content.setEncryptionPassphraseAlgorithm(EncryptionAlgorithm.CAST5);
-        } else {
-            r.content.setEncrypted(true);
-            r.content.setBody(content.toByteArray(), false, false);
-            r.content.setEncryptionAlgorithm(EncryptionAlgorithm.CAST5);
+    /**
+     * @return OpenPGP tag of the algorithms supported for encrypting content
+     */
+    protected static int symmetricKeyAlgorithm(EncryptionAlgorithm algorithm) throws PGPException {
+        switch (algorithm) {
+            case AES256: return SymmetricKeyAlgorithmTags.AES_256;
+            case CAST5: return SymmetricKeyAlgorithmTags.CAST5;
+            default: throw new PGPException("Encryption algorithm not supported: "+algorithm);
         }
     }
 
@@ -228,7 +327,53 @@ public class OpenPGPKeyRing implements KeyRing {
             c = Base64.decode(r.content.getEncryptionPassphrase());
         else
             c = r.content.getBody();
-        InputStream in = PGPUtil.getDecoderStream(new ByteArrayInputStream(c));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(c.length * 2);
+        decrypt(new ByteArrayInputStream(c), baos, r.location, r.keyRingUsername, r.keyRingPassphrase);
+        if(r.passphraseOnly) {
+            r.content.setEncryptionPassphraseEncrypted(false);
+            r.content.setEncryptionPassphrase(new String(baos.toByteArray()));
+            r.content.setEncryptionPassphraseAlgorithm(null);
+        } else {
+            r.content.setEncrypted(false);
+            r.content.setBody(baos.toByteArray(), false, false);
+            r.content.setEncryptionAlgorithm(null);
+        }
+    }
+
+    @Override
+    public void decryptStream(DecryptStreamRequest r) throws IOException, PGPException {
+        InputStream in = r.in != null ? r.in : new BufferedInputStream(new FileInputStream(r.inputPath), STREAM_BUFFER_SIZE);
+        File tmp = null;
+        OutputStream out = r.out;
+        try {
+            if(out == null) {
+                tmp = new File(r.outputPath + "." + Thread.currentThread().getId() + ".tmp");
+                out = new BufferedOutputStream(new FileOutputStream(tmp), STREAM_BUFFER_SIZE);
+            }
+            r.bytesWritten = decrypt(in, out, r.location, r.keyRingUsername, r.keyRingPassphrase);
+            if(tmp != null) {
+                out.close();
+                // Only publish plaintext which passed the integrity check
+                if(!FileUtil.rename(tmp, new File(r.outputPath)))
+                    throw new IOException("Unable to write decrypted file: "+r.outputPath);
+            }
+        } finally {
+            if(r.in == null)
+                in.close();
+            if(tmp != null) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Decrypt armoured or binary input writing the plaintext to out as it is decrypted.
+     * The integrity check completes after the last byte is written.
+     * @return bytes of plaintext written
+     */
+    protected long decrypt(InputStream encrypted, OutputStream out, String location, String keyRingUsername, String keyRingPassphrase) throws IOException, PGPException {
+        InputStream in = PGPUtil.getDecoderStream(encrypted);
 //        PGPObjectFactory pgpF = new PGPObjectFactory(in, new BcKeyFingerprintCalculator());
         JcaPGPObjectFactory pgpF = new JcaPGPObjectFactory(in);
         PGPEncryptedDataList enc;
@@ -247,10 +392,19 @@ public class OpenPGPKeyRing implements KeyRing {
         Iterator<PGPPublicKeyEncryptedData> it = enc.getEncryptedDataObjects();
         PGPPrivateKey privKey = null;
         PGPPublicKeyEncryptedData pbe = null;
-        PGPSecretKeyRingCollection pgpSec = getSecretKeyRingCollection(r.location, r.keyRingUsername, r.keyRingPassphrase);
-        while (privKey == null && it.hasNext()) {
-            pbe = it.next();
-            privKey = getPrivateKey(pgpSec, pbe.getKeyID(), r.keyRingPassphrase.toCharArray());
+        PGPSecretKeyRingCollection pgpSec = getSecretKeyRingCollection(location, keyRingUsername, keyRingPassphrase);
+        File skr = keyRingFile(location, keyRingUsername, ".skr");
+        char[] pass = keyRingPassphrase.toCharArray();
+        try {
+            while (privKey == null && it.hasNext()) {
+                pbe = it.next();
+                privKey = getPrivateKey(skr, pgpSec.getSecretKey(pbe.getKeyID()), pass);
+            }
+        } finally {
+            Arrays.fill(pass, (char)0);
+        }
+        if(privKey == null) {
+            throw new PGPException("Secret key for message not found.");
         }
 
         PublicKeyDataDecryptorFactory b = new JcePublicKeyDataDecryptorFactoryBuilder()
@@ -269,13 +423,15 @@ public class OpenPGPKeyRing implements KeyRing {
             PGPObjectFactory pgpFact = new PGPObjectFactory(cData.getDataStream(), new BcKeyFingerprintCalculator());
             message = pgpFact.nextObject();
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        long total = 0;
         if (message instanceof  PGPLiteralData) {
             PGPLiteralData ld = (PGPLiteralData) message;
             InputStream unc = ld.getInputStream();
-            int ch;
-            while ((ch = unc.read()) >= 0) {
-                baos.write(ch);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int read;
+            while ((read = unc.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
             }
         } else if (message instanceof  PGPOnePassSignatureList) {
             throw new PGPException("Encrypted message contains a signed message - not literal data.");
@@ -288,15 +444,8 @@ public class OpenPGPKeyRing implements KeyRing {
                 throw new PGPException("Message failed integrity check");
             }
         }
-        if(r.passphraseOnly) {
-            r.content.setEncryptionPassphraseEncrypted(false);
-            r.content.setEncryptionPassphrase(new String(baos.toByteArray()));
-            r.content.setEncryptionPassphraseAlgorithm(null);
-        } else {
-            r.content.setEncrypted(false);
-            r.content.setBody(baos.toByteArray(), false, false);
-            r.content.setEncryptionAlgorithm(null);
-        }
+        out.flush();
+        return total;
     }
 
     @Override
@@ -307,7 +456,13 @@ public class OpenPGPKeyRing implements KeyRing {
             return;
         }
 
-        PGPPrivateKey privateKey = getPrivateKey(secretKey, r.passphrase.toCharArray());
+        char[] pass = r.passphrase.toCharArray();
+        PGPPrivateKey privateKey;
+        try {
+            privateKey = getPrivateKey(keyRingFile(r.location, r.keyRingUsername, ".skr"), secretKey, pass);
+        } finally {
+            Arrays.fill(pass, (char)0);
+        }
         if(privateKey == null) {
             LOG.warning("Private Key not found for secret key.");
             return;
@@ -317,33 +472,14 @@ public class OpenPGPKeyRing implements KeyRing {
                         secretKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1).setProvider(PROVIDER_BOUNCY_CASTLE));
         sGen.init(PGPSignature.BINARY_DOCUMENT, privateKey);
 
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        ArmoredOutputStream aOut = new ArmoredOutputStream(byteOut);
-        BCPGOutputStream bOut = new BCPGOutputStream(byteOut);
-
         sGen.update(r.contentToSign);
 
-        aOut.endClearText();
-        sGen.generate().encode(bOut);
-        aOut.close();
-
-        r.signature = byteOut.toByteArray();
+        r.signature = encodeSignature(sGen.generate());
     }
 
     @Override
     public void verifySignature(VerifySignatureRequest r) throws IOException, PGPException {
-        PGPObjectFactory pgpFact = new PGPObjectFactory(r.signature, new BcKeyFingerprintCalculator());
-        PGPSignatureList p3 = null;
-        Object o = pgpFact.nextObject();
-        if (o instanceof PGPCompressedData) {
-            PGPCompressedData c1 = (PGPCompressedData)o;
-            pgpFact = new PGPObjectFactory(c1.getDataStream(), new BcKeyFingerprintCalculator());
-            p3 = (PGPSignatureList)pgpFact.nextObject();
-        } else {
-            p3 = (PGPSignatureList)o;
-        }
-
-        PGPSignature sig = p3.get(0);
+        PGPSignature sig = decodeSignature(r.signature);
 
         PGPPublicKey publicKey = getPublicKey(getPublicKeyRingCollection(r.location, r.keyRingUsername,r.keyRingPassphrase),r.fingerprint);
         if(publicKey == null) {
@@ -351,11 +487,227 @@ public class OpenPGPKeyRing implements KeyRing {
             r.verified = false;
             return;
         }
+        // Duplicates of content already verified cost a digest rather than a verify
+        VerificationCache.Digest digest = verificationCache.digest(keyRingFile(r.location, r.keyRingUsername, ".pkr").getAbsolutePath(),
+                publicKey.getFingerprint(), r.signature, r.contentSigned);
+        if(verificationCache.verified(digest)) {
+            r.verified = true;
+            return;
+        }
         sig.init(new JcaPGPContentVerifierBuilderProvider().setProvider(PROVIDER_BOUNCY_CASTLE), publicKey);
 
         sig.update(r.contentSigned);
 
         r.verified = sig.verify();
+        if(r.verified)
+            verificationCache.put(digest);
+    }
+
+    @Override
+    public void signBatch(SignBatchRequest r) throws IOException, PGPException {
+        PGPSecretKey secretKey = getSecretKey(getSecretKeyRingCollection(r.location, r.keyRingUsername, r.keyRingPassphrase), r.alias);
+        if(secretKey == null) {
+            r.statusCode = SignBatchRequest.SECRET_KEY_NOT_FOUND;
+            return;
+        }
+        char[] pass = r.passphrase.toCharArray();
+        PGPPrivateKey privateKey;
+        try {
+            privateKey = getPrivateKey(keyRingFile(r.location, r.keyRingUsername, ".skr"), secretKey, pass);
+        } finally {
+            Arrays.fill(pass, (char)0);
+        }
+        if(privateKey == null) {
+            LOG.warning("Private Key not found for secret key.");
+            r.statusCode = SignBatchRequest.SECRET_KEY_NOT_FOUND;
+            return;
+        }
+        JcaPGPContentSignerBuilder builder = new JcaPGPContentSignerBuilder(
+                secretKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1).setProvider(PROVIDER_BOUNCY_CASTLE);
+        byte[][] signatures = new byte[r.contentsToSign.size()][];
+        try {
+            batchPool().invoke(new SignTask(builder, privateKey, r.contentsToSign, signatures, 0, signatures.length));
+        } catch (IllegalStateException e) {
+            if(e.getCause() instanceof PGPException)
+                throw (PGPException)e.getCause();
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw e;
+        }
+        r.signatures = Arrays.asList(signatures);
+    }
+
+    @Override
+    public void verifySignatureBatch(VerifySignatureBatchRequest r) throws IOException, PGPException {
+        PGPPublicKeyRingCollection c = getPublicKeyRingCollection(r.location, r.keyRingUsername, r.keyRingPassphrase);
+        // Look each signer up once rather than once per signature
+        int size = r.contentsSigned.size();
+        PGPPublicKey[] publicKeys = new PGPPublicKey[size];
+        Map<String,PGPPublicKey> byFingerprint = new HashMap<>();
+        for(int i = 0; i < size; i++) {
+            byte[] fingerprint = r.fingerprints == null ? r.fingerprint : r.fingerprints.get(i);
+            if(fingerprint == null) continue;
+            String hex = Hex.toHexString(fingerprint);
+            if(!byFingerprint.containsKey(hex))
+                byFingerprint.put(hex, getPublicKey(c, fingerprint));
+            publicKeys[i] = byFingerprint.get(hex);
+        }
+        boolean[] verified = new boolean[size];
+        batchPool().invoke(new VerifyTask(new JcaPGPContentVerifierBuilderProvider().setProvider(PROVIDER_BOUNCY_CASTLE),
+                verificationCache, keyRingFile(r.location, r.keyRingUsername, ".pkr").getAbsolutePath(),
+                publicKeys, r.contentsSigned, r.signatures, verified, 0, size));
+        r.verified = verified;
+    }
+
+    public VerificationCache getVerificationCache() {
+        return verificationCache;
+    }
+
+    protected synchronized KeyPairPool keyPairPool() {
+        if(keyPairPool == null) {
+            KeyPairPool.Algorithm algorithm = KeyPairPool.Algorithm.RSA_2048;
+            int size = 4;
+            if(properties != null) {
+                algorithm = KeyPairPool.Algorithm.valueOf(properties.getProperty(PROP_KEY_PAIR_ALGORITHM, algorithm.name()));
+                size = Integer.parseInt(properties.getProperty(PROP_KEY_PAIR_POOL_SIZE, String.valueOf(size)));
+            }
+            keyPairPool = new KeyPairPool(algorithm, size);
+        }
+        return keyPairPool;
+    }
+
+    private synchronized ForkJoinPool batchPool() {
+        if(batchPool == null) {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            if(properties != null)
+                parallelism = Integer.parseInt(properties.getProperty(PROP_BATCH_PARALLELISM, String.valueOf(parallelism)));
+            batchPool = new ForkJoinPool(Math.max(1, parallelism));
+        }
+        return batchPool;
+    }
+
+    /**
+     * Signs its range of payloads with one signature generator, forking halves off
+     * until ranges are small enough to not be worth splitting further.
+     */
+    private static final class SignTask extends RecursiveAction {
+        private final JcaPGPContentSignerBuilder builder;
+        private final PGPPrivateKey privateKey;
+        private final List<byte[]> contents;
+        private final byte[][] signatures;
+        private final int from;
+        private final int to;
+
+        private SignTask(JcaPGPContentSignerBuilder builder, PGPPrivateKey privateKey, List<byte[]> contents, byte[][] signatures, int from, int to) {
+            this.builder = builder;
+            this.privateKey = privateKey;
+            this.contents = contents;
+            this.signatures = signatures;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > BATCH_SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SignTask(builder, privateKey, contents, signatures, from, mid),
+                        new SignTask(builder, privateKey, contents, signatures, mid, to));
+                return;
+            }
+            try {
+                // Generation resets the generator so one serves the whole range
+                PGPSignatureGenerator sGen = new PGPSignatureGenerator(builder);
+                sGen.init(PGPSignature.BINARY_DOCUMENT, privateKey);
+                for(int i = from; i < to; i++) {
+                    sGen.update(contents.get(i));
+                    signatures[i] = encodeSignature(sGen.generate());
+                }
+            } catch (PGPException | IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Verifies its range of signatures, forking halves off as {@link SignTask}.
+     */
+    private static final class VerifyTask extends RecursiveAction {
+        private final JcaPGPContentVerifierBuilderProvider provider;
+        private final VerificationCache cache;
+        private final String keyRingPath;
+        private final PGPPublicKey[] publicKeys;
+        private final List<byte[]> contents;
+        private final List<byte[]> signatures;
+        private final boolean[] verified;
+        private final int from;
+        private final int to;
+
+        private VerifyTask(JcaPGPContentVerifierBuilderProvider provider, VerificationCache cache, String keyRingPath, PGPPublicKey[] publicKeys, List<byte[]> contents, List<byte[]> signatures, boolean[] verified, int from, int to) {
+            this.provider = provider;
+            this.cache = cache;
+            this.keyRingPath = keyRingPath;
+            this.publicKeys = publicKeys;
+            this.contents = contents;
+            this.signatures = signatures;
+            this.verified = verified;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > BATCH_SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(provider, cache, keyRingPath, publicKeys, contents, signatures, verified, from, mid),
+                        new VerifyTask(provider, cache, keyRingPath, publicKeys, contents, signatures, verified, mid, to));
+                return;
+            }
+            for(int i = from; i < to; i++) {
+                if(publicKeys[i] == null) continue;
+                try {
+                    VerificationCache.Digest digest = cache.digest(keyRingPath, publicKeys[i].getFingerprint(), signatures.get(i), contents.get(i));
+                    if(cache.verified(digest)) {
+                        verified[i] = true;
+                        continue;
+                    }
+                    PGPSignature sig = decodeSignature(signatures.get(i));
+                    sig.init(provider, publicKeys[i]);
+                    sig.update(contents.get(i));
+                    verified[i] = sig.verify();
+                    if(verified[i])
+                        cache.put(digest);
+                } catch (Exception e) {
+                    // A malformed signature fails only itself
+                    LOG.fine("Signature "+i+" of batch not verified: "+e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    private static byte[] encodeSignature(PGPSignature signature) throws IOException {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        BCPGOutputStream bOut = new BCPGOutputStream(byteOut);
+        signature.encode(bOut);
+        bOut.close();
+        return byteOut.toByteArray();
+    }
+
+    private static PGPSignature decodeSignature(byte[] signature) throws IOException {
+        PGPObjectFactory pgpFact = new PGPObjectFactory(signature, new BcKeyFingerprintCalculator());
+        Object o = pgpFact.nextObject();
+        if (o instanceof PGPCompressedData) {
+            PGPCompressedData c1 = (PGPCompressedData)o;
+            try {
+                pgpFact = new PGPObjectFactory(c1.getDataStream(), new BcKeyFingerprintCalculator());
+            } catch (PGPException e) {
+                throw new IOException(e);
+            }
+            o = pgpFact.nextObject();
+        }
+        if(!(o instanceof PGPSignatureList))
+            throw new IOException("Not a signature.");
+        return ((PGPSignatureList)o).get(0);
     }
 
     private boolean containsAlias(PGPPublicKey k, String alias) {
@@ -367,25 +719,53 @@ public class OpenPGPKeyRing implements KeyRing {
         return false;
     }
 
+    protected static File keyRingFile(String location, String username, String extension) {
+        return new File(location + (location.endsWith("/") ? "" : "/") + username + extension);
+    }
+
     public PGPPublicKeyRingCollection getPublicKeyRingCollection(String location, String username, String passphrase) throws IOException, PGPException {
         // TODO: Decrypt encrypted file
-        return new PGPPublicKeyRingCollection(new FileInputStream(location + (location.endsWith("/") ? "" : "/") + username+".pkr"), new BcKeyFingerprintCalculator());
+        final PublicKeyRingStore store = publicKeyRingStore(keyRingFile(location, username, ".pkr"));
+        return keyRingCache.get(keyRingFile(location, username, ".pkr"), store.getJournal(), new KeyRingCache.Loader<PGPPublicKeyRingCollection>() {
+            @Override
+            public PGPPublicKeyRingCollection load(InputStream in) throws IOException, PGPException {
+                PGPPublicKeyRingCollection c = store.replay(new PGPPublicKeyRingCollection(in, new BcKeyFingerprintCalculator()));
+                publicKeyIndexes.put(c, new PublicKeyIndex(c));
+                return c;
+            }
+        });
     }
 
     private void savePublicKeyRingCollection(PGPPublicKeyRingCollection publicKeyRingCollection, File pkr) {
         LOG.info("Persisting Public KeyRing Collection...");
         // TODO: Encrypt file
         if(publicKeyRingCollection != null && pkr != null) {
+            PublicKeyRingStore store = publicKeyRingStore(pkr);
             try {
-                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(pkr));
-                publicKeyRingCollection.encode(bos);
-                bos.close();
+                store.compact(publicKeyRingCollection);
+                keyRingCache.put(pkr, store.getJournal(), publicKeyRingCollection);
             } catch (IOException e) {
                 LOG.warning(e.getLocalizedMessage());
+                keyRingCache.invalidate(pkr);
             }
         }
     }
 
+    protected PublicKeyRingStore publicKeyRingStore(File pkr) {
+        String path = pkr.getAbsolutePath();
+        PublicKeyRingStore store = publicKeyRingStores.get(path);
+        if(store == null) {
+            int maxEntries = 100;
+            if(properties != null)
+                maxEntries = Integer.parseInt(properties.getProperty(PROP_PKR_JOURNAL_MAX_ENTRIES, String.valueOf(maxEntries)));
+            PublicKeyRingStore created = new PublicKeyRingStore(pkr, maxEntries);
+            store = publicKeyRingStores.putIfAbsent(path, created);
+            if(store == null)
+                store = created;
+        }
+        return store;
+    }
+
     public PGPPublicKey getPublicKey(PGPPublicKeyRing kr, boolean identity) {
         Iterator<PGPPublicKey> m = kr.getPublicKeys();
         while(m.hasNext()) {
@@ -399,52 +779,63 @@ public class OpenPGPKeyRing implements KeyRing {
     }
 
     public PGPPublicKey getPublicKey(PGPPublicKeyRingCollection c, String keyAlias, boolean identity) throws PGPException {
-        Iterator<PGPPublicKeyRing> i = c.getKeyRings(keyAlias);
-        PGPPublicKey key = null;
-        while(i.hasNext() && key==null) {
-            key = getPublicKey(i.next(), identity);
-        }
-        return key;
+        return getPublicKeyIndex(c).getPublicKey(keyAlias, identity);
     }
 
     public PGPPublicKey getPublicKey(PGPPublicKeyRingCollection c, String keyAlias) throws PGPException {
-        Iterator<PGPPublicKeyRing> i = c.getKeyRings(keyAlias);
-        while(i.hasNext()) {
-            PGPPublicKeyRing kr = i.next();
-            Iterator<PGPPublicKey> m = kr.getPublicKeys();
-            while(m.hasNext()) {
-                PGPPublicKey k = m.next();
-                Iterator<String> u = k.getUserIDs();
-                while(u.hasNext()) {
-                    String uid = u.next();
-                    if(uid.equals(keyAlias))
-                        return k;
-                }
-            }
-        }
-        return null;
+        return getPublicKeyIndex(c).getPublicKey(keyAlias);
     }
 
     public PGPPublicKey getPublicKey(PGPPublicKeyRingCollection c, byte[] fingerprint) throws PGPException {
-        return c.getPublicKey(fingerprint);
+        return getPublicKeyIndex(c).getPublicKey(fingerprint);
+    }
+
+    public PGPPublicKey getPublicKey(PGPPublicKeyRingCollection c, long keyID) throws PGPException {
+        return getPublicKeyIndex(c).getPublicKey(keyID);
+    }
+
+    /**
+     * @return index of the collection, built on first use for collections not loaded here
+     */
+    private PublicKeyIndex getPublicKeyIndex(PGPPublicKeyRingCollection c) {
+        synchronized (publicKeyIndexes) {
+            PublicKeyIndex index = publicKeyIndexes.get(c);
+            if(index == null) {
+                index = new PublicKeyIndex(c);
+                publicKeyIndexes.put(c, index);
+            }
+            return index;
+        }
     }
 
     private PGPSecretKeyRingCollection getSecretKeyRingCollection(String location, String username, String passphrase) throws IOException, PGPException {
-//        return new PGPSecretKeyRingCollection(new FileInputStream(username+".skr"), new BcKeyFingerprintCalculator());
-        return new PGPSecretKeyRingCollection(new FileInputStream(location + (location.endsWith("/") ? "" : "/") + username+".skr"), new JcaKeyFingerprintCalculator());
+        return keyRingCache.get(keyRingFile(location, username, ".skr"), new KeyRingCache.Loader<PGPSecretKeyRingCollection>() {
+            @Override
+            public PGPSecretKeyRingCollection load(InputStream in) throws IOException, PGPException {
+                return new PGPSecretKeyRingCollection(in, new JcaKeyFingerprintCalculator());
+            }
+        });
     }
 
     private void saveSecretKeyRingCollection(PGPSecretKeyRingCollection secretKeyRingCollection, File skr) {
         LOG.info("Persisting Secret KeyRing Collection...");
         // TODO: Encrypt file
         if(secretKeyRingCollection != null && skr != null) {
+            BufferedOutputStream bos = null;
             try {
-                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(skr));
+                bos = new BufferedOutputStream(new FileOutputStream(skr));
                 secretKeyRingCollection.encode(bos);
                 bos.close();
+                bos = null;
+                keyRingCache.put(skr, secretKeyRingCollection);
             } catch (IOException e) {
                 LOG.warning(e.getLocalizedMessage());
+                keyRingCache.invalidate(skr);
+            } finally {
+                if(bos != null)
+                    try { bos.close(); } catch (IOException e) {}
             }
+            privateKeyCache.invalidate(skr.getAbsolutePath());
         }
     }
 
@@ -452,6 +843,21 @@ public class OpenPGPKeyRing implements KeyRing {
         return secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider(PROVIDER_BOUNCY_CASTLE).build(pass));
     }
 
+    /**
+     * Extract the private key or take it from the cache if extracted recently with the same passphrase.
+     * @return private key or null if secretKey is null
+     */
+    private PGPPrivateKey getPrivateKey(File skr, PGPSecretKey secretKey, char[] pass) throws PGPException {
+        if(secretKey == null) return null;
+        String path = skr.getAbsolutePath();
+        PGPPrivateKey privateKey = privateKeyCache.get(path, secretKey.getKeyID(), pass);
+        if(privateKey == null) {
+            privateKey = getPrivateKey(secretKey, pass);
+            privateKeyCache.put(path, secretKey.getKeyID(), pass, privateKey);
+        }
+        return privateKey;
+    }
+
     private PGPSecretKey getSecretKey(PGPSecretKeyRingCollection c, String alias) throws PGPException {
 
         Iterator<PGPSecretKeyRing> i = c.getKeyRings(alias);
@@ -463,72 +869,55 @@ public class OpenPGPKeyRing implements KeyRing {
         return null;
     }
 
-    private PGPPrivateKey getPrivateKey(PGPSecretKeyRingCollection pgpSec, long keyID, char[] pass) throws PGPException {
-        PGPSecretKey pgpSecKey = pgpSec.getSecretKey(keyID);
-        return getPrivateKey(pgpSecKey, pass);
-    }
-
-    private void storePublicKeys(StorePublicKeysRequest r) throws PGPException {
-//        boolean updated = false;
-//        PGPPublicKeyRing pkr = publicKeyRingCollection.getPublicKeyRing(r.keyId);
-//        PGPPublicKeyRing pkrNew = pkr;
-//        if(pkr == null) {
-//            r.errorCode = StorePublicKeysRequest.NON_EXISTANT_PUBLIC_KEY_RING;
-//            return;
-//        }
-//        for (PGPPublicKey k : r.publicKeys) {
-//            if(pkrNew.getPublicKey(k.getKeyID()) == null) {
-//                pkrNew = PGPPublicKeyRing.insertPublicKey(pkr, k);
-//                updated = true;
-//            }
-//        }
-//        if(updated) {
-//            publicKeyRingCollection = PGPPublicKeyRingCollection.removePublicKeyRing(publicKeyRingCollection, pkr);
-//            publicKeyRingCollection = PGPPublicKeyRingCollection.addPublicKeyRing(publicKeyRingCollection, pkrNew);
-//            saveKeyRings();
-//        }
+    /**
+     * Insert public keys into the key ring with the key id, saving the collection and updating
+     * its index with just the changed ring.
+     * Synchronized so concurrent stores do not overwrite each other's changes.
+     */
+    @Override
+    public synchronized void storePublicKeys(StorePublicKeysRequest r) throws IOException, PGPException {
+        File pkrFile = keyRingFile(r.location, r.keyRingUsername, ".pkr");
+        if(!pkrFile.exists()) {
+            r.statusCode = StorePublicKeysRequest.NON_EXISTANT_PUBLIC_KEY_RING_COLLECTION;
+            return;
+        }
+        PGPPublicKeyRingCollection c = getPublicKeyRingCollection(r.location, r.keyRingUsername, r.keyRingPassphrase);
+        PGPPublicKeyRing pkr = c.getPublicKeyRing(r.keyId);
+        if(pkr == null) {
+            r.statusCode = StorePublicKeysRequest.NON_EXISTANT_PUBLIC_KEY_RING;
+            return;
+        }
+        List<PGPPublicKey> added = new ArrayList<>();
+        for (PGPPublicKey k : r.publicKeys) {
+            if(pkr.getPublicKey(k.getKeyID()) == null)
+                added.add(k);
+        }
+        if(!added.isEmpty()) {
+            PGPPublicKeyRing pkrNew = PublicKeyRingStore.insertKeys(pkr, added);
+            PGPPublicKeyRingCollection cNew = PGPPublicKeyRingCollection.removePublicKeyRing(c, pkr);
+            cNew = PGPPublicKeyRingCollection.addPublicKeyRing(cNew, pkrNew);
+            // The collection read may still be in use so its index is left as is
+            PublicKeyIndex index = new PublicKeyIndex(getPublicKeyIndex(c));
+            index.replace(pkr, pkrNew);
+            publicKeyIndexes.put(cNew, index);
+            // Only the keys added are written rather than the whole collection
+            PublicKeyRingStore store = publicKeyRingStore(pkrFile);
+            store.addKeys(cNew, pkr, added);
+            keyRingCache.put(pkrFile, store.getJournal(), cNew);
+        }
     }
 
     private PGPKeyRingGenerator generateKeyRingGenerator(String username, char[] passphrase, int s2kCount) {
         PGPKeyRingGenerator keyRingGen = null;
         try {
-            RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
-            /*
-             * This value should be a Fermat number. 0x10001 (F4) is current recommended value. 3 (F1) is known to be safe also.
-             * 3, 5, 17, 257, 65537, 4294967297, 18446744073709551617,
-             * <p>
-             * Practically speaking, Windows does not tolerate public exponents which do not fit in a 32-bit unsigned integer.
-             * Using e=3 or e=65537 works "everywhere".
-             * <p>
-             * See: <a href="http://stackoverflow.com/questions/11279595/rsa-public-exponent-defaults-to-65537-what-should-this-value-be-what-are-the">stackoverflow: RSA Public exponent defaults to 65537. ... What are the impacts of my choices?</a>
-             */
-            BigInteger publicExponent = BigInteger.valueOf(0x10001);
-
-            /*
-             * As of 2018: 2048 is common value - safe until 2030, 3072 is uncommon - safe until 2040, 4096 is rare - safe until 2040+
-             */
-            int bitStrength = 2048;
-
-            /*
-             * How certain do we want to be that the chosen primes are really primes.
-             * <p>
-             * The higher this number, the more tests are done to make sure they are primes (and not composites).
-             * <p>
-             * See: <a href="http://crypto.stackexchange.com/questions/3114/what-is-the-correct-value-for-certainty-in-rsa-key-pair-generation">What is the correct value for “certainty” in RSA key pair generation?</a>
-             * and
-             * <a href="http://crypto.stackexchange.com/questions/3126/does-a-high-exponent-compensate-for-a-low-degree-of-certainty?lq=1">Does a high exponent compensate for a low degree of certainty?</a>
-             *
-             * As of 2018: 12 is common value, 16 uncommon, 80 rare
-             */
-            final int certainty = 12;
-
-            kpg.init(new RSAKeyGenerationParameters(publicExponent, new SecureRandom(), bitStrength, certainty));
+            // Key pairs come pre-generated from the pool
+            KeyPairPool kpg = keyPairPool();
 
             // First create the master (signing) key with the generator.
-            PGPKeyPair rsaKPSign = new BcPGPKeyPair(PGPPublicKey.RSA_SIGN, kpg.generateKeyPair(), new Date());
+            PGPKeyPair rsaKPSign = new BcPGPKeyPair(PGPPublicKey.RSA_SIGN, kpg.take(), new Date());
 
             // Then an encryption subkey.
-            PGPKeyPair rsaKPEncrypt = new BcPGPKeyPair(PGPPublicKey.RSA_ENCRYPT, kpg.generateKeyPair(), new Date());
+            PGPKeyPair rsaKPEncrypt = new BcPGPKeyPair(PGPPublicKey.RSA_ENCRYPT, kpg.take(), new Date());
 
             // Add a self-signature on the id
             PGPSignatureSubpacketGenerator signHashGen = new PGPSignatureSubpacketGenerator();
@@ -588,5 +977,41 @@ public class OpenPGPKeyRing implements KeyRing {
     @Override
     public void init(Properties properties) {
         this.properties = properties;
+        if(properties != null) {
+            long ttlSeconds = Long.parseLong(properties.getProperty(PROP_PRIVATE_KEY_CACHE_TTL, "300"));
+            int size = Integer.parseInt(properties.getProperty(PROP_PRIVATE_KEY_CACHE_SIZE, "64"));
+            privateKeyCache.clear();
+            privateKeyCache = new PrivateKeyCache(ttlSeconds * 1000L, size);
+            encryptionAlgorithm = EncryptionAlgorithm.valueOf(properties.getProperty(PROP_ENCRYPTION_ALGORITHM, EncryptionAlgorithm.CAST5.name()));
+            compress = Boolean.parseBoolean(properties.getProperty(PROP_COMPRESS, "true"));
+            long verificationTTLSeconds = Long.parseLong(properties.getProperty(PROP_VERIFICATION_CACHE_TTL, "600"));
+            int verificationSize = Integer.parseInt(properties.getProperty(PROP_VERIFICATION_CACHE_SIZE, "10000"));
+            verificationCache = new VerificationCache(verificationTTLSeconds * 1000L, verificationSize);
+        }
+        // Start warming up so the first key rings are created without waiting
+        keyPairPool();
+    }
+
+    @Override
+    public void teardown() {
+        privateKeyCache.clear();
+        verificationCache.clear();
+        // Fold outstanding journals into their key rings
+        for(PublicKeyRingStore store : publicKeyRingStores.values()) {
+            store.close();
+        }
+        publicKeyRingStores.clear();
+        keyRingCache.clear();
+        publicKeyIndexes.clear();
+        synchronized (this) {
+            if(batchPool != null) {
+                batchPool.shutdown();
+                batchPool = null;
+            }
+            if(keyPairPool != null) {
+                keyPairPool.shutdown();
+                keyPairPool = null;
+            }
+        }
     }
 }
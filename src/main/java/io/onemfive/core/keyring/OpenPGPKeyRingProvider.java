@@ -0,0 +1,51 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.data.EncryptionAlgorithm;
+
+import java.security.Security;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Provides {@link OpenPGPKeyRing}, the pure Java BouncyCastle implementation.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class OpenPGPKeyRingProvider implements KeyRingProvider {
+
+    private static final Set<Capability> CAPABILITIES = Collections.unmodifiableSet(EnumSet.of(Capability.STREAMING, Capability.BATCH));
+    private static final Set<EncryptionAlgorithm> ALGORITHMS = Collections.unmodifiableSet(EnumSet.of(EncryptionAlgorithm.CAST5, EncryptionAlgorithm.AES256));
+
+    @Override
+    public String getName() {
+        return OpenPGPKeyRing.class.getName();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return Security.getProvider(OpenPGPKeyRing.PROVIDER_BOUNCY_CASTLE) != null;
+    }
+
+    @Override
+    public Set<Capability> getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    @Override
+    public Set<EncryptionAlgorithm> getAlgorithms() {
+        return ALGORITHMS;
+    }
+
+    @Override
+    public long getCostHint() {
+        // RSA 2048 signing dominates
+        return 2000000L;
+    }
+
+    @Override
+    public KeyRing newKeyRing() {
+        return new OpenPGPKeyRing();
+    }
+}
@@ -0,0 +1,173 @@
+package io.onemfive.core.keyring;
+
+import org.bouncycastle.openpgp.PGPPrivateKey;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Private keys extracted from secret keys, held for a bounded time so that the
+ * passphrase based decryption of the secret key (S2K) is not repeated per message.
+ *
+ * Entries are keyed by key ring file, key id and a salted digest of the passphrase so a key is
+ * only returned to callers knowing the passphrase it was extracted with. The passphrase itself
+ * is never held and the copies made to digest it are zeroed.
+ * Entries expire after the time to live and are evicted least recently used beyond the
+ * maximum size; a daemon timer sweeps expired entries so idle keys do not linger.
+ * Key material in Bouncy Castle's BigIntegers can not be zeroed so eviction drops
+ * the last reference held to it.
+ *
+ * @author objectorange
+ */
+final class PrivateKeyCache {
+
+    private static final Logger LOG = Logger.getLogger(PrivateKeyCache.class.getName());
+
+    private static final class Entry {
+        private PGPPrivateKey key;
+        private final String keyRingPath;
+        private final long expires;
+
+        private Entry(PGPPrivateKey key, String keyRingPath, long expires) {
+            this.key = key;
+            this.keyRingPath = keyRingPath;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttlMs;
+    private final int maxEntries;
+    // Per process so cache keys reveal nothing about passphrases
+    private final byte[] salt = new byte[32];
+    private final LinkedHashMap<String,Entry> entries;
+    private Timer sweeper;
+
+    /**
+     * @param ttlMs how long an extracted key is held
+     * @param maxEntries most keys held; 0 disables caching
+     */
+    PrivateKeyCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+        new SecureRandom().nextBytes(salt);
+        entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                if(size() > PrivateKeyCache.this.maxEntries) {
+                    wipe(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized PGPPrivateKey get(String keyRingPath, long keyID, char[] passphrase) {
+        if(maxEntries <= 0) return null;
+        String k = cacheKey(keyRingPath, keyID, passphrase);
+        Entry e = entries.get(k);
+        if(e == null) return null;
+        if(e.expires <= System.currentTimeMillis()) {
+            entries.remove(k);
+            wipe(e);
+            return null;
+        }
+        return e.key;
+    }
+
+    synchronized void put(String keyRingPath, long keyID, char[] passphrase, PGPPrivateKey key) {
+        if(maxEntries <= 0 || key == null) return;
+        Entry previous = entries.put(cacheKey(keyRingPath, keyID, passphrase), new Entry(key, keyRingPath, System.currentTimeMillis() + ttlMs));
+        if(previous != null && previous.key != key)
+            wipe(previous);
+        if(sweeper == null) {
+            sweeper = new Timer("PrivateKeyCache-Sweeper", true);
+            long period = Math.max(1000L, ttlMs / 2);
+            sweeper.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Drop keys extracted from a key ring file, e.g. when it changed.
+     */
+    synchronized void invalidate(String keyRingPath) {
+        Iterator<Entry> i = entries.values().iterator();
+        while(i.hasNext()) {
+            Entry e = i.next();
+            if(e.keyRingPath.equals(keyRingPath)) {
+                wipe(e);
+                i.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for(Entry e : entries.values()) {
+            wipe(e);
+        }
+        entries.clear();
+        if(sweeper != null) {
+            sweeper.cancel();
+            sweeper = null;
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized void sweep() {
+        long now = System.currentTimeMillis();
+        int swept = 0;
+        Iterator<Entry> i = entries.values().iterator();
+        while(i.hasNext()) {
+            Entry e = i.next();
+            if(e.expires <= now) {
+                wipe(e);
+                i.remove();
+                swept++;
+            }
+        }
+        if(swept > 0)
+            LOG.finer("Swept "+swept+" expired private keys.");
+    }
+
+    private static void wipe(Entry e) {
+        e.key = null;
+    }
+
+    private String cacheKey(String keyRingPath, long keyID, char[] passphrase) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Required of every JVM
+            throw new IllegalStateException(e);
+        }
+        sha.update(salt);
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(passphrase));
+        byte[] pass = new byte[encoded.remaining()];
+        encoded.get(pass);
+        sha.update(pass);
+        Arrays.fill(pass, (byte)0);
+        if(encoded.hasArray())
+            Arrays.fill(encoded.array(), (byte)0);
+        byte[] digest = sha.digest();
+        StringBuilder sb = new StringBuilder(keyRingPath).append('|').append(Long.toHexString(keyID)).append('|');
+        for(byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package io.onemfive.core.keyring;
+
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Index of the public keys of a {@link PGPPublicKeyRingCollection} by alias (user id of the
+ * ring's master key), key id and fingerprint so lookups are hash lookups instead of scans
+ * over every ring, key and user id.
+ *
+ * Built once per collection loaded; a collection derived from it by replacing rings gets a copy
+ * updated ring by ring so the index of the collection it came from stays as it was.
+ * Lookups return the same keys the equivalent scans over the collection did, rings in
+ * collection order.
+ *
+ * @author objectorange
+ */
+final class PublicKeyIndex {
+
+    private final Map<String,List<PGPPublicKeyRing>> ringsByAlias = new ConcurrentHashMap<>();
+    private final Map<Long,PGPPublicKey> keysById = new ConcurrentHashMap<>();
+    private final Map<String,PGPPublicKey> keysByFingerprint = new ConcurrentHashMap<>();
+
+    PublicKeyIndex(PGPPublicKeyRingCollection c) {
+        Iterator<PGPPublicKeyRing> i = c.getKeyRings();
+        while(i.hasNext()) {
+            add(i.next());
+        }
+    }
+
+    /**
+     * Copy of another index, e.g. for a collection derived from its collection.
+     */
+    PublicKeyIndex(PublicKeyIndex index) {
+        synchronized (index) {
+            for(Map.Entry<String,List<PGPPublicKeyRing>> e : index.ringsByAlias.entrySet()) {
+                ringsByAlias.put(e.getKey(), new CopyOnWriteArrayList<>(e.getValue()));
+            }
+            keysById.putAll(index.keysById);
+            keysByFingerprint.putAll(index.keysByFingerprint);
+        }
+    }
+
+    synchronized void add(PGPPublicKeyRing ring) {
+        Iterator<String> aliases = ring.getPublicKey().getUserIDs();
+        while(aliases.hasNext()) {
+            String alias = aliases.next();
+            List<PGPPublicKeyRing> rings = ringsByAlias.get(alias);
+            if(rings == null) {
+                rings = new CopyOnWriteArrayList<>();
+                ringsByAlias.put(alias, rings);
+            }
+            rings.add(ring);
+        }
+        Iterator<PGPPublicKey> keys = ring.getPublicKeys();
+        while(keys.hasNext()) {
+            PGPPublicKey k = keys.next();
+            keysById.put(k.getKeyID(), k);
+            keysByFingerprint.put(Hex.toHexString(k.getFingerprint()), k);
+        }
+    }
+
+    synchronized void remove(PGPPublicKeyRing ring) {
+        Iterator<String> aliases = ring.getPublicKey().getUserIDs();
+        while(aliases.hasNext()) {
+            String alias = aliases.next();
+            List<PGPPublicKeyRing> rings = ringsByAlias.get(alias);
+            if(rings != null) {
+                rings.remove(ring);
+                if(rings.isEmpty())
+                    ringsByAlias.remove(alias);
+            }
+        }
+        Iterator<PGPPublicKey> keys = ring.getPublicKeys();
+        while(keys.hasNext()) {
+            PGPPublicKey k = keys.next();
+            keysById.remove(k.getKeyID());
+            keysByFingerprint.remove(Hex.toHexString(k.getFingerprint()));
+        }
+    }
+
+    /**
+     * Replace a ring with an updated copy, e.g. one with public keys inserted.
+     */
+    synchronized void replace(PGPPublicKeyRing previous, PGPPublicKeyRing updated) {
+        if(previous != null)
+            remove(previous);
+        add(updated);
+    }
+
+    /**
+     * @param identity master key if true else first encryption key
+     */
+    PGPPublicKey getPublicKey(String alias, boolean identity) {
+        List<PGPPublicKeyRing> rings = ringsByAlias.get(alias);
+        if(rings == null) return null;
+        for(PGPPublicKeyRing ring : rings) {
+            Iterator<PGPPublicKey> m = ring.getPublicKeys();
+            while(m.hasNext()) {
+                PGPPublicKey k = m.next();
+                if(identity && k.isMasterKey())
+                    return k;
+                else if(!identity && k.isEncryptionKey())
+                    return k;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return key of an alias ring carrying the alias as user id
+     */
+    PGPPublicKey getPublicKey(String alias) {
+        List<PGPPublicKeyRing> rings = ringsByAlias.get(alias);
+        if(rings == null) return null;
+        for(PGPPublicKeyRing ring : rings) {
+            Iterator<PGPPublicKey> m = ring.getPublicKeys();
+            while(m.hasNext()) {
+                PGPPublicKey k = m.next();
+                Iterator<String> u = k.getUserIDs();
+                while(u.hasNext()) {
+                    if(u.next().equals(alias))
+                        return k;
+                }
+            }
+        }
+        return null;
+    }
+
+    PGPPublicKey getPublicKey(long keyID) {
+        return keysById.get(keyID);
+    }
+
+    PGPPublicKey getPublicKey(byte[] fingerprint) {
+        return fingerprint == null ? null : keysByFingerprint.get(Hex.toHexString(fingerprint));
+    }
+}
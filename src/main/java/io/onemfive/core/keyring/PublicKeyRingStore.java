@@ -0,0 +1,267 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.core.util.FileUtil;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persists changes to a public key ring collection (.pkr) by appending them to a journal
+ * (.pkr.jnl) instead of rewriting the whole collection, so importing n keys costs
+ * I/O in proportion to n rather than n times the size of the collection.
+ *
+ * The journal is compacted into the .pkr once it holds more than the configured number of entries
+ * and on teardown. Compaction writes and syncs a temporary file which is then renamed over the .pkr
+ * so a crash leaves either the old or the new collection, never a partial one; the journal is
+ * deleted afterwards. Replaying an entry already in the .pkr changes nothing so a crash between
+ * rename and delete is harmless. Every entry carries a CRC32; replay stops at the first torn or
+ * corrupt entry and truncates the journal to the entries before it so later appends follow them.
+ *
+ * Entry layout: length, operation, payload, CRC32 of operation and payload.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+final class PublicKeyRingStore {
+
+    private static final Logger LOG = Logger.getLogger(PublicKeyRingStore.class.getName());
+
+    static final String JOURNAL_SUFFIX = ".jnl";
+
+    private static final byte ADD_RING = 1;
+    private static final byte ADD_KEYS = 2;
+    private static final byte REMOVE_RING = 3;
+
+    private final File pkr;
+    private final File journal;
+    private final int maxEntries;
+    private int entries = 0;
+    // Latest collection journaled, compacted on teardown
+    private PGPPublicKeyRingCollection latest;
+
+    /**
+     * @param maxEntries journal entries after which it is compacted into the .pkr
+     */
+    PublicKeyRingStore(File pkr, int maxEntries) {
+        this.pkr = pkr;
+        this.journal = journalFile(pkr);
+        this.maxEntries = maxEntries;
+    }
+
+    static File journalFile(File pkr) {
+        return new File(pkr.getParentFile(), pkr.getName() + JOURNAL_SUFFIX);
+    }
+
+    File getJournal() {
+        return journal;
+    }
+
+    /**
+     * Apply journaled changes to the collection read from the .pkr.
+     */
+    synchronized PGPPublicKeyRingCollection replay(PGPPublicKeyRingCollection c) throws IOException, PGPException {
+        entries = 0;
+        if(!journal.exists()) return c;
+        // End of the last whole entry
+        long good = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            while(true) {
+                byte[] entry;
+                try {
+                    int length = in.readInt();
+                    if(length <= 0 || length > journal.length())
+                        throw new EOFException();
+                    entry = new byte[length];
+                    in.readFully(entry);
+                    CRC32 crc = new CRC32();
+                    crc.update(entry);
+                    if(in.readInt() != (int)crc.getValue())
+                        throw new EOFException();
+                } catch (EOFException e) {
+                    // Torn write of the last entry
+                    break;
+                }
+                c = apply(c, entry);
+                entries++;
+                good += 4 + entry.length + 4;
+            }
+        } finally {
+            in.close();
+        }
+        if(good < journal.length())
+            truncate(good);
+        if(entries > 0) {
+            LOG.info("Replayed "+entries+" journal entries into "+pkr.getName());
+            latest = c;
+        }
+        return c;
+    }
+
+    /**
+     * Drop a torn or corrupt tail, otherwise entries appended after it would never be replayed.
+     */
+    private void truncate(long length) throws IOException {
+        LOG.warning("Dropping "+(journal.length() - length)+" bytes of torn journal from "+journal.getName());
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.setLength(length);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    synchronized void addRing(PGPPublicKeyRingCollection updated, PGPPublicKeyRing ring) throws IOException, PGPException {
+        append(ADD_RING, ring.getEncoded(), updated);
+    }
+
+    /**
+     * @param ring the ring as it was before the keys were added
+     */
+    synchronized void addKeys(PGPPublicKeyRingCollection updated, PGPPublicKeyRing ring, List<PGPPublicKey> keys) throws IOException, PGPException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bOut);
+        out.writeLong(ring.getPublicKey().getKeyID());
+        // Subkeys only decode as such following a master key so are written as a ring headed by the ring's master key
+        out.write(ring.getPublicKey().getEncoded());
+        for(PGPPublicKey k : keys) {
+            out.write(k.getEncoded());
+        }
+        out.flush();
+        append(ADD_KEYS, bOut.toByteArray(), updated);
+    }
+
+    synchronized void removeRing(PGPPublicKeyRingCollection updated, long ringKeyId) throws IOException, PGPException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bOut);
+        out.writeLong(ringKeyId);
+        out.flush();
+        append(REMOVE_RING, bOut.toByteArray(), updated);
+    }
+
+    /**
+     * Write the whole collection to the .pkr and drop the journal.
+     */
+    synchronized void compact(PGPPublicKeyRingCollection c) throws IOException {
+        File tmp = new File(pkr.getParentFile(), "." + pkr.getName() + ".tmp");
+        FileOutputStream fOut = new FileOutputStream(tmp);
+        try {
+            BufferedOutputStream out = new BufferedOutputStream(fOut);
+            c.encode(out);
+            out.flush();
+            fOut.getFD().sync();
+        } finally {
+            fOut.close();
+        }
+        try {
+            Files.move(tmp.toPath(), pkr.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            if(!FileUtil.rename(tmp, pkr))
+                throw new IOException("Unable to replace "+pkr.getAbsolutePath());
+        }
+        if(journal.exists() && !journal.delete())
+            LOG.warning("Unable to delete compacted journal: "+journal.getAbsolutePath());
+        entries = 0;
+        latest = null;
+    }
+
+    /**
+     * Compact if anything was journaled since the last compaction.
+     */
+    synchronized void close() {
+        if(latest == null) return;
+        try {
+            compact(latest);
+        } catch (IOException e) {
+            LOG.warning("Unable to compact "+pkr.getName()+": "+e.getLocalizedMessage());
+        }
+    }
+
+    private void append(byte op, byte[] payload, PGPPublicKeyRingCollection updated) throws IOException {
+        byte[] entry = new byte[payload.length + 1];
+        entry[0] = op;
+        System.arraycopy(payload, 0, entry, 1, payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(entry);
+        FileOutputStream fOut = new FileOutputStream(journal, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fOut));
+            out.writeInt(entry.length);
+            out.write(entry);
+            out.writeInt((int)crc.getValue());
+            out.flush();
+            fOut.getFD().sync();
+        } finally {
+            fOut.close();
+        }
+        entries++;
+        latest = updated;
+        if(maxEntries >= 0 && entries > maxEntries)
+            compact(updated);
+    }
+
+    /**
+     * Changes already in the collection are skipped so entries can be replayed twice.
+     */
+    private static PGPPublicKeyRingCollection apply(PGPPublicKeyRingCollection c, byte[] entry) throws IOException, PGPException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry, 1, entry.length - 1));
+        switch (entry[0]) {
+            case ADD_RING: {
+                PGPPublicKeyRing ring = new PGPPublicKeyRing(in, new BcKeyFingerprintCalculator());
+                if(c.getPublicKeyRing(ring.getPublicKey().getKeyID()) == null)
+                    c = PGPPublicKeyRingCollection.addPublicKeyRing(c, ring);
+                return c;
+            }
+            case ADD_KEYS: {
+                PGPPublicKeyRing ring = c.getPublicKeyRing(in.readLong());
+                Iterator<PGPPublicKey> i = new PGPPublicKeyRing(in, new BcKeyFingerprintCalculator()).getPublicKeys();
+                // Skip the master key heading the keys added
+                i.next();
+                List<PGPPublicKey> keys = new ArrayList<>();
+                while(i.hasNext()) {
+                    keys.add(i.next());
+                }
+                if(ring == null) return c;
+                PGPPublicKeyRing updated = insertKeys(ring, keys);
+                if(updated != ring) {
+                    c = PGPPublicKeyRingCollection.removePublicKeyRing(c, ring);
+                    c = PGPPublicKeyRingCollection.addPublicKeyRing(c, updated);
+                }
+                return c;
+            }
+            case REMOVE_RING: {
+                PGPPublicKeyRing ring = c.getPublicKeyRing(in.readLong());
+                if(ring != null)
+                    c = PGPPublicKeyRingCollection.removePublicKeyRing(c, ring);
+                return c;
+            }
+            default:
+                throw new IOException("Unknown journal entry: "+entry[0]);
+        }
+    }
+
+    /**
+     * @return the ring with those keys it did not hold yet, or the ring itself if it held them all
+     */
+    static PGPPublicKeyRing insertKeys(PGPPublicKeyRing ring, List<PGPPublicKey> keys) {
+        PGPPublicKeyRing updated = ring;
+        for(PGPPublicKey k : keys) {
+            if(updated.getPublicKey(k.getKeyID()) == null)
+                updated = PGPPublicKeyRing.insertPublicKey(updated, k);
+        }
+        return updated;
+    }
+}
@@ -0,0 +1,37 @@
+package io.onemfive.core.keyring;
+
+import java.util.List;
+
+/**
+ * Sign many payloads with one key in a single request.
+ * The private key is extracted once and the payloads are signed in parallel.
+ *
+ * Request:
+ * String Key Ring Username
+ * String Key Ring Passphrase
+ * String Alias of the signing key and its passphrase
+ * List of payloads to sign
+ *
+ * Response:
+ * List of signatures in the order of the payloads
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class SignBatchRequest extends KeyRingsRequest {
+    public static int CONTENTS_TO_SIGN_REQUIRED = 2;
+    public static int ALIAS_REQUIRED = 3;
+    public static int PASSPHRASE_REQUIRED = 4;
+    public static int SECRET_KEY_NOT_FOUND = 5;
+    public static int LOCATION_REQUIRED = 6;
+    public static int LOCATION_INACCESSIBLE = 7;
+
+    public String location;
+    public String keyRingUsername;
+    public String keyRingPassphrase;
+    public List<byte[]> contentsToSign;
+    public String alias;
+    public String passphrase;
+    // Response
+    public List<byte[]> signatures;
+}
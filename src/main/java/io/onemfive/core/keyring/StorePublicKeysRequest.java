@@ -9,7 +9,12 @@ public class StorePublicKeysRequest extends KeyRingsRequest {
     public static int PUBLIC_KEYS_LIST_REQUIRED = 3;
     public static int NON_EXISTANT_PUBLIC_KEY_RING_COLLECTION = 4;
     public static int NON_EXISTANT_PUBLIC_KEY_RING = 5;
+    public static int LOCATION_REQUIRED = 6;
 
+    public String location;
+    public String keyRingUsername;
+    public String keyRingPassphrase;
+    // Key id of the key ring to store the public keys in
     public long keyId;
     public List<PGPPublicKey> publicKeys;
 }
@@ -0,0 +1,184 @@
+package io.onemfive.core.keyring;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Passphrase based AES/CBC encryption as used by {@link KeyRingService#OPERATION_ENCRYPT_SYMMETRIC}
+ * and {@link KeyRingService#OPERATION_DECRYPT_SYMMETRIC}, set up once rather than per message.
+ *
+ * Each thread keeps its own Cipher and digests as these are not thread safe and costly to look up.
+ * Keys derived from passphrases are held in a bounded least recently used cache keyed by
+ * a salted SHA-256 of the passphrase, the salt being random per process, so the cache never
+ * holds passphrases. Derivation stays SHA-1 truncated to 128 bits so content encrypted before
+ * remains readable.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public final class SymmetricEngine {
+
+    public static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    public static final int IV_LENGTH = 16;
+
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                // AES/CBC/PKCS5Padding is required of every JVM
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private static final ThreadLocal<MessageDigest> SHA1 = digest("SHA-1");
+    private static final ThreadLocal<MessageDigest> SHA256 = digest("SHA-256");
+
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] salt = new byte[32];
+    private final int maxKeys;
+    private final LinkedHashMap<String,SecretKeySpec> keys;
+
+    /**
+     * @param maxKeys most derived keys cached; 0 derives every time
+     */
+    public SymmetricEngine(int maxKeys) {
+        this.maxKeys = maxKeys;
+        random.nextBytes(salt);
+        keys = new LinkedHashMap<String,SecretKeySpec>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,SecretKeySpec> eldest) {
+                return size() > SymmetricEngine.this.maxKeys;
+            }
+        };
+    }
+
+    public byte[] newIV() {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        return iv;
+    }
+
+    public byte[] encrypt(String passphrase, byte[] iv, byte[] content) throws GeneralSecurityException {
+        return cipher(Cipher.ENCRYPT_MODE, passphrase, iv).doFinal(content);
+    }
+
+    /**
+     * @throws javax.crypto.BadPaddingException most likely a wrong passphrase
+     */
+    public byte[] decrypt(String passphrase, byte[] iv, byte[] content) throws GeneralSecurityException {
+        return cipher(Cipher.DECRYPT_MODE, passphrase, iv).doFinal(content);
+    }
+
+    /**
+     * Encrypt the bytes between the buffer's position and limit in place.
+     * Padding grows the content by up to one block so the buffer needs room for
+     * {@link #IV_LENGTH} bytes beyond its limit.
+     * @return length of the encrypted content, which now lies between position and limit
+     */
+    public int encrypt(String passphrase, byte[] iv, ByteBuffer buffer) throws GeneralSecurityException {
+        return inPlace(cipher(Cipher.ENCRYPT_MODE, passphrase, iv), buffer);
+    }
+
+    /**
+     * Decrypt the bytes between the buffer's position and limit in place.
+     * @return length of the plaintext, which now lies between position and limit
+     */
+    public int decrypt(String passphrase, byte[] iv, ByteBuffer buffer) throws GeneralSecurityException {
+        return inPlace(cipher(Cipher.DECRYPT_MODE, passphrase, iv), buffer);
+    }
+
+    public synchronized void clear() {
+        keys.clear();
+    }
+
+    synchronized int cachedKeys() {
+        return keys.size();
+    }
+
+    /**
+     * CBC output never runs ahead of the input consumed so it is safe to write it over the input.
+     */
+    private static int inPlace(Cipher cipher, ByteBuffer buffer) throws GeneralSecurityException {
+        int position = buffer.position();
+        int length = buffer.remaining();
+        if(cipher.getOutputSize(length) > buffer.capacity() - position)
+            throw new ShortBufferException("Buffer needs room for "+cipher.getOutputSize(length)+" bytes");
+        int written;
+        if(buffer.hasArray()) {
+            byte[] a = buffer.array();
+            int offset = buffer.arrayOffset() + position;
+            written = cipher.doFinal(a, offset, length, a, offset);
+        } else {
+            ByteBuffer out = buffer.duplicate();
+            out.limit(out.capacity());
+            written = cipher.doFinal(buffer.duplicate(), out);
+        }
+        buffer.limit(position + written);
+        return written;
+    }
+
+    private Cipher cipher(int mode, String passphrase, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = CIPHER.get();
+        cipher.init(mode, key(passphrase), new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    private SecretKeySpec key(String passphrase) {
+        byte[] p = passphrase.getBytes(StandardCharsets.UTF_8);
+        try {
+            if(maxKeys <= 0)
+                return derive(p);
+            MessageDigest sha256 = SHA256.get();
+            sha256.update(salt);
+            String cacheKey = Hex.toHexString(sha256.digest(p));
+            synchronized (this) {
+                SecretKeySpec key = keys.get(cacheKey);
+                if(key == null) {
+                    key = derive(p);
+                    keys.put(cacheKey, key);
+                }
+                return key;
+            }
+        } finally {
+            Arrays.fill(p, (byte)0);
+        }
+    }
+
+    private static SecretKeySpec derive(byte[] passphrase) {
+        byte[] key = Arrays.copyOf(SHA1.get().digest(passphrase), 16);
+        try {
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            Arrays.fill(key, (byte)0);
+        }
+    }
+
+    private static ThreadLocal<MessageDigest> digest(final String algorithm) {
+        return new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    // Required of every JVM
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
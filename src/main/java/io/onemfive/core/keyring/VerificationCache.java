@@ -0,0 +1,153 @@
+package io.onemfive.core.keyring;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Positive signature verification results so that content relayed or gossiped
+ * repeatedly is verified once rather than on every arrival.
+ *
+ * Entries are keyed by a SHA-256 over the public key ring file, the signing key's fingerprint,
+ * the signature and the content; only successful verifications are held so a failure
+ * is always re-checked. Entries expire after the time to live and are evicted least
+ * recently used beyond the maximum size. Hits and misses are counted for monitoring.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public final class VerificationCache {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Required of every JVM
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final long ttlMs;
+    private final int maxEntries;
+    // Digest to expiry time
+    private final LinkedHashMap<Digest,Long> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttlMs how long a successful verification is remembered
+     * @param maxEntries most results held; 0 disables caching
+     */
+    public VerificationCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<Digest,Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Digest,Long> eldest) {
+                return size() > VerificationCache.this.maxEntries;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @return digest identifying the verification, null if caching is disabled
+     */
+    public Digest digest(String keyRingPath, byte[] fingerprint, byte[] signature, byte[] content) {
+        if(maxEntries <= 0) return null;
+        MessageDigest sha = SHA256.get();
+        update(sha, keyRingPath.getBytes(StandardCharsets.UTF_8));
+        update(sha, fingerprint);
+        update(sha, signature);
+        update(sha, content);
+        return new Digest(sha.digest());
+    }
+
+    /**
+     * @return true if the verification succeeded within the time to live
+     */
+    public boolean verified(Digest digest) {
+        if(digest == null) return false;
+        boolean verified;
+        synchronized (this) {
+            Long expires = entries.get(digest);
+            verified = expires != null && expires > System.currentTimeMillis();
+            if(expires != null && !verified)
+                entries.remove(digest);
+        }
+        if(verified)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return verified;
+    }
+
+    public synchronized void put(Digest digest) {
+        if(digest != null)
+            entries.put(digest, System.currentTimeMillis() + ttlMs);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return share of lookups answered from the cache, 0 before any lookup
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    /**
+     * Length prefixed so that moving bytes between inputs changes the digest.
+     */
+    private static void update(MessageDigest sha, byte[] b) {
+        int length = b == null ? -1 : b.length;
+        sha.update(new byte[] {(byte)(length >>> 24), (byte)(length >>> 16), (byte)(length >>> 8), (byte)length});
+        if(b != null)
+            sha.update(b);
+    }
+
+    public static final class Digest {
+        private final byte[] digest;
+        private final int hash;
+
+        private Digest(byte[] digest) {
+            this.digest = digest;
+            this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digest && MessageDigest.isEqual(digest, ((Digest)o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
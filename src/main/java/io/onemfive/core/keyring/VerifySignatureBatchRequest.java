@@ -0,0 +1,39 @@
+package io.onemfive.core.keyring;
+
+import java.util.List;
+
+/**
+ * Verify many signatures in a single request.
+ * Public keys are looked up once per fingerprint and the signatures are verified in parallel.
+ *
+ * Request:
+ * String Key Ring Username
+ * String Key Ring Passphrase
+ * List of signed payloads and a List of their signatures
+ * List of fingerprints of the signing keys, one per payload,
+ * or a single fingerprint when all were signed by the same key
+ *
+ * Response:
+ * boolean per payload; false when the signature is invalid, malformed or its key unknown
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public class VerifySignatureBatchRequest extends KeyRingsRequest {
+    public static int LOCATION_REQUIRED = 2;
+    public static int LOCATION_INACCESSIBLE = 3;
+    public static int CONTENTS_SIGNED_REQUIRED = 4;
+    public static int SIGNATURES_MISMATCH = 5;
+    public static int FINGERPRINT_REQUIRED = 6;
+
+    // Request
+    public String location;
+    public String keyRingUsername;
+    public String keyRingPassphrase;
+    public List<byte[]> contentsSigned;
+    public List<byte[]> signatures;
+    public List<byte[]> fingerprints;
+    public byte[] fingerprint;
+    // Response
+    public boolean[] verified;
+}
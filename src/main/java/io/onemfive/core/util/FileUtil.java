@@ -520,6 +520,25 @@ public class FileUtil {
         return success;
     }
 
+    /**
+     * Hard link, if it doesn't work, e.g. across file systems, then copy.
+     * Creates parent directories of the link as needed.
+     *
+     * @return true if it was linked / copied successfully
+     * @since 0.6.3 1M5
+     */
+    public static boolean link(File existing, File link) {
+        File parent = link.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists())
+            return false;
+        try {
+            Files.createLink(link.toPath(), existing.toPath());
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            return copy(existing, link, false, true);
+        }
+    }
+
     /**
      * Write bytes to file
      * @since 0.6.1 1M5
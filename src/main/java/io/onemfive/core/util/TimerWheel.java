@@ -0,0 +1,191 @@
+package io.onemfive.core.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel for large numbers of timeouts that are mostly cancelled before they fire,
+ * e.g. request deadlines.
+ *
+ * Timeouts hash into one of a fixed number of slots by their expiry tick and sit in a doubly linked
+ * list there, so scheduling and cancelling are O(1) whatever the number pending.
+ * One daemon thread advances a slot every tick and fires the timeouts of that slot which are due;
+ * those due in a later rotation of the wheel stay put. Timeouts fire up to one tick late.
+ *
+ * Events fire on the wheel's thread so must not block, as with {@link SimpleTimer}.
+ *
+ * @since 0.6.3
+ * @author objectorange
+ */
+public final class TimerWheel {
+
+    private static final Logger LOG = Logger.getLogger(TimerWheel.class.getName());
+
+    private final long tickMs;
+    private final Slot[] slots;
+    private final Thread thread;
+    private final long startNanos;
+    // Ticks processed; guarded by this
+    private long tick = 0L;
+    private int pending = 0;
+    private volatile boolean running = true;
+
+    /**
+     * @param tickMs resolution in milliseconds
+     * @param slots number of slots; timeouts further than tickMs * slots away take more than one rotation
+     */
+    public TimerWheel(String name, long tickMs, int slots) {
+        if(tickMs <= 0 || slots <= 0)
+            throw new IllegalArgumentException("tickMs and slots must be positive");
+        this.tickMs = tickMs;
+        this.slots = new Slot[slots];
+        for(int i = 0; i < slots; i++) {
+            this.slots[i] = new Slot();
+        }
+        startNanos = System.nanoTime();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                spin();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param delayMs milliseconds from now the event fires
+     * @return handle to cancel the event
+     */
+    public Timeout schedule(TimerEvent event, long delayMs) {
+        if(!running)
+            throw new IllegalStateException("Timer wheel stopped");
+        long elapsedTicks = (System.nanoTime() - startNanos) / 1000000L / tickMs;
+        Timeout t = new Timeout(event);
+        synchronized (this) {
+            // Ticks still to be processed count towards the delay
+            long due = Math.max(elapsedTicks, tick) + Math.max(1L, (delayMs + tickMs - 1) / tickMs);
+            t.dueTick = due;
+            slots[(int)(due % slots.length)].add(t);
+            pending++;
+        }
+        return t;
+    }
+
+    /**
+     * @return timeouts scheduled and neither fired nor cancelled
+     */
+    public synchronized int pending() {
+        return pending;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * Stop the wheel; pending timeouts never fire.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+        synchronized (this) {
+            for(Slot s : slots) {
+                while(s.head != null) {
+                    s.remove(s.head);
+                }
+            }
+            pending = 0;
+        }
+    }
+
+    private void spin() {
+        List<Timeout> due = new ArrayList<>();
+        while(running) {
+            long nextTickNanos = startNanos + (tick + 1) * tickMs * 1000000L;
+            long sleepMs = (nextTickNanos - System.nanoTime()) / 1000000L;
+            if(sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            synchronized (this) {
+                tick++;
+                Slot slot = slots[(int)(tick % slots.length)];
+                Timeout t = slot.head;
+                while(t != null) {
+                    Timeout next = t.next;
+                    if(t.dueTick <= tick) {
+                        slot.remove(t);
+                        pending--;
+                        due.add(t);
+                    }
+                    t = next;
+                }
+            }
+            for(Timeout t : due) {
+                try {
+                    t.event.timeReached();
+                } catch (Exception e) {
+                    LOG.warning("Timer wheel event failed: "+e.getLocalizedMessage());
+                }
+            }
+            due.clear();
+        }
+    }
+
+    private synchronized boolean cancel(Timeout t) {
+        if(t.slot == null) return false;
+        t.slot.remove(t);
+        pending--;
+        return true;
+    }
+
+    public final class Timeout {
+        private final TimerEvent event;
+        private long dueTick;
+        // Guarded by the wheel; null once fired or cancelled
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerEvent event) {
+            this.event = event;
+        }
+
+        /**
+         * @return false if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            return TimerWheel.this.cancel(this);
+        }
+    }
+
+    private static final class Slot {
+        private Timeout head;
+
+        private void add(Timeout t) {
+            t.slot = this;
+            t.prev = null;
+            t.next = head;
+            if(head != null)
+                head.prev = t;
+            head = t;
+        }
+
+        private void remove(Timeout t) {
+            if(t.prev != null)
+                t.prev.next = t.next;
+            else
+                head = t.next;
+            if(t.next != null)
+                t.next.prev = t.prev;
+            t.slot = null;
+            t.prev = null;
+            t.next = null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.orchestration.OrchestrationService;
+import io.onemfive.data.Envelope;
+import org.junit.Test;
+
+import java.util.Properties;
+
+/**
+ * Tests for AdmissionController.
+ *
+ * @author objectorange
+ */
+public class AdmissionControllerTest {
+
+    private static MessageChannel channel(int capacity) {
+        MessageChannel channel = new MessageChannel(capacity);
+        channel.start(new Properties());
+        return channel;
+    }
+
+    private static Envelope envelope(ServiceBus.Priority priority, Long client) {
+        Envelope e = Envelope.documentFactory();
+        if(priority != null) e.setHeader(ServiceBus.HEADER_PRIORITY, priority.name());
+        e.setClient(client);
+        return e;
+    }
+
+    @Test
+    public void reservesCapacityByPriority() {
+        MessageChannel channel = channel(10);
+        Properties p = new Properties();
+        p.setProperty(ServiceBus.PROP_QUEUE_DELAY_TARGET, "0");
+        AdmissionController admission = new AdmissionController(channel, p);
+        for(int i = 0; i < 5; i++) assert channel.send(Envelope.documentFactory());
+        assert admission.admit(envelope(ServiceBus.Priority.LOW, null)) != null;
+        assert admission.admit(envelope(null, null)) == null;
+        for(int i = 0; i < 4; i++) assert channel.send(Envelope.documentFactory());
+        assert admission.admit(envelope(ServiceBus.Priority.NORMAL, null)) != null;
+        // A client claiming high priority is taken at the client maximum, normal by default
+        assert admission.admit(envelope(ServiceBus.Priority.HIGH, 1L)) != null;
+        assert admission.admit(envelope(ServiceBus.Priority.HIGH, null)) == null;
+        assert admission.getShed().get("capacity") == 3;
+        assert admission.getAdmitted() == 2;
+    }
+
+    @Test
+    public void shedsOnStandingQueueDelay() throws Exception {
+        MessageChannel channel = channel(100);
+        Properties p = new Properties();
+        p.setProperty(ServiceBus.PROP_QUEUE_DELAY_TARGET, "20");
+        p.setProperty(ServiceBus.PROP_QUEUE_DELAY_INTERVAL, "200");
+        AdmissionController admission = new AdmissionController(channel, p);
+        assert channel.send(Envelope.documentFactory());
+        Thread.sleep(50);
+        // Above target: low priority shed at once, normal let through until it has stood an interval
+        assert admission.admit(envelope(ServiceBus.Priority.LOW, null)) != null;
+        assert admission.admit(envelope(ServiceBus.Priority.NORMAL, null)) == null;
+        Thread.sleep(250);
+        assert admission.admit(envelope(ServiceBus.Priority.NORMAL, null)) != null;
+        // Next shed only after the control law interval
+        assert admission.admit(envelope(ServiceBus.Priority.NORMAL, null)) == null;
+        assert admission.admit(envelope(ServiceBus.Priority.HIGH, null)) == null;
+        // Once drained the delay is under target again
+        assert channel.receive(100) != null;
+        assert admission.admit(envelope(ServiceBus.Priority.LOW, null)) == null;
+        assert admission.getShed().get("queueDelay") == 2;
+    }
+
+    @Test
+    public void limitsClientAndServiceRates() {
+        MessageChannel channel = channel(100);
+        Properties p = new Properties();
+        p.setProperty(ServiceBus.PROP_CLIENT_RATE, "1");
+        p.setProperty(ServiceBus.PROP_CLIENT_BURST, "2");
+        p.setProperty(ServiceBus.PROP_SERVICE_RATE + "." + OrchestrationService.class.getName(), "1");
+        p.setProperty(ServiceBus.PROP_SERVICE_BURST + "." + OrchestrationService.class.getName(), "3");
+        AdmissionController admission = new AdmissionController(channel, p);
+        assert admission.admit(envelope(null, 1L)) == null;
+        assert admission.admit(envelope(null, 1L)) == null;
+        String shed = admission.admit(envelope(null, 1L));
+        assert shed != null && shed.contains("client 1") : shed;
+        // Another client has its own bucket but shares the service's
+        assert admission.admit(envelope(null, 2L)) == null;
+        shed = admission.admit(envelope(null, 2L));
+        assert shed != null && shed.contains(OrchestrationService.class.getName()) : shed;
+        // High priority bypasses the service rates but not its client's
+        p.setProperty(ServiceBus.PROP_CLIENT_MAX_PRIORITY, ServiceBus.Priority.HIGH.name());
+        admission = new AdmissionController(channel, p);
+        assert admission.admit(envelope(null, 1L)) == null;
+        assert admission.admit(envelope(null, 2L)) == null;
+        assert admission.admit(envelope(null, 2L)) == null;
+        assert admission.admit(envelope(ServiceBus.Priority.HIGH, 2L)) != null;
+        assert admission.admit(envelope(ServiceBus.Priority.HIGH, 1L)) == null;
+        assert admission.getShed().get("clientRate") == 1 && admission.getShed().get("serviceRate") == 0;
+    }
+}
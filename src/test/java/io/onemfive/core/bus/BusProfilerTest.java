@@ -0,0 +1,58 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.BusProfile;
+import io.onemfive.data.Envelope;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for BusProfiler.
+ *
+ * @author objectorange
+ */
+public class BusProfilerTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void keepsSlowestWithHops() {
+        BusProfiler profiler = new BusProfiler(2, 60000);
+        long now = System.nanoTime();
+        for(int i = 1; i <= 3; i++) {
+            Envelope e = Envelope.documentFactory();
+            // Waited i*10ms to reach the service then 5ms to reach its client
+            profiler.hop(e, "Service", i * 10 * MS, now - 100 * MS, false);
+            profiler.hop(e, BusProfiler.CLIENT, 5 * MS, now, true);
+        }
+        Envelope open = Envelope.documentFactory();
+        profiler.hop(open, "Service", 0, System.nanoTime(), false);
+
+        BusProfile p = profiler.profile(null, null, null, null);
+        assert p.slowest.size() == 2 : p.slowest;
+        Map<String,Object> first = p.slowest.get(0);
+        Map<String,Object> second = p.slowest.get(1);
+        assert (Double)first.get("totalMs") > (Double)second.get("totalMs");
+        assert (Boolean)first.get("replied");
+        List<Map<String,Object>> hops = (List<Map<String,Object>>)first.get("hops");
+        assert hops.size() == 2;
+        assert hops.get(0).get("service").equals("Service") && (Double)hops.get(0).get("waitMs") == 30;
+        assert hops.get(1).get("service").equals(BusProfiler.CLIENT);
+        assert !p.gc.isEmpty() && p.heapUsed > 0;
+    }
+
+    @Test
+    public void countsInFlight() {
+        BusProfiler profiler = new BusProfiler(0, 60000);
+        profiler.enter("A");
+        profiler.enter("A");
+        profiler.enter("B");
+        profiler.exit("B");
+        BusProfile p = profiler.profile(null, null, null, null);
+        assert p.inFlight.size() == 1 && p.inFlight.get("A") == 2 : p.inFlight;
+        // Not traced when keeping none
+        profiler.hop(Envelope.documentFactory(), "A", 0, System.nanoTime(), true);
+        assert profiler.profile(null, null, null, null).slowest.isEmpty();
+    }
+}
@@ -0,0 +1,103 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.keyring.EncryptRequest;
+import io.onemfive.core.keyring.SignRequest;
+import io.onemfive.data.DocumentMessage;
+import io.onemfive.data.EncryptionAlgorithm;
+import io.onemfive.data.Envelope;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encode and decode time and encoded size of EnvelopeCodec against Java serialization for a
+ * routed envelope carrying DLC data, and of EnvelopeCodec for one carrying key ring requests.
+ *
+ * Not run as part of the build; run with:
+ * java -cp target/classes:target/test-classes:... io.onemfive.core.bus.EnvelopeCodecBenchmark [iterations]
+ *
+ * @author objectorange
+ */
+public class EnvelopeCodecBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        System.out.println(String.format("%-34s %8s %10s %10s", "", "bytes", "encode ns", "decode ns"));
+        // Later rounds are after warm up
+        for(int round = 0; round < 3; round++) {
+            Envelope data = dataEnvelope();
+            run("EnvelopeCodec, DLC data", data, true, iterations);
+            run("Java serialization, DLC data", data, false, iterations);
+            // Requests are not Serializable so only the codec can carry them
+            run("EnvelopeCodec, key ring requests", requestEnvelope(), true, iterations);
+        }
+    }
+
+    private static void run(String name, Envelope e, boolean codec, int iterations) throws Exception {
+        byte[] encoded = codec ? EnvelopeCodec.encode(e) : serialize(e);
+        long encode = System.nanoTime();
+        for(int i = 0; i < iterations; i++) sink = codec ? EnvelopeCodec.encode(e) : serialize(e);
+        encode = (System.nanoTime() - encode) / iterations;
+        long decode = System.nanoTime();
+        for(int i = 0; i < iterations; i++) sink = codec ? EnvelopeCodec.decode(encoded) : deserialize(encoded);
+        decode = (System.nanoTime() - decode) / iterations;
+        System.out.println(String.format("%-34s %8d %10d %10d", name, encoded.length, encode, decode));
+    }
+
+    private static Envelope dataEnvelope() {
+        Envelope e = Envelope.documentFactory();
+        e.setClient(1234567890L);
+        e.setRoute(new EnvelopeCodecTest.TestRoute("io.onemfive.core.keyring.KeyRingService", "SIGN"));
+        Map<String,Object> data = new HashMap<>();
+        data.put("alias", "alice");
+        data.put("keyRingUsername", "alice");
+        data.put("contentToSign", new byte[256]);
+        data.put("algorithm", EncryptionAlgorithm.AES256);
+        data.put("armored", Boolean.TRUE);
+        data.put("statusCode", -1);
+        DocumentMessage m = new DocumentMessage();
+        m.data.add(data);
+        e.setMessage(m);
+        return e;
+    }
+
+    private static Envelope requestEnvelope() {
+        Envelope e = Envelope.documentFactory();
+        e.setClient(1234567890L);
+        e.setRoute(new EnvelopeCodecTest.TestRoute("io.onemfive.core.keyring.KeyRingService", "ENCRYPT"));
+        SignRequest sign = new SignRequest();
+        sign.alias = "alice";
+        sign.keyRingUsername = "alice";
+        sign.contentToSign = new byte[256];
+        EncryptRequest encrypt = new EncryptRequest();
+        encrypt.publicKeyAlias = "bob";
+        encrypt.algorithm = EncryptionAlgorithm.AES256;
+        Map<String,Object> data = new HashMap<>();
+        data.put(SignRequest.class.getName(), sign);
+        data.put(EncryptRequest.class.getName(), encrypt);
+        DocumentMessage m = new DocumentMessage();
+        m.data.add(data);
+        e.setMessage(m);
+        return e;
+    }
+
+    private static byte[] serialize(Envelope e) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(1024);
+        ObjectOutputStream out = new ObjectOutputStream(bOut);
+        out.writeObject(e);
+        out.close();
+        return bOut.toByteArray();
+    }
+
+    private static Object deserialize(byte[] b) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
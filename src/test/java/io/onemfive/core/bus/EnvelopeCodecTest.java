@@ -0,0 +1,199 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.ServiceRequest;
+import io.onemfive.core.keyring.EncryptRequest;
+import io.onemfive.core.keyring.SignRequest;
+import io.onemfive.data.DocumentMessage;
+import io.onemfive.data.EncryptionAlgorithm;
+import io.onemfive.data.Envelope;
+import io.onemfive.data.Route;
+import io.onemfive.data.RoutingSlip;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for EnvelopeCodec.
+ *
+ * @author objectorange
+ */
+public class EnvelopeCodecTest {
+
+    public static class TestRoute implements Route {
+        private final String service;
+        private final String operation;
+        private boolean routed;
+
+        public TestRoute(String service, String operation) {
+            this.service = service;
+            this.operation = operation;
+        }
+
+        @Override
+        public String getService() {
+            return service;
+        }
+
+        @Override
+        public String getOperation() {
+            return operation;
+        }
+
+        @Override
+        public boolean routed() {
+            return routed;
+        }
+
+        @Override
+        public void setRouted(boolean routed) {
+            this.routed = routed;
+        }
+    }
+
+    public static class UnregisteredRequest extends ServiceRequest {
+        public String value;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Envelope e = Envelope.documentFactory();
+        e.setClient(Long.MAX_VALUE);
+        e.setReplyToClient(true);
+        e.setCommandPath("/keyring/sign");
+        TestRoute route = new TestRoute("io.onemfive.core.keyring.KeyRingService", "SIGN");
+        route.setRouted(true);
+        e.setRoute(route);
+        e.setHeader("ERRORS", new ArrayList<>(Arrays.asList("one", "two")));
+
+        SignRequest sign = new SignRequest();
+        sign.contentToSign = new byte[]{1, 2, 3};
+        sign.alias = "alice";
+        sign.statusCode = SignRequest.ALIAS_REQUIRED;
+        EncryptRequest encrypt = new EncryptRequest();
+        encrypt.algorithm = EncryptionAlgorithm.AES256;
+        encrypt.armored = false;
+        encrypt.exception = new IllegalStateException("kept");
+        Map<String,Object> data = new HashMap<>();
+        data.put(SignRequest.class.getName(), sign);
+        data.put(EncryptRequest.class.getName(), encrypt);
+        data.put("negative", -1L);
+        data.put("int", Integer.MIN_VALUE);
+        data.put("double", 0.5d);
+        data.put("set", new HashSet<>(Arrays.asList("a", "b")));
+        data.put("null", null);
+        DocumentMessage m = new DocumentMessage();
+        m.data.add(data);
+        e.setMessage(m);
+
+        byte[] b = EnvelopeCodec.encode(e);
+        Envelope d = EnvelopeCodec.decode(b);
+        assert d.getId().equals(e.getId());
+        assert d.getClient() == Long.MAX_VALUE && d.replyToClient();
+        assert "/keyring/sign".equals(d.getCommandPath());
+        Route r = d.getRoute();
+        assert r instanceof TestRoute && r.getService().equals(route.getService()) && r.getOperation().equals("SIGN") && r.routed();
+        assert Arrays.asList("one", "two").equals(d.getHeader("ERRORS"));
+
+        Map<String,Object> dd = ((DocumentMessage)d.getMessage()).data.get(0);
+        SignRequest s = (SignRequest)dd.get(SignRequest.class.getName());
+        assert Arrays.equals(s.contentToSign, sign.contentToSign) && "alice".equals(s.alias);
+        assert s.statusCode == SignRequest.ALIAS_REQUIRED && s.signature == null;
+        EncryptRequest en = (EncryptRequest)dd.get(EncryptRequest.class.getName());
+        assert en.algorithm == EncryptionAlgorithm.AES256 && !en.armored && !en.passphraseOnly;
+        assert en.exception instanceof IllegalStateException && "kept".equals(en.exception.getMessage());
+        assert dd.get("negative").equals(-1L) && dd.get("int").equals(Integer.MIN_VALUE) && dd.get("double").equals(0.5d);
+        assert dd.get("set").equals(new HashSet<>(Arrays.asList("a", "b")));
+        assert dd.containsKey("null") && dd.get("null") == null;
+
+        // Decodes in place from a larger buffer
+        ByteBuffer buffer = ByteBuffer.allocateDirect(b.length + 10);
+        buffer.put(b).put(new byte[10]).flip();
+        assert EnvelopeCodec.decode(buffer).getId().equals(e.getId());
+        assert buffer.remaining() == 10;
+    }
+
+    @Test
+    public void routingSlip() throws Exception {
+        Envelope e = Envelope.documentFactory();
+        RoutingSlip slip = e.getDynamicRoutingSlip();
+        slip.addRoute(new TestRoute("Second", "B"));
+        slip.addRoute(new TestRoute("First", "A"));
+        slip.start();
+        RoutingSlip d = EnvelopeCodec.decode(EnvelopeCodec.encode(e)).getDynamicRoutingSlip();
+        assert d.inProgress() && d.numberRemainingRoutes() == 2;
+        assert d.nextRoute().getService().equals("First") && d.nextRoute().getService().equals("Second");
+        // Left as it was
+        assert slip.numberRemainingRoutes() == 2 && slip.peekAtNextRoute().getService().equals("First");
+    }
+
+    @Test
+    public void refusesUnknownClasses() throws Exception {
+        // Serialized classes outside the allowed ones
+        Envelope e = Envelope.documentFactory();
+        e.setHeader("counter", new AtomicInteger(1));
+        byte[] b = EnvelopeCodec.encode(e);
+        try {
+            EnvelopeCodec.decode(b);
+            assert false;
+        } catch (IOException ex) {
+            assert ex.getMessage().contains("not allowed") : ex.getMessage();
+        }
+
+        // Requests not registered are not encoded field by field, nor decoded if encoded so elsewhere
+        e = Envelope.documentFactory();
+        e.setHeader("request", new UnregisteredRequest());
+        try {
+            EnvelopeCodec.encode(e);
+            assert false;
+        } catch (IOException ex) {
+            // not serializable either
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Version, no flags, one header named r holding a request of no fields
+        out.write(new byte[] {EnvelopeCodec.VERSION, 0, 1, 1, 'r', 14});
+        byte[] name = UnregisteredRequest.class.getName().getBytes(StandardCharsets.UTF_8);
+        out.write(name.length);
+        out.write(name);
+        out.write(0);
+        try {
+            EnvelopeCodec.decode(out.toByteArray());
+            assert false;
+        } catch (IOException ex) {
+            assert ex.getMessage().contains("not registered") : ex.getMessage();
+        }
+    }
+
+    @Test
+    public void large() throws Exception {
+        Envelope e = Envelope.documentFactory();
+        e.setHeader("body", new byte[100 * 1024]);
+        byte[] b = EnvelopeCodec.encode(e);
+        assert b.length > 100 * 1024;
+        assert ((byte[])EnvelopeCodec.decode(b).getHeader("body")).length == 100 * 1024;
+    }
+
+    @Test
+    public void malformed() throws Exception {
+        Envelope e = Envelope.documentFactory();
+        e.setHeader("text", "hello");
+        byte[] b = EnvelopeCodec.encode(e);
+        try {
+            EnvelopeCodec.decode(b, 0, b.length - 1);
+            assert false;
+        } catch (IOException ex) {
+            // truncated
+        }
+        b[0] = 99;
+        try {
+            EnvelopeCodec.decode(b);
+            assert false;
+        } catch (IOException ex) {
+            // unknown version
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.BaseService;
+import io.onemfive.core.MessageProducer;
+import io.onemfive.data.Envelope;
+import io.onemfive.data.util.DLC;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for LazyServices.
+ *
+ * @author objectorange
+ */
+public class LazyServicesTest {
+
+    public static class Lazy extends BaseService {
+        private final long startMs;
+        private final boolean starts;
+        final List<Long> received = new CopyOnWriteArrayList<>();
+        final AtomicInteger startCount = new AtomicInteger();
+        final AtomicInteger shutdownCount = new AtomicInteger();
+
+        Lazy(long startMs, boolean starts) {
+            this.startMs = startMs;
+            this.starts = starts;
+            replyOnCompletion = true;
+        }
+
+        @Override
+        public Set<String> getDependencies() {
+            return new HashSet<>();
+        }
+
+        @Override
+        public boolean start(Properties p) {
+            startCount.incrementAndGet();
+            try {
+                Thread.sleep(startMs);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return starts;
+        }
+
+        @Override
+        public void handleDocument(Envelope envelope) {
+            received.add(envelope.getId());
+        }
+
+        @Override
+        public void handleHeaders(Envelope envelope) {
+            received.add(envelope.getId());
+        }
+
+        @Override
+        public boolean shutdown() {
+            shutdownCount.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static final String NAME = Lazy.class.getName();
+
+    private Map<String,BaseService> running;
+    private ServiceStartup startup;
+    private LazyServices lazyServices;
+    private Lazy service;
+    // Envelopes returned to their clients
+    private final List<Envelope> replies = new CopyOnWriteArrayList<>();
+
+    // Routes envelopes sent through the bus as a worker would
+    private final MessageProducer bus = new MessageProducer() {
+        @Override
+        public boolean send(Envelope e) {
+            if(e.replyToClient()) {
+                replies.add(e);
+            } else if(lazyServices.enterOrHold(NAME, e)) {
+                try {
+                    service.receive(e);
+                } finally {
+                    lazyServices.exit(NAME);
+                }
+            }
+            return true;
+        }
+    };
+
+    @Before
+    public void init() {
+        running = new ConcurrentHashMap<>();
+        startup = new ServiceStartup(running, new Properties(), 2, 1000);
+    }
+
+    @After
+    public void teardown() {
+        lazyServices.shutdown();
+        startup.shutdown();
+    }
+
+    @Test
+    public void startsOnFirstUse() throws Exception {
+        service = new Lazy(200, true);
+        lazyServices = new LazyServices(running, startup, bus, 10, 0);
+        lazyServices.add(NAME, service);
+        assert lazyServices.isLazy(NAME) && lazyServices.isIdle(NAME);
+        assert service.startCount.get() == 0;
+
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            Envelope e = Envelope.documentFactory();
+            ids.add(e.getId());
+            assert !lazyServices.enterOrHold(NAME, e);
+        }
+        assert !running.containsKey(NAME);
+        awaitSize(service.received, 3);
+        // Held envelopes delivered in order once started, which happened once
+        assert service.received.equals(ids);
+        assert service.startCount.get() == 1;
+        assert running.get(NAME) == service && !lazyServices.isIdle(NAME);
+
+        assert lazyServices.enterOrHold(NAME, Envelope.documentFactory());
+        lazyServices.exit(NAME);
+    }
+
+    @Test
+    public void passivatesWhenIdle() throws Exception {
+        service = new Lazy(0, true);
+        lazyServices = new LazyServices(running, startup, bus, 10, 100);
+        lazyServices.add(NAME, service);
+        assert !lazyServices.enterOrHold(NAME, Envelope.documentFactory());
+        awaitSize(service.received, 1);
+
+        // Not passivated while in use
+        assert lazyServices.enterOrHold(NAME, Envelope.documentFactory());
+        Thread.sleep(300);
+        assert service.shutdownCount.get() == 0;
+        lazyServices.exit(NAME);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while(service.shutdownCount.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assert service.shutdownCount.get() == 1;
+        assert !running.containsKey(NAME) && lazyServices.isIdle(NAME);
+
+        // Started again by the next envelope
+        assert !lazyServices.enterOrHold(NAME, Envelope.documentFactory());
+        awaitSize(service.received, 2);
+        assert service.startCount.get() == 2 && running.containsKey(NAME);
+    }
+
+    @Test
+    public void dropsWhenFullOrFailed() throws Exception {
+        service = new Lazy(200, false);
+        lazyServices = new LazyServices(running, startup, bus, 2, 0);
+        lazyServices.add(NAME, service);
+        List<Envelope> held = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            Envelope e = Envelope.documentFactory();
+            e.setClient(1L);
+            held.add(e);
+            assert !lazyServices.enterOrHold(NAME, e);
+        }
+        // Returned to its client at once when the queue is full
+        Envelope overflow = Envelope.documentFactory();
+        overflow.setClient(1L);
+        assert !lazyServices.enterOrHold(NAME, overflow);
+        assert DLC.getErrorMessages(overflow).size() == 1;
+        assert replies.size() == 1 && replies.get(0) == overflow && overflow.replyToClient();
+
+        // Failed start returns those held to their clients and a later envelope tries again
+        awaitSize(replies, 3);
+        for(Envelope e : held) {
+            assert replies.contains(e) && DLC.getErrorMessages(e).get(0).contains("failed to start") : DLC.getErrorMessages(e);
+        }
+        // Idle again before those held are returned, so this one begins a second attempt
+        Envelope retry = Envelope.documentFactory();
+        retry.setClient(1L);
+        assert !lazyServices.enterOrHold(NAME, retry);
+        // Returned once that attempt has failed too
+        awaitSize(replies, 4);
+        assert replies.get(3) == retry && DLC.getErrorMessages(retry).get(0).contains("failed to start");
+        assert service.startCount.get() == 2;
+        assert service.received.isEmpty() && !running.containsKey(NAME);
+    }
+
+    private static void awaitSize(List<?> l, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while(l.size() < size && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assert l.size() == size : l.size();
+    }
+}
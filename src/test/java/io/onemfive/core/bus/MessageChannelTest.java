@@ -0,0 +1,90 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.data.Envelope;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+
+/**
+ * Tests for MessageChannel.
+ *
+ * @author objectorange
+ */
+public class MessageChannelTest {
+
+    @Test
+    public void drainsUntilWorkersDone() throws Exception {
+        final MessageChannel channel = new MessageChannel(10);
+        channel.start(new Properties());
+        assert channel.send(Envelope.documentFactory());
+        assert !channel.idle();
+        final Envelope taken = channel.receive();
+        // Queue empty but envelope still with a worker
+        assert taken != null && !channel.idle();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {}
+                channel.done();
+            }
+        }).start();
+        long start = System.currentTimeMillis();
+        assert channel.drain(start + 2000);
+        long took = System.currentTimeMillis() - start;
+        assert took >= 150 && took < 1000 : took;
+    }
+
+    @Test
+    public void drainHonoursDeadline() {
+        MessageChannel channel = new MessageChannel(10);
+        channel.start(new Properties());
+        Envelope e = Envelope.documentFactory();
+        assert channel.send(e);
+        long start = System.currentTimeMillis();
+        assert !channel.shutdown();
+        long took = System.currentTimeMillis() - start;
+        // Waits the full 3 seconds rather than giving up after one pass
+        assert took >= 2900 && took < 4000 : took;
+        assert !channel.send(Envelope.documentFactory());
+        assert channel.size() == 0;
+    }
+
+    @Test
+    public void persistAndRestore() throws Exception {
+        File file = File.createTempFile("undelivered", null);
+        assert file.delete();
+        List<Envelope> envelopes = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            Envelope e = Envelope.documentFactory();
+            e.setHeader("n", i);
+            envelopes.add(e);
+        }
+        assert MessageChannel.persist(envelopes.subList(0, 2), file).isEmpty();
+        // Appended to those not yet restored
+        assert MessageChannel.persist(envelopes.subList(2, 3), file).isEmpty();
+        // Truncated tail, e.g. from a crash while persisting
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 1, 0, 1});
+        }
+        List<Envelope> restored = MessageChannel.restore(file);
+        assert restored.size() == 3;
+        for(int i = 0; i < 3; i++) {
+            assert restored.get(i).getId().equals(envelopes.get(i).getId());
+            assert restored.get(i).getHeader("n").equals(i);
+        }
+        assert !file.exists();
+        assert MessageChannel.restore(file).isEmpty();
+
+        // Corrupt length far beyond the file is not allocated
+        assert MessageChannel.persist(envelopes.subList(0, 1), file).isEmpty();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0x7f, -1, -1, -1, 0});
+        }
+        restored = MessageChannel.restore(file);
+        assert restored.size() == 1 && restored.get(0).getId().equals(envelopes.get(0).getId());
+    }
+}
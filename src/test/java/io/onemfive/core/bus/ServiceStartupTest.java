@@ -0,0 +1,194 @@
+package io.onemfive.core.bus;
+
+import io.onemfive.core.BaseService;
+import io.onemfive.core.ServiceStartupReport;
+import io.onemfive.core.admin.AdminService;
+import io.onemfive.core.infovault.InfoVaultService;
+import io.onemfive.core.keyring.KeyRingService;
+import io.onemfive.core.notification.NotificationService;
+import io.onemfive.core.orchestration.OrchestrationService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests for ServiceStartup.
+ *
+ * @author objectorange
+ */
+public class ServiceStartupTest {
+
+    // Starts, ends of starts and shutdowns of the test services in the order they happened
+    private static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    public static class TestService extends BaseService {
+        private final long startMs;
+        private final boolean starts;
+        private final Set<String> dependencies = new HashSet<>();
+
+        TestService(long startMs, boolean starts, Class... dependencies) {
+            this.startMs = startMs;
+            this.starts = starts;
+            for(Class c : dependencies) this.dependencies.add(c.getName());
+        }
+
+        @Override
+        public Set<String> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public boolean start(Properties p) {
+            events.add("start " + getClass().getSimpleName());
+            try {
+                Thread.sleep(startMs);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            events.add("started " + getClass().getSimpleName());
+            return starts;
+        }
+
+        @Override
+        public boolean shutdown() {
+            events.add("shutdown " + getClass().getSimpleName());
+            return true;
+        }
+    }
+
+    public static class Vault extends TestService { public Vault() { super(100, true); } }
+    public static class KeyRing extends TestService { public KeyRing() { super(200, true, Vault.class); } }
+    public static class Notification extends TestService { public Notification() { super(200, true, Vault.class); } }
+    public static class Admin extends TestService { public Admin() { super(0, true, KeyRing.class, Notification.class); } }
+    public static class Slow extends TestService { public Slow() { super(5000, true, Vault.class); } }
+    // Ignores the interrupt when abandoned, as a start blocked in I/O would
+    public static class Late extends TestService {
+        public Late() { super(0, true); }
+        @Override
+        public boolean start(Properties p) {
+            events.add("start Late");
+            long end = System.currentTimeMillis() + 800;
+            boolean interrupted = false;
+            while(System.currentTimeMillis() < end) {
+                try {
+                    Thread.sleep(end - System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            events.add("started Late");
+            if(interrupted) Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+    public static class Failing extends TestService { public Failing() { super(0, false, Vault.class); } }
+    public static class NeedsSlow extends TestService { public NeedsSlow() { super(0, true, Slow.class); } }
+    public static class NeedsFailing extends TestService { public NeedsFailing() { super(0, true, Failing.class); } }
+    public static class Missing extends TestService { public Missing() { super(0, true, Object.class); } }
+    public static class CycleA extends TestService { public CycleA() { super(0, true, CycleB.class); } }
+    public static class CycleB extends TestService { public CycleB() { super(0, true, CycleA.class); } }
+
+    private Map<String,BaseService> running;
+    private ServiceStartup startup;
+
+    @Before
+    public void init() {
+        events.clear();
+        running = new ConcurrentHashMap<>();
+        startup = new ServiceStartup(running, new Properties(), 4, 500);
+    }
+
+    @After
+    public void teardown() {
+        startup.shutdown();
+    }
+
+    @Test
+    public void wavesInParallel() {
+        Map<String,BaseService> services = services(new Vault(), new KeyRing(), new Notification(), new Admin());
+        assert startup.startAll(services);
+        assert running.size() == 4;
+        // Each wave starts once the one before has started; KeyRing and Notification start together
+        assert before("started Vault", "start KeyRing") && before("started Vault", "start Notification") : events;
+        assert before("start KeyRing", "started Notification") && before("start Notification", "started KeyRing") : events;
+        assert before("started KeyRing", "start Admin") && before("started Notification", "start Admin") : events;
+        Map<String,ServiceStartupReport> reports = reports();
+        assert reports.get(Vault.class.getName()).wave == 0;
+        assert reports.get(KeyRing.class.getName()).wave == 1 && reports.get(Notification.class.getName()).wave == 1;
+        assert reports.get(Admin.class.getName()).wave == 2;
+        assert reports.get(KeyRing.class.getName()).durationMs >= 200;
+        for(ServiceStartupReport r : reports.values()) {
+            assert r.outcome == ServiceStartupReport.Outcome.STARTED;
+        }
+    }
+
+    @Test
+    public void failures() {
+        Map<String,BaseService> services = services(new Vault(), new Slow(), new Failing(), new NeedsSlow(),
+                new NeedsFailing(), new Missing(), new CycleA(), new CycleB());
+        long start = System.currentTimeMillis();
+        assert !startup.startAll(services);
+        assert System.currentTimeMillis() - start < 2000;
+        Map<String,ServiceStartupReport> reports = reports();
+        assert reports.size() == services.size();
+        assert reports.get(Vault.class.getName()).outcome == ServiceStartupReport.Outcome.STARTED;
+        assert reports.get(Slow.class.getName()).outcome == ServiceStartupReport.Outcome.TIMED_OUT;
+        assert reports.get(Failing.class.getName()).outcome == ServiceStartupReport.Outcome.FAILED;
+        assert reports.get(NeedsSlow.class.getName()).outcome == ServiceStartupReport.Outcome.SKIPPED;
+        assert reports.get(NeedsFailing.class.getName()).outcome == ServiceStartupReport.Outcome.SKIPPED;
+        assert reports.get(Missing.class.getName()).outcome == ServiceStartupReport.Outcome.SKIPPED;
+        assert reports.get(CycleA.class.getName()).outcome == ServiceStartupReport.Outcome.SKIPPED;
+        assert "dependency cycle".equals(reports.get(CycleB.class.getName()).reason);
+        assert running.keySet().equals(Collections.singleton(Vault.class.getName()));
+    }
+
+    @Test
+    public void abandonedShutDownOnceStarted() throws Exception {
+        assert !startup.startAll(services(new Late()));
+        assert reports().get(Late.class.getName()).outcome == ServiceStartupReport.Outcome.TIMED_OUT;
+        for(int i = 0; i < 100 && !events.contains("shutdown Late"); i++) {
+            Thread.sleep(20);
+        }
+        assert before("started Late", "shutdown Late") : events;
+        assert running.isEmpty();
+    }
+
+    @Test
+    public void busRunningOnceStartupFinishes() throws Exception {
+        // Core services left to start on first use, so none report RUNNING to the bus
+        Properties p = new Properties();
+        p.setProperty(ServiceBus.PROP_LAZY_SERVICES, InfoVaultService.class.getName()+","+OrchestrationService.class.getName()
+                +","+KeyRingService.class.getName()+","+NotificationService.class.getName()+","+AdminService.class.getName());
+        p.setProperty(ServiceBus.PROP_PERSIST_UNDELIVERED, "false");
+        ServiceBus bus = new ServiceBus(p, null);
+        try {
+            assert bus.start(p);
+            for(int i = 0; i < 100 && bus.getStatus() == ServiceBus.Status.Starting; i++) {
+                Thread.sleep(20);
+            }
+            assert bus.getStatus() == ServiceBus.Status.Running : bus.getStatus();
+        } finally {
+            bus.shutdown();
+        }
+    }
+
+    private static boolean before(String first, String second) {
+        int i = events.indexOf(first);
+        return i >= 0 && i < events.indexOf(second);
+    }
+
+    private static Map<String,BaseService> services(BaseService... services) {
+        Map<String,BaseService> m = new HashMap<>();
+        for(BaseService s : services) m.put(s.getClass().getName(), s);
+        return m;
+    }
+
+    private Map<String,ServiceStartupReport> reports() {
+        Map<String,ServiceStartupReport> m = new HashMap<>();
+        for(ServiceStartupReport r : startup.getTimeline()) m.put(r.serviceClassName, r);
+        return m;
+    }
+}
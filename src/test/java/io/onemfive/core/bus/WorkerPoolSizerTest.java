@@ -0,0 +1,66 @@
+package io.onemfive.core.bus;
+
+import org.junit.Test;
+
+/**
+ * Tests for WorkerPoolSizer.
+ *
+ * @author objectorange
+ */
+public class WorkerPoolSizerTest {
+
+    private static final long PERIOD = 500 * 1000000L;
+
+    @Test
+    public void growsWhileQueueing() {
+        WorkerPoolSizer sizer = new WorkerPoolSizer(2, 1000, 4, 0, 20);
+        // 2 workers busy all period on 10ms envelopes, 200/s, with 100 queued: 500ms wait
+        int next = sizer.next(2, 100, 2 * PERIOD, PERIOD / 10, 2, 100, PERIOD);
+        assert sizer.getQueueWaitMs() == 500 && sizer.getServiceTimeMs() == 10;
+        // At most doubles
+        assert next == 4 : next;
+        // Wait under target holds the size
+        assert sizer.next(4, 400, 4 * PERIOD, 4 * PERIOD / 10, 4, 2, PERIOD) == 4;
+    }
+
+    @Test
+    public void shrinksWhenIdle() {
+        WorkerPoolSizer sizer = new WorkerPoolSizer(2, 1000, 100, 0, 20);
+        // 16 workers, about one busy
+        int size = 16;
+        size = sizer.next(size, 50, PERIOD, PERIOD, 1, 0, PERIOD);
+        assert size == 12 : size;
+        for(int i = 0; i < 10; i++) size = sizer.next(size, 50, PERIOD, PERIOD, 1, 0, PERIOD);
+        // One busy plus headroom
+        assert size == 2 : size;
+        // Never under the minimum
+        assert sizer.next(2, 0, 0, 0, 0, 0, PERIOD) == 2;
+    }
+
+    @Test
+    public void budgets() {
+        // Compute-bound: on CPU all the time they are busy so limited to the cores budgeted
+        WorkerPoolSizer cpu = new WorkerPoolSizer(1, 1000, 2, 0, 20);
+        int size = 2;
+        for(int i = 0; i < 10; i++) size = cpu.next(size, 100, size * PERIOD, size * PERIOD, size, 1000, PERIOD);
+        assert cpu.getBlockingRatio() == 0;
+        assert size == 2 : size;
+
+        // I/O-bound: on CPU a tenth of the time so ten workers per core
+        WorkerPoolSizer io = new WorkerPoolSizer(1, 1000, 2, 0, 20);
+        size = 2;
+        for(int i = 0; i < 10; i++) size = io.next(size, 100, size * PERIOD, size * PERIOD / 10, size, 1000, PERIOD);
+        assert size == 20 : size;
+
+        // Memory budget of 8 workers
+        WorkerPoolSizer memory = new WorkerPoolSizer(1, 1000, 2, 8 * WorkerPoolSizer.WORKER_MEMORY_MB, 20);
+        size = 2;
+        for(int i = 0; i < 10; i++) size = memory.next(size, 100, size * PERIOD, size * PERIOD / 10, size, 1000, PERIOD);
+        assert size == 8 : size;
+
+        // Stuck workers completing nothing with envelopes queued still grow the pool
+        WorkerPoolSizer stuck = new WorkerPoolSizer(1, 1000, 2, 0, 20);
+        assert stuck.next(2, 0, 0, -1, 2, 10, PERIOD) == 3;
+        assert stuck.getBlockingRatio() < 0;
+    }
+}
@@ -0,0 +1,80 @@
+package io.onemfive.core.client;
+
+import io.onemfive.core.MessageProducer;
+import io.onemfive.data.Envelope;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip latency and throughput of the shared memory IPC transport against a node that
+ * answers every request at once, so only the transport and the client are measured.
+ *
+ * Not run as part of the build; run with:
+ * java -cp target/classes:target/test-classes:... io.onemfive.core.client.IPCBenchmark [requests]
+ *
+ * @author objectorange
+ */
+public class IPCBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File dir = Files.createTempDirectory("1m5-ipc-bench").toFile();
+        final ClientAppManager manager = new ClientAppManager(false);
+        IPCServer server = new IPCServer(dir, manager, new MessageProducer() {
+            @Override
+            public boolean send(Envelope e) {
+                manager.notify(e);
+                return true;
+            }
+        });
+        server.start();
+        IPCClient client = IPCClient.connect(dir);
+        try {
+            // Warm up
+            for(int i = 0; i < requests / 10; i++) {
+                client.requestAsync(Envelope.documentFactory()).get(5, TimeUnit.SECONDS);
+            }
+
+            long[] latencies = new long[requests];
+            for(int i = 0; i < requests; i++) {
+                long start = System.nanoTime();
+                client.requestAsync(Envelope.documentFactory()).get(5, TimeUnit.SECONDS);
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            System.out.println(String.format("round trip us: p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                    latencies[requests / 2] / 1000.0,
+                    latencies[(int)(requests * 0.99)] / 1000.0,
+                    latencies[(int)(requests * 0.999)] / 1000.0,
+                    latencies[requests - 1] / 1000.0));
+
+            // Pipelined, up to 1000 outstanding
+            CompletableFuture[] window = new CompletableFuture[1000];
+            long start = System.nanoTime();
+            for(int i = 0; i < requests; i++) {
+                int slot = i % window.length;
+                if(window[slot] != null)
+                    window[slot].get(5, TimeUnit.SECONDS);
+                window[slot] = client.requestAsync(Envelope.documentFactory());
+            }
+            for(CompletableFuture f : window) {
+                if(f != null) f.get(5, TimeUnit.SECONDS);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("throughput: %.0f requests/s", requests / seconds));
+        } finally {
+            client.close();
+            server.stop();
+            manager.stop();
+            File[] files = dir.listFiles();
+            if(files != null) {
+                for(File f : files) f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
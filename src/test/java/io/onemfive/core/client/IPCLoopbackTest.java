@@ -0,0 +1,176 @@
+package io.onemfive.core.client;
+
+import io.onemfive.core.MessageProducer;
+import io.onemfive.data.Envelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the shared memory IPC transport with the node and its client in one JVM.
+ *
+ * @author objectorange
+ */
+public class IPCLoopbackTest {
+
+    private File dir;
+    private ClientAppManager manager;
+    private IPCServer server;
+
+    @Before
+    public void init() throws Exception {
+        dir = Files.createTempDirectory("1m5-ipc").toFile();
+        manager = new ClientAppManager(false);
+        // Stands in for the bus: every request is answered straight away
+        server = new IPCServer(dir, manager, new MessageProducer() {
+            @Override
+            public boolean send(Envelope e) {
+                e.setHeader("echoed", Boolean.TRUE);
+                manager.notify(e);
+                return true;
+            }
+        }, 1000);
+        assert server.start();
+    }
+
+    @After
+    public void teardown() {
+        server.stop();
+        manager.stop();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void ring() throws Exception {
+        MappedRing ring = new MappedRing(ByteBuffer.allocate(MappedRing.regionLength(64)), 0, 64);
+        assert ring.maxRecordLength() == 28;
+        assert ring.poll() == null;
+        // Records of 24 bytes force padding at the wrap
+        for(int i = 0; i < 10; i++) {
+            byte[] b = new byte[20];
+            b[0] = (byte)i;
+            assert ring.offer(b, 0, b.length);
+            assert ring.offer(b, 0, b.length);
+            assert !ring.offer(b, 0, b.length);
+            assert ring.poll()[0] == i;
+            assert ring.poll()[0] == i;
+            assert ring.isEmpty();
+        }
+    }
+
+    @Test
+    public void orderedAccess() {
+        ByteBuffer mapped = ByteBuffer.allocateDirect(64).order(ByteOrder.nativeOrder());
+        MappedMemory memory = new MappedMemory(mapped);
+        memory.putLongRelease(8, 0x0102030405060708L);
+        memory.putIntRelease(20, 42);
+        // Same words seen through the buffer
+        assert mapped.getLong(8) == 0x0102030405060708L && mapped.getInt(20) == 42;
+        assert memory.getLongAcquire(8) == 0x0102030405060708L && memory.getIntAcquire(20) == 42;
+        try {
+            memory.getLongAcquire(60);
+            assert false;
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void corruptRing() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(MappedRing.regionLength(64));
+        MappedRing ring = new MappedRing(buffer, 0, 64);
+        assert ring.offer(new byte[8], 0, 8);
+        // Length written by a misbehaving peer runs past the ring
+        buffer.putInt(MappedRing.HEADER_LENGTH, 1000);
+        try {
+            ring.peek();
+            assert false;
+        } catch (MappedRing.CorruptRingException e) {
+            // expected
+        }
+        buffer.putInt(MappedRing.HEADER_LENGTH, -7);
+        try {
+            ring.peek();
+            assert false;
+        } catch (MappedRing.CorruptRingException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        IPCClient client = IPCClient.connect(dir, 1 << 16, 5000, 5000);
+        try {
+            assert server.connections() == 1;
+            // Registered for its replies only, not as an embedded client
+            assert manager.numberRegistered() == 1 && manager.getRegisteredClient(client.getId()) == null;
+            for(int i = 0; i < 100; i++) {
+                Envelope e = Envelope.documentFactory();
+                e.setHeader("request", i);
+                CompletableFuture<Envelope> f = client.requestAsync(e);
+                Envelope reply = f.get(2, TimeUnit.SECONDS);
+                assert reply.getId().equals(e.getId());
+                assert reply.getClient().equals(client.getId());
+                assert Integer.valueOf(i).equals(reply.getHeader("request")) && reply.getHeader("echoed") != null;
+            }
+            assert client.pendingRequests() == 0;
+        } finally {
+            client.close();
+        }
+        // Node notices and forgets the client
+        long deadline = System.currentTimeMillis() + 2000;
+        while(server.connections() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert server.connections() == 0;
+        assert manager.numberRegistered() == 0;
+    }
+
+    @Test
+    public void nodeStopClosesClient() throws Exception {
+        IPCClient client = IPCClient.connect(dir, 1 << 16, 5000, 5000);
+        server.stop();
+        long deadline = System.currentTimeMillis() + 2000;
+        while(client.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert !client.isOpen();
+        assert client.requestAsync(Envelope.documentFactory()).isCompletedExceptionally();
+    }
+
+    @Test
+    public void reapsDeadClient() throws Exception {
+        // A client whose process died: accepted, then never heard from again
+        IPCConnection dead = IPCConnection.create(dir, 1 << 12);
+        long deadline = System.currentTimeMillis() + 2000;
+        while(dead.state() == IPCConnection.STATE_REQUESTED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert dead.state() == IPCConnection.STATE_ACCEPTED;
+        IPCClient live = IPCClient.connect(dir, 1 << 16, 5000, 5000);
+        try {
+            deadline = System.currentTimeMillis() + 4000;
+            while(dead.getFile().exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assert !dead.getFile().exists();
+            assert dead.state() == IPCConnection.STATE_CLOSED;
+            // Heartbeating clients stay
+            assert server.connections() == 1 && live.isOpen();
+            assert live.requestAsync(Envelope.documentFactory()).get(2, TimeUnit.SECONDS) != null;
+        } finally {
+            live.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.onemfive.core.client;
+
+import io.onemfive.core.MessageProducer;
+import io.onemfive.core.util.TimerWheel;
+import io.onemfive.data.Envelope;
+import io.onemfive.data.ServiceCallback;
+import io.onemfive.data.util.DLC;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Tests for SimpleClient.
+ *
+ * @author objectorange
+ */
+public class SimpleClientTest {
+
+    private TimerWheel timerWheel;
+    private List<Envelope> sent;
+    private SimpleClient client;
+
+    @Before
+    public void init() {
+        timerWheel = new TimerWheel("SimpleClientTest", 10, 64);
+        sent = new ArrayList<>();
+        MessageProducer producer = new MessageProducer() {
+            @Override
+            public synchronized boolean send(Envelope e) {
+                sent.add(e);
+                return true;
+            }
+        };
+        client = new SimpleClient(1L, producer, timerWheel, 60 * 1000L, 2, 4);
+    }
+
+    @After
+    public void teardown() {
+        client.close("test done");
+        timerWheel.stop();
+    }
+
+    @Test
+    public void requestAsync() throws Exception {
+        Envelope e = Envelope.documentFactory();
+        CompletableFuture<Envelope> f = client.requestAsync(e);
+        assert sent.size() == 1 && e.getClient() == 1L;
+        assert client.pendingRequests() == 1 && timerWheel.pending() == 1;
+        client.notify(e);
+        assert f.get(1, TimeUnit.SECONDS) == e;
+        Thread.sleep(50);
+        assert client.pendingRequests() == 0 && timerWheel.pending() == 0;
+
+        // Late or duplicate replies are dropped
+        client.notify(e);
+
+        // Expiry
+        f = client.requestAsync(Envelope.documentFactory(), 50);
+        try {
+            f.get(2, TimeUnit.SECONDS);
+            assert false;
+        } catch (ExecutionException ex) {
+            assert ex.getCause() instanceof TimeoutException;
+        }
+        assert client.pendingRequests() == 0;
+
+        // Cancellation releases the claim check and its deadline
+        f = client.requestAsync(Envelope.documentFactory());
+        assert f.cancel(true);
+        assert client.pendingRequests() == 0 && timerWheel.pending() == 0;
+
+        // Bounded
+        client.requestAsync(Envelope.documentFactory());
+        client.requestAsync(Envelope.documentFactory());
+        f = client.requestAsync(Envelope.documentFactory());
+        assert f.isCompletedExceptionally() && client.pendingRequests() == 2;
+        client.close("test");
+        assert client.pendingRequests() == 0;
+    }
+
+    @Test
+    public void slowCallbackDoesNotBlockNotify() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(5);
+        client = new SimpleClient(1L, new MessageProducer() {
+            @Override
+            public boolean send(Envelope e) {
+                return true;
+            }
+        }, timerWheel, 60 * 1000L, 10, 4);
+        List<Envelope> requests = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            Envelope e = Envelope.documentFactory();
+            requests.add(e);
+            client.request(e, new ServiceCallback() {
+                @Override
+                public void reply(Envelope envelope) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    delivered.countDown();
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for(Envelope e : requests) {
+            client.notify(e);
+        }
+        assert System.currentTimeMillis() - start < 1000;
+        // One being delivered, four queued
+        assert client.pendingRequests() == 0 && client.queuedDeliveries() == 4;
+        release.countDown();
+        assert delivered.await(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void uniqueIdsAndNoFallback() {
+        ClientAppManager manager = new ClientAppManager(false);
+        Set<Long> ids = new HashSet<>();
+        for(int i = 0; i < 100; i++) {
+            assert ids.add(manager.getClient(false).getId());
+        }
+        assert manager.numberRegistered() == 100;
+        Envelope e = Envelope.documentFactory();
+        e.setClient(-1L);
+        manager.notify(e);
+        assert manager.getMisroutedReplies() == 1;
+        manager.stop();
+    }
+
+    @Test
+    public void callbackExpires() throws Exception {
+        final BlockingQueue<Envelope> replies = new LinkedBlockingQueue<>();
+        Envelope e = Envelope.documentFactory();
+        client = new SimpleClient(1L, new MessageProducer() {
+            @Override
+            public boolean send(Envelope e) {
+                return true;
+            }
+        }, timerWheel, 50, 10, 4);
+        ServiceCallback cb = new ServiceCallback() {
+            @Override
+            public void reply(Envelope envelope) {
+                replies.add(envelope);
+            }
+        };
+        // Reply never arrives: expired at the client's default deadline
+        client.request(e, cb);
+        assert client.pendingRequests() == 1;
+        Envelope reply = replies.poll(2, TimeUnit.SECONDS);
+        assert reply == e;
+        assert DLC.getErrorMessages(reply) != null && DLC.getErrorMessages(reply).size() == 1;
+        assert client.pendingRequests() == 0;
+
+        // Awaited without a deadline only when asked, and then neither bounded nor counted as pending
+        Envelope unbounded = Envelope.documentFactory();
+        client.request(unbounded, cb, 0);
+        assert replies.poll(200, TimeUnit.MILLISECONDS) == null;
+        assert client.pendingRequests() == 0;
+        for(int i = 0; i < 10; i++) client.request(Envelope.documentFactory(), cb, 60 * 1000L);
+        assert client.pendingRequests() == 10;
+        client.notify(unbounded);
+        assert replies.poll(2, TimeUnit.SECONDS) == unbounded;
+        assert client.pendingRequests() == 10;
+    }
+
+    @Test
+    public void boundedUnderContention() throws Exception {
+        client = new SimpleClient(1L, new MessageProducer() {
+            @Override
+            public boolean send(Envelope e) {
+                return true;
+            }
+        }, timerWheel, 60 * 1000L, 10, 4);
+        final CyclicBarrier start = new CyclicBarrier(8);
+        final ConcurrentLinkedQueue<CompletableFuture<Envelope>> futures = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (Exception e) {
+                        return;
+                    }
+                    for(int i = 0; i < 50; i++) {
+                        futures.add(client.requestAsync(Envelope.documentFactory()));
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread t : threads) t.join();
+        int rejected = 0;
+        for(CompletableFuture<Envelope> f : futures) {
+            if(f.isCompletedExceptionally()) rejected++;
+        }
+        assert client.pendingRequests() == 10 && rejected == 8 * 50 - 10 : client.pendingRequests()+" pending, "+rejected+" rejected";
+    }
+}
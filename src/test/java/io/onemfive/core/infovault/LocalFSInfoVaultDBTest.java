@@ -0,0 +1,302 @@
+package io.onemfive.core.infovault;
+
+import io.onemfive.core.util.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for LocalFSInfoVaultDB.
+ *
+ * @author objectorange
+ */
+public class LocalFSInfoVaultDBTest {
+
+    private static final String LABEL = "contacts";
+
+    private File baseDir;
+    private LocalFSInfoVaultDB db;
+
+    private IndexExtractor cityExtractor = new IndexExtractor() {
+        @Override
+        public String extract(String key, byte[] content) {
+            // content is "name|city"
+            String[] parts = new String(content).split("\\|");
+            return parts.length > 1 ? parts[1] : null;
+        }
+    };
+
+    @Before
+    public void init() {
+        baseDir = new File(System.getProperty("java.io.tmpdir"), "infovault-test-" + System.nanoTime());
+        Properties p = new Properties();
+        p.setProperty("1m5.dir.services.io.onemfive.core.infovault.InfoVaultService", baseDir.getAbsolutePath());
+        db = new LocalFSInfoVaultDB();
+        assert db.init(p);
+    }
+
+    @After
+    public void teardown() {
+        db.teardown();
+        FileUtil.rmdir(baseDir, false);
+    }
+
+    @Test
+    public void secondaryIndex() throws Exception {
+        db.save(LABEL, "alice", "Alice|Berlin".getBytes(), true);
+        db.registerIndex(LABEL, "city", cityExtractor);
+        db.save(LABEL, "bob", "Bob|Amsterdam".getBytes(), true);
+        db.save(LABEL, "carol", "Carol|Berlin".getBytes(), true);
+
+        List<String> berlin = db.findKeys(LABEL, "city", "Berlin");
+        assert berlin.size() == 2 && berlin.contains("alice") && berlin.contains("carol");
+
+        List<String> range = db.findKeys(LABEL, "city", "A", "B");
+        assert range.size() == 1 && range.contains("bob");
+
+        // Re-saving moves the record within the index
+        db.save(LABEL, "carol", "Carol|Cairo".getBytes(), true);
+        assert db.findKeys(LABEL, "city", "Berlin").size() == 1;
+        assert db.findKeys(LABEL, "city", "Cairo").contains("carol");
+
+        // Index survives a restart
+        db.teardown();
+        db.registerIndex(LABEL, "city", cityExtractor);
+        assert db.findKeys(LABEL, "city", "Cairo").contains("carol");
+        assert db.findKeys(LABEL, "city", null, null).size() == 3;
+    }
+
+    @Test
+    public void teardownCompactsIndexes() throws Exception {
+        assert db.getStatus() == InfoVaultDB.Status.Running;
+        db.registerIndex(LABEL, "city", cityExtractor);
+        db.save(LABEL, "alice", "Alice|Berlin".getBytes(), true);
+        db.save(LABEL, "bob", "Bob|Amsterdam".getBytes(), true);
+        assert countFiles(baseDir, ".jnl") == 1;
+
+        db.teardown();
+        assert db.getStatus() == InfoVaultDB.Status.Shutdown;
+        // Journal folded into the snapshot
+        assert countFiles(baseDir, ".jnl") == 0 && countFiles(baseDir, ".idx") == 1;
+
+        // A second open reads the snapshot alone
+        Properties p = new Properties();
+        p.setProperty("1m5.dir.services.io.onemfive.core.infovault.InfoVaultService", baseDir.getAbsolutePath());
+        db = new LocalFSInfoVaultDB();
+        assert db.init(p) && db.getStatus() == InfoVaultDB.Status.Running;
+        db.registerIndex(LABEL, "city", cityExtractor);
+        assert db.findKeys(LABEL, "city", "Berlin").contains("alice");
+        assert db.findKeys(LABEL, "city", null, null).size() == 2;
+    }
+
+    @Test
+    public void reregisteredIndexRebuilt() throws Exception {
+        db.save(LABEL, "alice", "Alice|Berlin".getBytes(), true);
+        db.save(LABEL, "bob", "Bob|Amsterdam".getBytes(), true);
+        db.registerIndex(LABEL, "city", cityExtractor);
+        assert db.findKeys(LABEL, "city", "Berlin").contains("alice");
+
+        // A new extractor under the same name applies to the records saved before, also those saved while rebuilding
+        final Thread[] saver = new Thread[1];
+        IndexExtractor upperCity = new IndexExtractor() {
+            @Override
+            public String extract(String key, byte[] content) {
+                if(saver[0] == null) {
+                    saver[0] = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                db.save(LABEL, "carol", "Carol|Berlin".getBytes(), true);
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    };
+                    saver[0].start();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                String city = cityExtractor.extract(key, content);
+                return city == null ? null : city.toUpperCase();
+            }
+        };
+        db.registerIndex(LABEL, "city", upperCity);
+        saver[0].join();
+        assert db.findKeys(LABEL, "city", "Berlin").isEmpty();
+        List<String> berlin = db.findKeys(LABEL, "city", "BERLIN");
+        assert berlin.size() == 2 && berlin.contains("alice") && berlin.contains("carol") : berlin;
+        assert db.findKeys(LABEL, "city", "AMSTERDAM").contains("bob");
+
+        // The replaced index did not overwrite the rebuilt one on disk
+        db.teardown();
+        db.registerIndex(LABEL, "city", upperCity);
+        assert db.findKeys(LABEL, "city", "BERLIN").size() == 2;
+    }
+
+    @Test
+    public void compressedAndChunkedRoundTrip() throws Exception {
+        byte[] small = "Alice|Berlin".getBytes();
+        db.setCompression(LABEL, LocalFSInfoVaultDB.Compression.RATIO);
+        db.save(LABEL, "small", small, true);
+        assert Arrays.equals(small, db.load(LABEL, "small"));
+
+        // Compressible and larger than the chunk threshold
+        byte[] large = new byte[200 * 1024];
+        for(int i = 0; i < large.length; i++) {
+            large[i] = (byte)(i % 64);
+        }
+        db.save(LABEL, "large", large, true);
+        assert Arrays.equals(large, db.load(LABEL, "large"));
+        File blocksDir = new File(baseDir, "LocalFSInfoVaultDB-blocks");
+        int blocks = countFiles(blocksDir);
+        assert blocks > 0;
+
+        // Identical content shares its chunks
+        db.save(LABEL, "large-copy", large, true);
+        assert countFiles(blocksDir) == blocks;
+        assert Arrays.equals(large, db.load(LABEL, "large-copy"));
+
+        // Chunks of overwritten records are purged once unreferenced
+        db.save(LABEL, "large", small, true);
+        assert db.purgeUnreferencedChunks() == 0;
+        db.save(LABEL, "large-copy", small, true);
+        Thread.sleep(10);
+        assert db.purgeUnreferencedChunks() == blocks;
+    }
+
+    @Test
+    public void flatRecordsMigratedToShardedStripes() throws Exception {
+        // Records saved before layouts existed
+        File flatBase = new File(baseDir, "flat");
+        File labelDir = new File(new File(flatBase, "LocalFSInfoVaultDB"), LABEL);
+        assert labelDir.mkdirs();
+        for(int i = 0; i < 100; i++) {
+            FileOutputStream out = new FileOutputStream(new File(labelDir, "key" + i));
+            out.write(("Name" + i + "|City").getBytes());
+            out.close();
+        }
+        File stripe1 = new File(baseDir, "stripe1");
+        File stripe2 = new File(baseDir, "stripe2");
+        Properties p = new Properties();
+        p.setProperty("1m5.dir.services.io.onemfive.core.infovault.InfoVaultService", flatBase.getAbsolutePath());
+        p.setProperty(LocalFSInfoVaultDB.PROP_LAYOUT, "SHARDED");
+        p.setProperty(LocalFSInfoVaultDB.PROP_DATA_DIRS, stripe1.getAbsolutePath() + "," + stripe2.getAbsolutePath());
+        LocalFSInfoVaultDB flat = new LocalFSInfoVaultDB();
+        assert flat.init(p);
+        assert flat.getLayout() == LocalFSInfoVaultDB.Layout.FLAT;
+        assert Arrays.equals("Name7|City".getBytes(), flat.load(LABEL, "key7"));
+
+        assert flat.migrateLayout() == 100;
+        assert flat.getLayout() == LocalFSInfoVaultDB.Layout.SHARDED;
+        assert !labelDir.exists();
+        assert Arrays.equals("Name7|City".getBytes(), flat.load(LABEL, "key7"));
+        assert flat.loadAll(LABEL).size() == 100;
+        assert countFiles(stripe1) > 0 && countFiles(stripe2) > 0;
+        assert countFiles(stripe1) + countFiles(stripe2) == 100;
+        flat.teardown();
+
+        // Layout is remembered
+        LocalFSInfoVaultDB reopened = new LocalFSInfoVaultDB();
+        assert reopened.init(p);
+        assert reopened.getLayout() == LocalFSInfoVaultDB.Layout.SHARDED;
+        assert Arrays.equals("Name42|City".getBytes(), reopened.load(LABEL, "key42"));
+        reopened.teardown();
+    }
+
+    @Test
+    public void snapshotAndIncrementalExport() throws Exception {
+        byte[] large = new byte[100 * 1024];
+        for(int i = 0; i < large.length; i++) {
+            large[i] = (byte)(i % 251);
+        }
+        db.save(LABEL, "alice", "Alice|Berlin".getBytes(), true);
+        db.save(LABEL, "large", large, true);
+        String first = db.snapshot();
+        assert first != null;
+
+        // Changes after the snapshot do not reach it
+        db.save(LABEL, "alice", "Alice|Cairo".getBytes(), true);
+        db.save(LABEL, "bob", "Bob|Amsterdam".getBytes(), true);
+        db.purgeUnreferencedChunks();
+        String second = db.snapshot();
+        assert db.listSnapshots().size() == 2 && db.listSnapshots().get(0).equals(first);
+
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        assert db.exportChanges(null, first, full) == 2;
+        ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+        assert db.exportChanges(first, second, incremental) == 2;
+
+        // Restore the full export then the incremental one into another vault
+        Properties p = new Properties();
+        p.setProperty("1m5.dir.services.io.onemfive.core.infovault.InfoVaultService", new File(baseDir, "restored").getAbsolutePath());
+        LocalFSInfoVaultDB restored = new LocalFSInfoVaultDB();
+        assert restored.init(p);
+        assert restored.importChanges(new ByteArrayInputStream(full.toByteArray())) == 2;
+        assert Arrays.equals("Alice|Berlin".getBytes(), restored.load(LABEL, "alice"));
+        assert Arrays.equals(large, restored.load(LABEL, "large"));
+        assert restored.importChanges(new ByteArrayInputStream(incremental.toByteArray())) == 2;
+        assert Arrays.equals("Alice|Cairo".getBytes(), restored.load(LABEL, "alice"));
+        assert restored.loadAll(LABEL).size() == 3;
+        restored.teardown();
+
+        assert db.deleteSnapshot(first);
+        assert db.listSnapshots().size() == 1;
+    }
+
+    @Test
+    public void importSkipsEntriesLeavingTheVault() throws Exception {
+        File outside = new File(baseDir.getParentFile(), "infovault-slip-" + System.nanoTime());
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(archive);
+        String[] names = {
+                "records/../../../../../../.." + outside.getAbsolutePath() + "/key",
+                "records/" + LABEL + "/..",
+                "records/" + LABEL + "/..\\..\\key",
+                "records/" + LABEL + "/alice"};
+        for(String name : names) {
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write("Alice|Berlin".getBytes());
+            zip.closeEntry();
+        }
+        zip.finish();
+
+        assert db.importChanges(new ByteArrayInputStream(archive.toByteArray())) == 1;
+        assert Arrays.equals("Alice|Berlin".getBytes(), db.load(LABEL, "alice"));
+        assert !outside.exists();
+        assert db.loadAll(LABEL).size() == 1;
+    }
+
+    private int countFiles(File dir, String suffix) {
+        int count = 0;
+        File[] children = dir.listFiles();
+        if(children == null) return 0;
+        for(File f : children) {
+            if(f.isDirectory()) count += countFiles(f, suffix);
+            else if(f.getName().endsWith(suffix)) count++;
+        }
+        return count;
+    }
+
+    private int countFiles(File dir) {
+        int count = 0;
+        File[] children = dir.listFiles();
+        if(children == null) return 0;
+        for(File f : children) {
+            count += f.isDirectory() ? countFiles(f) : 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,36 @@
+package io.onemfive.core.keyring;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.Security;
+import java.util.Properties;
+
+/**
+ * Ranks the key ring providers found on the class path on this host as {@link KeyRingService} does on start.
+ *
+ * Not run as part of the build; run with:
+ * java -cp target/classes:target/test-classes:... io.onemfive.core.keyring.KeyRingProvidersBenchmark
+ *
+ * @author objectorange
+ */
+public class KeyRingProvidersBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyRingProviders providers = new KeyRingProviders();
+        try {
+            for(KeyRingProvider p : KeyRingProviders.discover(KeyRingProvidersBenchmark.class.getClassLoader())) {
+                KeyRing keyRing = p.newKeyRing();
+                keyRing.init(new Properties());
+                providers.register(p.getName(), p, keyRing);
+            }
+            System.out.println(String.format("%-4s %-50s %12s", "rank", "provider", "us/op"));
+            int rank = 1;
+            for(String name : providers.rank()) {
+                System.out.println(String.format("%-4d %-50s %12.1f", rank++, name, providers.getCost(name) / 1000.0));
+            }
+        } finally {
+            providers.clear();
+        }
+    }
+}
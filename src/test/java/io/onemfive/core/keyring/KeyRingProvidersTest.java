@@ -0,0 +1,103 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.data.EncryptionAlgorithm;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.Security;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Tests for KeyRingProviders.
+ *
+ * @author objectorange
+ */
+public class KeyRingProvidersTest {
+
+    private KeyRingProviders providers;
+
+    @Before
+    public void init() {
+        Security.addProvider(new BouncyCastleProvider());
+        providers = new KeyRingProviders();
+    }
+
+    @After
+    public void teardown() {
+        providers.clear();
+    }
+
+    @Test
+    public void routing() throws Exception {
+        List<KeyRingProvider> discovered = KeyRingProviders.discover(getClass().getClassLoader());
+        assert discovered.size() == 1 && discovered.get(0) instanceof OpenPGPKeyRingProvider;
+        KeyRingProvider openPGP = discovered.get(0);
+        KeyRing keyRing = openPGP.newKeyRing();
+        keyRing.init(new Properties());
+        providers.register(openPGP.getName(), openPGP, keyRing);
+
+        // Cheaper but only signs
+        FakeProvider fake = new FakeProvider();
+        providers.register(fake.getName(), fake, fake.newKeyRing());
+        providers.register(SmartPGPKeyRing.class.getName(), null, new SmartPGPKeyRing());
+
+        assert fake.getName().equals(providers.select(null));
+        assert openPGP.getName().equals(providers.select(null, KeyRingProvider.Capability.STREAMING));
+        assert openPGP.getName().equals(providers.select(EncryptionAlgorithm.AES256));
+        assert providers.select(null, KeyRingProvider.Capability.HARDWARE) == null;
+        assert providers.select(EncryptionAlgorithm.TWOFISH) == null;
+        assert providers.get(SmartPGPKeyRing.class.getName()) != null;
+        assert providers.getCost(SmartPGPKeyRing.class.getName()) == -1;
+
+        // Measured costs replace hints; the fake can not sign so is never routed to again
+        List<String> ranking = providers.rank();
+        assert ranking.get(0).equals(openPGP.getName());
+        assert providers.getCost(openPGP.getName()) != openPGP.getCostHint();
+        assert openPGP.getName().equals(providers.select(null));
+    }
+
+    private static class FakeProvider implements KeyRingProvider {
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public Set<Capability> getCapabilities() {
+            return EnumSet.noneOf(Capability.class);
+        }
+
+        @Override
+        public Set<EncryptionAlgorithm> getAlgorithms() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public long getCostHint() {
+            return 1L;
+        }
+
+        @Override
+        public KeyRing newKeyRing() {
+            // Fails generating key rings when ranked
+            return new SmartPGPKeyRing() {
+                @Override
+                public void generateKeyRingCollections(GenerateKeyRingCollectionsRequest r) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
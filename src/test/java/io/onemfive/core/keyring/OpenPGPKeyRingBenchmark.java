@@ -0,0 +1,98 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.core.util.FileUtil;
+import io.onemfive.data.EncryptionAlgorithm;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPPublicKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.security.Security;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Encryption throughput of OpenPGPKeyRing per symmetric algorithm, compression and armour.
+ *
+ * Not run as part of the build; run with:
+ * java -cp target/classes:target/test-classes:... io.onemfive.core.keyring.OpenPGPKeyRingBenchmark [MB per run] [runs]
+ *
+ * Random content stands in for content already compressed, text-like content for the rest.
+ *
+ * @author objectorange
+ */
+public class OpenPGPKeyRingBenchmark {
+
+    private static final String USERNAME = "Benchmark";
+    private static final String PASSPHRASE = "1234";
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Security.addProvider(new BouncyCastleProvider());
+        File location = new File(System.getProperty("java.io.tmpdir"), "keyring-benchmark-" + System.nanoTime());
+        location.mkdirs();
+        OpenPGPKeyRing keyRing = new OpenPGPKeyRing();
+        keyRing.init(new Properties());
+        try {
+            GenerateKeyRingCollectionsRequest g = new GenerateKeyRingCollectionsRequest();
+            g.location = location.getAbsolutePath();
+            g.keyRingUsername = USERNAME;
+            g.keyRingPassphrase = PASSPHRASE;
+            keyRing.generateKeyRingCollections(g);
+            PGPPublicKey publicKey = keyRing.getPublicKey(keyRing.getPublicKeyRingCollection(g.location, USERNAME, PASSPHRASE), USERNAME, false);
+
+            byte[] random = new byte[mb * 1024 * 1024];
+            new Random(1).nextBytes(random);
+            byte[] text = new byte[random.length];
+            for(int i = 0; i < text.length; i++) {
+                text[i] = (byte)('a' + (random[i] & 0x0f));
+            }
+            System.out.println(String.format("%-8s %-9s %-8s %-7s %10s %10s", "cipher", "compress", "armored", "content", "MB/s", "size %"));
+            for(EncryptionAlgorithm algorithm : new EncryptionAlgorithm[] {EncryptionAlgorithm.CAST5, EncryptionAlgorithm.AES256}) {
+                for(boolean compress : new boolean[] {true, false}) {
+                    for(boolean armored : new boolean[] {true, false}) {
+                        run(keyRing, publicKey, algorithm, compress, armored, "random", random, runs);
+                        run(keyRing, publicKey, algorithm, compress, armored, "text", text, runs);
+                    }
+                }
+            }
+        } finally {
+            keyRing.teardown();
+            FileUtil.rmdir(location, false);
+        }
+    }
+
+    private static void run(OpenPGPKeyRing keyRing, PGPPublicKey publicKey, EncryptionAlgorithm algorithm, boolean compress, boolean armored, String name, byte[] content, int runs) throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        // Warm up
+        keyRing.encrypt(new ByteArrayInputStream(content), out, publicKey, algorithm, compress, armored);
+        out.count = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < runs; i++) {
+            keyRing.encrypt(new ByteArrayInputStream(content), out, publicKey, algorithm, compress, armored);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mbPerSecond = (double)content.length * runs / (1024 * 1024) / seconds;
+        double size = 100.0 * out.count / runs / content.length;
+        System.out.println(String.format("%-8s %-9s %-8s %-7s %10.1f %10.1f", algorithm, compress, armored, name, mbPerSecond, size));
+    }
+
+    /**
+     * Discards output so only encryption is measured.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package io.onemfive.core.keyring;
+
+import io.onemfive.core.util.FileUtil;
+import io.onemfive.data.EncryptionAlgorithm;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.security.Security;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Tests for OpenPGPKeyRing.
+ *
+ * @author objectorange
+ */
+public class OpenPGPKeyRingTest {
+
+    private static final String USERNAME = "Alice";
+    private static final String PASSPHRASE = "1234";
+
+    private File location;
+    private OpenPGPKeyRing keyRing;
+
+    @Before
+    public void init() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        location = new File(System.getProperty("java.io.tmpdir"), "keyring-test-" + System.nanoTime());
+        assert location.mkdirs();
+        keyRing = new OpenPGPKeyRing();
+        keyRing.init(new Properties());
+        GenerateKeyRingCollectionsRequest r = new GenerateKeyRingCollectionsRequest();
+        r.location = location.getAbsolutePath();
+        r.keyRingUsername = USERNAME;
+        r.keyRingPassphrase = PASSPHRASE;
+        keyRing.generateKeyRingCollections(r);
+    }
+
+    @After
+    public void teardown() {
+        keyRing.teardown();
+        FileUtil.rmdir(location, false);
+    }
+
+    @Test
+    public void cachedKeyRings() throws Exception {
+        PGPPublicKeyRingCollection c = keyRing.getPublicKeyRingCollection(location.getAbsolutePath(), USERNAME, PASSPHRASE);
+        assert c == keyRing.getPublicKeyRingCollection(location.getAbsolutePath(), USERNAME, PASSPHRASE);
+
+        byte[] content = "Hello".getBytes();
+        for(int i = 0; i < 2; i++) {
+            SignRequest s = new SignRequest();
+            s.location = location.getAbsolutePath();
+            s.keyRingUsername = USERNAME;
+            s.keyRingPassphrase = PASSPHRASE;
+            s.alias = USERNAME;
+            s.passphrase = PASSPHRASE;
+            s.contentToSign = content;
+            keyRing.sign(s);
+            assert keyRing.privateKeyCache.size() == 1;
+
+            VerifySignatureRequest v = new VerifySignatureRequest();
+            v.location = location.getAbsolutePath();
+            v.keyRingUsername = USERNAME;
+            v.keyRingPassphrase = PASSPHRASE;
+            v.contentSigned = content;
+            v.signature = s.signature;
+            v.fingerprint = keyRing.getPublicKey(c, USERNAME, true).getFingerprint();
+            keyRing.verifySignature(v);
+            assert v.verified;
+        }
+
+        // A wrong passphrase is not served from the cache
+        SignRequest wrong = new SignRequest();
+        wrong.location = location.getAbsolutePath();
+        wrong.keyRingUsername = USERNAME;
+        wrong.alias = USERNAME;
+        wrong.passphrase = "4321";
+        wrong.contentToSign = content;
+        try {
+            keyRing.sign(wrong);
+            assert false;
+        } catch (Exception e) {
+            assert wrong.signature == null;
+        }
+
+        // Changed on disk by another instance
+        OpenPGPKeyRing other = new OpenPGPKeyRing();
+        other.createKeyRings(location.getAbsolutePath(), USERNAME, PASSPHRASE, "Bob", PASSPHRASE, KeyRingService.PASSWORD_HASH_STRENGTH_64);
+        new File(location, USERNAME + ".skr").setLastModified(System.currentTimeMillis() + 5000);
+        new File(location, USERNAME + ".pkr").setLastModified(System.currentTimeMillis() + 5000);
+        PGPPublicKeyRingCollection reloaded = keyRing.getPublicKeyRingCollection(location.getAbsolutePath(), USERNAME, PASSPHRASE);
+        assert reloaded != c && reloaded.size() == 2;
+        other.teardown();
+
+        SignRequest bob = new SignRequest();
+        bob.location = location.getAbsolutePath();
+        bob.keyRingUsername = USERNAME;
+        bob.alias = "Bob";
+        bob.passphrase = PASSPHRASE;
+        bob.contentToSign = content;
+        keyRing.sign(bob);
+        assert bob.signature != null;
+    }
+
+    @Test
+    public void publicKeyIndex() throws Exception {
+        String loc = location.getAbsolutePath();
+        PGPPublicKeyRingCollection c = keyRing.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE);
+        PGPPublicKey identity = keyRing.getPublicKey(c, USERNAME, true);
+        PGPPublicKey encryption = keyRing.getPublicKey(c, USERNAME, false);
+        assert identity.isMasterKey() && encryption.isEncryptionKey() && !encryption.isMasterKey();
+        assert keyRing.getPublicKey(c, USERNAME) == identity;
+        assert keyRing.getPublicKey(c, identity.getFingerprint()) == identity;
+        assert keyRing.getPublicKey(c, encryption.getKeyID()) == encryption;
+        assert keyRing.getPublicKey(c, "Nobody", true) == null;
+
+        // Store a contact's key in Alice's ring
+        GenerateKeyRingCollectionsRequest g = new GenerateKeyRingCollectionsRequest();
+        g.location = loc;
+        g.keyRingUsername = "Carol";
+        g.keyRingPassphrase = PASSPHRASE;
+        keyRing.generateKeyRingCollections(g);
+        PGPPublicKey carol = keyRing.getPublicKey(keyRing.getPublicKeyRingCollection(loc, "Carol", PASSPHRASE), "Carol", false);
+
+        StorePublicKeysRequest r = new StorePublicKeysRequest();
+        r.location = loc;
+        r.keyRingUsername = USERNAME;
+        r.keyId = identity.getKeyID();
+        r.publicKeys = Collections.singletonList(carol);
+        keyRing.storePublicKeys(r);
+        assert r.statusCode == StorePublicKeysRequest.NO_ERROR;
+
+        PGPPublicKeyRingCollection updated = keyRing.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE);
+        assert updated != c;
+        assert keyRing.getPublicKey(updated, carol.getKeyID()) != null;
+        assert keyRing.getPublicKey(updated, carol.getFingerprint()) != null;
+        // The collection held before still resolves only its own keys
+        assert keyRing.getPublicKey(c, carol.getKeyID()) == null;
+        assert keyRing.getPublicKey(c, identity.getKeyID()) == identity;
+
+        // Likewise for a key ring created in the collection
+        keyRing.createKeyRings(loc, USERNAME, PASSPHRASE, "Dan", PASSPHRASE, KeyRingService.PASSWORD_HASH_STRENGTH_64);
+        PGPPublicKeyRingCollection created = keyRing.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE);
+        assert keyRing.getPublicKey(created, "Dan", true) != null;
+        assert keyRing.getPublicKey(updated, "Dan", true) == null;
+
+        // Persisted
+        OpenPGPKeyRing reopened = new OpenPGPKeyRing();
+        assert reopened.getPublicKey(reopened.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE), carol.getKeyID()) != null;
+        reopened.teardown();
+    }
+
+    @Test
+    public void streamingRoundTrip() throws Exception {
+        String loc = location.getAbsolutePath();
+        // Several times the stream buffer so partial length packets are exercised
+        File plain = new File(location, "plain.bin");
+        byte[] block = new byte[64 * 1024];
+        FileOutputStream fOut = new FileOutputStream(plain);
+        for(int i = 0; i < 64; i++) {
+            Arrays.fill(block, (byte)i);
+            block[i] = (byte)0xff;
+            fOut.write(block);
+        }
+        fOut.close();
+
+        EncryptStreamRequest e = new EncryptStreamRequest();
+        e.location = loc;
+        e.keyRingUsername = USERNAME;
+        e.keyRingPassphrase = PASSPHRASE;
+        e.publicKeyAlias = USERNAME;
+        e.inputPath = plain.getAbsolutePath();
+        e.outputPath = new File(location, "plain.bin.pgp").getAbsolutePath();
+        e.armored = false;
+        keyRing.encryptStream(e);
+        assert e.statusCode == EncryptStreamRequest.NO_ERROR && e.bytesRead == plain.length();
+
+        DecryptStreamRequest d = new DecryptStreamRequest();
+        d.location = loc;
+        d.keyRingUsername = USERNAME;
+        d.keyRingPassphrase = PASSPHRASE;
+        d.inputPath = e.outputPath;
+        d.outputPath = new File(location, "decrypted.bin").getAbsolutePath();
+        keyRing.decryptStream(d);
+        assert d.bytesWritten == plain.length();
+        assert Arrays.equals(FileUtil.readFile(plain.getAbsolutePath()), FileUtil.readFile(d.outputPath));
+
+        // Armoured through supplied streams
+        byte[] content = "Hello streams".getBytes();
+        ByteArrayOutputStream armored = new ByteArrayOutputStream();
+        EncryptStreamRequest ea = new EncryptStreamRequest();
+        ea.location = loc;
+        ea.keyRingUsername = USERNAME;
+        ea.keyRingPassphrase = PASSPHRASE;
+        ea.publicKeyAlias = USERNAME;
+        ea.in = new ByteArrayInputStream(content);
+        ea.out = armored;
+        keyRing.encryptStream(ea);
+        assert new String(armored.toByteArray()).startsWith("-----BEGIN PGP MESSAGE-----");
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        DecryptStreamRequest da = new DecryptStreamRequest();
+        da.location = loc;
+        da.keyRingUsername = USERNAME;
+        da.keyRingPassphrase = PASSPHRASE;
+        da.in = new ByteArrayInputStream(armored.toByteArray());
+        da.out = decrypted;
+        keyRing.decryptStream(da);
+        assert Arrays.equals(content, decrypted.toByteArray());
+    }
+
+    @Test
+    public void batchSignAndVerify() throws Exception {
+        String loc = location.getAbsolutePath();
+        List<byte[]> contents = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            contents.add(("Message " + i).getBytes());
+        }
+        SignBatchRequest s = new SignBatchRequest();
+        s.location = loc;
+        s.keyRingUsername = USERNAME;
+        s.keyRingPassphrase = PASSPHRASE;
+        s.alias = USERNAME;
+        s.passphrase = PASSPHRASE;
+        s.contentsToSign = contents;
+        keyRing.signBatch(s);
+        assert s.signatures.size() == contents.size();
+
+        // Batch signatures verify singly
+        byte[] fingerprint = keyRing.getPublicKey(keyRing.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE), USERNAME, true).getFingerprint();
+        VerifySignatureRequest single = new VerifySignatureRequest();
+        single.location = loc;
+        single.keyRingUsername = USERNAME;
+        single.keyRingPassphrase = PASSPHRASE;
+        single.contentSigned = contents.get(42);
+        single.signature = s.signatures.get(42);
+        single.fingerprint = fingerprint;
+        keyRing.verifySignature(single);
+        assert single.verified;
+
+        List<byte[]> signatures = new ArrayList<>(s.signatures);
+        signatures.set(7, s.signatures.get(8));
+        signatures.set(9, "garbage".getBytes());
+        VerifySignatureBatchRequest v = new VerifySignatureBatchRequest();
+        v.location = loc;
+        v.keyRingUsername = USERNAME;
+        v.keyRingPassphrase = PASSPHRASE;
+        v.contentsSigned = contents;
+        v.signatures = signatures;
+        v.fingerprint = fingerprint;
+        keyRing.verifySignatureBatch(v);
+        for(int i = 0; i < contents.size(); i++) {
+            assert v.verified[i] == (i != 7 && i != 9);
+        }
+    }
+
+    @Test
+    public void algorithmsAndBinaryMode() throws Exception {
+        byte[] content = new byte[100 * 1024];
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte)(i % 13);
+        }
+        int armoredSize = 0;
+        for(EncryptionAlgorithm algorithm : new EncryptionAlgorithm[] {EncryptionAlgorithm.CAST5, EncryptionAlgorithm.AES256}) {
+            for(boolean compress : new boolean[] {true, false}) {
+                for(boolean armored : new boolean[] {true, false}) {
+                    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+                    EncryptStreamRequest e = new EncryptStreamRequest();
+                    e.location = location.getAbsolutePath();
+                    e.keyRingUsername = USERNAME;
+                    e.keyRingPassphrase = PASSPHRASE;
+                    e.publicKeyAlias = USERNAME;
+                    e.in = new ByteArrayInputStream(content);
+                    e.out = encrypted;
+                    e.algorithm = algorithm;
+                    e.compress = compress;
+                    e.armored = armored;
+                    keyRing.encryptStream(e);
+                    // Binary OpenPGP packets start with the tag bit set
+                    assert armored == ((encrypted.toByteArray()[0] & 0x80) == 0);
+                    if(!compress && armored)
+                        armoredSize = encrypted.size();
+                    else if(!compress)
+                        assert encrypted.size() > content.length && encrypted.size() < armoredSize;
+                    else
+                        assert encrypted.size() < content.length / 4;
+
+                    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                    DecryptStreamRequest d = new DecryptStreamRequest();
+                    d.location = location.getAbsolutePath();
+                    d.keyRingUsername = USERNAME;
+                    d.keyRingPassphrase = PASSPHRASE;
+                    d.in = new ByteArrayInputStream(encrypted.toByteArray());
+                    d.out = decrypted;
+                    keyRing.decryptStream(d);
+                    assert Arrays.equals(content, decrypted.toByteArray());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keyPairPool() throws Exception {
+        KeyPairPool pool = new KeyPairPool(KeyPairPool.Algorithm.RSA_2048, 2);
+        try {
+            long deadline = System.currentTimeMillis() + 60 * 1000;
+            while(pool.available() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assert pool.available() == 2;
+            AsymmetricCipherKeyPair first = pool.take();
+            AsymmetricCipherKeyPair second = pool.take();
+            // Drained pools still hand out key pairs
+            AsymmetricCipherKeyPair third = pool.take();
+            assert first != null && second != null && third != null && first != second;
+            while(pool.available() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assert pool.available() == 2;
+        } finally {
+            pool.shutdown();
+        }
+        assert pool.available() == 0;
+    }
+
+    @Test
+    public void verificationCache() throws Exception {
+        String loc = location.getAbsolutePath();
+        SignRequest s = new SignRequest();
+        s.location = loc;
+        s.keyRingUsername = USERNAME;
+        s.keyRingPassphrase = PASSPHRASE;
+        s.alias = USERNAME;
+        s.passphrase = PASSPHRASE;
+        s.contentToSign = "Relayed".getBytes();
+        keyRing.sign(s);
+        byte[] fingerprint = keyRing.getPublicKey(keyRing.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE), USERNAME, true).getFingerprint();
+
+        VerificationCache cache = keyRing.getVerificationCache();
+        for(int i = 0; i < 3; i++) {
+            VerifySignatureRequest v = new VerifySignatureRequest();
+            v.location = loc;
+            v.keyRingUsername = USERNAME;
+            v.keyRingPassphrase = PASSPHRASE;
+            v.contentSigned = "Relayed".getBytes();
+            v.signature = s.signature;
+            v.fingerprint = fingerprint;
+            keyRing.verifySignature(v);
+            assert v.verified;
+        }
+        assert cache.size() == 1 && cache.getHits() == 2 && cache.getMisses() == 1;
+
+        // Failures are not remembered
+        for(int i = 0; i < 2; i++) {
+            VerifySignatureRequest tampered = new VerifySignatureRequest();
+            tampered.location = loc;
+            tampered.keyRingUsername = USERNAME;
+            tampered.keyRingPassphrase = PASSPHRASE;
+            tampered.contentSigned = "Tampered".getBytes();
+            tampered.signature = s.signature;
+            tampered.fingerprint = fingerprint;
+            keyRing.verifySignature(tampered);
+            assert !tampered.verified;
+        }
+        assert cache.size() == 1 && cache.getHits() == 2 && cache.getMisses() == 3;
+        assert cache.getHitRate() == 0.4;
+    }
+
+    @Test
+    public void journaledPublicKeyRing() throws Exception {
+        String loc = location.getAbsolutePath();
+        File pkr = new File(location, USERNAME + ".pkr");
+        File journal = new File(location, USERNAME + ".pkr.jnl");
+        long pkrLength = pkr.length();
+        PGPPublicKey identity = keyRing.getPublicKey(keyRing.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE), USERNAME, true);
+
+        // Keys of contacts are appended to the journal leaving the key ring file as is
+        List<PGPPublicKey> contacts = new ArrayList<>();
+        for(String contact : new String[] {"Carol", "Dave"}) {
+            GenerateKeyRingCollectionsRequest g = new GenerateKeyRingCollectionsRequest();
+            g.location = loc;
+            g.keyRingUsername = contact;
+            g.keyRingPassphrase = PASSPHRASE;
+            keyRing.generateKeyRingCollections(g);
+            PGPPublicKey key = keyRing.getPublicKey(keyRing.getPublicKeyRingCollection(loc, contact, PASSPHRASE), contact, false);
+            contacts.add(key);
+            StorePublicKeysRequest r = new StorePublicKeysRequest();
+            r.location = loc;
+            r.keyRingUsername = USERNAME;
+            r.keyId = identity.getKeyID();
+            r.publicKeys = Collections.singletonList(key);
+            keyRing.storePublicKeys(r);
+        }
+        assert pkr.length() == pkrLength && journal.exists();
+
+        // A torn entry from a crash is ignored and truncated so entries appended after it are replayed
+        long journalLength = journal.length();
+        FileOutputStream torn = new FileOutputStream(journal, true);
+        torn.write(new byte[] {0, 0, 1, 0, 2, 3});
+        torn.close();
+        OpenPGPKeyRing reopened = new OpenPGPKeyRing();
+        PGPPublicKeyRingCollection replayed = reopened.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE);
+        for(PGPPublicKey k : contacts) {
+            assert reopened.getPublicKey(replayed, k.getKeyID()) != null;
+        }
+        assert journal.length() == journalLength;
+        GenerateKeyRingCollectionsRequest g = new GenerateKeyRingCollectionsRequest();
+        g.location = loc;
+        g.keyRingUsername = "Eve";
+        g.keyRingPassphrase = PASSPHRASE;
+        reopened.generateKeyRingCollections(g);
+        PGPPublicKey eve = reopened.getPublicKey(reopened.getPublicKeyRingCollection(loc, "Eve", PASSPHRASE), "Eve", false);
+        contacts.add(eve);
+        StorePublicKeysRequest r = new StorePublicKeysRequest();
+        r.location = loc;
+        r.keyRingUsername = USERNAME;
+        r.keyId = identity.getKeyID();
+        r.publicKeys = Collections.singletonList(eve);
+        reopened.storePublicKeys(r);
+        OpenPGPKeyRing again = new OpenPGPKeyRing();
+        assert again.getPublicKey(again.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE), eve.getKeyID()) != null;
+        reopened.teardown();
+
+        // Teardown compacts the journal into the key ring file
+        assert !journal.exists() && pkr.length() > pkrLength;
+        OpenPGPKeyRing compacted = new OpenPGPKeyRing();
+        PGPPublicKeyRingCollection c = compacted.getPublicKeyRingCollection(loc, USERNAME, PASSPHRASE);
+        for(PGPPublicKey k : contacts) {
+            assert compacted.getPublicKey(c, k.getKeyID()) != null;
+        }
+        compacted.teardown();
+    }
+}
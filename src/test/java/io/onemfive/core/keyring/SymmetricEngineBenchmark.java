@@ -0,0 +1,102 @@
+package io.onemfive.core.keyring;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Symmetric encryption of small messages: the engine's byte array and in place buffer
+ * paths against setting up digest, key and Cipher per message as KeyRingService did.
+ *
+ * Not run as part of the build; run with:
+ * java -cp target/classes:target/test-classes:... io.onemfive.core.keyring.SymmetricEngineBenchmark [seconds per measurement]
+ *
+ * Each case is warmed up, then measured over several iterations, reporting the mean and spread.
+ *
+ * @author objectorange
+ */
+public class SymmetricEngineBenchmark {
+
+    private static final String PASSPHRASE = "benchmark passphrase";
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    private interface Case {
+        void run() throws Exception;
+    }
+
+    // Keeps results live so the JIT can not drop the work
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        final long nanosPerIteration = (args.length > 0 ? Long.parseLong(args[0]) : 1) * 1000000000L;
+        final SymmetricEngine engine = new SymmetricEngine(256);
+        final byte[] iv = engine.newIV();
+        System.out.println(String.format("%-12s %6s %14s %10s", "case", "bytes", "ops/s", "+/- %"));
+        for(final int size : new int[] {256, 4096}) {
+            final byte[] content = new byte[size];
+            new SecureRandom().nextBytes(content);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(size + SymmetricEngine.IV_LENGTH);
+            measure("per-request", size, nanosPerIteration, new Case() {
+                @Override
+                public void run() throws Exception {
+                    byte[] key = Arrays.copyOf(MessageDigest.getInstance("SHA-1").digest(PASSPHRASE.getBytes("UTF-8")), 16);
+                    Cipher c = Cipher.getInstance(SymmetricEngine.TRANSFORMATION);
+                    c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+                    sink += c.doFinal(content).length;
+                }
+            });
+            measure("engine", size, nanosPerIteration, new Case() {
+                @Override
+                public void run() throws Exception {
+                    sink += engine.encrypt(PASSPHRASE, iv, content).length;
+                }
+            });
+            measure("in-place", size, nanosPerIteration, new Case() {
+                @Override
+                public void run() throws Exception {
+                    buffer.clear();
+                    buffer.put(content);
+                    buffer.flip();
+                    sink += engine.encrypt(PASSPHRASE, iv, buffer);
+                }
+            });
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void measure(String name, int size, long nanosPerIteration, Case c) throws Exception {
+        for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(c, nanosPerIteration);
+        }
+        double[] opsPerSecond = new double[MEASUREMENT_ITERATIONS];
+        double mean = 0;
+        for(int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            opsPerSecond[i] = iteration(c, nanosPerIteration);
+            mean += opsPerSecond[i] / MEASUREMENT_ITERATIONS;
+        }
+        double spread = 0;
+        for(double ops : opsPerSecond) {
+            spread = Math.max(spread, Math.abs(ops - mean));
+        }
+        System.out.println(String.format("%-12s %6d %14.0f %10.1f", name, size, mean, 100 * spread / mean));
+    }
+
+    private static double iteration(Case c, long nanos) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for(int i = 0; i < 100; i++) {
+                c.run();
+            }
+            ops += 100;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < nanos);
+        return ops * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,75 @@
+package io.onemfive.core.keyring;
+
+import org.junit.Test;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Tests for SymmetricEngine.
+ *
+ * @author objectorange
+ */
+public class SymmetricEngineTest {
+
+    private static final String PASSPHRASE = "1234";
+
+    @Test
+    public void compatibleRoundTrip() throws Exception {
+        SymmetricEngine engine = new SymmetricEngine(2);
+        byte[] content = "Hello symmetric".getBytes();
+        byte[] iv = engine.newIV();
+        byte[] encrypted = engine.encrypt(PASSPHRASE, iv, content);
+
+        // Readable by the per request setup used before
+        byte[] key = Arrays.copyOf(MessageDigest.getInstance("SHA-1").digest(PASSPHRASE.getBytes("UTF-8")), 16);
+        Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        assert Arrays.equals(content, c.doFinal(encrypted));
+        assert Arrays.equals(content, engine.decrypt(PASSPHRASE, iv, encrypted));
+
+        // Bounded
+        engine.encrypt("a", iv, content);
+        engine.encrypt("b", iv, content);
+        assert engine.cachedKeys() == 2;
+
+        try {
+            engine.decrypt("4321", iv, encrypted);
+            assert false;
+        } catch (BadPaddingException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void inPlaceBuffers() throws Exception {
+        SymmetricEngine engine = new SymmetricEngine(16);
+        byte[] content = new byte[4096];
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte)i;
+        }
+        byte[] iv = engine.newIV();
+        byte[] expected = engine.encrypt(PASSPHRASE, iv, content);
+        for(ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(content.length + 64), ByteBuffer.allocateDirect(content.length + 64)}) {
+            buffer.position(8);
+            buffer.put(content);
+            buffer.flip();
+            buffer.position(8);
+            int length = engine.encrypt(PASSPHRASE, iv, buffer);
+            assert length == expected.length && buffer.remaining() == length;
+            byte[] encrypted = new byte[length];
+            buffer.duplicate().get(encrypted);
+            assert Arrays.equals(expected, encrypted);
+
+            assert engine.decrypt(PASSPHRASE, iv, buffer) == content.length;
+            byte[] decrypted = new byte[buffer.remaining()];
+            buffer.get(decrypted);
+            assert Arrays.equals(content, decrypted);
+        }
+    }
+}